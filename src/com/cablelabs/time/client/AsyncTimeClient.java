@@ -0,0 +1,485 @@
+/*
+ * Copyright 2017 Cable Television Laboratories, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cablelabs.time.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import com.cablelabs.time.server.TimeServer;
+
+/**
+ * This class is a non-blocking Time Protocol client engine.
+ *
+ * A single selector thread drives every outstanding TCP and UDP query, and the number of
+ * queries in flight is bounded; {@link #query} blocks the caller once the bound is reached.
+ * Results are delivered to a {@link ResultListener} on the selector thread as each query completes.
+ * A query that throws, in the engine or in its listener, fails on its own; if the engine itself
+ * stops, every outstanding query fails and the client is closed.
+ */
+public class AsyncTimeClient implements Closeable
+{
+	/**
+	 * Callback receiving query results
+	 */
+	public interface ResultListener
+	{
+		/**
+		 * Called on the engine thread when a query completes, fails or times out
+		 * @param result Query result
+		 */
+		void onResult(TimeQueryResult result);
+	}
+
+	// an empty datagram is the whole request; sending it leaves the shared buffer unchanged
+	private static final ByteBuffer EMPTY_REQUEST = ByteBuffer.allocate(0);
+
+	private final int m_maxInFlight;
+	private final long m_timeoutNanos;
+	private final Semaphore m_permits;
+	private final ConcurrentLinkedQueue<_Query> m_pending = new ConcurrentLinkedQueue<_Query>();
+	private final ArrayDeque<_Query> m_deadlines = new ArrayDeque<_Query>();
+	private final Selector m_selector;
+	private final Thread m_engineThread;
+
+	private volatile boolean m_terminate = false;
+
+	/**
+	 * Create an instance of an AsyncTimeClient and start its engine thread
+	 * @param maxInFlight Maximum number of concurrent queries
+	 * @param timeoutMs Per-query timeout in milliseconds
+	 * @throws IOException If the selector cannot be opened
+	 */
+	public AsyncTimeClient(int maxInFlight, long timeoutMs) throws IOException
+	{
+		if (maxInFlight < 1)
+		{
+			throw new IllegalArgumentException("maxInFlight must be at least 1");
+		}
+		m_maxInFlight = maxInFlight;
+		m_timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+		m_permits = new Semaphore(maxInFlight);
+		m_selector = Selector.open();
+
+		m_engineThread = new Thread(new _Engine(), "AsyncTimeClient");
+		m_engineThread.setDaemon(true);
+		m_engineThread.start();
+	}
+
+	/**
+	 * Get the maximum number of concurrent queries
+	 * @return Maximum in-flight queries
+	 */
+	public int getMaxInFlight()
+	{
+		return m_maxInFlight;
+	}
+
+	/**
+	 * Get the number of queries currently in flight
+	 * @return In-flight queries
+	 */
+	public int getInFlight()
+	{
+		return m_maxInFlight - m_permits.availablePermits();
+	}
+
+	/**
+	 * Submit a query; blocks while the maximum number of queries are in flight
+	 * @param target Target label reported back in the result
+	 * @param address Server address
+	 * @param tcp True to use TCP, false to use UDP
+	 * @param listener Listener to receive the result
+	 * @throws InterruptedException If interrupted while waiting for capacity
+	 */
+	public void query(String target, InetSocketAddress address, boolean tcp, ResultListener listener)
+			throws InterruptedException
+	{
+		query(target, address, tcp, null, listener);
+	}
+
+	/**
+	 * Submit a query from a given local address; blocks while the maximum number of queries are in flight
+	 * @param target Target label reported back in the result
+	 * @param address Server address
+	 * @param tcp True to use TCP, false to use UDP
+	 * @param local Local address the query is sent from, or null for any
+	 * @param listener Listener to receive the result
+	 * @throws InterruptedException If interrupted while waiting for capacity
+	 * @throws IllegalStateException If the client is closed
+	 */
+	public void query(String target, InetSocketAddress address, boolean tcp, InetAddress local, ResultListener listener)
+			throws InterruptedException
+	{
+		if (m_terminate)
+		{
+			throw new IllegalStateException("AsyncTimeClient is closed");
+		}
+		m_permits.acquire();
+		_Query query = new _Query(target, address, tcp, local, listener);
+		m_pending.add(query);
+		// the engine may have stopped meanwhile; whoever takes the query back completes it
+		if (m_terminate && m_pending.remove(query))
+		{
+			m_permits.release();
+			throw new IllegalStateException("AsyncTimeClient is closed");
+		}
+		m_selector.wakeup();
+	}
+
+	/**
+	 * Wait until every submitted query has completed
+	 * @throws InterruptedException If interrupted while waiting
+	 */
+	public void drain() throws InterruptedException
+	{
+		m_permits.acquire(m_maxInFlight);
+		m_permits.release(m_maxInFlight);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see java.io.Closeable#close()
+	 */
+	@Override
+	public void close()
+	{
+		m_terminate = true;
+		m_selector.wakeup();
+		try
+		{
+			m_engineThread.join();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * This class is the state of a single query
+	 */
+	private class _Query
+	{
+		private final String m_target;
+		private final InetSocketAddress m_address;
+		private final boolean m_tcp;
+		private final InetAddress m_local;
+		private final ResultListener m_listener;
+		private final ByteBuffer m_response = ByteBuffer.allocate(4);
+
+		private SelectableChannel m_channel = null;
+		private long m_startNanos = 0;
+		private long m_startMillis = 0;
+		private boolean m_done = false;
+
+		/**
+		 * Create an instance of a _Query
+		 * @param target Target label
+		 * @param address Server address
+		 * @param tcp True to use TCP
+		 * @param local Local address, or null for any
+		 * @param listener Result listener
+		 */
+		public _Query(String target, InetSocketAddress address, boolean tcp, InetAddress local, ResultListener listener)
+		{
+			m_target = target;
+			m_address = address;
+			m_tcp = tcp;
+			m_local = local;
+			m_listener = listener;
+		}
+
+		/**
+		 * Open the channel and send the request
+		 * @throws IOException On socket errors
+		 */
+		public void start() throws IOException
+		{
+			m_startMillis = System.currentTimeMillis();
+			m_startNanos = System.nanoTime();
+
+			if (m_address == null || m_address.isUnresolved())
+			{
+				throw new IOException("Unresolved address");
+			}
+
+			if (m_tcp)
+			{
+				SocketChannel channel = SocketChannel.open();
+				m_channel = channel;
+				channel.configureBlocking(false);
+				if (m_local != null)
+				{
+					channel.bind(new InetSocketAddress(m_local, 0));
+				}
+				if (channel.connect(m_address))
+				{
+					channel.register(m_selector, SelectionKey.OP_READ, this);
+				}
+				else
+				{
+					channel.register(m_selector, SelectionKey.OP_CONNECT, this);
+				}
+			}
+			else
+			{
+				DatagramChannel channel = DatagramChannel.open();
+				m_channel = channel;
+				channel.configureBlocking(false);
+				if (m_local != null)
+				{
+					channel.bind(new InetSocketAddress(m_local, 0));
+				}
+				// a connected channel will not emit a zero-length datagram, so this one stays unconnected
+				channel.send(EMPTY_REQUEST, m_address);
+				channel.register(m_selector, SelectionKey.OP_READ, this);
+			}
+		}
+
+		/**
+		 * Handle a ready selection key
+		 * @param key Selection key
+		 * @throws IOException On socket errors
+		 */
+		public void ready(SelectionKey key) throws IOException
+		{
+			if (key.isConnectable())
+			{
+				((SocketChannel)m_channel).finishConnect();
+				key.interestOps(SelectionKey.OP_READ);
+				return;
+			}
+
+			if (m_tcp)
+			{
+				int read = ((SocketChannel)m_channel).read(m_response);
+				if (m_response.hasRemaining() && read >= 0)
+				{
+					return;
+				}
+			}
+			else
+			{
+				SocketAddress source = ((DatagramChannel)m_channel).receive(m_response);
+				if (source == null)
+				{
+					return;
+				}
+				if (!source.equals(m_address))
+				{
+					// not from the queried server
+					m_response.clear();
+					return;
+				}
+			}
+
+			if (m_response.position() < 4)
+			{
+				throw new IOException("Short response (" + m_response.position() + " bytes)");
+			}
+
+			long endNanos = System.nanoTime();
+			long rtt = endNanos - m_startNanos;
+			long serverValue = TimeServer.timeServerValueFromBytes(m_response.array());
+			long midpointMillis = m_startMillis + TimeUnit.NANOSECONDS.toMillis(rtt / 2);
+			long offsetMillis = TimeServer.timeServerValueToMillis(serverValue) + 500 - midpointMillis;
+
+			complete(new TimeQueryResult(m_target, m_address, m_tcp, TimeQueryResult.Status.OK, null,
+					m_startMillis, rtt, serverValue, offsetMillis));
+		}
+
+		/**
+		 * Complete this query with a failure
+		 * @param status Failure status
+		 * @param error Error description
+		 */
+		public void fail(TimeQueryResult.Status status, String error)
+		{
+			complete(new TimeQueryResult(m_target, m_address, m_tcp, status, error,
+					m_startMillis, (m_startNanos != 0 ? System.nanoTime() - m_startNanos : 0), 0, 0));
+		}
+
+		/**
+		 * Close the channel, report the result and release the in-flight permit
+		 * @param result Query result
+		 */
+		private void complete(TimeQueryResult result)
+		{
+			if (m_done)
+			{
+				return;
+			}
+			m_done = true;
+
+			if (m_channel != null)
+			{
+				try
+				{
+					m_channel.close();
+				}
+				catch (IOException e)
+				{
+					// do nothing
+				}
+			}
+
+			try
+			{
+				m_listener.onResult(result);
+			}
+			catch (RuntimeException e)
+			{
+				// the listener's own failure; the engine carries on with the other queries
+				System.err.println("Error - result listener failed for " + m_target + ": " + e);
+			}
+			finally
+			{
+				m_permits.release();
+			}
+		}
+	}
+
+	/**
+	 * This class is the selector loop
+	 */
+	private class _Engine implements Runnable
+	{
+		/*
+		 * (non-Javadoc)
+		 * @see java.lang.Runnable#run()
+		 */
+		public void run()
+		{
+			long tickMs = Math.max(1, Math.min(100, TimeUnit.NANOSECONDS.toMillis(m_timeoutNanos) / 4));
+
+			try
+			{
+				while (!m_terminate || !m_pending.isEmpty() || !m_deadlines.isEmpty())
+				{
+					startPending();
+
+					m_selector.select(tickMs);
+
+					Iterator<SelectionKey> iter = m_selector.selectedKeys().iterator();
+					while (iter.hasNext())
+					{
+						SelectionKey key = iter.next();
+						iter.remove();
+
+						_Query query = (_Query)key.attachment();
+						try
+						{
+							if (key.isValid())
+							{
+								query.ready(key);
+							}
+						}
+						catch (IOException | RuntimeException e)
+						{
+							query.fail(TimeQueryResult.Status.ERROR, e.toString());
+						}
+					}
+
+					expire(m_terminate);
+				}
+			}
+			catch (IOException | RuntimeException e)
+			{
+				System.err.println("Error - time query engine stopped: " + e);
+			}
+			finally
+			{
+				// fail whatever is left, so no caller waits for a permit that is never released
+				m_terminate = true;
+				_Query query = null;
+				while ((query = m_pending.poll()) != null)
+				{
+					query.fail(TimeQueryResult.Status.ERROR, "Client closed");
+				}
+				expire(true);
+				try
+				{
+					m_selector.close();
+				}
+				catch (IOException e)
+				{
+					// do nothing
+				}
+			}
+		}
+
+		/**
+		 * Start every query submitted since the last pass
+		 */
+		private void startPending()
+		{
+			_Query query = null;
+			while ((query = m_pending.poll()) != null)
+			{
+				try
+				{
+					query.start();
+					m_deadlines.add(query);
+				}
+				catch (IOException | RuntimeException e)
+				{
+					query.fail(TimeQueryResult.Status.ERROR, e.toString());
+				}
+			}
+		}
+
+		/**
+		 * Time out expired queries.  Every query has the same timeout, so deadlines are in start order.
+		 * @param all True to time out every outstanding query (on close)
+		 */
+		private void expire(boolean all)
+		{
+			long now = System.nanoTime();
+			_Query query = null;
+			while ((query = m_deadlines.peek()) != null)
+			{
+				if (query.m_done)
+				{
+					m_deadlines.poll();
+				}
+				else if (all || (now - query.m_startNanos) >= m_timeoutNanos)
+				{
+					m_deadlines.poll();
+					query.fail(TimeQueryResult.Status.TIMEOUT, "Timed out");
+				}
+				else
+				{
+					break;
+				}
+			}
+		}
+	}
+}
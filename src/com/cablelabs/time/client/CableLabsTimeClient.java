@@ -17,14 +17,20 @@
 package com.cablelabs.time.client;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.nio.ByteBuffer;
-import java.util.Arrays;
+import java.net.SocketTimeoutException;
 import java.util.Calendar;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -36,14 +42,39 @@ import org.apache.commons.cli.ParseException;
 import com.cablelabs.time.server.TimeServer;
 
 /**
- * This class is a CableLabs Time Protocol Client
+ * This class is a CableLabs Time Protocol Client.
+ *
+ * A query fails after a fixed timeout.  Before that, a request whose response is late is sent
+ * again after a retransmission timeout estimated from the round-trip times of the server (see
+ * {@link RttEstimator}), backed off and jittered on each retransmission.  UDP queries can also send
+ * a hedged request once a percentile of the previous latencies has passed.  Retransmissions and
+ * hedged requests are drawn from a {@link RetryBudget}, so a server that stops answering does not
+ * get a multiple of the usual load.
  */
 public class CableLabsTimeClient
 {
+	public static final long DEFAULT_TIMEOUT_MS = 2000;
+	public static final int DEFAULT_RETRIES = 3;
+	
 	private String m_serverIp = null;
 	
+	private int m_port = TimeServer.TIME_SERVER_PORT;
+	
 	private boolean m_useTcp = true;
 	
+	private long m_timeoutMs = DEFAULT_TIMEOUT_MS;
+	private int m_retries = DEFAULT_RETRIES;
+	private double m_hedgePercentile = 0;
+	private RetryBudget m_retryBudget = new RetryBudget();
+	
+	private long m_initialRtoMs = RttEstimator.DEFAULT_INITIAL_RTO_MS;
+	private long m_minRtoMs = RttEstimator.DEFAULT_MIN_RTO_MS;
+	private long m_maxRtoMs = RttEstimator.DEFAULT_MAX_RTO_MS;
+	private final Map<String, RttEstimator> m_estimators = new HashMap<String, RttEstimator>();
+	
+	private final AtomicLong m_retransmissions = new AtomicLong(0);
+	private final AtomicLong m_hedges = new AtomicLong(0);
+	
 	/**
 	 * Create an instance of a CableLabsTimeClient
 	 */
@@ -71,80 +102,473 @@ public class CableLabsTimeClient
 	}
 	
 	/**
-	 * Perform a TCP Time Protocol request
+	 * Get the server port
+	 * @return Port number
 	 */
-	protected void doTcpRequest()
+	public int getPort()
+	{
+		return m_port;
+	}
+	
+	/**
+	 * Set the server port
+	 * @param port Port number
+	 */
+	public void setPort(int port)
+	{
+		if (port < 1 || port > 65535)
+		{
+			throw new IllegalArgumentException("Invalid port: " + port);
+		}
+		m_port = port;
+	}
+	
+	/**
+	 * Set the transport of the requests
+	 * @param useTcp True to use TCP, false to use UDP
+	 */
+	public void setUseTcp(boolean useTcp)
+	{
+		m_useTcp = useTcp;
+	}
+	
+	/**
+	 * Set the time after which a query fails, whatever the number of requests sent
+	 * @param timeoutMs Query timeout in milliseconds
+	 */
+	public void setTimeout(long timeoutMs)
+	{
+		if (timeoutMs < 1)
+		{
+			throw new IllegalArgumentException("Invalid timeout: " + timeoutMs);
+		}
+		m_timeoutMs = timeoutMs;
+	}
+	
+	/**
+	 * Set the number of times a request is sent again when its response is late
+	 * @param retries Maximum retransmissions per query (0 sends each request once)
+	 */
+	public void setRetries(int retries)
+	{
+		if (retries < 0)
+		{
+			throw new IllegalArgumentException("Invalid retries: " + retries);
+		}
+		m_retries = retries;
+	}
+	
+	/**
+	 * Send a second, hedged UDP request when the response is later than a percentile of the
+	 * latency of the previous queries to the server
+	 * @param percentile Latency percentile (0 disables hedging)
+	 */
+	public void setHedgePercentile(double percentile)
+	{
+		if (percentile < 0 || percentile > 100)
+		{
+			throw new IllegalArgumentException("Invalid hedge percentile: " + percentile);
+		}
+		m_hedgePercentile = percentile;
+	}
+	
+	/**
+	 * Set the bounds of the retransmission timeout of servers not queried yet
+	 * @param initialRtoMs Timeout before the first response
+	 * @param minRtoMs Lower bound of the timeout
+	 * @param maxRtoMs Upper bound of the timeout, and of its backoff
+	 */
+	public void setRtoBounds(long initialRtoMs, long minRtoMs, long maxRtoMs)
+	{
+		// throws if the bounds are invalid
+		new RttEstimator(initialRtoMs, minRtoMs, maxRtoMs);
+		m_initialRtoMs = initialRtoMs;
+		m_minRtoMs = minRtoMs;
+		m_maxRtoMs = maxRtoMs;
+	}
+	
+	/**
+	 * Get the budget shared by the retransmissions and hedged requests of every query
+	 * @return Retry budget
+	 */
+	public RetryBudget getRetryBudget()
+	{
+		return m_retryBudget;
+	}
+	
+	/**
+	 * Set the budget shared by the retransmissions and hedged requests of every query
+	 * @param retryBudget Retry budget
+	 */
+	public void setRetryBudget(RetryBudget retryBudget)
 	{
+		m_retryBudget = retryBudget;
+	}
+	
+	/**
+	 * Get the round-trip time estimator of a server, creating it on first use
+	 * @param address Server address
+	 * @param tcp True for the TCP estimator, false for UDP
+	 * @return Estimator
+	 */
+	public synchronized RttEstimator getEstimator(InetSocketAddress address, boolean tcp)
+	{
+		String key = (tcp ? "tcp/" : "udp/") + address;
+		RttEstimator estimator = m_estimators.get(key);
+		if (estimator == null)
+		{
+			estimator = new RttEstimator(m_initialRtoMs, m_minRtoMs, m_maxRtoMs);
+			m_estimators.put(key, estimator);
+		}
+		return estimator;
+	}
+	
+	/**
+	 * Get the number of requests sent again because their response was late
+	 * @return Count
+	 */
+	public long getRetransmissions()
+	{
+		return m_retransmissions.get();
+	}
+	
+	/**
+	 * Get the number of hedged requests sent
+	 * @return Count
+	 */
+	public long getHedges()
+	{
+		return m_hedges.get();
+	}
+	
+	/**
+	 * Perform a Time Protocol query against the server, with retransmissions
+	 * @return Query result
+	 */
+	public TimeQueryResult query()
+	{
+		String target = (m_serverIp != null ? m_serverIp : "localhost") + ":" + m_port;
+		InetSocketAddress address = null;
 		try
 		{
-			System.out.println("Performing TCP Time Request...");
-			
-			Socket sock = new Socket(m_serverIp, TimeServer.TIME_SERVER_PORT);
-			
-			ByteBuffer buf = ByteBuffer.allocate(4);
-			int byteVal = 0;
-			while (((byteVal = sock.getInputStream().read()) != -1) && (buf.hasRemaining()))
+			address = new InetSocketAddress(InetAddress.getByName(m_serverIp), m_port);
+			return (m_useTcp ? queryTcp(target, address) : queryUdp(target, address));
+		}
+		catch (IOException e)
+		{
+			return new TimeQueryResult(target, address, m_useTcp, TimeQueryResult.Status.ERROR, e.toString(),
+					System.currentTimeMillis(), 0, 0, 0, 0);
+		}
+	}
+	
+	/**
+	 * Perform a TCP query.  A connection that is not answered within the retransmission timeout is
+	 * abandoned for a new one, while retries and the budget allow; otherwise it keeps waiting for
+	 * the rest of the query timeout.
+	 * @param target Target label
+	 * @param address Server address
+	 * @return Query result
+	 * @throws IOException if the server cannot be reached
+	 */
+	private TimeQueryResult queryTcp(String target, InetSocketAddress address) throws IOException
+	{
+		RttEstimator estimator = getEstimator(address, true);
+		m_retryBudget.queryStarted();
+		long startMillis = System.currentTimeMillis();
+		long start = System.nanoTime();
+		long deadline = start + TimeUnit.MILLISECONDS.toNanos(m_timeoutMs);
+		int requests = 0;
+		
+		while (true)
+		{
+			long sentMillis = System.currentTimeMillis();
+			long sent = System.nanoTime();
+			long timeout = deadline - sent;
+			if (timeout <= 0)
 			{
-				buf.put((byte)byteVal);
+				return new TimeQueryResult(target, address, true, TimeQueryResult.Status.TIMEOUT,
+						"No response to " + requests + " requests", startMillis, sent - start, 0, 0, requests);
 			}
-			byte[] response = buf.array();
-
-			String printout = "Server response: " + Arrays.toString(response);
-			if (response.length > 0)
+			if (requests < m_retries && m_retryBudget.getBalance() > 0)
 			{
-				long responseSec = TimeServer.timeServerValueFromBytes(response);
-				Calendar responseCal = TimeServer.timeServerValueToDate(responseSec);
-				printout += " -> " + responseSec + " ( " + TimeServer.getDateFormat().format(responseCal.getTime()) + " )";
+				long rto = estimator.getRtoNanos();
+				timeout = Math.min(timeout, (requests == 0 ? rto : jitter(rto)));
 			}
-			System.out.println(printout);
+			requests++;
 			
-			sock.close();
+			Socket socket = new Socket();
+			try
+			{
+				try
+				{
+					socket.connect(address, toTimeoutMs(timeout));
+				}
+				catch (SocketTimeoutException e)
+				{
+					if (sent + timeout < deadline)
+					{
+						retryTcp(estimator, requests);
+					}
+					continue;
+				}
+				byte[] data = new byte[4];
+				int length = 0;
+				boolean abandoned = false;
+				InputStream in = socket.getInputStream();
+				while (length < data.length && !abandoned)
+				{
+					long remaining = sent + timeout - System.nanoTime();
+					if (remaining <= 0 && sent + timeout < deadline)
+					{
+						abandoned = retryTcp(estimator, requests);
+						// when no retry is allowed, this connection gets the rest of the query timeout
+						timeout = deadline - sent;
+						continue;
+					}
+					if (remaining <= 0)
+					{
+						throw new SocketTimeoutException("Read timed out");
+					}
+					socket.setSoTimeout(toTimeoutMs(remaining));
+					int read;
+					try
+					{
+						read = in.read(data, length, data.length - length);
+					}
+					catch (SocketTimeoutException e)
+					{
+						continue;
+					}
+					if (read < 0)
+					{
+						throw new IOException("Short response (" + length + " bytes)");
+					}
+					length += read;
+				}
+				if (abandoned)
+				{
+					continue;
+				}
+				
+				long now = System.nanoTime();
+				if (requests == 1)
+				{
+					estimator.sample(now - sent);
+				}
+				estimator.recordLatency(now - start);
+				return answered(target, address, true, data, startMillis, now - start, sentMillis, now - sent, requests);
+			}
+			catch (SocketTimeoutException e)
+			{
+				// the query timeout has passed
+				continue;
+			}
+			finally
+			{
+				socket.close();
+			}
 		}
-		catch (IOException e)
+	}
+	
+	/**
+	 * Decide whether a TCP request not answered within the retransmission timeout is sent again on a new connection
+	 * @param estimator Round-trip time estimator of the server
+	 * @param requests Number of requests sent so far
+	 * @return True if retries and the retry budget allow it
+	 */
+	private boolean retryTcp(RttEstimator estimator, int requests)
+	{
+		if (requests > m_retries || !m_retryBudget.tryRetry())
 		{
-			e.printStackTrace();
+			return false;
 		}
+		estimator.backoff();
+		m_retransmissions.incrementAndGet();
+		return true;
 	}
 	
 	/**
-	 * Perform a UDP Time Protocol request
+	 * Perform a UDP query.  The request is sent again after the retransmission timeout, backed off
+	 * and jittered each time, while retries and the budget allow, and once after the hedge delay
+	 * if hedging; the first response from the server answers the query.
+	 * @param target Target label
+	 * @param address Server address
+	 * @return Query result
+	 * @throws IOException if the request cannot be sent
 	 */
-	protected void doUdpRequest()
+	private TimeQueryResult queryUdp(String target, InetSocketAddress address) throws IOException
 	{
+		RttEstimator estimator = getEstimator(address, false);
+		m_retryBudget.queryStarted();
+		long startMillis = System.currentTimeMillis();
+		long start = System.nanoTime();
+		long deadline = start + TimeUnit.MILLISECONDS.toNanos(m_timeoutMs);
+		long retransmitAt = (m_retries > 0 ? start + estimator.getRtoNanos() : Long.MAX_VALUE);
+		long hedgeDelay = (m_hedgePercentile > 0 ? estimator.getHedgeDelayNanos(m_hedgePercentile) : 0);
+		long hedgeAt = (hedgeDelay > 0 ? start + hedgeDelay : Long.MAX_VALUE);
+		
+		DatagramSocket socket = new DatagramSocket();
 		try
 		{
-			System.out.println("Performing UDP Time Request...");
+			DatagramPacket request = new DatagramPacket(new byte[0], 0, address);
+			byte[] data = new byte[4];
+			DatagramPacket response = new DatagramPacket(data, data.length);
+			socket.send(request);
+			long sentMillis = startMillis;
+			long sent = start;
+			int requests = 1;
+			int retransmissions = 0;
 			
-			DatagramSocket socket = new DatagramSocket();
-		    InetAddress inetAddr = InetAddress.getByName(m_serverIp);
-		    
-		    byte[] sendData = new byte[0];
-		    byte[] receiveData = new byte[4];
-		    
-		    DatagramPacket sendPacket = new DatagramPacket(sendData, sendData.length, inetAddr, TimeServer.TIME_SERVER_PORT);
-		    socket.send(sendPacket);
-		    
-		    DatagramPacket receivePacket = new DatagramPacket(receiveData, receiveData.length);
-		    socket.receive(receivePacket);
-		    
-		    long dataVal = TimeServer.timeServerValueFromBytes(receivePacket.getData());
-		    String response = String.valueOf(dataVal);
-		    String printout = "Server response: " + response;
-			if (response.length() > 0)
+			while (true)
 			{
-				long responseSec = Long.parseLong(response);
+				long now = System.nanoTime();
+				if (now >= deadline)
+				{
+					return new TimeQueryResult(target, address, false, TimeQueryResult.Status.TIMEOUT,
+							"No response to " + requests + " requests", startMillis, now - start, 0, 0, requests);
+				}
+				if (now >= hedgeAt)
+				{
+					hedgeAt = Long.MAX_VALUE;
+					if (m_retryBudget.tryRetry())
+					{
+						socket.send(request);
+						sentMillis = System.currentTimeMillis();
+						sent = now;
+						requests++;
+						m_hedges.incrementAndGet();
+					}
+				}
+				if (now >= retransmitAt)
+				{
+					retransmitAt = Long.MAX_VALUE;
+					if (retransmissions < m_retries && m_retryBudget.tryRetry())
+					{
+						estimator.backoff();
+						socket.send(request);
+						sentMillis = System.currentTimeMillis();
+						sent = now;
+						requests++;
+						retransmissions++;
+						m_retransmissions.incrementAndGet();
+						if (retransmissions < m_retries)
+						{
+							retransmitAt = now + jitter(estimator.getRtoNanos());
+						}
+					}
+				}
+				
+				socket.setSoTimeout(toTimeoutMs(Math.min(deadline, Math.min(retransmitAt, hedgeAt)) - now));
+				try
+				{
+					response.setLength(data.length);
+					socket.receive(response);
+				}
+				catch (SocketTimeoutException e)
+				{
+					continue;
+				}
+				if (!address.equals(response.getSocketAddress()) || response.getLength() < data.length)
+				{
+					// not from the queried server, or not a time value
+					continue;
+				}
 				
-				Calendar responseCal = TimeServer.timeServerValueToDate(responseSec);
-				printout += " ( " + TimeServer.getDateFormat().format(responseCal.getTime()) + " )";
+				now = System.nanoTime();
+				if (requests == 1)
+				{
+					// the round-trip time of a retransmitted request is ambiguous (Karn's algorithm)
+					estimator.sample(now - start);
+				}
+				estimator.recordLatency(now - start);
+				return answered(target, address, false, data, startMillis, now - start, sentMillis, now - sent, requests);
 			}
-			System.out.println(printout);
-		    
-		    socket.close();
 		}
-		catch (IOException e)
+		finally
+		{
+			socket.close();
+		}
+	}
+	
+	/**
+	 * Build the result of an answered query
+	 * @param target Target label
+	 * @param address Server address
+	 * @param tcp True if the query used TCP
+	 * @param data Time value received
+	 * @param startMillis Wall clock time of the first request
+	 * @param latencyNanos Time from the first request to the response
+	 * @param sentMillis Wall clock time of the last request, taken as the one answered
+	 * @param rttNanos Time from the last request to the response
+	 * @param requests Number of requests sent
+	 * @return Query result
+	 */
+	private static TimeQueryResult answered(String target, InetSocketAddress address, boolean tcp, byte[] data,
+			long startMillis, long latencyNanos, long sentMillis, long rttNanos, int requests)
+	{
+		long serverValue = TimeServer.timeServerValueFromBytes(data);
+		long midpointMillis = sentMillis + TimeUnit.NANOSECONDS.toMillis(rttNanos / 2);
+		long offsetMillis = TimeServer.timeServerValueToMillis(serverValue) + 500 - midpointMillis;
+		return new TimeQueryResult(target, address, tcp, TimeQueryResult.Status.OK, null,
+				startMillis, latencyNanos, serverValue, offsetMillis, requests);
+	}
+	
+	/**
+	 * Spread a backed-off timeout, so that clients which lost requests at the same time do not
+	 * send them again at the same time
+	 * @param rtoNanos Timeout
+	 * @return Timeout between rtoNanos and 1.5 times rtoNanos
+	 */
+	private static long jitter(long rtoNanos)
+	{
+		return rtoNanos + ThreadLocalRandom.current().nextLong(rtoNanos / 2 + 1);
+	}
+	
+	/**
+	 * Convert a positive wait to a socket timeout
+	 * @param nanos Wait in nanoseconds
+	 * @return Milliseconds, at least 1 (0 would wait forever)
+	 */
+	private static int toTimeoutMs(long nanos)
+	{
+		return (int)Math.max(1, Math.min(Integer.MAX_VALUE, TimeUnit.NANOSECONDS.toMillis(nanos + 999999)));
+	}
+	
+	/**
+	 * Perform a TCP Time Protocol request
+	 */
+	protected void doTcpRequest()
+	{
+		System.out.println("Performing TCP Time Request...");
+		m_useTcp = true;
+		printResult(query());
+	}
+	
+	/**
+	 * Perform a UDP Time Protocol request
+	 */
+	protected void doUdpRequest()
+	{
+		System.out.println("Performing UDP Time Request...");
+		m_useTcp = false;
+		printResult(query());
+	}
+	
+	/**
+	 * Print the outcome of a query
+	 * @param result Query result
+	 */
+	private static void printResult(TimeQueryResult result)
+	{
+		if (result.getStatus() != TimeQueryResult.Status.OK)
 		{
-			e.printStackTrace();
+			System.out.println("No server response: " + result.getError());
+			return;
 		}
+		long responseSec = result.getServerValue();
+		Calendar responseCal = TimeServer.timeServerValueToDate(responseSec);
+		System.out.println("Server response: " + responseSec + " ( " + TimeServer.getDateFormat().format(responseCal.getTime()) + " )" +
+				(result.getRequests() > 1 ? " after " + result.getRequests() + " requests" : ""));
 	}
 	
 	/**
@@ -162,6 +586,36 @@ public class CableLabsTimeClient
 		}
 	}
 	
+	/**
+	 * Perform several Time Protocol requests, one after the other, and print a summary
+	 * @param count Number of requests
+	 */
+	public void doRequests(int count)
+	{
+		int answered = 0;
+		InetSocketAddress address = null;
+		for (int i = 0; i < count; i++)
+		{
+			TimeQueryResult result = query();
+			printResult(result);
+			if (result.getStatus() == TimeQueryResult.Status.OK)
+			{
+				answered++;
+			}
+			address = result.getAddress();
+		}
+		
+		String summary = "Answered " + answered + " of " + count + " queries";
+		if (address != null)
+		{
+			RttEstimator estimator = getEstimator(address, m_useTcp);
+			summary += String.format("; smoothed RTT %.3f ms, RTO %d ms",
+					estimator.getSmoothedRttNanos() / 1e6, TimeUnit.NANOSECONDS.toMillis(estimator.getRtoNanos()));
+		}
+		System.out.println(summary + "; " + getRetransmissions() + " retransmissions, " + getHedges() +
+				" hedged requests, " + m_retryBudget.getRefused() + " refused by the retry budget");
+	}
+	
 	private static Options s_cmdline_options = null;
 	
 	/**
@@ -178,8 +632,9 @@ public class CableLabsTimeClient
 			{
 				Option opt = iter.next();
 				usage += System.lineSeparator() +
-						"-" + opt.getOpt() +
-						(opt.hasLongOpt() ? " (--" + opt.getLongOpt() + ")" : "") +
+						(opt.getOpt() != null ?
+								"-" + opt.getOpt() + (opt.hasLongOpt() ? " (--" + opt.getLongOpt() + ")" : "") :
+								"--" + opt.getLongOpt()) +
 						(opt.hasArg() ? " <" + (opt.hasArgName() ? opt.getArgName() : "value") + ">" : "") +
 						" : " + opt.getDescription();
 			}
@@ -203,6 +658,30 @@ public class CableLabsTimeClient
 			s_cmdline_options.addOption("i", "inet_addr", true, "Inet Address to send request (server address)");
 			s_cmdline_options.addOption("t", "tcp", false, "Use TCP for the time request (default)");
 			s_cmdline_options.addOption("u", "udp", false, "Use UDP for the time request");
+			Option portOpt = new Option("p", "port", true, "Server port (default 37); also the default port of audit targets");
+			portOpt.setArgName("port");
+			s_cmdline_options.addOption(portOpt);
+			Option auditOpt = new Option("a", "audit", true, "Audit the servers listed in a file (or - for stdin)");
+			auditOpt.setArgName("targets");
+			s_cmdline_options.addOption(auditOpt);
+			Option concurrencyOpt = new Option("c", "concurrency", true, "Maximum concurrent audit queries (default 256)");
+			concurrencyOpt.setArgName("count");
+			s_cmdline_options.addOption(concurrencyOpt);
+			Option formatOpt = new Option("f", "format", true, "Audit output format: csv (default) or json");
+			formatOpt.setArgName("format");
+			s_cmdline_options.addOption(formatOpt);
+			Option timeoutOpt = new Option("o", "timeout", true, "Query timeout in milliseconds, including retransmissions (default 2000)");
+			timeoutOpt.setArgName("ms");
+			s_cmdline_options.addOption(timeoutOpt);
+			Option retriesOpt = new Option("r", "retries", true, "Retransmissions per query when the response is late (default 3)");
+			retriesOpt.setArgName("count");
+			s_cmdline_options.addOption(retriesOpt);
+			Option hedgeOpt = new Option(null, "hedge", true, "Send a hedged UDP request when the response is later than this percentile of the previous queries (default 0, no hedging)");
+			hedgeOpt.setArgName("percentile");
+			s_cmdline_options.addOption(hedgeOpt);
+			Option countOpt = new Option("n", "count", true, "Number of queries, one after the other, followed by a summary (default 1)");
+			countOpt.setArgName("count");
+			s_cmdline_options.addOption(countOpt);
 			
 			String inetAddr = "";
 			
@@ -222,6 +701,10 @@ public class CableLabsTimeClient
 					inetAddr = cmd.getOptionValue("i");
 					client.setServerIp(inetAddr);
 				}
+				if (cmd.hasOption("p"))
+				{
+					client.setPort(Integer.parseInt(cmd.getOptionValue("p")));
+				}
 				if (cmd.hasOption("t"))
 				{
 					client.m_useTcp = true;
@@ -230,12 +713,43 @@ public class CableLabsTimeClient
 				{
 					client.m_useTcp = false;
 				}
+				client.setTimeout(Long.parseLong(cmd.getOptionValue("o", Long.toString(DEFAULT_TIMEOUT_MS))));
+				client.setRetries(Integer.parseInt(cmd.getOptionValue("r", Integer.toString(DEFAULT_RETRIES))));
+				client.setHedgePercentile(Double.parseDouble(cmd.getOptionValue("hedge", "0")));
+				
+				if (cmd.hasOption("a"))
+				{
+					int concurrency = Integer.parseInt(cmd.getOptionValue("c", "256"));
+					long timeoutMs = client.m_timeoutMs;
+					FleetAudit.Format format = FleetAudit.Format.valueOf(cmd.getOptionValue("f", "csv").toUpperCase());
+					
+					FleetAudit audit = new FleetAudit(System.out, format, client.m_useTcp, client.m_port);
+					audit.run(cmd.getOptionValue("a"), concurrency, timeoutMs, System.err);
+					return;
+				}
+				
+				if (cmd.hasOption("n"))
+				{
+					int count = Integer.parseInt(cmd.getOptionValue("n"));
+					if (count < 1)
+					{
+						throw new IllegalArgumentException("Invalid count: " + count);
+					}
+					client.doRequests(count);
+					return;
+				}
 			}
-			catch (ParseException e)
+			catch (ParseException | IllegalArgumentException e)
 			{
 				System.err.println("Error parsing command line arguments:");
 				e.printStackTrace();
 				
+				System.exit(1);
+			}
+			catch (IOException | InterruptedException e)
+			{
+				e.printStackTrace();
+				
 				System.exit(1);
 			}
 		}
@@ -0,0 +1,426 @@
+/*
+ * Copyright 2017 Cable Television Laboratories, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cablelabs.time.client;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.cablelabs.time.server.LatencyHistogram;
+
+/**
+ * This class audits a fleet of Time Protocol servers.
+ *
+ * Targets are read one per line from a file or stdin, in the form
+ * <code>host[:port] [tcp|udp]</code> (IPv6 literals with a port must be bracketed).
+ * Blank lines and lines starting with '#' are ignored.  Targets are queried through an
+ * {@link AsyncTimeClient}, and each result is written as a CSV or JSON line as soon as
+ * it completes; only the summary statistics are kept in memory.  Host names are resolved on a
+ * small pool of threads, so slow name lookups overlap each other and the queries in flight
+ * instead of holding up the reading of the target list.
+ */
+public class FleetAudit implements AsyncTimeClient.ResultListener
+{
+	/**
+	 * Output format of the per-target results
+	 */
+	public enum Format
+	{
+		CSV,
+		JSON
+	}
+
+	private static final long FLUSH_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+	private static final int MAX_RESOLVERS = 16;
+	// targets waiting for a resolver, per resolver; beyond that the reading thread resolves
+	private static final int RESOLVER_BACKLOG = 4;
+
+	private final PrintStream m_out;
+	private final Format m_format;
+	private final boolean m_defaultTcp;
+	private final int m_defaultPort;
+
+	private final LatencyHistogram m_rttHistogram = new LatencyHistogram();
+	private long m_total = 0;
+	private long m_ok = 0;
+	private long m_timeouts = 0;
+	private long m_errors = 0;
+	private long m_offsetMin = Long.MAX_VALUE;
+	private long m_offsetMax = Long.MIN_VALUE;
+	private long m_offsetSum = 0;
+	private long m_lastFlushNanos = System.nanoTime();
+
+	/**
+	 * Create an instance of a FleetAudit
+	 * @param out Stream receiving the per-target results
+	 * @param format Output format
+	 * @param defaultTcp True if targets without a protocol use TCP
+	 * @param defaultPort Port used for targets without a port
+	 */
+	public FleetAudit(PrintStream out, Format format, boolean defaultTcp, int defaultPort)
+	{
+		m_out = out;
+		m_format = format;
+		m_defaultTcp = defaultTcp;
+		m_defaultPort = defaultPort;
+	}
+
+	/**
+	 * Run the audit
+	 * @param targetFile Target file name, or "-" for stdin
+	 * @param concurrency Maximum number of concurrent queries
+	 * @param timeoutMs Per-query timeout in milliseconds
+	 * @param summary Stream receiving the summary statistics
+	 * @throws IOException On errors reading the target list
+	 * @throws InterruptedException If interrupted while waiting for queries
+	 */
+	public void run(String targetFile, int concurrency, long timeoutMs, PrintStream summary)
+			throws IOException, InterruptedException
+	{
+		long startNanos = System.nanoTime();
+
+		InputStream in = ("-".equals(targetFile) ? System.in : new FileInputStream(targetFile));
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+		AsyncTimeClient client = new AsyncTimeClient(concurrency, timeoutMs);
+		int resolvers = Math.min(concurrency, MAX_RESOLVERS);
+		ThreadPoolExecutor resolver = new ThreadPoolExecutor(resolvers, resolvers, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(resolvers * RESOLVER_BACKLOG), new ThreadFactory() {
+					public Thread newThread(Runnable r)
+					{
+						Thread thread = new Thread(r, "FleetAuditResolver");
+						thread.setDaemon(true);
+						return thread;
+					}
+				}, new ThreadPoolExecutor.CallerRunsPolicy());
+		try
+		{
+			if (m_format == Format.CSV)
+			{
+				synchronized (this)
+				{
+					m_out.println("target,address,port,protocol,status,start_ms,rtt_us,server_value,offset_ms,error");
+				}
+			}
+
+			String line = null;
+			while ((line = reader.readLine()) != null)
+			{
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#"))
+				{
+					continue;
+				}
+				submit(client, resolver, line);
+			}
+
+			// every target is handed to the engine before it is drained
+			resolver.shutdown();
+			resolver.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			client.drain();
+		}
+		finally
+		{
+			resolver.shutdownNow();
+			client.close();
+			if (in != System.in)
+			{
+				reader.close();
+			}
+		}
+
+		synchronized (this)
+		{
+			m_out.flush();
+			printSummary(summary, System.nanoTime() - startNanos);
+		}
+	}
+
+	/**
+	 * Parse a target line and have its host resolved and its query submitted
+	 * @param client Query engine
+	 * @param resolver Pool resolving the hosts
+	 * @param line Target line
+	 */
+	private void submit(final AsyncTimeClient client, ThreadPoolExecutor resolver, String line)
+	{
+		String[] fields = line.split("\\s+");
+		final String hostPort = fields[0];
+		boolean tcp = m_defaultTcp;
+		if (fields.length > 1)
+		{
+			if ("tcp".equalsIgnoreCase(fields[1]))
+			{
+				tcp = true;
+			}
+			else if ("udp".equalsIgnoreCase(fields[1]))
+			{
+				tcp = false;
+			}
+			else
+			{
+				onResult(new TimeQueryResult(line, null, tcp, TimeQueryResult.Status.ERROR,
+						"Unknown protocol: " + fields[1], System.currentTimeMillis(), 0, 0, 0));
+				return;
+			}
+		}
+
+		final boolean useTcp = tcp;
+		resolver.execute(new Runnable() {
+			public void run()
+			{
+				InetSocketAddress address = null;
+				try
+				{
+					address = parseTarget(hostPort, m_defaultPort);
+				}
+				catch (UnknownHostException | IllegalArgumentException e)
+				{
+					onResult(new TimeQueryResult(hostPort, null, useTcp, TimeQueryResult.Status.ERROR,
+							e.toString(), System.currentTimeMillis(), 0, 0, 0));
+					return;
+				}
+
+				try
+				{
+					client.query(hostPort, address, useTcp, FleetAudit.this);
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+				}
+				catch (IllegalStateException e)
+				{
+					onResult(new TimeQueryResult(hostPort, address, useTcp, TimeQueryResult.Status.ERROR,
+							e.getMessage(), System.currentTimeMillis(), 0, 0, 0));
+				}
+			}
+		});
+	}
+
+	/**
+	 * Parse and resolve a <code>host[:port]</code> target
+	 * @param hostPort Target string
+	 * @param defaultPort Port used if the target has none
+	 * @return Resolved socket address
+	 * @throws UnknownHostException If the host cannot be resolved
+	 */
+	public static InetSocketAddress parseTarget(String hostPort, int defaultPort) throws UnknownHostException
+	{
+		String host = hostPort;
+		int port = defaultPort;
+
+		if (hostPort.startsWith("["))
+		{
+			int close = hostPort.indexOf(']');
+			if (close < 0)
+			{
+				throw new IllegalArgumentException("Unterminated IPv6 literal: " + hostPort);
+			}
+			host = hostPort.substring(1, close);
+			if (hostPort.length() > close + 1 && hostPort.charAt(close + 1) == ':')
+			{
+				port = Integer.parseInt(hostPort.substring(close + 2));
+			}
+		}
+		else if (hostPort.indexOf(':') >= 0 && hostPort.indexOf(':') == hostPort.lastIndexOf(':'))
+		{
+			int colon = hostPort.indexOf(':');
+			host = hostPort.substring(0, colon);
+			port = Integer.parseInt(hostPort.substring(colon + 1));
+		}
+
+		return new InetSocketAddress(InetAddress.getByName(host), port);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.cablelabs.time.client.AsyncTimeClient.ResultListener#onResult(com.cablelabs.time.client.TimeQueryResult)
+	 */
+	@Override
+	public synchronized void onResult(TimeQueryResult result)
+	{
+		m_total++;
+		switch (result.getStatus())
+		{
+		case OK:
+			m_ok++;
+			m_rttHistogram.record(result.getRttNanos());
+			m_offsetMin = Math.min(m_offsetMin, result.getOffsetMillis());
+			m_offsetMax = Math.max(m_offsetMax, result.getOffsetMillis());
+			m_offsetSum += result.getOffsetMillis();
+			break;
+		case TIMEOUT:
+			m_timeouts++;
+			break;
+		default:
+			m_errors++;
+			break;
+		}
+
+		if (m_format == Format.JSON)
+		{
+			m_out.println(toJson(result));
+		}
+		else
+		{
+			m_out.println(toCsv(result));
+		}
+
+		long now = System.nanoTime();
+		if (now - m_lastFlushNanos >= FLUSH_INTERVAL_NANOS)
+		{
+			m_out.flush();
+			m_lastFlushNanos = now;
+		}
+	}
+
+	/**
+	 * Format a result as a CSV line
+	 * @param result Query result
+	 * @return CSV line
+	 */
+	private static String toCsv(TimeQueryResult result)
+	{
+		boolean ok = (result.getStatus() == TimeQueryResult.Status.OK);
+		InetSocketAddress address = result.getAddress();
+		return csvField(result.getTarget()) + "," +
+				(address != null ? address.getAddress().getHostAddress() : "") + "," +
+				(address != null ? String.valueOf(address.getPort()) : "") + "," +
+				(result.isTcp() ? "tcp" : "udp") + "," +
+				result.getStatus().name().toLowerCase() + "," +
+				result.getStartMillis() + "," +
+				(ok ? String.valueOf(TimeUnit.NANOSECONDS.toMicros(result.getRttNanos())) : "") + "," +
+				(ok ? String.valueOf(result.getServerValue()) : "") + "," +
+				(ok ? String.valueOf(result.getOffsetMillis()) : "") + "," +
+				(result.getError() != null ? csvField(result.getError()) : "");
+	}
+
+	/**
+	 * Quote a CSV field if necessary
+	 * @param value Field value
+	 * @return CSV-safe field
+	 */
+	private static String csvField(String value)
+	{
+		if (value.indexOf(',') < 0 && value.indexOf('"') < 0)
+		{
+			return value;
+		}
+		return "\"" + value.replace("\"", "\"\"") + "\"";
+	}
+
+	/**
+	 * Format a result as a JSON line
+	 * @param result Query result
+	 * @return JSON object on a single line
+	 */
+	private static String toJson(TimeQueryResult result)
+	{
+		StringBuilder json = new StringBuilder(160);
+		InetSocketAddress address = result.getAddress();
+		json.append("{\"target\":").append(jsonString(result.getTarget()));
+		if (address != null)
+		{
+			json.append(",\"address\":").append(jsonString(address.getAddress().getHostAddress()));
+			json.append(",\"port\":").append(address.getPort());
+		}
+		json.append(",\"protocol\":\"").append(result.isTcp() ? "tcp" : "udp").append('"');
+		json.append(",\"status\":\"").append(result.getStatus().name().toLowerCase()).append('"');
+		json.append(",\"start_ms\":").append(result.getStartMillis());
+		if (result.getStatus() == TimeQueryResult.Status.OK)
+		{
+			json.append(",\"rtt_us\":").append(TimeUnit.NANOSECONDS.toMicros(result.getRttNanos()));
+			json.append(",\"server_value\":").append(result.getServerValue());
+			json.append(",\"offset_ms\":").append(result.getOffsetMillis());
+		}
+		if (result.getError() != null)
+		{
+			json.append(",\"error\":").append(jsonString(result.getError()));
+		}
+		return json.append('}').toString();
+	}
+
+	/**
+	 * Quote and escape a JSON string
+	 * @param value String value
+	 * @return JSON string literal
+	 */
+	private static String jsonString(String value)
+	{
+		StringBuilder out = new StringBuilder(value.length() + 2).append('"');
+		for (int i = 0; i < value.length(); i++)
+		{
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\')
+			{
+				out.append('\\').append(c);
+			}
+			else if (c < 0x20)
+			{
+				out.append(String.format("\\u%04x", (int)c));
+			}
+			else
+			{
+				out.append(c);
+			}
+		}
+		return out.append('"').toString();
+	}
+
+	/**
+	 * Print the summary statistics
+	 * @param summary Output stream
+	 * @param elapsedNanos Duration of the audit
+	 */
+	private void printSummary(PrintStream summary, long elapsedNanos)
+	{
+		double elapsedSec = elapsedNanos / 1e9;
+		summary.println("Audit summary: " + m_total + " targets in " + String.format("%.2f", elapsedSec) + "s (" +
+				String.format("%.1f", (elapsedSec > 0 ? m_total / elapsedSec : 0)) + "/s)");
+		summary.println("  ok " + m_ok + ", timeout " + m_timeouts + ", error " + m_errors);
+		if (m_ok > 0)
+		{
+			summary.println("  rtt us: p50 " + micros(m_rttHistogram.getPercentile(50)) +
+					", p90 " + micros(m_rttHistogram.getPercentile(90)) +
+					", p99 " + micros(m_rttHistogram.getPercentile(99)) +
+					", max " + micros(m_rttHistogram.getPercentile(100)));
+			summary.println("  offset ms: min " + m_offsetMin + ", mean " + (m_offsetSum / m_ok) + ", max " + m_offsetMax +
+					" (RFC868 resolution is 1s)");
+		}
+	}
+
+	/**
+	 * Convert nanoseconds to microseconds
+	 * @param nanos Nanoseconds
+	 * @return Microseconds
+	 */
+	private static long micros(long nanos)
+	{
+		return TimeUnit.NANOSECONDS.toMicros(nanos);
+	}
+}
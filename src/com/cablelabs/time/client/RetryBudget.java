@@ -0,0 +1,102 @@
+/*
+ * Copyright 2017 Cable Television Laboratories, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cablelabs.time.client;
+
+/**
+ * This class bounds the retransmissions and hedged requests of a client to a fraction of its
+ * queries.
+ *
+ * Each query deposits a fraction of a token and each extra request withdraws a whole one, so that
+ * when a server stops answering, retries add at most that fraction to the load instead of
+ * multiplying it.  The balance is capped at the reserve, which lets a client that has just
+ * started, or sends few queries, retry a few times.
+ */
+public class RetryBudget
+{
+	public static final double DEFAULT_RATIO = 0.2;
+	public static final int DEFAULT_RESERVE = 10;
+
+	private final double m_ratio;
+	private final double m_reserve;
+	private double m_balance;
+	private long m_refused = 0;
+
+	/**
+	 * Create an instance of a RetryBudget with the default ratio and reserve
+	 */
+	public RetryBudget()
+	{
+		this(DEFAULT_RATIO, DEFAULT_RESERVE);
+	}
+
+	/**
+	 * Create an instance of a RetryBudget
+	 * @param ratio Extra requests allowed per query, over time
+	 * @param reserve Extra requests allowed at once, and at start
+	 */
+	public RetryBudget(double ratio, int reserve)
+	{
+		if (ratio < 0 || reserve < 0)
+		{
+			throw new IllegalArgumentException("Invalid retry budget: ratio " + ratio + ", reserve " + reserve);
+		}
+		m_ratio = ratio;
+		m_reserve = reserve;
+		m_balance = reserve;
+	}
+
+	/**
+	 * Deposit the share of a new query
+	 */
+	public synchronized void queryStarted()
+	{
+		m_balance = Math.min(m_balance + m_ratio, Math.max(m_reserve, 1));
+	}
+
+	/**
+	 * Withdraw an extra request, if the budget allows it
+	 * @return True if the request may be sent
+	 */
+	public synchronized boolean tryRetry()
+	{
+		if (m_balance < 1)
+		{
+			m_refused++;
+			return false;
+		}
+		m_balance -= 1;
+		return true;
+	}
+
+	/**
+	 * Get the number of extra requests the budget allows now
+	 * @return Whole requests
+	 */
+	public synchronized int getBalance()
+	{
+		return (int)m_balance;
+	}
+
+	/**
+	 * Get the number of extra requests refused
+	 * @return Count
+	 */
+	public synchronized long getRefused()
+	{
+		return m_refused;
+	}
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2017 Cable Television Laboratories, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cablelabs.time.client;
+
+import java.util.concurrent.TimeUnit;
+
+import com.cablelabs.time.server.LatencyHistogram;
+
+/**
+ * This class estimates the retransmission timeout of one server from its round-trip times.
+ *
+ * The smoothed round-trip time and its variation are updated with the gains of Jacobson and
+ * Karels, and the timeout is the smoothed time plus four variations, as in RFC 6298.  Each
+ * retransmission doubles the timeout (up to the maximum), and the doubled timeout is kept until a
+ * response to a request that was sent only once gives a new sample (Karn's algorithm).  The
+ * latency of every answered query is also kept in a histogram, so a hedged request can be sent
+ * after a percentile of it.
+ */
+public class RttEstimator
+{
+	public static final long DEFAULT_INITIAL_RTO_MS = 1000;
+	public static final long DEFAULT_MIN_RTO_MS = 100;
+	public static final long DEFAULT_MAX_RTO_MS = 10000;
+
+	// queries answered before the latency percentiles are trusted for hedging
+	public static final int MIN_HEDGE_SAMPLES = 20;
+
+	private final long m_minRtoNanos;
+	private final long m_maxRtoNanos;
+
+	private long m_smoothedRttNanos = 0;
+	private long m_rttVariationNanos = 0;
+	private long m_rtoNanos;
+	private long m_samples = 0;
+	private final LatencyHistogram m_latency = new LatencyHistogram();
+
+	/**
+	 * Create an instance of an RttEstimator with the default timeouts
+	 */
+	public RttEstimator()
+	{
+		this(DEFAULT_INITIAL_RTO_MS, DEFAULT_MIN_RTO_MS, DEFAULT_MAX_RTO_MS);
+	}
+
+	/**
+	 * Create an instance of an RttEstimator
+	 * @param initialRtoMs Timeout before the first sample
+	 * @param minRtoMs Lower bound of the timeout
+	 * @param maxRtoMs Upper bound of the timeout, and of its backoff
+	 */
+	public RttEstimator(long initialRtoMs, long minRtoMs, long maxRtoMs)
+	{
+		if (minRtoMs < 1 || minRtoMs > initialRtoMs || initialRtoMs > maxRtoMs)
+		{
+			throw new IllegalArgumentException("Invalid timeouts: initial " + initialRtoMs + " ms, between " +
+					minRtoMs + " and " + maxRtoMs + " ms");
+		}
+		m_minRtoNanos = TimeUnit.MILLISECONDS.toNanos(minRtoMs);
+		m_maxRtoNanos = TimeUnit.MILLISECONDS.toNanos(maxRtoMs);
+		m_rtoNanos = TimeUnit.MILLISECONDS.toNanos(initialRtoMs);
+	}
+
+	/**
+	 * Add the round-trip time of a request that was sent only once
+	 * @param rttNanos Round-trip time
+	 */
+	public synchronized void sample(long rttNanos)
+	{
+		if (m_samples == 0)
+		{
+			m_smoothedRttNanos = rttNanos;
+			m_rttVariationNanos = rttNanos / 2;
+		}
+		else
+		{
+			// RTTVAR = 3/4 RTTVAR + 1/4 |SRTT - R|, then SRTT = 7/8 SRTT + 1/8 R
+			m_rttVariationNanos += (Math.abs(m_smoothedRttNanos - rttNanos) - m_rttVariationNanos) / 4;
+			m_smoothedRttNanos += (rttNanos - m_smoothedRttNanos) / 8;
+		}
+		m_samples++;
+		m_rtoNanos = clamp(m_smoothedRttNanos + 4 * m_rttVariationNanos);
+	}
+
+	/**
+	 * Double the timeout after a retransmission, until the next sample
+	 */
+	public synchronized void backoff()
+	{
+		m_rtoNanos = clamp(m_rtoNanos * 2);
+	}
+
+	/**
+	 * Add the latency of an answered query, retransmitted or not
+	 * @param latencyNanos Time from the first request to the response
+	 */
+	public void recordLatency(long latencyNanos)
+	{
+		m_latency.record(latencyNanos);
+	}
+
+	/**
+	 * Get the retransmission timeout
+	 * @return Timeout in nanoseconds
+	 */
+	public synchronized long getRtoNanos()
+	{
+		return m_rtoNanos;
+	}
+
+	/**
+	 * Get the smoothed round-trip time
+	 * @return Nanoseconds, or 0 before the first sample
+	 */
+	public synchronized long getSmoothedRttNanos()
+	{
+		return m_smoothedRttNanos;
+	}
+
+	/**
+	 * Get the round-trip time variation
+	 * @return Nanoseconds, or 0 before the first sample
+	 */
+	public synchronized long getRttVariationNanos()
+	{
+		return m_rttVariationNanos;
+	}
+
+	/**
+	 * Get the number of round-trip times sampled
+	 * @return Count
+	 */
+	public synchronized long getSamples()
+	{
+		return m_samples;
+	}
+
+	/**
+	 * Get the delay after which a hedged request is sent
+	 * @param percentile Percentile of the query latency (0 to 100)
+	 * @return Delay in nanoseconds, or 0 if too few queries were answered to hedge
+	 */
+	public long getHedgeDelayNanos(double percentile)
+	{
+		if (m_latency.getCount() < MIN_HEDGE_SAMPLES)
+		{
+			return 0;
+		}
+		return m_latency.getPercentile(percentile);
+	}
+
+	/**
+	 * Bound a timeout
+	 * @param rtoNanos Timeout
+	 * @return Timeout between the minimum and the maximum
+	 */
+	private long clamp(long rtoNanos)
+	{
+		return Math.max(m_minRtoNanos, Math.min(rtoNanos, m_maxRtoNanos));
+	}
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2017 Cable Television Laboratories, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cablelabs.time.client;
+
+import java.net.InetSocketAddress;
+
+/**
+ * This class holds the outcome of a single asynchronous Time Protocol query
+ */
+public class TimeQueryResult
+{
+	/**
+	 * Outcome of a query
+	 */
+	public enum Status
+	{
+		OK,
+		TIMEOUT,
+		ERROR
+	}
+
+	private final String m_target;
+	private final InetSocketAddress m_address;
+	private final boolean m_tcp;
+	private final Status m_status;
+	private final String m_error;
+	private final long m_startMillis;
+	private final long m_rttNanos;
+	private final long m_serverValue;
+	private final long m_offsetMillis;
+	private final int m_requests;
+
+	/**
+	 * Create an instance of a TimeQueryResult
+	 * @param target Target as specified by the caller
+	 * @param address Resolved server address (may be null if resolution failed)
+	 * @param tcp True if the query used TCP
+	 * @param status Outcome of the query
+	 * @param error Error description, or null
+	 * @param startMillis Wall clock time the query was sent
+	 * @param rttNanos Round-trip time in nanoseconds
+	 * @param serverValue Time Server value returned by the server
+	 * @param offsetMillis Estimated offset of the server clock relative to the local clock
+	 */
+	public TimeQueryResult(String target, InetSocketAddress address, boolean tcp, Status status, String error,
+			long startMillis, long rttNanos, long serverValue, long offsetMillis)
+	{
+		this(target, address, tcp, status, error, startMillis, rttNanos, serverValue, offsetMillis, 1);
+	}
+
+	/**
+	 * Create an instance of a TimeQueryResult
+	 * @param target Target as specified by the caller
+	 * @param address Resolved server address (may be null if resolution failed)
+	 * @param tcp True if the query used TCP
+	 * @param status Outcome of the query
+	 * @param error Error description, or null
+	 * @param startMillis Wall clock time the query was sent
+	 * @param rttNanos Round-trip time in nanoseconds, from the first request
+	 * @param serverValue Time Server value returned by the server
+	 * @param offsetMillis Estimated offset of the server clock relative to the local clock
+	 * @param requests Number of requests sent, including retransmissions and hedged requests
+	 */
+	public TimeQueryResult(String target, InetSocketAddress address, boolean tcp, Status status, String error,
+			long startMillis, long rttNanos, long serverValue, long offsetMillis, int requests)
+	{
+		m_target = target;
+		m_address = address;
+		m_tcp = tcp;
+		m_status = status;
+		m_error = error;
+		m_startMillis = startMillis;
+		m_rttNanos = rttNanos;
+		m_serverValue = serverValue;
+		m_offsetMillis = offsetMillis;
+		m_requests = requests;
+	}
+
+	/**
+	 * Get the target as specified by the caller
+	 * @return Target string
+	 */
+	public String getTarget()
+	{
+		return m_target;
+	}
+
+	/**
+	 * Get the resolved server address
+	 * @return Socket address, or null if the target could not be resolved
+	 */
+	public InetSocketAddress getAddress()
+	{
+		return m_address;
+	}
+
+	/**
+	 * Get the flag indicating if the query used TCP
+	 * @return True for TCP, false for UDP
+	 */
+	public boolean isTcp()
+	{
+		return m_tcp;
+	}
+
+	/**
+	 * Get the outcome of the query
+	 * @return Status
+	 */
+	public Status getStatus()
+	{
+		return m_status;
+	}
+
+	/**
+	 * Get the error description
+	 * @return Error description, or null if the query succeeded
+	 */
+	public String getError()
+	{
+		return m_error;
+	}
+
+	/**
+	 * Get the wall clock time at which the query was sent
+	 * @return Milliseconds since the epoch
+	 */
+	public long getStartMillis()
+	{
+		return m_startMillis;
+	}
+
+	/**
+	 * Get the round-trip time
+	 * @return Round-trip time in nanoseconds
+	 */
+	public long getRttNanos()
+	{
+		return m_rttNanos;
+	}
+
+	/**
+	 * Get the value returned by the server
+	 * @return Time Server value (seconds since 00:00 1 January 1900 GMT)
+	 */
+	public long getServerValue()
+	{
+		return m_serverValue;
+	}
+
+	/**
+	 * Get the estimated offset of the server clock relative to the local clock.
+	 * RFC868 only carries whole seconds, so this is accurate to +/- 500ms plus half the round-trip time.
+	 * @return Offset in milliseconds (positive if the server is ahead)
+	 */
+	public long getOffsetMillis()
+	{
+		return m_offsetMillis;
+	}
+
+	/**
+	 * Get the number of requests sent
+	 * @return Requests, including retransmissions and hedged requests
+	 */
+	public int getRequests()
+	{
+		return m_requests;
+	}
+}
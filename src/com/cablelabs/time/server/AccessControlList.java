@@ -0,0 +1,184 @@
+/*
+ * Copyright 2017 Cable Television Laboratories, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cablelabs.time.server;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class is a CIDR allow/deny list for time requests.
+ *
+ * The allow and deny files hold one IPv4 or IPv6 CIDR per line ('#' starts a comment).  They are
+ * compiled into a {@link CidrTrie}, which is swapped in with a single volatile write on reload,
+ * so request threads never block on, or see a half-built, list.  If the allow list is empty every
+ * address not denied is allowed; otherwise only allowed addresses are answered.
+ */
+public class AccessControlList
+{
+	private final File m_allowFile;
+	private final File m_denyFile;
+
+	private volatile CidrTrie m_trie = null;
+	private long m_allowModified = 0;
+	private long m_denyModified = 0;
+
+	private final LongAdder m_denied = new LongAdder();
+
+	/**
+	 * Create an instance of an AccessControlList and load it
+	 * @param allowFile File of allowed CIDRs, or null
+	 * @param denyFile File of denied CIDRs, or null
+	 * @throws IOException If a file cannot be read
+	 * @throws IllegalArgumentException If a file contains an invalid CIDR
+	 */
+	public AccessControlList(File allowFile, File denyFile) throws IOException
+	{
+		m_allowFile = allowFile;
+		m_denyFile = denyFile;
+		reload();
+	}
+
+	/**
+	 * Test whether a request from the specified address should be answered
+	 * @param address Source address
+	 * @return True if the address is allowed
+	 */
+	public boolean isAllowed(InetAddress address)
+	{
+		if (m_trie.lookup(address) == CidrTrie.VERDICT_ALLOW)
+		{
+			return true;
+		}
+		m_denied.increment();
+		return false;
+	}
+
+	/**
+	 * Get the number of requests denied
+	 * @return Denied request count
+	 */
+	public long getDeniedCount()
+	{
+		return m_denied.sum();
+	}
+
+	/**
+	 * Get the number of prefixes currently loaded
+	 * @return Prefix count
+	 */
+	public int getPrefixCount()
+	{
+		return m_trie.getPrefixCount();
+	}
+
+	/**
+	 * Re-read both files and atomically replace the current list.  On error the current list is kept.
+	 * @throws IOException If a file cannot be read
+	 * @throws IllegalArgumentException If a file contains an invalid CIDR
+	 */
+	public synchronized void reload() throws IOException
+	{
+		long allowModified = (m_allowFile != null ? m_allowFile.lastModified() : 0);
+		long denyModified = (m_denyFile != null ? m_denyFile.lastModified() : 0);
+
+		CidrTrie.Builder builder = new CidrTrie.Builder();
+		int allowed = load(builder, m_allowFile, true);
+		load(builder, m_denyFile, false);
+		builder.setDefault(allowed == 0 ? CidrTrie.VERDICT_ALLOW : CidrTrie.VERDICT_DENY);
+
+		m_trie = builder.build();
+		m_allowModified = allowModified;
+		m_denyModified = denyModified;
+	}
+
+	/**
+	 * Reload the list if either file changed since it was last loaded
+	 * @return True if the list was reloaded
+	 * @throws IOException If a file cannot be read
+	 * @throws IllegalArgumentException If a file contains an invalid CIDR
+	 */
+	public synchronized boolean reloadIfModified() throws IOException
+	{
+		if ((m_allowFile != null && m_allowFile.lastModified() != m_allowModified) ||
+				(m_denyFile != null && m_denyFile.lastModified() != m_denyModified))
+		{
+			reload();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Add the CIDRs in a file to a trie builder
+	 * @param builder Trie builder
+	 * @param file CIDR file, or null
+	 * @param allow True for allowed CIDRs
+	 * @return Number of CIDRs added
+	 * @throws IOException If the file cannot be read
+	 */
+	private static int load(CidrTrie.Builder builder, File file, boolean allow) throws IOException
+	{
+		if (file == null)
+		{
+			return 0;
+		}
+
+		int count = 0;
+		int lineNumber = 0;
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				Files.newInputStream(file.toPath()), StandardCharsets.UTF_8));
+		try
+		{
+			String line = null;
+			while ((line = reader.readLine()) != null)
+			{
+				lineNumber++;
+				int comment = line.indexOf('#');
+				if (comment >= 0)
+				{
+					line = line.substring(0, comment);
+				}
+				line = line.trim();
+				if (line.isEmpty())
+				{
+					continue;
+				}
+
+				try
+				{
+					builder.add(line, allow);
+				}
+				catch (IllegalArgumentException e)
+				{
+					throw new IllegalArgumentException(file + ":" + lineNumber + ": " + e.getMessage());
+				}
+				count++;
+			}
+		}
+		finally
+		{
+			reader.close();
+		}
+		return count;
+	}
+}
@@ -16,8 +16,30 @@
 
 package com.cablelabs.time.server;
 
+import java.io.File;
 import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -31,78 +53,1386 @@ import org.apache.commons.cli.ParseException;
  */
 public class CableLabsTimeServer
 {
+	// listener names, as used to set an idle strategy per listener
+	public static final String LISTENER_TCP = "tcp";
+	public static final String LISTENER_UDP = "udp";
+	public static final String LISTENER_SNTP = "sntp";
+	public static final String LISTENER_DAYTIME_TCP = "daytime_tcp";
+	public static final String LISTENER_DAYTIME_UDP = "daytime_udp";
+	public static final String LISTENER_SUBSCRIBE = "subscribe";
+	
 	private boolean m_useTcp = true;
 	private TcpTimeServer m_tcpServer = null;
 	
+	private long m_tcpWriteTimeoutMs = TcpTimeServer.DEFAULT_WRITE_TIMEOUT_MS;
+	private long m_tcpCloseTimeoutMs = TcpTimeServer.DEFAULT_CLOSE_TIMEOUT_MS;
+	
 	private boolean m_useUdp = true;
 	private UdpTimeServer m_udpServer = null;
 	
+	private boolean m_useSntp = false;
+	private int m_sntpPort = SntpTimeServer.SNTP_PORT;
+	private SntpTimeServer m_sntpServer = null;
+	
+	private boolean m_useDaytime = false;
+	private int m_daytimePort = DaytimeHandler.DAYTIME_PORT;
+	private TcpTimeServer m_daytimeTcpServer = null;
+	private UdpTimeServer m_daytimeUdpServer = null;
+	
+	private int m_subscribePort = -1;
+	private int m_maxSubscribers = SubscriptionTimeServer.DEFAULT_MAX_SUBSCRIBERS;
+	private SubscriptionTimeServer m_subscriptionServer = null;
+	
 	private String m_listenAddress = null;
+	private int m_port = TimeServer.TIME_SERVER_PORT;
+	
+	private int m_requestLogInterval = 1;
+	private int m_eventSampleInterval = TimeServer.DEFAULT_EVENT_SAMPLE_INTERVAL;
+	
+	private Executor m_executor = null;
+	private ScheduledExecutorService m_scheduler = null;
+	private ScheduledExecutorService m_ownScheduler = null;
+	private final List<ScheduledFuture<?>> m_maintenanceTasks = new ArrayList<ScheduledFuture<?>>();
+	
+	private String m_journalDirectory = null;
+	private int m_journalSegments = 0;
+	private RequestJournal m_journal = null;
+	
+	private static final long ACL_RELOAD_INTERVAL_MS = 10000;
+	private String m_allowFile = null;
+	private String m_denyFile = null;
+	private volatile AccessControlList m_accessControl = null;
+	
+	private int m_heavyHitterCapacity = 0;
+	private long m_heavyHitterWindowMs = 60000;
+	private HeavyHitterTracker m_heavyHitters = null;
+	
+	private static final long WORKER_REPORT_INTERVAL_MS = 60000;
+	private int m_workerThreads = 0;
+	private int m_workerQueueBound = WorkerPool.DEFAULT_QUEUE_BOUND;
+	private WorkerPool.Type m_workerType = WorkerPool.Type.THREAD_POOL;
+	private WorkerPool.RejectionPolicy m_workerRejection = WorkerPool.RejectionPolicy.DROP;
+	private WorkerPool m_workers = null;
+	
+	private int m_udpPipelineSenders = 0;
+	private int m_udpRingSize = UdpTimeServer.DEFAULT_RING_SIZE;
+	
+	private IdleStrategy.Type m_idleStrategy = IdleStrategy.Type.BLOCKING;
+	private final Map<String, IdleStrategy.Type> m_listenerIdleStrategies = new HashMap<String, IdleStrategy.Type>();
+	
+	private InetSocketAddress m_statsAggregatorAddress = null;
+	private String m_statsNode = null;
+	private long m_statsIntervalMs = StatsExporter.DEFAULT_INTERVAL_MS;
+	private StatsExporter m_statsExporter = null;
+	private int m_statsAggregatorPort = -1;
+	private StatsAggregator m_statsAggregator = null;
+	
+	private long m_kernelStatsIntervalMs = 0;
+	private KernelUdpStats m_kernelStats = null;
+	
+	private int m_warmUpRounds = 0;
+	private long m_warmUpMaxTimeMs = WarmUp.DEFAULT_MAX_TIME_MS;
+	private WarmUp m_warmUp = null;
+	
+	private String m_configFile = null;
+	private RuntimeConfig m_startConfig = null;
+	private RuntimeConfig m_boundConfig = null;
+	private ConfigWatcher m_configWatcher = null;
+	// live settings whose last change could not be applied to the running listeners
+	private final Set<String> m_rebindSettings = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	
+	private final ServedClock m_clock = new ServedClock();
+	private List<UpstreamSynchronizer.Upstream> m_upstreams = null;
+	private long m_pollIntervalMs = 16000;
+	private int m_maxMissedPolls = 4;
+	private UpstreamSynchronizer m_synchronizer = null;
+	
+	/**
+	 * Create an instance of a CableLabsTimeServer
+	 */
+	public CableLabsTimeServer()
+	{
+	}
+	
+	/**
+	 * Get the flag indicating if this server will use TCP
+	 * @return True if TCP is used
+	 */
+	public boolean getUseTcp()
+	{
+		return m_useTcp;
+	}
+	
+	/**
+	 * Set the flag indicating if this server will use TCP
+	 * @param useTcp True if TCP is used
+	 */
+	public void setUseTcp(boolean useTcp)
+	{
+		m_useTcp = useTcp;
+	}
+	
+	/**
+	 * Set the TCP connection deadlines; connections missing one are aborted
+	 * @param writeTimeoutMs Time allowed for the time value to be written
+	 * @param closeTimeoutMs Time allowed, after the write, for the client to close the connection
+	 */
+	public void setTcpTimeouts(long writeTimeoutMs, long closeTimeoutMs)
+	{
+		m_tcpWriteTimeoutMs = writeTimeoutMs;
+		m_tcpCloseTimeoutMs = closeTimeoutMs;
+	}
+	
+	/**
+	 * Get the flag indicating if this server will use UDP
+	 * @return True if UDP is used
+	 */
+	public boolean getUseUdp()
+	{
+		return m_useUdp;
+	}
+	
+	/**
+	 * Set the flag indicating if this server will use UDP
+	 * @param useUdp True if UDP is used
+	 */
+	public void setUseUdp(boolean useUdp)
+	{
+		m_useUdp = useUdp;
+	}
+	
+	/**
+	 * Get the flag indicating if this server will answer SNTP requests
+	 * @return True if SNTP is used
+	 */
+	public boolean getUseSntp()
+	{
+		return m_useSntp;
+	}
+	
+	/**
+	 * Set the flag indicating if this server will answer SNTP requests
+	 * @param useSntp True if SNTP is used
+	 */
+	public void setUseSntp(boolean useSntp)
+	{
+		m_useSntp = useSntp;
+	}
+	
+	/**
+	 * Set the port on which to listen for SNTP requests
+	 * @param port Port number (default 123; 0 picks a free port)
+	 */
+	public void setSntpPort(int port)
+	{
+		if (port < 0 || port > 65535)
+		{
+			throw new IllegalArgumentException("Invalid port: " + port);
+		}
+		m_sntpPort = port;
+	}
+	
+	/**
+	 * Get the flag indicating if this server will answer Daytime (RFC867) requests
+	 * @return True if Daytime is used
+	 */
+	public boolean getUseDaytime()
+	{
+		return m_useDaytime;
+	}
+	
+	/**
+	 * Set the flag indicating if this server will answer Daytime (RFC867) requests, over each
+	 * enabled transport
+	 * @param useDaytime True if Daytime is used
+	 */
+	public void setUseDaytime(boolean useDaytime)
+	{
+		m_useDaytime = useDaytime;
+	}
+	
+	/**
+	 * Set the port on which to listen for Daytime requests
+	 * @param port Port number (default 13; 0 picks a free port for each transport)
+	 */
+	public void setDaytimePort(int port)
+	{
+		if (port < 0 || port > 65535)
+		{
+			throw new IllegalArgumentException("Invalid port: " + port);
+		}
+		m_daytimePort = port;
+	}
+	
+	/**
+	 * Set the port on which TCP clients subscribe to a time value at each second boundary
+	 * @param port Port number (0 picks a free port; -1, the default, disables subscriptions)
+	 * @param maxSubscribers Maximum number of subscribers
+	 */
+	public void setSubscription(int port, int maxSubscribers)
+	{
+		if (port < -1 || port > 65535)
+		{
+			throw new IllegalArgumentException("Invalid port: " + port);
+		}
+		if (maxSubscribers < 1)
+		{
+			throw new IllegalArgumentException("Invalid subscriber limit: " + maxSubscribers);
+		}
+		m_subscribePort = port;
+		m_maxSubscribers = maxSubscribers;
+	}
+	
+	/**
+	 * Get the port on which to listen
+	 * @return Port number
+	 */
+	public int getPort()
+	{
+		return m_port;
+	}
+	
+	/**
+	 * Set the port on which to listen (TCP and UDP)
+	 * @param port Port number (0 picks a free port for each protocol)
+	 */
+	public void setPort(int port)
+	{
+		if (port < 0 || port > 65535)
+		{
+			throw new IllegalArgumentException("Invalid port: " + port);
+		}
+		m_port = port;
+	}
+	
+	/**
+	 * Set the pool of worker threads answering the requests of every listener, instead of the
+	 * listeners answering them themselves
+	 * @param threads Number of worker threads (0 for no pool)
+	 * @param queueBound Maximum number of requests waiting for a worker
+	 * @param type Executor type
+	 * @param rejection What happens to a request when the pool is full
+	 */
+	public void setWorkers(int threads, int queueBound, WorkerPool.Type type, WorkerPool.RejectionPolicy rejection)
+	{
+		if (threads < 0 || queueBound < 0)
+		{
+			throw new IllegalArgumentException("Invalid worker pool size: " + threads + " threads, queue " + queueBound);
+		}
+		m_workerThreads = threads;
+		m_workerQueueBound = queueBound;
+		m_workerType = type;
+		m_workerRejection = rejection;
+	}
+	
+	/**
+	 * Get the pool of worker threads answering requests
+	 * @return Worker pool, or null if there is none (or the server is not started)
+	 */
+	public WorkerPool getWorkers()
+	{
+		return m_workers;
+	}
+	
+	/**
+	 * Export the statistics of every listener, and the heavy hitters if tracked, to a
+	 * {@link StatsAggregator}
+	 * @param aggregator Aggregator address, or null to export nothing
+	 * @param node Name of this node, or null for the host name
+	 * @param intervalMs Time between exports
+	 */
+	public void setStatsExport(InetSocketAddress aggregator, String node, long intervalMs)
+	{
+		if (intervalMs < 1)
+		{
+			throw new IllegalArgumentException("Invalid export interval: " + intervalMs);
+		}
+		m_statsAggregatorAddress = aggregator;
+		m_statsNode = node;
+		m_statsIntervalMs = intervalMs;
+	}
+	
+	/**
+	 * Get the statistics exporter
+	 * @return Exporter, or null if statistics are not exported (or the server is not started)
+	 */
+	public StatsExporter getStatsExporter()
+	{
+		return m_statsExporter;
+	}
+	
+	/**
+	 * Run a {@link StatsAggregator}, merging the statistics exported by a fleet of nodes; the
+	 * fleet view is printed at the export interval
+	 * @param port Port on which the aggregator listens (0 picks a free port, -1 runs none)
+	 */
+	public void setStatsAggregator(int port)
+	{
+		if (port < -1 || port > 65535)
+		{
+			throw new IllegalArgumentException("Invalid port: " + port);
+		}
+		m_statsAggregatorPort = port;
+	}
+	
+	/**
+	 * Get the statistics aggregator
+	 * @return Aggregator, or null if none is run (or the server is not started)
+	 */
+	public StatsAggregator getStatsAggregator()
+	{
+		return m_statsAggregator;
+	}
+	
+	/**
+	 * Sample and print the kernel view of the UDP listener sockets (receive queue depth, socket
+	 * drops and host RcvbufErrors) next to their in-process counters; Linux only
+	 * @param intervalMs Time between samples (0 disables sampling)
+	 */
+	public void setKernelStatsInterval(long intervalMs)
+	{
+		if (intervalMs < 0)
+		{
+			throw new IllegalArgumentException("Invalid sample interval: " + intervalMs);
+		}
+		m_kernelStatsIntervalMs = intervalMs;
+	}
+	
+	/**
+	 * Get the kernel UDP statistics sampler
+	 * @return Sampler, or null if sampling is disabled or unsupported (or the server is not started)
+	 */
+	public KernelUdpStats getKernelStats()
+	{
+		return m_kernelStats;
+	}
+	
+	/**
+	 * Set the pipelined mode of the UDP listeners, in which the listener only receives and sender
+	 * threads answer (see {@link UdpTimeServer#setPipeline}); it takes precedence over the worker
+	 * pool for UDP
+	 * @param senders Number of sender threads per UDP listener (0 for no pipeline)
+	 * @param ringSize Total ring slots per UDP listener
+	 */
+	public void setUdpPipeline(int senders, int ringSize)
+	{
+		if (senders < 0 || ringSize < 1)
+		{
+			throw new IllegalArgumentException("Invalid UDP pipeline: " + senders + " senders, " + ringSize + " slots");
+		}
+		m_udpPipelineSenders = senders;
+		m_udpRingSize = ringSize;
+	}
+	
+	/**
+	 * Set what every listener without its own idle strategy does while waiting for requests
+	 * @param idleStrategy Idle strategy (by default, blocking)
+	 */
+	public void setIdleStrategy(IdleStrategy.Type idleStrategy)
+	{
+		m_idleStrategy = idleStrategy;
+	}
+	
+	/**
+	 * Set what one listener does while waiting for requests, so only latency-critical listeners
+	 * poll
+	 * @param listener Listener name: {@link #LISTENER_TCP}, {@link #LISTENER_UDP},
+	 * {@link #LISTENER_SNTP}, {@link #LISTENER_DAYTIME_TCP} or {@link #LISTENER_DAYTIME_UDP}
+	 * @param idleStrategy Idle strategy, or null for the one of every listener
+	 */
+	public void setIdleStrategy(String listener, IdleStrategy.Type idleStrategy)
+	{
+		if (!listener.equals(LISTENER_TCP) && !listener.equals(LISTENER_UDP) && !listener.equals(LISTENER_SNTP) &&
+				!listener.equals(LISTENER_DAYTIME_TCP) && !listener.equals(LISTENER_DAYTIME_UDP))
+		{
+			throw new IllegalArgumentException("Unknown listener: " + listener);
+		}
+		if (idleStrategy == null)
+		{
+			m_listenerIdleStrategies.remove(listener);
+		}
+		else
+		{
+			m_listenerIdleStrategies.put(listener, idleStrategy);
+		}
+	}
+	
+	/**
+	 * Get what a listener does while waiting for requests
+	 * @param listener Listener name
+	 * @return Idle strategy
+	 */
+	public IdleStrategy.Type getIdleStrategy(String listener)
+	{
+		IdleStrategy.Type idleStrategy = m_listenerIdleStrategies.get(listener);
+		return (idleStrategy != null ? idleStrategy : m_idleStrategy);
+	}
+	
+	/**
+	 * Set the idle strategies as given on the command line
+	 * @param spec Strategy for every listener, or comma-separated listener=strategy settings
+	 */
+	public void setIdleStrategies(String spec)
+	{
+		for (String setting : spec.split(","))
+		{
+			int equals = setting.indexOf('=');
+			if (equals < 0)
+			{
+				setIdleStrategy(IdleStrategy.Type.fromName(setting));
+			}
+			else
+			{
+				setIdleStrategy(setting.substring(0, equals), IdleStrategy.Type.fromName(setting.substring(equals + 1)));
+			}
+		}
+	}
+	
+	/**
+	 * Set the warm-up run before the listeners are bound (see {@link WarmUp}); starting the
+	 * server blocks while it runs
+	 * @param rounds Minimum number of warm-up rounds (0 binds the listeners straight away)
+	 * @param maxTimeMs Time after which the warm-up stops, whether or not compilation has settled
+	 */
+	public void setWarmUp(int rounds, long maxTimeMs)
+	{
+		if (rounds < 0 || maxTimeMs < 1)
+		{
+			throw new IllegalArgumentException("Invalid warm-up: " + rounds + " rounds, " + maxTimeMs + " ms");
+		}
+		m_warmUpRounds = rounds;
+		m_warmUpMaxTimeMs = maxTimeMs;
+	}
+	
+	/**
+	 * Get the last warm-up
+	 * @return Warm-up, or null if there was none
+	 */
+	public WarmUp getWarmUp()
+	{
+		return m_warmUp;
+	}
+	
+	/**
+	 * Set the request log sampling interval
+	 * @param interval Log every interval-th request (1 logs every request, 0 logs none)
+	 */
+	public void setRequestLogInterval(int interval)
+	{
+		if (interval < 0)
+		{
+			throw new IllegalArgumentException("Invalid request log interval: " + interval);
+		}
+		m_requestLogInterval = interval;
+	}
+	
+	/**
+	 * Set the flight recorder sampling interval of the per-request received and dropped events
+	 * @param interval Record every interval-th event (1 records every event, 0 records none)
+	 */
+	public void setEventSampleInterval(int interval)
+	{
+		if (interval < 0)
+		{
+			throw new IllegalArgumentException("Invalid event sample interval: " + interval);
+		}
+		m_eventSampleInterval = interval;
+	}
+	
+	/**
+	 * Set the executor running the TCP and UDP listeners; each listener occupies one of its
+	 * threads while the server is running
+	 * @param executor Executor, or null to create listener threads
+	 */
+	public void setExecutor(Executor executor)
+	{
+		m_executor = executor;
+	}
+	
+	/**
+	 * Set the scheduler running periodic maintenance (access control reloads, heavy-hitter
+	 * reports and upstream polls); tasks are cancelled, but the scheduler is not shut down,
+	 * when the server stops
+	 * @param scheduler Scheduler, or null to create a maintenance thread when one is needed
+	 */
+	public void setScheduler(ScheduledExecutorService scheduler)
+	{
+		m_scheduler = scheduler;
+	}
+	
+	/**
+	 * Get the Inet Address on which to listen
+	 * @return String Inet Address
+	 */
+	public String getListenAddress()
+	{
+		return m_listenAddress;
+	}
+	
+	/**
+	 * Set the Inet Address on which to listen
+	 * @param address String Inet Address
+	 */
+	public void setListenAddress(String address)
+	{
+		m_listenAddress = address;
+	}
+		
+	/**
+	 * Get the directory of the binary request journal
+	 * @return Directory name, or null if journaling is disabled
+	 */
+	public String getJournalDirectory()
+	{
+		return m_journalDirectory;
+	}
+	
+	/**
+	 * Set the directory of the binary request journal
+	 * @param directory Directory name, or null to disable journaling
+	 * @param maxSegments Number of segment files to keep (0 keeps every segment)
+	 */
+	public void setJournalDirectory(String directory, int maxSegments)
+	{
+		m_journalDirectory = directory;
+		m_journalSegments = maxSegments;
+	}
+	
+	/**
+	 * Set the CIDR access control files; they are re-read whenever they change
+	 * @param allowFile File of allowed CIDRs, or null
+	 * @param denyFile File of denied CIDRs, or null
+	 */
+	public void setAccessControlFiles(String allowFile, String denyFile)
+	{
+		m_allowFile = allowFile;
+		m_denyFile = denyFile;
+	}
+	
+	/**
+	 * Get the access control list applied to requests
+	 * @return Access control list, or null if none is configured (or the server is not started)
+	 */
+	public AccessControlList getAccessControl()
+	{
+		return m_accessControl;
+	}
+	
+	/**
+	 * Set the configuration file (see {@link RuntimeConfig}); it is read when the server starts,
+	 * over the settings given before the first start, and watched for changes while the server runs
+	 * @param file Properties file, or null for none
+	 */
+	public void setConfigFile(String file)
+	{
+		m_configFile = file;
+	}
+	
+	/**
+	 * Get the configuration in use
+	 * @return Current snapshot, or null if there is no configuration file (or the server is not started)
+	 */
+	public RuntimeConfig getConfig()
+	{
+		ConfigWatcher watcher = m_configWatcher;
+		return (watcher != null ? watcher.getConfig() : null);
+	}
+	
+	/**
+	 * Get the settings changed in the configuration file that only take effect once the server is
+	 * stopped and started again
+	 * @return Setting names, in order
+	 */
+	public List<String> getPendingRebind()
+	{
+		List<String> pending = new ArrayList<String>();
+		ConfigWatcher watcher = m_configWatcher;
+		if (watcher != null)
+		{
+			for (String name : watcher.getConfig().getChanges(m_boundConfig))
+			{
+				if (!RuntimeConfig.isLive(name) || m_rebindSettings.contains(name))
+				{
+					pending.add(name);
+				}
+			}
+		}
+		return pending;
+	}
+	
+	/**
+	 * Enable heavy-hitter tracking; the top sources of each completed window are printed
+	 * @param capacity Number of counters per protocol, for hosts and for subnets (0 disables tracking)
+	 * @param windowMs Window length in milliseconds
+	 */
+	public void setHeavyHitterTracking(int capacity, long windowMs)
+	{
+		m_heavyHitterCapacity = capacity;
+		m_heavyHitterWindowMs = windowMs;
+	}
+	
+	/**
+	 * Get the heavy-hitter tracker
+	 * @return Heavy-hitter tracker, or null if tracking is disabled (or the server is not started)
+	 */
+	public HeavyHitterTracker getHeavyHitters()
+	{
+		return m_heavyHitters;
+	}
+	
+	/**
+	 * Discipline the served time from upstream time servers instead of serving the host clock
+	 * @param upstreams Upstream servers, or null to serve the host clock
+	 * @param pollIntervalMs Interval between upstream polls in milliseconds
+	 * @param maxMissedPolls Consecutive failed polls after which requests are no longer answered
+	 */
+	public void setUpstreams(List<UpstreamSynchronizer.Upstream> upstreams, long pollIntervalMs, int maxMissedPolls)
+	{
+		m_upstreams = upstreams;
+		m_pollIntervalMs = pollIntervalMs;
+		m_maxMissedPolls = maxMissedPolls;
+	}
+	
+	/**
+	 * Get the clock served by this server
+	 * @return Served clock
+	 */
+	public ServedClock getClock()
+	{
+		return m_clock;
+	}
+	
+	/**
+	 * Get the upstream synchronizer
+	 * @return Upstream synchronizer, or null if the host clock is served (or the server is not started)
+	 */
+	public UpstreamSynchronizer getSynchronizer()
+	{
+		return m_synchronizer;
+	}
+	
+	/**
+	 * Start the Time Server(s)
+	 * @throws IOException
+	 * @throws SecurityException
+	 * @throws IllegalAccessException
+	 */
+	public void startServer() throws IOException, SecurityException, IllegalAccessException
+	{
+		if (m_configFile != null)
+		{
+			if (m_startConfig == null)
+			{
+				m_startConfig = getRuntimeConfig();
+			}
+			m_configWatcher = new ConfigWatcher(new File(m_configFile), m_startConfig, new ConfigWatcher.Listener() {
+				public void configChanged(RuntimeConfig previous, RuntimeConfig current)
+				{
+					applyConfigChanges(previous, current);
+				}
+				
+				public void configRejected(List<String> errors)
+				{
+					System.out.println("Configuration rejected, keeping the previous configuration: " + String.join("; ", errors));
+				}
+			});
+			m_boundConfig = m_configWatcher.getConfig();
+			m_rebindSettings.clear();
+			applyConfig(m_boundConfig);
+		}
+		
+		if (m_journalDirectory != null)
+		{
+			m_journal = new RequestJournal(new File(m_journalDirectory), m_journalSegments);
+			m_journal.start(getScheduler());
+		}
+		
+		if (m_allowFile != null || m_denyFile != null)
+		{
+			m_accessControl = new AccessControlList(
+					(m_allowFile != null ? new File(m_allowFile) : null),
+					(m_denyFile != null ? new File(m_denyFile) : null));
+			System.out.println("Loaded " + m_accessControl.getPrefixCount() + " access control prefixes");
+		}
+		
+		if (m_accessControl != null || m_configWatcher != null)
+		{
+			// the configuration file can bring in access control lists at any time
+			m_maintenanceTasks.add(getScheduler().scheduleWithFixedDelay(new Runnable() {
+				public void run()
+				{
+					try
+					{
+						AccessControlList accessControl = m_accessControl;
+						if (accessControl != null && accessControl.reloadIfModified())
+						{
+							System.out.println("Reloaded " + accessControl.getPrefixCount() + " access control prefixes");
+						}
+					}
+					catch (IOException | IllegalArgumentException e)
+					{
+						System.out.println("Error reloading access control lists, keeping previous lists: " +
+								e.getLocalizedMessage());
+					}
+				}
+			}, ACL_RELOAD_INTERVAL_MS, ACL_RELOAD_INTERVAL_MS, TimeUnit.MILLISECONDS));
+		}
+		
+		if (m_heavyHitterCapacity > 0)
+		{
+			m_heavyHitters = new HeavyHitterTracker(m_heavyHitterCapacity, m_heavyHitterWindowMs, m_clock);
+			
+			// report shortly after each window closes
+			long now = m_clock.currentTimeMillis();
+			long firstReport = m_heavyHitterWindowMs - (now % m_heavyHitterWindowMs) + 100;
+			m_maintenanceTasks.add(getScheduler().scheduleAtFixedRate(new Runnable() {
+				public void run()
+				{
+					printHeavyHitters(10);
+				}
+			}, firstReport, m_heavyHitterWindowMs, TimeUnit.MILLISECONDS));
+		}
+		
+		if (m_workerThreads > 0)
+		{
+			m_workers = new WorkerPool(m_workerType, m_workerThreads, m_workerQueueBound, m_workerRejection);
+			
+			final WorkerPool workers = m_workers;
+			m_maintenanceTasks.add(getScheduler().scheduleAtFixedRate(new Runnable() {
+				public void run()
+				{
+					System.out.println(workers.getStatus());
+				}
+			}, WORKER_REPORT_INTERVAL_MS, WORKER_REPORT_INTERVAL_MS, TimeUnit.MILLISECONDS));
+		}
+		
+		if (m_upstreams != null && !m_upstreams.isEmpty())
+		{
+			m_synchronizer = new UpstreamSynchronizer(m_clock, m_upstreams, m_pollIntervalMs, m_maxMissedPolls);
+			m_synchronizer.start(getScheduler());
+		}
+		
+		if (m_statsAggregatorPort >= 0)
+		{
+			m_statsAggregator = new StatsAggregator(m_listenAddress, m_statsAggregatorPort);
+			System.out.println("Aggregating fleet statistics on " + m_statsAggregator.start());
+			
+			final StatsAggregator aggregator = m_statsAggregator;
+			m_maintenanceTasks.add(getScheduler().scheduleAtFixedRate(new Runnable() {
+				public void run()
+				{
+					System.out.println(aggregator.getStatus(10));
+				}
+			}, m_statsIntervalMs, m_statsIntervalMs, TimeUnit.MILLISECONDS));
+		}
+		
+		if (m_warmUpRounds > 0)
+		{
+			warmUp();
+		}
+		
+		if (m_useTcp)
+		{
+			m_tcpServer = new TcpTimeServer();
+			m_tcpServer.setTimeouts(m_tcpWriteTimeoutMs, m_tcpCloseTimeoutMs);
+			configure(m_tcpServer, m_port, LISTENER_TCP);
+			m_tcpServer.startServer();
+		}
+		
+		if (m_useUdp)
+		{
+			m_udpServer = new UdpTimeServer();
+			configure(m_udpServer, m_port, LISTENER_UDP);
+			m_udpServer.startServer();
+		}
+		
+		if (m_useSntp)
+		{
+			m_sntpServer = new SntpTimeServer();
+			configure(m_sntpServer, m_sntpPort, LISTENER_SNTP);
+			if (m_synchronizer != null)
+			{
+				// served time comes from upstream servers, announced as the reference
+				m_sntpServer.setStratum(2);
+				m_sntpServer.setSynchronizer(m_synchronizer);
+			}
+			m_sntpServer.startServer();
+		}
+		
+		if (m_useDaytime)
+		{
+			// one handler, so both transports share the cached line
+			DaytimeHandler daytime = new DaytimeHandler();
+			if (m_useTcp)
+			{
+				m_daytimeTcpServer = new TcpTimeServer();
+				m_daytimeTcpServer.setTimeouts(m_tcpWriteTimeoutMs, m_tcpCloseTimeoutMs);
+				m_daytimeTcpServer.setHandler(daytime);
+				configure(m_daytimeTcpServer, m_daytimePort, LISTENER_DAYTIME_TCP);
+				m_daytimeTcpServer.startServer();
+			}
+			if (m_useUdp)
+			{
+				m_daytimeUdpServer = new UdpTimeServer();
+				m_daytimeUdpServer.setHandler(daytime);
+				configure(m_daytimeUdpServer, m_daytimePort, LISTENER_DAYTIME_UDP);
+				m_daytimeUdpServer.startServer();
+			}
+		}
+		
+		if (m_subscribePort >= 0)
+		{
+			m_subscriptionServer = new SubscriptionTimeServer();
+			m_subscriptionServer.setMaxSubscribers(m_maxSubscribers);
+			configure(m_subscriptionServer, m_subscribePort, LISTENER_SUBSCRIBE);
+			m_subscriptionServer.startServer();
+		}
+		
+		if (m_statsAggregatorAddress != null)
+		{
+			startStatsExport();
+		}
+		
+		if (m_kernelStatsIntervalMs > 0)
+		{
+			startKernelStats();
+		}
+		
+		if (m_configWatcher != null)
+		{
+			m_configWatcher.start();
+			System.out.println("Watching configuration file " + m_configFile);
+		}
+	}
+	
+	/**
+	 * Get a snapshot of the current settings, which a configuration file overrides
+	 * @return Snapshot
+	 * @throws IOException if a current setting is invalid
+	 */
+	private RuntimeConfig getRuntimeConfig() throws IOException
+	{
+		Map<String, String> values = new TreeMap<String, String>();
+		if (m_listenAddress != null)
+		{
+			values.put(RuntimeConfig.INTERFACE, m_listenAddress);
+		}
+		values.put(RuntimeConfig.PORT, Integer.toString(m_port));
+		values.put(RuntimeConfig.NO_TCP, Boolean.toString(!m_useTcp));
+		values.put(RuntimeConfig.NO_UDP, Boolean.toString(!m_useUdp));
+		values.put(RuntimeConfig.SNTP, Boolean.toString(m_useSntp));
+		values.put(RuntimeConfig.SNTP_PORT, Integer.toString(m_sntpPort));
+		values.put(RuntimeConfig.DAYTIME, Boolean.toString(m_useDaytime));
+		values.put(RuntimeConfig.DAYTIME_PORT, Integer.toString(m_daytimePort));
+		if (m_subscribePort >= 0)
+		{
+			values.put(RuntimeConfig.SUBSCRIBE, Integer.toString(m_subscribePort));
+		}
+		values.put(RuntimeConfig.LOG_INTERVAL, Integer.toString(m_requestLogInterval));
+		values.put(RuntimeConfig.JFR_SAMPLE, Integer.toString(m_eventSampleInterval));
+		if (m_allowFile != null)
+		{
+			values.put(RuntimeConfig.ALLOW, m_allowFile);
+		}
+		if (m_denyFile != null)
+		{
+			values.put(RuntimeConfig.DENY, m_denyFile);
+		}
+		values.put(RuntimeConfig.WORKERS, Integer.toString(m_workerThreads));
+		values.put(RuntimeConfig.WORKER_QUEUE, Integer.toString(m_workerQueueBound));
+		values.put(RuntimeConfig.WORKER_POOL, (m_workerType == WorkerPool.Type.FORK_JOIN ? "forkjoin" : "thread"));
+		values.put(RuntimeConfig.WORKER_REJECT, (m_workerRejection == WorkerPool.RejectionPolicy.CALLER_RUNS ? "caller" : "drop"));
+		values.put(RuntimeConfig.UDP_PIPELINE, Integer.toString(m_udpPipelineSenders));
+		String idle = m_idleStrategy.getName();
+		for (Map.Entry<String, IdleStrategy.Type> entry : new TreeMap<String, IdleStrategy.Type>(m_listenerIdleStrategies).entrySet())
+		{
+			idle += "," + entry.getKey() + "=" + entry.getValue().getName();
+		}
+		values.put(RuntimeConfig.IDLE, idle);
+		
+		List<String> errors = new ArrayList<String>();
+		RuntimeConfig config = RuntimeConfig.parse(values, errors);
+		if (config == null)
+		{
+			throw new IOException("Invalid settings: " + String.join("; ", errors));
+		}
+		return config;
+	}
+	
+	/**
+	 * Take every setting of a configuration, before the listeners are started
+	 * @param config Snapshot
+	 * @throws IOException if the configuration enables no listener
+	 */
+	private void applyConfig(RuntimeConfig config) throws IOException
+	{
+		m_listenAddress = config.get(RuntimeConfig.INTERFACE);
+		m_port = config.getInt(RuntimeConfig.PORT, TimeServer.TIME_SERVER_PORT);
+		m_useTcp = !config.getFlag(RuntimeConfig.NO_TCP);
+		m_useUdp = !config.getFlag(RuntimeConfig.NO_UDP);
+		m_useSntp = config.getFlag(RuntimeConfig.SNTP);
+		m_sntpPort = config.getInt(RuntimeConfig.SNTP_PORT, SntpTimeServer.SNTP_PORT);
+		m_useDaytime = config.getFlag(RuntimeConfig.DAYTIME);
+		m_daytimePort = config.getInt(RuntimeConfig.DAYTIME_PORT, DaytimeHandler.DAYTIME_PORT);
+		m_subscribePort = config.getInt(RuntimeConfig.SUBSCRIBE, -1);
+		m_requestLogInterval = config.getInt(RuntimeConfig.LOG_INTERVAL, 1);
+		m_eventSampleInterval = config.getInt(RuntimeConfig.JFR_SAMPLE, TimeServer.DEFAULT_EVENT_SAMPLE_INTERVAL);
+		m_allowFile = config.get(RuntimeConfig.ALLOW);
+		m_denyFile = config.get(RuntimeConfig.DENY);
+		setWorkers(config.getInt(RuntimeConfig.WORKERS, 0),
+				config.getInt(RuntimeConfig.WORKER_QUEUE, WorkerPool.DEFAULT_QUEUE_BOUND),
+				("forkjoin".equals(config.get(RuntimeConfig.WORKER_POOL)) ? WorkerPool.Type.FORK_JOIN : WorkerPool.Type.THREAD_POOL),
+				getRejectionPolicy(config));
+		m_udpPipelineSenders = config.getInt(RuntimeConfig.UDP_PIPELINE, 0);
+		m_idleStrategy = IdleStrategy.Type.BLOCKING;
+		m_listenerIdleStrategies.clear();
+		if (config.get(RuntimeConfig.IDLE) != null)
+		{
+			setIdleStrategies(config.get(RuntimeConfig.IDLE));
+		}
+		
+		if (!hasService())
+		{
+			throw new IOException("Invalid configuration " + m_configFile + ": TCP, UDP, SNTP, subscriptions or the aggregator must be enabled");
+		}
+	}
+	
+	/**
+	 * Get the flag indicating if anything is enabled for the server to serve
+	 * @return True if a listener or the statistics aggregator is enabled
+	 */
+	private boolean hasService()
+	{
+		return (m_useTcp || m_useUdp || m_useSntp || m_subscribePort >= 0 || m_statsAggregatorPort >= 0);
+	}
+	
+	/**
+	 * Apply the live settings of a new configuration to the running listeners, and report every change
+	 * @param previous Snapshot replaced
+	 * @param current New snapshot
+	 */
+	private void applyConfigChanges(RuntimeConfig previous, RuntimeConfig current)
+	{
+		List<String> changes = current.getChanges(previous);
+		String accessControlOutcome = null;
+		if (changes.contains(RuntimeConfig.ALLOW) || changes.contains(RuntimeConfig.DENY))
+		{
+			accessControlOutcome = applyAccessControl(current);
+		}
+		
+		String report = "Configuration reloaded:";
+		for (String name : changes)
+		{
+			String outcome;
+			if (!RuntimeConfig.isLive(name))
+			{
+				outcome = "needs a rebind";
+			}
+			else if (name.equals(RuntimeConfig.ALLOW) || name.equals(RuntimeConfig.DENY))
+			{
+				outcome = accessControlOutcome;
+			}
+			else
+			{
+				outcome = applyLiveSetting(name, current);
+			}
+			if (RuntimeConfig.isLive(name))
+			{
+				if (outcome.equals("needs a rebind"))
+				{
+					m_rebindSettings.add(name);
+				}
+				else
+				{
+					m_rebindSettings.remove(name);
+				}
+			}
+			report += System.lineSeparator() + "  " + name + ": " + formatSetting(previous.get(name)) + " -> " +
+					formatSetting(current.get(name)) + " (" + outcome + ")";
+		}
+		System.out.println(report);
+	}
+	
+	/**
+	 * Apply a live setting, other than the access control files, to the running listeners
+	 * @param name Setting name
+	 * @param config New snapshot
+	 * @return Outcome reported
+	 */
+	private String applyLiveSetting(String name, RuntimeConfig config)
+	{
+		if (name.equals(RuntimeConfig.LOG_INTERVAL))
+		{
+			m_requestLogInterval = config.getInt(name, 1);
+			for (TimeServer server : getListeners())
+			{
+				server.setRequestLogInterval(m_requestLogInterval);
+			}
+		}
+		else if (name.equals(RuntimeConfig.JFR_SAMPLE))
+		{
+			m_eventSampleInterval = config.getInt(name, TimeServer.DEFAULT_EVENT_SAMPLE_INTERVAL);
+			for (TimeServer server : getListeners())
+			{
+				server.setEventSampleInterval(m_eventSampleInterval);
+			}
+		}
+		else if (name.equals(RuntimeConfig.WORKERS))
+		{
+			// a running pool can be resized, but not started, stopped or grown past its queue
+			int threads = config.getInt(name, 0);
+			WorkerPool workers = m_workers;
+			if (workers == null || threads == 0 || workers.getType() == WorkerPool.Type.FORK_JOIN ||
+					threads > workers.getMaxThreads())
+			{
+				return "needs a rebind";
+			}
+			workers.setThreads(threads);
+			m_workerThreads = threads;
+		}
+		else if (name.equals(RuntimeConfig.WORKER_REJECT))
+		{
+			m_workerRejection = getRejectionPolicy(config);
+			WorkerPool workers = m_workers;
+			if (workers != null)
+			{
+				workers.setRejectionPolicy(m_workerRejection);
+			}
+		}
+		return "applied";
+	}
+	
+	/**
+	 * Load the access control files of a new configuration and hand them to the running listeners
+	 * @param config New snapshot
+	 * @return Outcome reported
+	 */
+	private String applyAccessControl(RuntimeConfig config)
+	{
+		String allowFile = config.get(RuntimeConfig.ALLOW);
+		String denyFile = config.get(RuntimeConfig.DENY);
+		AccessControlList accessControl = null;
+		if (allowFile != null || denyFile != null)
+		{
+			try
+			{
+				accessControl = new AccessControlList(
+						(allowFile != null ? new File(allowFile) : null),
+						(denyFile != null ? new File(denyFile) : null));
+			}
+			catch (IOException | IllegalArgumentException e)
+			{
+				return "not applied, keeping previous lists: " + e.getLocalizedMessage();
+			}
+		}
+		m_allowFile = allowFile;
+		m_denyFile = denyFile;
+		m_accessControl = accessControl;
+		for (TimeServer server : getListeners())
+		{
+			server.setAccessControl(accessControl);
+		}
+		return "applied";
+	}
+	
+	/**
+	 * Get the running listeners
+	 * @return Listeners
+	 */
+	private List<TimeServer> getListeners()
+	{
+		List<TimeServer> listeners = new ArrayList<TimeServer>();
+		for (TimeServer server : new TimeServer[] { m_tcpServer, m_udpServer, m_sntpServer, m_daytimeTcpServer, m_daytimeUdpServer,
+				m_subscriptionServer })
+		{
+			if (server != null)
+			{
+				listeners.add(server);
+			}
+		}
+		return listeners;
+	}
+	
+	private static WorkerPool.RejectionPolicy getRejectionPolicy(RuntimeConfig config)
+	{
+		return ("caller".equals(config.get(RuntimeConfig.WORKER_REJECT)) ?
+				WorkerPool.RejectionPolicy.CALLER_RUNS : WorkerPool.RejectionPolicy.DROP);
+	}
+	
+	private static String formatSetting(String value)
+	{
+		return (value != null ? value : "unset");
+	}
+	
+	/**
+	 * Start sampling the kernel statistics of the UDP listeners just started
+	 */
+	private void startKernelStats()
+	{
+		final KernelUdpStats kernelStats = new KernelUdpStats();
+		if (!kernelStats.isSupported())
+		{
+			System.out.println("Kernel UDP statistics are not available on this system");
+			return;
+		}
+		if (m_udpServer != null)
+		{
+			kernelStats.addServer(LISTENER_UDP, m_udpServer);
+		}
+		if (m_sntpServer != null)
+		{
+			kernelStats.addServer(LISTENER_SNTP, m_sntpServer);
+		}
+		if (m_daytimeUdpServer != null)
+		{
+			kernelStats.addServer(LISTENER_DAYTIME_UDP, m_daytimeUdpServer);
+		}
+		m_kernelStats = kernelStats;
+		
+		m_maintenanceTasks.add(getScheduler().scheduleAtFixedRate(new Runnable() {
+			public void run()
+			{
+				try
+				{
+					kernelStats.sample();
+					System.out.println(kernelStats.getStatus());
+				}
+				catch (IOException e)
+				{
+					System.out.println("Unable to sample kernel UDP statistics: " + e.getMessage());
+				}
+			}
+		}, m_kernelStatsIntervalMs, m_kernelStatsIntervalMs, TimeUnit.MILLISECONDS));
+	}
+	
+	/**
+	 * Start exporting the statistics of the listeners just started
+	 * @throws IOException if the export socket cannot be opened
+	 */
+	private void startStatsExport() throws IOException
+	{
+		String node = m_statsNode;
+		if (node == null)
+		{
+			try
+			{
+				node = InetAddress.getLocalHost().getHostName();
+			}
+			catch (UnknownHostException e)
+			{
+				node = "localhost";
+			}
+		}
+		m_statsExporter = new StatsExporter(node, m_statsAggregatorAddress);
+		if (m_tcpServer != null)
+		{
+			m_statsExporter.addServer(LISTENER_TCP, m_tcpServer);
+		}
+		if (m_udpServer != null)
+		{
+			m_statsExporter.addServer(LISTENER_UDP, m_udpServer);
+		}
+		if (m_sntpServer != null)
+		{
+			m_statsExporter.addServer(LISTENER_SNTP, m_sntpServer);
+		}
+		if (m_daytimeTcpServer != null)
+		{
+			m_statsExporter.addServer(LISTENER_DAYTIME_TCP, m_daytimeTcpServer);
+		}
+		if (m_daytimeUdpServer != null)
+		{
+			m_statsExporter.addServer(LISTENER_DAYTIME_UDP, m_daytimeUdpServer);
+		}
+		if (m_subscriptionServer != null)
+		{
+			m_statsExporter.addServer(LISTENER_SUBSCRIBE, m_subscriptionServer);
+		}
+		m_statsExporter.setHeavyHitters(m_heavyHitters, StatsExporter.DEFAULT_HEAVY_HITTERS);
+		m_statsExporter.start(getScheduler(), m_statsIntervalMs);
+	}
+	
+	/**
+	 * Warm up every enabled protocol on private loopback listeners; readiness is only reported
+	 * (by binding the public listeners) afterwards.  A failed warm-up is reported and ignored.
+	 */
+	private void warmUp()
+	{
+		m_warmUp = new WarmUp(m_warmUpRounds, m_warmUpMaxTimeMs);
+		if (m_useTcp)
+		{
+			m_warmUp.addProtocol(new Rfc868Handler(), ProtocolHandler.TRANSPORT_TCP, new byte[0], m_workers);
+		}
+		if (m_useUdp)
+		{
+			m_warmUp.addProtocol(new Rfc868Handler(), ProtocolHandler.TRANSPORT_UDP, new byte[0], m_workers);
+		}
+		if (m_useSntp)
+		{
+			m_warmUp.addProtocol(new SntpHandler(), ProtocolHandler.TRANSPORT_UDP, WarmUp.sntpRequest(), m_workers);
+		}
+		if (m_useDaytime)
+		{
+			if (m_useTcp)
+			{
+				m_warmUp.addProtocol(new DaytimeHandler(), ProtocolHandler.TRANSPORT_TCP, new byte[0], m_workers);
+			}
+			if (m_useUdp)
+			{
+				m_warmUp.addProtocol(new DaytimeHandler(), ProtocolHandler.TRANSPORT_UDP, new byte[0], m_workers);
+			}
+		}
+		
+		System.out.println("Warming up for at least " + m_warmUpRounds + " rounds (at most " + m_warmUpMaxTimeMs + " ms)");
+		try
+		{
+			m_warmUp.run();
+			System.out.println(m_warmUp.getStatus());
+		}
+		catch (IOException e)
+		{
+			System.out.println("Warm-up failed, starting anyway: " + e.getLocalizedMessage());
+		}
+	}
+	
+	/**
+	 * Apply the settings shared by every listener
+	 * @param server Server to configure
+	 * @param port Port on which it listens
+	 * @param listener Listener name
+	 * @throws IOException
+	 * @throws SecurityException
+	 * @throws IllegalAccessException
+	 */
+	private void configure(TimeServer server, int port, String listener) throws IOException, SecurityException, IllegalAccessException
+	{
+		server.setListenAddress(m_listenAddress);
+		server.setPort(port);
+		server.setExecutor(m_executor);
+		server.setRequestLogInterval(m_requestLogInterval);
+		server.setEventSampleInterval(m_eventSampleInterval);
+		server.setJournal(m_journal);
+		server.setAccessControl(m_accessControl);
+		server.setHeavyHitters(m_heavyHitters);
+		server.setWorkers(m_workers);
+		server.setClock(m_clock);
+		server.setIdleStrategy(getIdleStrategy(listener));
+		if (server instanceof UdpTimeServer)
+		{
+			((UdpTimeServer)server).setPipeline(m_udpPipelineSenders, m_udpRingSize);
+		}
+	}
+	
+	/**
+	 * Start the Time Server(s)
+	 * @return Future completed with the bound TCP, UDP, SNTP, Daytime TCP, Daytime UDP and subscription addresses
+	 * (in that order, for the enabled listeners), or failed with
+	 * the first startup error; after a failure, call {@link #stopServer()} to release anything started
+	 */
+	public CompletableFuture<List<InetSocketAddress>> start()
+	{
+		try
+		{
+			startServer();
+		}
+		catch (IOException | SecurityException | IllegalAccessException e)
+		{
+			CompletableFuture<List<InetSocketAddress>> failed = new CompletableFuture<List<InetSocketAddress>>();
+			failed.completeExceptionally(e);
+			return failed;
+		}
+		
+		final List<CompletableFuture<InetSocketAddress>> bound = new ArrayList<CompletableFuture<InetSocketAddress>>();
+		if (m_tcpServer != null)
+		{
+			bound.add(m_tcpServer.getBoundAddress());
+		}
+		if (m_udpServer != null)
+		{
+			bound.add(m_udpServer.getBoundAddress());
+		}
+		if (m_sntpServer != null)
+		{
+			bound.add(m_sntpServer.getBoundAddress());
+		}
+		if (m_daytimeTcpServer != null)
+		{
+			bound.add(m_daytimeTcpServer.getBoundAddress());
+		}
+		if (m_daytimeUdpServer != null)
+		{
+			bound.add(m_daytimeUdpServer.getBoundAddress());
+		}
+		if (m_subscriptionServer != null)
+		{
+			bound.add(m_subscriptionServer.getBoundAddress());
+		}
+		return CompletableFuture.allOf(bound.toArray(new CompletableFuture<?>[bound.size()])).thenApply(
+				new Function<Void, List<InetSocketAddress>>() {
+					public List<InetSocketAddress> apply(Void v)
+					{
+						List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+						for (CompletableFuture<InetSocketAddress> future : bound)
+						{
+							addresses.add(future.join());
+						}
+						return addresses;
+					}
+				});
+	}
 	
 	/**
-	 * Create an instance of a CableLabsTimeServer
+	 * Get the TCP server
+	 * @return TCP server, or null if TCP is disabled (or the server is not started)
 	 */
-	public CableLabsTimeServer()
+	public TcpTimeServer getTcpServer()
 	{
+		return m_tcpServer;
 	}
 	
 	/**
-	 * Get the flag indicating if this server will use TCP
-	 * @return True if TCP is used
+	 * Get the UDP server
+	 * @return UDP server, or null if UDP is disabled (or the server is not started)
 	 */
-	public boolean getUseTcp()
+	public UdpTimeServer getUdpServer()
 	{
-		return m_useTcp;
+		return m_udpServer;
 	}
 	
 	/**
-	 * Get the flag indicating if this server will use UDP
-	 * @return True if UDP is used
+	 * Get the SNTP server
+	 * @return SNTP server, or null if SNTP is disabled (or the server is not started)
 	 */
-	public boolean getUseUdp()
+	public SntpTimeServer getSntpServer()
 	{
-		return m_useUdp;
+		return m_sntpServer;
 	}
 	
 	/**
-	 * Get the Inet Address on which to listen
-	 * @return String Inet Address
+	 * Get the Daytime TCP server
+	 * @return Daytime TCP server, or null if Daytime or TCP is disabled (or the server is not started)
 	 */
-	public String getListenAddress()
+	public TcpTimeServer getDaytimeTcpServer()
 	{
-		return m_listenAddress;
+		return m_daytimeTcpServer;
 	}
 	
 	/**
-	 * Set the Inet Address on which to listen
-	 * @param address String Inet Address
+	 * Get the Daytime UDP server
+	 * @return Daytime UDP server, or null if Daytime or UDP is disabled (or the server is not started)
 	 */
-	public void setListenAddress(String address)
+	public UdpTimeServer getDaytimeUdpServer()
 	{
-		m_listenAddress = address;
+		return m_daytimeUdpServer;
 	}
-		
+	
 	/**
-	 * Start the Time Server(s)
-	 * @throws IOException
-	 * @throws SecurityException
-	 * @throws IllegalAccessException
+	 * Get the subscription server
+	 * @return Subscription server, or null if subscriptions are disabled (or the server is not started)
 	 */
-	public void startServer() throws IOException, SecurityException, IllegalAccessException
+	public SubscriptionTimeServer getSubscriptionServer()
 	{
-		if (m_useTcp)
-		{
-			m_tcpServer = new TcpTimeServer();
-			m_tcpServer.setListenAddress(m_listenAddress);
-			m_tcpServer.startServer();
-		}
-		
-		if (m_useUdp)
-		{
-			m_udpServer = new UdpTimeServer();
-			m_udpServer.setListenAddress(m_listenAddress);
-			m_udpServer.startServer();
-		}
+		return m_subscriptionServer;
 	}
 	
 	/**
@@ -110,6 +1440,12 @@ public class CableLabsTimeServer
 	 */
 	public void stopServer()
 	{
+		if (m_configWatcher != null)
+		{
+			m_configWatcher.stop();
+			m_configWatcher = null;
+		}
+		
 		if (m_tcpServer != null)
 		{
 			m_tcpServer.stopServer();
@@ -121,6 +1457,138 @@ public class CableLabsTimeServer
 			m_udpServer.stopServer();
 			m_udpServer = null;
 		}
+		
+		if (m_sntpServer != null)
+		{
+			m_sntpServer.stopServer();
+			m_sntpServer = null;
+		}
+		
+		if (m_daytimeTcpServer != null)
+		{
+			m_daytimeTcpServer.stopServer();
+			m_daytimeTcpServer = null;
+		}
+		
+		if (m_daytimeUdpServer != null)
+		{
+			m_daytimeUdpServer.stopServer();
+			m_daytimeUdpServer = null;
+		}
+		
+		if (m_subscriptionServer != null)
+		{
+			m_subscriptionServer.stopServer();
+			m_subscriptionServer = null;
+		}
+		
+		if (m_statsExporter != null)
+		{
+			// the listeners have stopped, so the last export is complete
+			m_statsExporter.stop();
+			m_statsExporter = null;
+		}
+		
+		if (m_statsAggregator != null)
+		{
+			m_statsAggregator.stop();
+			m_statsAggregator = null;
+		}
+		
+		if (m_workers != null)
+		{
+			// the listeners have stopped, so nothing more is handed over
+			m_workers.shutdown();
+			m_workers = null;
+		}
+		
+		if (m_journal != null)
+		{
+			m_journal.close();
+			m_journal = null;
+		}
+		
+		if (m_synchronizer != null)
+		{
+			m_synchronizer.stop();
+			m_synchronizer = null;
+		}
+		
+		for (ScheduledFuture<?> task : m_maintenanceTasks)
+		{
+			task.cancel(false);
+		}
+		m_maintenanceTasks.clear();
+		if (m_ownScheduler != null)
+		{
+			m_ownScheduler.shutdownNow();
+			m_ownScheduler = null;
+		}
+		m_accessControl = null;
+		m_heavyHitters = null;
+		m_kernelStats = null;
+	}
+	
+	/**
+	 * Get the scheduler running periodic maintenance tasks, creating one if none was injected
+	 * @return Scheduler
+	 */
+	private ScheduledExecutorService getScheduler()
+	{
+		if (m_scheduler != null)
+		{
+			return m_scheduler;
+		}
+		if (m_ownScheduler == null)
+		{
+			m_ownScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r)
+				{
+					Thread thread = new Thread(r, "TimeServerMaintenance");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return m_ownScheduler;
+	}
+	
+	/**
+	 * Print the heaviest hosts and subnets of the last completed window
+	 * @param count Maximum number of entries per protocol and granularity
+	 */
+	public void printHeavyHitters(int count)
+	{
+		HeavyHitterTracker tracker = m_heavyHitters;
+		if (tracker == null || tracker.getPreviousWindowStart() == 0)
+		{
+			return;
+		}
+		
+		String report = "Top talkers for window starting " +
+				getDateFormatted(tracker.getPreviousWindowStart()) + ":";
+		for (byte protocol = 1; protocol <= TimeServer.PROTOCOL_COUNT; protocol++)
+		{
+			String name = TimeServer.protocolName(protocol);
+			report += System.lineSeparator() + "  " + name + " hosts:   " +
+					tracker.getTopTalkers(protocol, false, count, true);
+			report += System.lineSeparator() + "  " + name + " subnets: " +
+					tracker.getTopTalkers(protocol, true, count, true);
+		}
+		System.out.println(report);
+	}
+	
+	/**
+	 * Format a time for display
+	 * @param timeMillis Milliseconds since 1970
+	 * @return Formatted date
+	 */
+	private static String getDateFormatted(long timeMillis)
+	{
+		synchronized (TimeServer.getDateFormat())
+		{
+			return TimeServer.getDateFormat().format(new Date(timeMillis));
+		}
 	}
 	
 	private static Options s_cmdline_options = null;
@@ -139,8 +1607,9 @@ public class CableLabsTimeServer
 			{
 				Option opt = iter.next();
 				usage += System.lineSeparator() +
-						"-" + opt.getOpt() +
-						(opt.hasLongOpt() ? " (--" + opt.getLongOpt() + ")" : "") +
+						(opt.getOpt() != null ?
+								"-" + opt.getOpt() + (opt.hasLongOpt() ? " (--" + opt.getLongOpt() + ")" : "") :
+								"--" + opt.getLongOpt()) +
 						(opt.hasArg() ? " <" + (opt.hasArgName() ? opt.getArgName() : "value") + ">" : "") +
 						" : " + opt.getDescription();
 			}
@@ -166,8 +1635,109 @@ public class CableLabsTimeServer
 				Option interfaceOpt = new Option("i", "interface", true, "Inet Address on which to listen");
 				interfaceOpt.setArgName("inet_addr");
 				s_cmdline_options.addOption(interfaceOpt);
+				Option portOpt = new Option("p", "port", true, "Port on which to listen (default 37; 0 picks a free port for each protocol)");
+				portOpt.setArgName("port");
+				s_cmdline_options.addOption(portOpt);
 				s_cmdline_options.addOption("u", "no_tcp", false, "UDP only (disable TCP listener)");
 				s_cmdline_options.addOption("t", "no_udp", false, "TCP only (disable UDP listener)");
+				s_cmdline_options.addOption(null, "sntp", false, "Also answer SNTPv4 requests");
+				Option sntpPortOpt = new Option(null, "sntp_port", true, "Port on which to listen for SNTP requests (default 123)");
+				sntpPortOpt.setArgName("port");
+				s_cmdline_options.addOption(sntpPortOpt);
+				s_cmdline_options.addOption(null, "daytime", false, "Also answer Daytime (RFC867) requests");
+				Option daytimePortOpt = new Option(null, "daytime_port", true, "Port on which to listen for Daytime requests (default 13)");
+				daytimePortOpt.setArgName("port");
+				s_cmdline_options.addOption(daytimePortOpt);
+				Option subscribeOpt = new Option(null, "subscribe", true, "Port on which TCP clients subscribe to a time value at each second boundary (default disabled)");
+				subscribeOpt.setArgName("port");
+				s_cmdline_options.addOption(subscribeOpt);
+				Option subscribeMaxOpt = new Option(null, "subscribe_max", true, "Maximum number of TCP subscribers (default " + SubscriptionTimeServer.DEFAULT_MAX_SUBSCRIBERS + ")");
+				subscribeMaxOpt.setArgName("count");
+				s_cmdline_options.addOption(subscribeMaxOpt);
+				Option writeTimeoutOpt = new Option(null, "tcp_write_timeout", true, "Abort TCP connections whose time value is not written in this time (default 2000)");
+				writeTimeoutOpt.setArgName("ms");
+				s_cmdline_options.addOption(writeTimeoutOpt);
+				Option closeTimeoutOpt = new Option(null, "tcp_close_timeout", true, "Abort TCP connections not closed by the client in this time after the write (default 2000)");
+				closeTimeoutOpt.setArgName("ms");
+				s_cmdline_options.addOption(closeTimeoutOpt);
+				Option logIntervalOpt = new Option(null, "log_interval", true, "Log every n-th request (default 1; 0 disables request logging)");
+				logIntervalOpt.setArgName("n");
+				s_cmdline_options.addOption(logIntervalOpt);
+				Option eventSampleOpt = new Option(null, "jfr_sample", true, "Record every n-th request received/dropped flight recorder event (default 100; 0 disables)");
+				eventSampleOpt.setArgName("n");
+				s_cmdline_options.addOption(eventSampleOpt);
+				Option workersOpt = new Option(null, "workers", true, "Answer requests on a pool of this many worker threads (default 0, answered by the listeners)");
+				workersOpt.setArgName("threads");
+				s_cmdline_options.addOption(workersOpt);
+				Option workerQueueOpt = new Option(null, "worker_queue", true, "Maximum number of requests waiting for a worker (default 1024)");
+				workerQueueOpt.setArgName("n");
+				s_cmdline_options.addOption(workerQueueOpt);
+				Option workerPoolOpt = new Option(null, "worker_pool", true, "Worker pool type: thread or forkjoin (default thread)");
+				workerPoolOpt.setArgName("type");
+				s_cmdline_options.addOption(workerPoolOpt);
+				Option workerRejectOpt = new Option(null, "worker_reject", true, "When the worker queue is full, drop the request or let the listener answer it: drop or caller (default drop)");
+				workerRejectOpt.setArgName("policy");
+				s_cmdline_options.addOption(workerRejectOpt);
+				Option udpPipelineOpt = new Option(null, "udp_pipeline", true, "Receive UDP requests on the listener and answer them on this many sender threads (default 0, answered by the listener)");
+				udpPipelineOpt.setArgName("senders");
+				s_cmdline_options.addOption(udpPipelineOpt);
+				Option udpRingOpt = new Option(null, "udp_ring", true, "Ring slots between the UDP listener and its senders (default 4096)");
+				udpRingOpt.setArgName("slots");
+				s_cmdline_options.addOption(udpRingOpt);
+				Option idleOpt = new Option(null, "idle", true, "What the listeners do while waiting for requests: blocking, spin, yield or park, for every listener or as a list of listener=strategy, listeners being tcp, udp, sntp, daytime_tcp and daytime_udp (default blocking)");
+				idleOpt.setArgName("strategy");
+				s_cmdline_options.addOption(idleOpt);
+				Option warmUpOpt = new Option(null, "warmup", true, "Warm up on loopback for at least this many rounds, until compilation settles, before binding the listeners (default 0, no warm-up)");
+				warmUpOpt.setArgName("rounds");
+				s_cmdline_options.addOption(warmUpOpt);
+				Option warmUpTimeOpt = new Option(null, "warmup_time", true, "Maximum warm-up time (default 10000)");
+				warmUpTimeOpt.setArgName("ms");
+				s_cmdline_options.addOption(warmUpTimeOpt);
+				Option journalOpt = new Option("j", "journal", true, "Write a binary request journal to this directory");
+				journalOpt.setArgName("dir");
+				s_cmdline_options.addOption(journalOpt);
+				Option journalKeepOpt = new Option(null, "journal_keep", true, "Number of 64 MiB journal segments to keep (default 0, keep all)");
+				journalKeepOpt.setArgName("count");
+				s_cmdline_options.addOption(journalKeepOpt);
+				Option allowOpt = new Option("a", "allow", true, "Only answer sources in the CIDRs listed in this file");
+				allowOpt.setArgName("file");
+				s_cmdline_options.addOption(allowOpt);
+				Option denyOpt = new Option("d", "deny", true, "Never answer sources in the CIDRs listed in this file");
+				denyOpt.setArgName("file");
+				s_cmdline_options.addOption(denyOpt);
+				Option heavyHitterOpt = new Option("k", "heavy_hitters", true, "Track the top sources with this many counters per protocol");
+				heavyHitterOpt.setArgName("counters");
+				s_cmdline_options.addOption(heavyHitterOpt);
+				Option heavyHitterWindowOpt = new Option(null, "hh_window", true, "Heavy-hitter window in seconds (default 60)");
+				heavyHitterWindowOpt.setArgName("sec");
+				s_cmdline_options.addOption(heavyHitterWindowOpt);
+				Option statsExportOpt = new Option(null, "stats_export", true, "Export listener statistics and heavy hitters to the aggregator at this address");
+				statsExportOpt.setArgName("host:port");
+				s_cmdline_options.addOption(statsExportOpt);
+				Option nodeOpt = new Option(null, "node", true, "Name of this node in the exported statistics (default the host name)");
+				nodeOpt.setArgName("name");
+				s_cmdline_options.addOption(nodeOpt);
+				Option statsIntervalOpt = new Option(null, "stats_interval", true, "Statistics export (and fleet report) interval in seconds (default 10)");
+				statsIntervalOpt.setArgName("sec");
+				s_cmdline_options.addOption(statsIntervalOpt);
+				Option aggregateOpt = new Option(null, "aggregate", true, "Aggregate the statistics exported by a fleet of nodes on this UDP port");
+				aggregateOpt.setArgName("port");
+				s_cmdline_options.addOption(aggregateOpt);
+				Option kernelStatsOpt = new Option(null, "kernel_stats", true, "Print the kernel receive queue depth and drops of the UDP listeners, and the host RcvbufErrors, at this interval in seconds (Linux only; default 0, disabled)");
+				kernelStatsOpt.setArgName("sec");
+				s_cmdline_options.addOption(kernelStatsOpt);
+				Option upstreamOpt = new Option(null, "upstream", true, "Serve time disciplined from these comma-separated upstream servers");
+				upstreamOpt.setArgName("host[:port][/tcp|/udp],...");
+				s_cmdline_options.addOption(upstreamOpt);
+				Option pollOpt = new Option(null, "poll", true, "Upstream poll interval in seconds (default 16)");
+				pollOpt.setArgName("sec");
+				s_cmdline_options.addOption(pollOpt);
+				Option syncLossOpt = new Option(null, "sync_loss", true, "Stop answering after this many failed upstream polls (default 4)");
+				syncLossOpt.setArgName("polls");
+				s_cmdline_options.addOption(syncLossOpt);
+				Option configOpt = new Option("c", "config", true, "Read settings (named after the long options) from this properties file, and apply changes to it while running");
+				configOpt.setArgName("file");
+				s_cmdline_options.addOption(configOpt);
 				
 				String inetAddr = "";
 				
@@ -187,16 +1757,143 @@ public class CableLabsTimeServer
 						inetAddr = cmd.getOptionValue("i");
 						timeServer.setListenAddress(inetAddr);
 					}
+					if (cmd.hasOption("p"))
+					{
+						timeServer.setPort(Integer.parseInt(cmd.getOptionValue("p")));
+					}
 					if (cmd.hasOption("u"))
 					{
-						timeServer.m_useTcp = false;
+						timeServer.setUseTcp(false);
 					}
 					if (cmd.hasOption("t"))
 					{
-						timeServer.m_useUdp = false;
+						timeServer.setUseUdp(false);
+					}
+					if (cmd.hasOption("sntp"))
+					{
+						timeServer.setUseSntp(true);
+					}
+					if (cmd.hasOption("sntp_port"))
+					{
+						timeServer.setSntpPort(Integer.parseInt(cmd.getOptionValue("sntp_port")));
+					}
+					if (cmd.hasOption("daytime"))
+					{
+						timeServer.setUseDaytime(true);
+					}
+					if (cmd.hasOption("daytime_port"))
+					{
+						timeServer.setDaytimePort(Integer.parseInt(cmd.getOptionValue("daytime_port")));
+					}
+					if (cmd.hasOption("subscribe"))
+					{
+						timeServer.setSubscription(Integer.parseInt(cmd.getOptionValue("subscribe")),
+								Integer.parseInt(cmd.getOptionValue("subscribe_max", Integer.toString(SubscriptionTimeServer.DEFAULT_MAX_SUBSCRIBERS))));
+					}
+					if (cmd.hasOption("tcp_write_timeout") || cmd.hasOption("tcp_close_timeout"))
+					{
+						timeServer.setTcpTimeouts(
+								Long.parseLong(cmd.getOptionValue("tcp_write_timeout",
+										Long.toString(TcpTimeServer.DEFAULT_WRITE_TIMEOUT_MS))),
+								Long.parseLong(cmd.getOptionValue("tcp_close_timeout",
+										Long.toString(TcpTimeServer.DEFAULT_CLOSE_TIMEOUT_MS))));
+					}
+					if (cmd.hasOption("log_interval"))
+					{
+						timeServer.setRequestLogInterval(Integer.parseInt(cmd.getOptionValue("log_interval")));
+					}
+					if (cmd.hasOption("jfr_sample"))
+					{
+						timeServer.setEventSampleInterval(Integer.parseInt(cmd.getOptionValue("jfr_sample")));
+					}
+					if (cmd.hasOption("workers"))
+					{
+						String type = cmd.getOptionValue("worker_pool", "thread");
+						String reject = cmd.getOptionValue("worker_reject", "drop");
+						if (!type.equals("thread") && !type.equals("forkjoin"))
+						{
+							throw new IllegalArgumentException("Invalid worker pool type: " + type);
+						}
+						if (!reject.equals("drop") && !reject.equals("caller"))
+						{
+							throw new IllegalArgumentException("Invalid worker rejection policy: " + reject);
+						}
+						timeServer.setWorkers(Integer.parseInt(cmd.getOptionValue("workers")),
+								Integer.parseInt(cmd.getOptionValue("worker_queue", Integer.toString(WorkerPool.DEFAULT_QUEUE_BOUND))),
+								(type.equals("forkjoin") ? WorkerPool.Type.FORK_JOIN : WorkerPool.Type.THREAD_POOL),
+								(reject.equals("caller") ? WorkerPool.RejectionPolicy.CALLER_RUNS : WorkerPool.RejectionPolicy.DROP));
+					}
+					if (cmd.hasOption("udp_pipeline"))
+					{
+						timeServer.setUdpPipeline(Integer.parseInt(cmd.getOptionValue("udp_pipeline")),
+								Integer.parseInt(cmd.getOptionValue("udp_ring", Integer.toString(UdpTimeServer.DEFAULT_RING_SIZE))));
+					}
+					if (cmd.hasOption("idle"))
+					{
+						timeServer.setIdleStrategies(cmd.getOptionValue("idle"));
+					}
+					if (cmd.hasOption("warmup"))
+					{
+						timeServer.setWarmUp(Integer.parseInt(cmd.getOptionValue("warmup")),
+								Long.parseLong(cmd.getOptionValue("warmup_time", Long.toString(WarmUp.DEFAULT_MAX_TIME_MS))));
+					}
+					if (cmd.hasOption("j"))
+					{
+						timeServer.setJournalDirectory(cmd.getOptionValue("j"),
+								Integer.parseInt(cmd.getOptionValue("journal_keep", "0")));
+					}
+					if (cmd.hasOption("a") || cmd.hasOption("d"))
+					{
+						timeServer.setAccessControlFiles(cmd.getOptionValue("a"), cmd.getOptionValue("d"));
+					}
+					if (cmd.hasOption("k"))
+					{
+						timeServer.setHeavyHitterTracking(Integer.parseInt(cmd.getOptionValue("k")),
+								Long.parseLong(cmd.getOptionValue("hh_window", "60")) * 1000);
+					}
+					long statsIntervalMs = Long.parseLong(cmd.getOptionValue("stats_interval",
+							Long.toString(StatsExporter.DEFAULT_INTERVAL_MS / 1000))) * 1000;
+					if (cmd.hasOption("stats_export"))
+					{
+						String spec = cmd.getOptionValue("stats_export");
+						int colon = spec.lastIndexOf(':');
+						if (colon < 0)
+						{
+							throw new IllegalArgumentException("Invalid aggregator address: " + spec);
+						}
+						String host = spec.substring(0, colon).replace("[", "").replace("]", "");
+						timeServer.setStatsExport(new InetSocketAddress(host, Integer.parseInt(spec.substring(colon + 1))),
+								cmd.getOptionValue("node"), statsIntervalMs);
+					}
+					else
+					{
+						timeServer.setStatsExport(null, null, statsIntervalMs);
+					}
+					if (cmd.hasOption("aggregate"))
+					{
+						timeServer.setStatsAggregator(Integer.parseInt(cmd.getOptionValue("aggregate")));
+					}
+					if (cmd.hasOption("kernel_stats"))
+					{
+						timeServer.setKernelStatsInterval(Long.parseLong(cmd.getOptionValue("kernel_stats")) * 1000);
+					}
+					if (cmd.hasOption("upstream"))
+					{
+						List<UpstreamSynchronizer.Upstream> upstreams = new ArrayList<UpstreamSynchronizer.Upstream>();
+						for (String spec : cmd.getOptionValue("upstream").split(","))
+						{
+							upstreams.add(UpstreamSynchronizer.Upstream.parse(spec, TimeServer.TIME_SERVER_PORT));
+						}
+						timeServer.setUpstreams(upstreams,
+								Long.parseLong(cmd.getOptionValue("poll", "16")) * 1000,
+								Integer.parseInt(cmd.getOptionValue("sync_loss", "4")));
+					}
+					if (cmd.hasOption("c"))
+					{
+						timeServer.setConfigFile(cmd.getOptionValue("c"));
 					}
 				}
-				catch (ParseException e)
+				catch (ParseException | NumberFormatException e)
 				{
 					System.err.println("Error parsing command line arguments:" +
 							System.lineSeparator() + e.getLocalizedMessage());
@@ -208,9 +1905,9 @@ public class CableLabsTimeServer
 				}
 			}
 			
-			if ((!timeServer.m_useTcp) && (!timeServer.m_useUdp))
+			if (!timeServer.hasService())
 			{
-				System.out.println("Error - TCP or UDP (or both) must be enabled!");
+				System.out.println("Error - TCP, UDP, SNTP, subscriptions or the aggregator must be enabled!");
 				System.exit(100);
 			}
 			else
@@ -223,13 +1920,358 @@ public class CableLabsTimeServer
 				    }
 				});
 				
-				timeServer.startServer();
+				try
+				{
+					timeServer.start().get();
+				}
+				catch (ExecutionException e)
+				{
+					System.out.println("Error - unable to start: " + e.getCause().getLocalizedMessage());
+					System.exit(1);
+				}
 			}
 		}
-		catch (SecurityException | IllegalAccessException | IOException e)
+		catch (SecurityException | InterruptedException e)
 		{
 			e.printStackTrace();
 		}
+		catch (IllegalArgumentException e)
+		{
+			System.out.println("Error - " + e.getLocalizedMessage());
+			System.exit(1);
+		}
 	}
 
+	/**
+	 * This class builds a CableLabsTimeServer for embedding in another application
+	 */
+	public static class Builder
+	{
+		private final CableLabsTimeServer m_server = new CableLabsTimeServer();
+		
+		/**
+		 * Set the flag indicating if the server will use TCP
+		 * @param useTcp True if TCP is used
+		 * @return This builder
+		 */
+		public Builder setUseTcp(boolean useTcp)
+		{
+			m_server.setUseTcp(useTcp);
+			return this;
+		}
+		
+		/**
+		 * Set the TCP connection deadlines
+		 * @param writeTimeoutMs Time allowed for the time value to be written
+		 * @param closeTimeoutMs Time allowed, after the write, for the client to close the connection
+		 * @return This builder
+		 */
+		public Builder setTcpTimeouts(long writeTimeoutMs, long closeTimeoutMs)
+		{
+			m_server.setTcpTimeouts(writeTimeoutMs, closeTimeoutMs);
+			return this;
+		}
+		
+		/**
+		 * Set the flag indicating if the server will use UDP
+		 * @param useUdp True if UDP is used
+		 * @return This builder
+		 */
+		public Builder setUseUdp(boolean useUdp)
+		{
+			m_server.setUseUdp(useUdp);
+			return this;
+		}
+		
+		/**
+		 * Set the flag indicating if the server will answer SNTP requests
+		 * @param useSntp True if SNTP is used
+		 * @return This builder
+		 */
+		public Builder setUseSntp(boolean useSntp)
+		{
+			m_server.setUseSntp(useSntp);
+			return this;
+		}
+		
+		/**
+		 * Set the port on which to listen for SNTP requests
+		 * @param port Port number (default 123; 0 picks a free port)
+		 * @return This builder
+		 */
+		public Builder setSntpPort(int port)
+		{
+			m_server.setSntpPort(port);
+			return this;
+		}
+		
+		/**
+		 * Set the flag indicating if the server will answer Daytime (RFC867) requests
+		 * @param useDaytime True if Daytime is used
+		 * @return This builder
+		 */
+		public Builder setUseDaytime(boolean useDaytime)
+		{
+			m_server.setUseDaytime(useDaytime);
+			return this;
+		}
+		
+		/**
+		 * Set the port on which to listen for Daytime requests
+		 * @param port Port number (default 13; 0 picks a free port for each transport)
+		 * @return This builder
+		 */
+		public Builder setDaytimePort(int port)
+		{
+			m_server.setDaytimePort(port);
+			return this;
+		}
+		
+		/**
+		 * Set the port on which TCP clients subscribe to a time value at each second boundary
+		 * @param port Port number (0 picks a free port; -1, the default, disables subscriptions)
+		 * @param maxSubscribers Maximum number of subscribers
+		 * @return This builder
+		 */
+		public Builder setSubscription(int port, int maxSubscribers)
+		{
+			m_server.setSubscription(port, maxSubscribers);
+			return this;
+		}
+		
+		/**
+		 * Set the pool of worker threads answering the requests of every listener
+		 * @param threads Number of worker threads (0 for no pool)
+		 * @param queueBound Maximum number of requests waiting for a worker
+		 * @param type Executor type
+		 * @param rejection What happens to a request when the pool is full
+		 * @return This builder
+		 */
+		public Builder setWorkers(int threads, int queueBound, WorkerPool.Type type, WorkerPool.RejectionPolicy rejection)
+		{
+			m_server.setWorkers(threads, queueBound, type, rejection);
+			return this;
+		}
+		
+		/**
+		 * Set the pipelined mode of the UDP listeners
+		 * @param senders Number of sender threads per UDP listener (0 for no pipeline)
+		 * @param ringSize Total ring slots per UDP listener
+		 * @return This builder
+		 */
+		public Builder setUdpPipeline(int senders, int ringSize)
+		{
+			m_server.setUdpPipeline(senders, ringSize);
+			return this;
+		}
+		
+		/**
+		 * Set what every listener without its own idle strategy does while waiting for requests
+		 * @param idleStrategy Idle strategy (by default, blocking)
+		 * @return This builder
+		 */
+		public Builder setIdleStrategy(IdleStrategy.Type idleStrategy)
+		{
+			m_server.setIdleStrategy(idleStrategy);
+			return this;
+		}
+		
+		/**
+		 * Set what one listener does while waiting for requests
+		 * @param listener Listener name
+		 * @param idleStrategy Idle strategy, or null for the one of every listener
+		 * @return This builder
+		 */
+		public Builder setIdleStrategy(String listener, IdleStrategy.Type idleStrategy)
+		{
+			m_server.setIdleStrategy(listener, idleStrategy);
+			return this;
+		}
+		
+		/**
+		 * Set the warm-up run before the listeners are bound
+		 * @param rounds Minimum number of warm-up rounds (0 for no warm-up)
+		 * @param maxTimeMs Time after which the warm-up stops, whether or not compilation has settled
+		 * @return This builder
+		 */
+		public Builder setWarmUp(int rounds, long maxTimeMs)
+		{
+			m_server.setWarmUp(rounds, maxTimeMs);
+			return this;
+		}
+		
+		/**
+		 * Set the Inet Address on which to listen
+		 * @param address String Inet Address, or null for all interfaces
+		 * @return This builder
+		 */
+		public Builder setListenAddress(String address)
+		{
+			m_server.setListenAddress(address);
+			return this;
+		}
+		
+		/**
+		 * Set the port on which to listen
+		 * @param port Port number (0 picks a free port for each protocol)
+		 * @return This builder
+		 */
+		public Builder setPort(int port)
+		{
+			m_server.setPort(port);
+			return this;
+		}
+		
+		/**
+		 * Set the request log sampling interval
+		 * @param interval Log every interval-th request (1 logs every request, 0 logs none)
+		 * @return This builder
+		 */
+		public Builder setRequestLogInterval(int interval)
+		{
+			m_server.setRequestLogInterval(interval);
+			return this;
+		}
+		
+		/**
+		 * Set the flight recorder sampling interval of the per-request received and dropped events
+		 * @param interval Record every interval-th event (1 records every event, 0 records none)
+		 * @return This builder
+		 */
+		public Builder setEventSampleInterval(int interval)
+		{
+			m_server.setEventSampleInterval(interval);
+			return this;
+		}
+		
+		/**
+		 * Set the executor running the listeners
+		 * @param executor Executor, or null to create listener threads
+		 * @return This builder
+		 */
+		public Builder setExecutor(Executor executor)
+		{
+			m_server.setExecutor(executor);
+			return this;
+		}
+		
+		/**
+		 * Set the scheduler running periodic maintenance
+		 * @param scheduler Scheduler, or null to create a maintenance thread when one is needed
+		 * @return This builder
+		 */
+		public Builder setScheduler(ScheduledExecutorService scheduler)
+		{
+			m_server.setScheduler(scheduler);
+			return this;
+		}
+		
+		/**
+		 * Set the directory of the binary request journal
+		 * @param directory Directory name, or null to disable journaling
+		 * @param maxSegments Number of segment files to keep (0 keeps every segment)
+		 * @return This builder
+		 */
+		public Builder setJournalDirectory(String directory, int maxSegments)
+		{
+			m_server.setJournalDirectory(directory, maxSegments);
+			return this;
+		}
+		
+		/**
+		 * Set the CIDR access control files
+		 * @param allowFile File of allowed CIDRs, or null
+		 * @param denyFile File of denied CIDRs, or null
+		 * @return This builder
+		 */
+		public Builder setAccessControlFiles(String allowFile, String denyFile)
+		{
+			m_server.setAccessControlFiles(allowFile, denyFile);
+			return this;
+		}
+		
+		/**
+		 * Export the statistics of every listener to a {@link StatsAggregator}
+		 * @param aggregator Aggregator address, or null to export nothing
+		 * @param node Name of this node, or null for the host name
+		 * @param intervalMs Time between exports
+		 * @return This builder
+		 */
+		public Builder setStatsExport(InetSocketAddress aggregator, String node, long intervalMs)
+		{
+			m_server.setStatsExport(aggregator, node, intervalMs);
+			return this;
+		}
+		
+		/**
+		 * Run a {@link StatsAggregator}
+		 * @param port Port on which the aggregator listens (0 picks a free port, -1 runs none)
+		 * @return This builder
+		 */
+		public Builder setStatsAggregator(int port)
+		{
+			m_server.setStatsAggregator(port);
+			return this;
+		}
+		
+		/**
+		 * Sample and print the kernel view of the UDP listener sockets
+		 * @param intervalMs Time between samples (0 disables sampling)
+		 * @return This builder
+		 */
+		public Builder setKernelStatsInterval(long intervalMs)
+		{
+			m_server.setKernelStatsInterval(intervalMs);
+			return this;
+		}
+		
+		/**
+		 * Enable heavy-hitter tracking
+		 * @param capacity Number of counters per protocol (0 disables tracking)
+		 * @param windowMs Window length in milliseconds
+		 * @return This builder
+		 */
+		public Builder setHeavyHitterTracking(int capacity, long windowMs)
+		{
+			m_server.setHeavyHitterTracking(capacity, windowMs);
+			return this;
+		}
+		
+		/**
+		 * Discipline the served time from upstream time servers
+		 * @param upstreams Upstream servers, or null to serve the host clock
+		 * @param pollIntervalMs Interval between upstream polls in milliseconds
+		 * @param maxMissedPolls Consecutive failed polls after which requests are no longer answered
+		 * @return This builder
+		 */
+		public Builder setUpstreams(List<UpstreamSynchronizer.Upstream> upstreams, long pollIntervalMs, int maxMissedPolls)
+		{
+			m_server.setUpstreams(upstreams, pollIntervalMs, maxMissedPolls);
+			return this;
+		}
+		
+		/**
+		 * Set the configuration file, read when the server starts and watched while it runs
+		 * @param file Properties file, or null for none
+		 * @return This builder
+		 */
+		public Builder setConfigFile(String file)
+		{
+			m_server.setConfigFile(file);
+			return this;
+		}
+		
+		/**
+		 * Get the configured server; it is not started, and the builder must not be reused
+		 * @return Time server
+		 */
+		public CableLabsTimeServer build()
+		{
+			if (!m_server.hasService())
+			{
+				throw new IllegalStateException("TCP, UDP, SNTP, subscriptions or the aggregator must be enabled");
+			}
+			return m_server;
+		}
+	}
 }
@@ -0,0 +1,320 @@
+/*
+ * Copyright 2017 Cable Television Laboratories, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cablelabs.time.server;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+
+/**
+ * This class is an immutable binary prefix trie of IPv4 and IPv6 CIDR blocks, each tagged
+ * as allowed or denied.
+ *
+ * Nodes live in flat int/byte arrays (node 0 is the IPv4 root, node 1 the IPv6 root), so a
+ * lookup is a walk of at most 32 or 128 array reads that takes no lock.  An IPv4 lookup allocates
+ * nothing; an IPv6 lookup by InetAddress copies the 16 address bytes first (use
+ * {@link #lookupV6(byte[])} to pass bytes already at hand).  The verdict of the longest matching
+ * prefix wins; a deny and an allow of the same prefix is a deny.  Addresses matching no prefix get
+ * the trie's default verdict.
+ */
+public class CidrTrie
+{
+	public static final byte VERDICT_NONE = 0;
+	public static final byte VERDICT_ALLOW = 1;
+	public static final byte VERDICT_DENY = 2;
+
+	private static final int ROOT_V4 = 0;
+	private static final int ROOT_V6 = 1;
+
+	private final int[] m_children;
+	private final byte[] m_verdicts;
+	private final int m_prefixCount;
+	private final byte m_defaultVerdict;
+
+	/**
+	 * Create an instance of a CidrTrie (see {@link Builder})
+	 * @param children Child node indexes, two per node (0 means no child)
+	 * @param verdicts Verdict of the prefix ending at each node
+	 * @param prefixCount Number of prefixes in the trie
+	 * @param defaultVerdict Verdict of addresses matching no prefix
+	 */
+	private CidrTrie(int[] children, byte[] verdicts, int prefixCount, byte defaultVerdict)
+	{
+		m_children = children;
+		m_verdicts = verdicts;
+		m_prefixCount = prefixCount;
+		m_defaultVerdict = defaultVerdict;
+	}
+
+	/**
+	 * Get the number of prefixes in the trie
+	 * @return Prefix count
+	 */
+	public int getPrefixCount()
+	{
+		return m_prefixCount;
+	}
+
+	/**
+	 * Get the number of nodes in the trie
+	 * @return Node count
+	 */
+	public int getNodeCount()
+	{
+		return m_verdicts.length;
+	}
+
+	/**
+	 * Look up the verdict of the longest prefix matching an address
+	 * @param address IPv4 or IPv6 address
+	 * @return {@link #VERDICT_ALLOW} or {@link #VERDICT_DENY}, or the default verdict if nothing matches
+	 */
+	public byte lookup(InetAddress address)
+	{
+		if (address instanceof Inet4Address)
+		{
+			// Inet4Address.hashCode() is the address itself, which avoids the copy made by getAddress()
+			return lookupV4(address.hashCode());
+		}
+		return lookupV6(address.getAddress());
+	}
+
+	/**
+	 * Look up the verdict of the longest prefix matching an IPv4 address
+	 * @param address IPv4 address as a big-endian int
+	 * @return Verdict
+	 */
+	public byte lookupV4(int address)
+	{
+		int node = ROOT_V4;
+		byte verdict = m_verdicts[node];
+		for (int bit = 31; bit >= 0; bit--)
+		{
+			node = m_children[(node << 1) | ((address >>> bit) & 1)];
+			if (node == 0)
+			{
+				break;
+			}
+			if (m_verdicts[node] != VERDICT_NONE)
+			{
+				verdict = m_verdicts[node];
+			}
+		}
+		return (verdict == VERDICT_NONE ? m_defaultVerdict : verdict);
+	}
+
+	/**
+	 * Look up the verdict of the longest prefix matching an IPv6 address
+	 * @param address 16 address bytes
+	 * @return Verdict
+	 */
+	public byte lookupV6(byte[] address)
+	{
+		int node = ROOT_V6;
+		byte verdict = m_verdicts[node];
+		for (int bit = 0; bit < 128; bit++)
+		{
+			int b = (address[bit >>> 3] >>> (7 - (bit & 7))) & 1;
+			node = m_children[(node << 1) | b];
+			if (node == 0)
+			{
+				break;
+			}
+			if (m_verdicts[node] != VERDICT_NONE)
+			{
+				verdict = m_verdicts[node];
+			}
+		}
+		return (verdict == VERDICT_NONE ? m_defaultVerdict : verdict);
+	}
+
+	/**
+	 * This class builds a CidrTrie
+	 */
+	public static class Builder
+	{
+		private int[] m_children = new int[1024];
+		private byte[] m_verdicts = new byte[512];
+		private int m_nodes = 2;
+		private int m_prefixCount = 0;
+		private byte m_defaultVerdict = VERDICT_NONE;
+
+		/**
+		 * Create an instance of a Builder
+		 */
+		public Builder()
+		{
+		}
+
+		/**
+		 * Set the verdict of addresses matching no prefix
+		 * @param verdict Default verdict
+		 * @return This builder
+		 */
+		public Builder setDefault(byte verdict)
+		{
+			m_defaultVerdict = verdict;
+			return this;
+		}
+
+		/**
+		 * Add a CIDR block
+		 * @param cidr Address with optional prefix length, e.g. 10.0.0.0/8 or 2001:db8::/32
+		 * @param allow True to allow the block, false to deny it
+		 * @return This builder
+		 * @throws IllegalArgumentException If the CIDR is not valid
+		 */
+		public Builder add(String cidr, boolean allow)
+		{
+			String spec = cidr.trim();
+			int slash = spec.indexOf('/');
+			String addr = (slash < 0 ? spec : spec.substring(0, slash));
+
+			// only accept literals, never resolve host names: IPv6, or four dotted decimal octets
+			for (int i = 0; i < addr.length(); i++)
+			{
+				char c = addr.charAt(i);
+				if (!(Character.digit(c, 16) >= 0 || c == '.' || c == ':'))
+				{
+					throw new IllegalArgumentException("Invalid CIDR: " + cidr);
+				}
+			}
+			if (addr.indexOf(':') < 0 && !isDottedQuad(addr))
+			{
+				throw new IllegalArgumentException("Invalid CIDR: " + cidr);
+			}
+
+			byte[] bytes = null;
+			try
+			{
+				bytes = InetAddress.getByName(addr).getAddress();
+			}
+			catch (UnknownHostException e)
+			{
+				throw new IllegalArgumentException("Invalid CIDR: " + cidr);
+			}
+
+			int prefixLength = bytes.length * 8;
+			if (slash >= 0)
+			{
+				try
+				{
+					prefixLength = Integer.parseInt(spec.substring(slash + 1));
+				}
+				catch (NumberFormatException e)
+				{
+					throw new IllegalArgumentException("Invalid CIDR prefix length: " + cidr);
+				}
+				if (prefixLength < 0 || prefixLength > bytes.length * 8)
+				{
+					throw new IllegalArgumentException("Invalid CIDR prefix length: " + cidr);
+				}
+			}
+
+			return add(bytes, prefixLength, allow);
+		}
+
+		/**
+		 * Check that an IPv4 literal is exactly four dotted decimal octets
+		 * @param addr Address text
+		 * @return True if valid
+		 */
+		private static boolean isDottedQuad(String addr)
+		{
+			String[] octets = addr.split("\\.", -1);
+			if (octets.length != 4)
+			{
+				return false;
+			}
+			for (String octet : octets)
+			{
+				if (octet.isEmpty() || octet.length() > 3)
+				{
+					return false;
+				}
+				for (int i = 0; i < octet.length(); i++)
+				{
+					if (octet.charAt(i) < '0' || octet.charAt(i) > '9')
+					{
+						return false;
+					}
+				}
+				if (Integer.parseInt(octet) > 255)
+				{
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Add a CIDR block
+		 * @param address 4 or 16 address bytes
+		 * @param prefixLength Number of significant leading bits
+		 * @param allow True to allow the block, false to deny it
+		 * @return This builder
+		 */
+		public Builder add(byte[] address, int prefixLength, boolean allow)
+		{
+			int node = (address.length == 4 ? ROOT_V4 : ROOT_V6);
+			for (int bit = 0; bit < prefixLength; bit++)
+			{
+				int slot = (node << 1) | ((address[bit >>> 3] >>> (7 - (bit & 7))) & 1);
+				if (m_children[slot] == 0)
+				{
+					m_children[slot] = newNode();
+				}
+				node = m_children[slot];
+			}
+
+			if (m_verdicts[node] == VERDICT_NONE)
+			{
+				m_prefixCount++;
+			}
+			if (m_verdicts[node] != VERDICT_DENY)
+			{
+				m_verdicts[node] = (allow ? VERDICT_ALLOW : VERDICT_DENY);
+			}
+			return this;
+		}
+
+		/**
+		 * Allocate a node, growing the arrays as needed
+		 * @return Node index
+		 */
+		private int newNode()
+		{
+			if (m_nodes == m_verdicts.length)
+			{
+				m_verdicts = Arrays.copyOf(m_verdicts, m_verdicts.length * 2);
+				m_children = Arrays.copyOf(m_children, m_children.length * 2);
+			}
+			return m_nodes++;
+		}
+
+		/**
+		 * Build the immutable trie
+		 * @return Trie sized to its content
+		 */
+		public CidrTrie build()
+		{
+			return new CidrTrie(Arrays.copyOf(m_children, m_nodes * 2), Arrays.copyOf(m_verdicts, m_nodes),
+					m_prefixCount, m_defaultVerdict);
+		}
+	}
+}
@@ -0,0 +1,787 @@
+/*
+ * Copyright 2017 Cable Television Laboratories, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cablelabs.time.server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * This class is a low-footprint time server for constrained hosts: TCP and UDP are both served
+ * by one selector thread.
+ *
+ * Everything the loop needs (buffers, request contexts and a fixed number of connection slots) is
+ * allocated when the server starts, sized by the handler, and reused.  A TCP connection keeps its
+ * slot from the answer until the client closes it (or the close deadline passes); when every slot
+ * is taken, new connections are answered and closed straight away.  There is no request logging,
+ * journal, access control or worker pool, and {@link #main} parses its few options itself, so
+ * nothing beyond the request path is loaded.
+ */
+public class CompactTimeServer
+{
+	public static final int DEFAULT_MAX_CONNECTIONS = 64;
+	public static final int DEFAULT_REQUEST_BUFFER_SIZE = 64;
+
+	private static final long WHEEL_TICK_MS = 50;
+	private static final int WHEEL_SLOTS = 64;
+	// datagrams handled per wakeup, so a flood cannot starve TCP
+	private static final int UDP_BATCH = 64;
+
+	private String m_listenAddress = null;
+	private int m_port = TimeServer.TIME_SERVER_PORT;
+	private boolean m_useTcp = true;
+	private boolean m_useUdp = true;
+	private int m_maxConnections = DEFAULT_MAX_CONNECTIONS;
+	private int m_requestBufferSize = DEFAULT_REQUEST_BUFFER_SIZE;
+	private long m_closeTimeoutMs = TcpTimeServer.DEFAULT_CLOSE_TIMEOUT_MS;
+	private ProtocolHandler m_handler = new Rfc868Handler();
+	private ServedClock m_clock = new ServedClock();
+
+	private volatile boolean m_terminate = false;
+	private Thread m_thread = null;
+	private Selector m_selector = null;
+	private ServerSocketChannel m_tcpChannel = null;
+	private DatagramChannel m_udpChannel = null;
+	private volatile InetSocketAddress m_tcpAddress = null;
+	private volatile InetSocketAddress m_udpAddress = null;
+
+	private final AtomicLong m_answered = new AtomicLong(0);
+	private final AtomicLong m_dropped = new AtomicLong(0);
+
+	/**
+	 * Create an instance of a CompactTimeServer
+	 */
+	public CompactTimeServer()
+	{
+	}
+
+	/**
+	 * Bind the listeners and start the selector thread
+	 * @throws IOException if a listener cannot be bound
+	 */
+	public void startServer() throws IOException
+	{
+		if (!m_useTcp && !m_useUdp)
+		{
+			throw new IllegalStateException("TCP or UDP must be enabled");
+		}
+		m_terminate = false;
+
+		InetAddress address = (m_listenAddress != null ? InetAddress.getByName(m_listenAddress) : null);
+		_Loop loop = new _Loop();
+		m_selector = Selector.open();
+		try
+		{
+			if (m_useTcp)
+			{
+				m_tcpChannel = ServerSocketChannel.open();
+				m_tcpChannel.bind(new InetSocketAddress(address, m_port));
+				m_tcpChannel.configureBlocking(false);
+				m_tcpChannel.register(m_selector, SelectionKey.OP_ACCEPT);
+				m_tcpAddress = (InetSocketAddress)m_tcpChannel.getLocalAddress();
+			}
+			if (m_useUdp)
+			{
+				m_udpChannel = DatagramChannel.open();
+				m_udpChannel.bind(new InetSocketAddress(address, m_port));
+				m_udpChannel.configureBlocking(false);
+				m_udpChannel.register(m_selector, SelectionKey.OP_READ);
+				m_udpAddress = (InetSocketAddress)m_udpChannel.getLocalAddress();
+			}
+		}
+		catch (IOException e)
+		{
+			loop.close();
+			throw e;
+		}
+
+		System.out.println("Listening for " + (m_useTcp ? (m_useUdp ? "TCP and UDP " : "TCP ") : "UDP ") +
+				m_handler.getName() + " requests on " + (m_listenAddress != null ? m_listenAddress + ", " : "") +
+				"port " + (m_useTcp ? m_tcpAddress.getPort() : m_udpAddress.getPort()) +
+				(m_useTcp && m_useUdp && m_tcpAddress.getPort() != m_udpAddress.getPort() ?
+						" (TCP) and " + m_udpAddress.getPort() + " (UDP)" : "") +
+				", compact profile");
+
+		m_thread = new Thread(loop, "CompactTimeServer");
+		m_thread.start();
+	}
+
+	/**
+	 * Stop the server and wait for the selector thread to return
+	 */
+	public void stopServer()
+	{
+		m_terminate = true;
+		Selector selector = m_selector;
+		if (selector != null)
+		{
+			selector.wakeup();
+		}
+		Thread thread = m_thread;
+		if (thread != null)
+		{
+			try
+			{
+				thread.join();
+			}
+			catch (InterruptedException e)
+			{
+				e.printStackTrace();
+			}
+			m_thread = null;
+		}
+	}
+
+	/**
+	 * Get a flag indicating if the server is running
+	 * @return True if the selector thread is running
+	 */
+	public boolean getServerRunning()
+	{
+		Thread thread = m_thread;
+		return (thread != null && thread.isAlive());
+	}
+
+	/**
+	 * Get the address the TCP listener is bound to
+	 * @return Bound address, or null if TCP is disabled (or the server was never started)
+	 */
+	public InetSocketAddress getTcpAddress()
+	{
+		return m_tcpAddress;
+	}
+
+	/**
+	 * Get the address the UDP listener is bound to
+	 * @return Bound address, or null if UDP is disabled (or the server was never started)
+	 */
+	public InetSocketAddress getUdpAddress()
+	{
+		return m_udpAddress;
+	}
+
+	/**
+	 * Get the number of requests answered
+	 * @return Count
+	 */
+	public long getAnswered()
+	{
+		return m_answered.get();
+	}
+
+	/**
+	 * Get the number of requests not answered (unsynchronized clock, invalid request or a
+	 * response that could not be written)
+	 * @return Count
+	 */
+	public long getDropped()
+	{
+		return m_dropped.get();
+	}
+
+	/**
+	 * Get a monotonic time for the connection deadlines
+	 * @return Milliseconds
+	 */
+	private static long monotonicMillis()
+	{
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+	}
+
+	/**
+	 * This class is the selector loop and everything it preallocates
+	 */
+	private class _Loop implements Runnable
+	{
+		private final ProtocolHandler m_handler;
+		private final ServedClock m_clock;
+		private final TimingWheel m_wheel = new TimingWheel(WHEEL_TICK_MS, WHEEL_SLOTS, monotonicMillis());
+		private final ByteBuffer m_request;
+		private final ByteBuffer m_response;
+		private final ByteBuffer m_empty = ByteBuffer.allocate(0);
+		private final RequestContext m_udpContext;
+		private final RequestContext m_tcpContext;
+		private final _Connection[] m_free;
+		private int m_freeCount;
+		private final Consumer<SelectionKey> m_ready = new Consumer<SelectionKey>() {
+			public void accept(SelectionKey key)
+			{
+				if (!key.isValid())
+				{
+					return;
+				}
+				if (key.channel() == m_udpChannel)
+				{
+					receive();
+				}
+				else if (key.isAcceptable())
+				{
+					_Loop.this.accept();
+				}
+				else
+				{
+					((_Connection)key.attachment()).read();
+				}
+			}
+		};
+
+		/**
+		 * Create an instance of a _Loop
+		 */
+		public _Loop()
+		{
+			m_handler = CompactTimeServer.this.m_handler;
+			m_clock = CompactTimeServer.this.m_clock;
+			m_request = ByteBuffer.allocateDirect(m_requestBufferSize);
+			m_response = ByteBuffer.allocateDirect(m_handler.getMaxResponseSize());
+			m_udpContext = new RequestContext(ProtocolHandler.TRANSPORT_UDP, m_clock);
+			m_tcpContext = new RequestContext(ProtocolHandler.TRANSPORT_TCP, m_clock);
+			m_free = new _Connection[m_useTcp ? m_maxConnections : 0];
+			for (int i = 0; i < m_free.length; i++)
+			{
+				m_free[i] = new _Connection();
+			}
+			m_freeCount = m_free.length;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * @see java.lang.Runnable#run()
+		 */
+		public void run()
+		{
+			try
+			{
+				while (!m_terminate)
+				{
+					// only wake up for the wheel while deadlines are pending; the ready keys are
+					// passed to the action rather than iterated, which would allocate an iterator
+					m_selector.select(m_ready, m_wheel.size() > 0 ? WHEEL_TICK_MS : 0);
+					m_wheel.advance(monotonicMillis());
+				}
+			}
+			catch (IOException e)
+			{
+				// if we are trying to terminate, this is expected
+				if (!m_terminate)
+				{
+					e.printStackTrace();
+				}
+			}
+			finally
+			{
+				close();
+			}
+		}
+
+		/**
+		 * Answer the pending datagrams, up to a batch
+		 */
+		private void receive()
+		{
+			for (int i = 0; i < UDP_BATCH; i++)
+			{
+				try
+				{
+					m_request.clear();
+					SocketAddress source = m_udpChannel.receive(m_request);
+					if (source == null)
+					{
+						return;
+					}
+					InetSocketAddress client = (InetSocketAddress)source;
+					m_request.flip();
+					if (respond(m_request, m_udpContext, client))
+					{
+						m_udpChannel.send(m_response, client);
+						m_answered.incrementAndGet();
+					}
+				}
+				catch (IOException e)
+				{
+					// if we are trying to terminate, this is expected
+					if (!m_terminate)
+					{
+						e.printStackTrace();
+					}
+					return;
+				}
+			}
+		}
+
+		/**
+		 * Accept the pending connections and answer them
+		 */
+		private void accept()
+		{
+			while (true)
+			{
+				SocketChannel channel;
+				try
+				{
+					channel = m_tcpChannel.accept();
+					if (channel == null)
+					{
+						return;
+					}
+				}
+				catch (IOException e)
+				{
+					// if we are trying to terminate, this is expected
+					if (!m_terminate)
+					{
+						e.printStackTrace();
+					}
+					return;
+				}
+
+				try
+				{
+					channel.configureBlocking(false);
+					if (!respond(m_empty, m_tcpContext, (InetSocketAddress)channel.getRemoteAddress()))
+					{
+						channel.close();
+						continue;
+					}
+					// a fresh socket buffer takes a response this small in one write
+					channel.write(m_response);
+					if (m_response.hasRemaining())
+					{
+						m_dropped.incrementAndGet();
+						channel.close();
+						continue;
+					}
+					m_answered.incrementAndGet();
+
+					if (m_freeCount == 0)
+					{
+						// no slot to wait for the client's close in
+						channel.close();
+						continue;
+					}
+					channel.shutdownOutput();
+					m_free[--m_freeCount].start(channel);
+				}
+				catch (IOException e)
+				{
+					try
+					{
+						channel.close();
+					}
+					catch (IOException ex)
+					{
+						// do nothing
+					}
+				}
+			}
+		}
+
+		/**
+		 * Ask the handler for the response to a request; the response is left flipped in the
+		 * response buffer
+		 * @param request Request
+		 * @param context Context of the transport
+		 * @param client Client address
+		 * @return True if there is a response to send
+		 */
+		private boolean respond(ByteBuffer request, RequestContext context, InetSocketAddress client)
+		{
+			if (!m_clock.isSynchronized())
+			{
+				m_dropped.incrementAndGet();
+				return false;
+			}
+			context.reset(client, m_clock.currentTimeMillis());
+			m_response.clear();
+			if (!m_handler.handle(request, context, m_response))
+			{
+				m_dropped.incrementAndGet();
+				return false;
+			}
+			m_response.flip();
+			return true;
+		}
+
+		/**
+		 * Return a connection slot
+		 * @param connection Closed connection
+		 */
+		private void release(_Connection connection)
+		{
+			m_free[m_freeCount++] = connection;
+		}
+
+		/**
+		 * Close the listeners, every open connection and the selector
+		 */
+		private void close()
+		{
+			try
+			{
+				if (m_tcpChannel != null)
+				{
+					m_tcpChannel.close();
+				}
+				if (m_udpChannel != null)
+				{
+					m_udpChannel.close();
+				}
+				if (m_selector != null)
+				{
+					for (SelectionKey key : m_selector.keys())
+					{
+						if (key.attachment() instanceof _Connection)
+						{
+							((_Connection)key.attachment()).close();
+						}
+					}
+					m_selector.close();
+				}
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+		}
+
+		/**
+		 * This class is a connection slot: an answered connection waiting for the client to close
+		 */
+		private class _Connection extends TimingWheel.Timeout
+		{
+			private SocketChannel m_channel = null;
+
+			/**
+			 * Wait for the client to close an answered connection
+			 * @param channel Half-closed, non-blocking client channel
+			 * @throws IOException
+			 */
+			public void start(SocketChannel channel) throws IOException
+			{
+				m_channel = channel;
+				try
+				{
+					channel.register(m_selector, SelectionKey.OP_READ, this);
+				}
+				catch (IOException e)
+				{
+					m_channel = null;
+					release(this);
+					throw e;
+				}
+				m_wheel.schedule(this, monotonicMillis() + m_closeTimeoutMs);
+			}
+
+			/**
+			 * Read (and discard) client data until the client closes the connection
+			 */
+			public void read()
+			{
+				try
+				{
+					int n;
+					do
+					{
+						m_request.clear();
+						n = m_channel.read(m_request);
+					}
+					while (n > 0);
+
+					if (n < 0)
+					{
+						close();
+					}
+				}
+				catch (IOException e)
+				{
+					close();
+				}
+			}
+
+			/*
+			 * (non-Javadoc)
+			 * @see com.cablelabs.time.server.TimingWheel.Timeout#expired()
+			 */
+			@Override
+			protected void expired()
+			{
+				// abort with a reset rather than leaving the connection in TIME_WAIT or FIN_WAIT
+				try
+				{
+					m_channel.setOption(StandardSocketOptions.SO_LINGER, 0);
+				}
+				catch (IOException e)
+				{
+					// closing anyway
+				}
+				close();
+			}
+
+			/**
+			 * Close the connection, cancel its deadline and free its slot
+			 */
+			public void close()
+			{
+				m_wheel.cancel(this);
+				if (m_channel != null)
+				{
+					try
+					{
+						m_channel.close();
+					}
+					catch (IOException e)
+					{
+						// do nothing
+					}
+					m_channel = null;
+					release(this);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Print the command usage
+	 */
+	private static void printUsage()
+	{
+		System.out.println(CompactTimeServer.class.getSimpleName() + " Usage:" + System.lineSeparator() +
+				System.lineSeparator() + "-h : Print the command usage" +
+				System.lineSeparator() + "-i <inet_addr> : Inet Address on which to listen" +
+				System.lineSeparator() + "-p <port> : Port on which to listen (default 37)" +
+				System.lineSeparator() + "-u : UDP only (disable TCP listener)" +
+				System.lineSeparator() + "-t : TCP only (disable UDP listener)" +
+				System.lineSeparator() + "-c <count> : TCP connections kept open until the client closes (default 64)" +
+				System.lineSeparator());
+	}
+
+	/**
+	 * Entry point of the compact profile; the options are a subset of {@link CableLabsTimeServer}'s
+	 * @param args Command line parameters
+	 */
+	public static void main(String[] args)
+	{
+		Builder builder = new Builder();
+		try
+		{
+			for (int i = 0; i < args.length; i++)
+			{
+				String arg = args[i];
+				if (arg.equals("-h"))
+				{
+					printUsage();
+					return;
+				}
+				else if (arg.equals("-u"))
+				{
+					builder.setUseTcp(false);
+				}
+				else if (arg.equals("-t"))
+				{
+					builder.setUseUdp(false);
+				}
+				else if ((arg.equals("-i") || arg.equals("-p") || arg.equals("-c")) && i + 1 < args.length)
+				{
+					String value = args[++i];
+					if (arg.equals("-i"))
+					{
+						builder.setListenAddress(value);
+					}
+					else if (arg.equals("-p"))
+					{
+						builder.setPort(Integer.parseInt(value));
+					}
+					else
+					{
+						builder.setMaxConnections(Integer.parseInt(value));
+					}
+				}
+				else
+				{
+					throw new IllegalArgumentException("Unrecognized option: " + arg);
+				}
+			}
+
+			final CompactTimeServer server = builder.build();
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				public void run()
+				{
+					server.stopServer();
+					System.out.println("Closed socket(s), shutting down.");
+				}
+			});
+			server.startServer();
+		}
+		catch (IllegalArgumentException | IllegalStateException e)
+		{
+			System.out.println("Error - " + e.getLocalizedMessage());
+			printUsage();
+			System.exit(1);
+		}
+		catch (IOException e)
+		{
+			System.out.println("Error - unable to start: " + e.getLocalizedMessage());
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * This class builds a CompactTimeServer
+	 */
+	public static class Builder
+	{
+		private final CompactTimeServer m_server = new CompactTimeServer();
+
+		/**
+		 * Set the Inet Address on which the server will listen
+		 * @param address String Inet Address, or null for all interfaces
+		 * @return This builder
+		 */
+		public Builder setListenAddress(String address)
+		{
+			m_server.m_listenAddress = address;
+			return this;
+		}
+
+		/**
+		 * Set the port on which the server will listen (TCP and UDP)
+		 * @param port Port number (0 picks a free port for each transport)
+		 * @return This builder
+		 */
+		public Builder setPort(int port)
+		{
+			if (port < 0 || port > 65535)
+			{
+				throw new IllegalArgumentException("Invalid port: " + port);
+			}
+			m_server.m_port = port;
+			return this;
+		}
+
+		/**
+		 * Set the flag indicating if the server will use TCP
+		 * @param useTcp True if TCP is used
+		 * @return This builder
+		 */
+		public Builder setUseTcp(boolean useTcp)
+		{
+			m_server.m_useTcp = useTcp;
+			return this;
+		}
+
+		/**
+		 * Set the flag indicating if the server will use UDP
+		 * @param useUdp True if UDP is used
+		 * @return This builder
+		 */
+		public Builder setUseUdp(boolean useUdp)
+		{
+			m_server.m_useUdp = useUdp;
+			return this;
+		}
+
+		/**
+		 * Set the number of TCP connections kept open until the client closes them
+		 * @param maxConnections Connection slots
+		 * @return This builder
+		 */
+		public Builder setMaxConnections(int maxConnections)
+		{
+			if (maxConnections < 0)
+			{
+				throw new IllegalArgumentException("Invalid connection count: " + maxConnections);
+			}
+			m_server.m_maxConnections = maxConnections;
+			return this;
+		}
+
+		/**
+		 * Set the size of the UDP request buffer; longer datagrams are truncated
+		 * @param size Bytes
+		 * @return This builder
+		 */
+		public Builder setRequestBufferSize(int size)
+		{
+			if (size < 1)
+			{
+				throw new IllegalArgumentException("Invalid request buffer size: " + size);
+			}
+			m_server.m_requestBufferSize = size;
+			return this;
+		}
+
+		/**
+		 * Set the time allowed, after the answer, for the client to close a TCP connection
+		 * @param closeTimeoutMs Milliseconds
+		 * @return This builder
+		 */
+		public Builder setCloseTimeout(long closeTimeoutMs)
+		{
+			m_server.m_closeTimeoutMs = closeTimeoutMs;
+			return this;
+		}
+
+		/**
+		 * Set the protocol answered by the server; it must support every enabled transport
+		 * @param handler Protocol handler
+		 * @return This builder
+		 */
+		public Builder setHandler(ProtocolHandler handler)
+		{
+			m_server.m_handler = handler;
+			return this;
+		}
+
+		/**
+		 * Set the clock served by the server
+		 * @param clock Served clock
+		 * @return This builder
+		 */
+		public Builder setClock(ServedClock clock)
+		{
+			m_server.m_clock = clock;
+			return this;
+		}
+
+		/**
+		 * Build the server; it is not started
+		 * @return Compact time server
+		 */
+		public CompactTimeServer build()
+		{
+			ProtocolHandler handler = m_server.m_handler;
+			if ((m_server.m_useTcp && !handler.supportsTransport(ProtocolHandler.TRANSPORT_TCP)) ||
+					(m_server.m_useUdp && !handler.supportsTransport(ProtocolHandler.TRANSPORT_UDP)))
+			{
+				throw new IllegalArgumentException("The " + handler.getName() + " protocol cannot be served over " +
+						"every enabled transport");
+			}
+			return m_server;
+		}
+	}
+}
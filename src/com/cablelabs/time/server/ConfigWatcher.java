@@ -0,0 +1,237 @@
+/*
+ * Copyright 2017 Cable Television Laboratories, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cablelabs.time.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class watches a configuration file and swaps in a new {@link RuntimeConfig} each time the
+ * file changes.
+ *
+ * The directory of the file is watched with a {@link WatchService}, so both editing the file in
+ * place and replacing it (as most editors and configuration tools do) are seen.  Changes are
+ * read once the file has been quiet for a moment, so a file written in several steps is read
+ * once it is complete.  The current snapshot is held in a volatile field: readers never lock,
+ * and always see a whole snapshot, old or new.  A file that cannot be read or holds an invalid
+ * value is reported and the current snapshot is kept.
+ */
+public class ConfigWatcher
+{
+	// how long the file must be left alone before it is read
+	public static final long SETTLE_MS = 100;
+
+	/**
+	 * Callback receiving configuration changes
+	 */
+	public interface Listener
+	{
+		/**
+		 * Called on the watcher thread with a new snapshot, just before it is swapped in
+		 * @param previous Snapshot replaced
+		 * @param current New snapshot
+		 */
+		void configChanged(RuntimeConfig previous, RuntimeConfig current);
+
+		/**
+		 * Called on the watcher thread when the file is rejected and the current snapshot kept
+		 * @param errors Why the file was rejected
+		 */
+		void configRejected(List<String> errors);
+	}
+
+	private final File m_file;
+	private final RuntimeConfig m_base;
+	private final Listener m_listener;
+
+	private volatile RuntimeConfig m_config;
+	private volatile List<String> m_errors = new ArrayList<String>();
+	private volatile long m_reloads = 0;
+
+	private WatchService m_watchService = null;
+	private Thread m_thread = null;
+
+	/**
+	 * Create an instance of a ConfigWatcher, reading the file a first time
+	 * @param file Configuration file
+	 * @param base Snapshot of the settings the file does not set
+	 * @param listener Listener to receive the changes
+	 * @throws IOException if the file cannot be read or holds an invalid value
+	 */
+	public ConfigWatcher(File file, RuntimeConfig base, Listener listener) throws IOException
+	{
+		m_file = file.getAbsoluteFile();
+		m_base = base;
+		m_listener = listener;
+
+		List<String> errors = new ArrayList<String>();
+		m_config = RuntimeConfig.load(m_file, base, errors);
+		if (m_config == null)
+		{
+			throw new IOException("Invalid configuration " + m_file + ": " + String.join("; ", errors));
+		}
+	}
+
+	/**
+	 * Get the current snapshot
+	 * @return Snapshot
+	 */
+	public RuntimeConfig getConfig()
+	{
+		return m_config;
+	}
+
+	/**
+	 * Get the errors of the last file rejected
+	 * @return Errors, empty if the last file read was accepted
+	 */
+	public List<String> getErrors()
+	{
+		return m_errors;
+	}
+
+	/**
+	 * Get the number of snapshots swapped in from the file
+	 * @return Count
+	 */
+	public long getReloads()
+	{
+		return m_reloads;
+	}
+
+	/**
+	 * Read the file and swap in its snapshot if it is valid and differs from the current one
+	 * @return True if a new snapshot was swapped in
+	 */
+	public synchronized boolean reload()
+	{
+		List<String> errors = new ArrayList<String>();
+		RuntimeConfig config = null;
+		try
+		{
+			config = RuntimeConfig.load(m_file, m_base, errors);
+		}
+		catch (IOException e)
+		{
+			errors.add("unable to read " + m_file + ": " + e.getLocalizedMessage());
+		}
+		m_errors = errors;
+		if (config == null)
+		{
+			m_listener.configRejected(errors);
+			return false;
+		}
+
+		RuntimeConfig previous = m_config;
+		if (config.getChanges(previous).isEmpty())
+		{
+			return false;
+		}
+		// applied before it is published, so a snapshot read is always in effect
+		m_listener.configChanged(previous, config);
+		m_config = config;
+		m_reloads++;
+		return true;
+	}
+
+	/**
+	 * Start watching the file
+	 * @throws IOException if its directory cannot be watched
+	 */
+	public void start() throws IOException
+	{
+		final Path directory = m_file.getParentFile().toPath();
+		final Path name = m_file.toPath().getFileName();
+		m_watchService = FileSystems.getDefault().newWatchService();
+		directory.register(m_watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+
+		m_thread = new Thread(new Runnable() {
+			public void run()
+			{
+				try
+				{
+					while (true)
+					{
+						WatchKey key = m_watchService.take();
+						boolean changed = false;
+						while (key != null)
+						{
+							for (WatchEvent<?> event : key.pollEvents())
+							{
+								changed |= (event.kind() == StandardWatchEventKinds.OVERFLOW || name.equals(event.context()));
+							}
+							key.reset();
+							// wait for the writes to settle
+							key = m_watchService.poll(SETTLE_MS, TimeUnit.MILLISECONDS);
+						}
+						if (changed && m_file.exists())
+						{
+							reload();
+						}
+					}
+				}
+				catch (ClosedWatchServiceException | InterruptedException e)
+				{
+					// stopped
+				}
+			}
+		}, "ConfigWatcher");
+		m_thread.setDaemon(true);
+		m_thread.start();
+	}
+
+	/**
+	 * Stop watching the file
+	 */
+	public void stop()
+	{
+		if (m_watchService != null)
+		{
+			try
+			{
+				m_watchService.close();
+			}
+			catch (IOException e)
+			{
+				// do nothing
+			}
+			m_watchService = null;
+		}
+		if (m_thread != null)
+		{
+			try
+			{
+				m_thread.join(1000);
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+			m_thread = null;
+		}
+	}
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2017 Cable Television Laboratories, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cablelabs.time.server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+
+/**
+ * This class is the Daytime Protocol (RFC867): the date and time as a line of ASCII text, whatever
+ * the request.
+ *
+ * RFC867 leaves the syntax open; this uses the one the RFC suggests, in GMT, for example
+ * "Tuesday, February 22, 1982 17:37:43-GMT".  The formatted line only changes once a second,
+ * so it is cached per second and requests within the same second just copy it.
+ */
+public class DaytimeHandler implements ProtocolHandler
+{
+	public static final int DAYTIME_PORT = 13;
+
+	// the longest line: "Wednesday, September 30, 2017 00:00:00-GMT\r\n"
+	private static final int MAX_RESPONSE_SIZE = 64;
+
+	private static final DateTimeFormatter s_format =
+			DateTimeFormatter.ofPattern("EEEE, MMMM d, yyyy HH:mm:ss-'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+
+	private volatile _CachedLine m_cached = new _CachedLine(Long.MIN_VALUE, new byte[0]);
+
+	/**
+	 * Create an instance of a DaytimeHandler
+	 */
+	public DaytimeHandler()
+	{
+	}
+
+	/**
+	 * Format the daytime line of a time
+	 * @param timeMillis Milliseconds since 1970
+	 * @return Line, terminated by CRLF
+	 */
+	public static String format(long timeMillis)
+	{
+		return s_format.format(Instant.ofEpochMilli(timeMillis)) + "\r\n";
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.cablelabs.time.server.ProtocolHandler#getName()
+	 */
+	@Override
+	public String getName()
+	{
+		return "daytime";
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.cablelabs.time.server.ProtocolHandler#getDefaultPort()
+	 */
+	@Override
+	public int getDefaultPort()
+	{
+		return DAYTIME_PORT;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.cablelabs.time.server.ProtocolHandler#supportsTransport(int)
+	 */
+	@Override
+	public boolean supportsTransport(int transport)
+	{
+		return true;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.cablelabs.time.server.ProtocolHandler#getProtocol(int)
+	 */
+	@Override
+	public byte getProtocol(int transport)
+	{
+		return (transport == TRANSPORT_TCP ? TimeServer.PROTOCOL_DAYTIME_TCP : TimeServer.PROTOCOL_DAYTIME_UDP);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.cablelabs.time.server.ProtocolHandler#getMaxResponseSize()
+	 */
+	@Override
+	public int getMaxResponseSize()
+	{
+		return MAX_RESPONSE_SIZE;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.cablelabs.time.server.ProtocolHandler#handle(java.nio.ByteBuffer, com.cablelabs.time.server.RequestContext, java.nio.ByteBuffer)
+	 */
+	@Override
+	public boolean handle(ByteBuffer request, RequestContext context, ByteBuffer response)
+	{
+		long timeMillis = context.getReceiveMillis();
+		long second = Math.floorDiv(timeMillis, 1000L);
+		_CachedLine cached = m_cached;
+		if (cached.m_second != second)
+		{
+			// concurrent listeners may both format the new second; either result is correct
+			cached = new _CachedLine(second, format(timeMillis).getBytes(StandardCharsets.US_ASCII));
+			m_cached = cached;
+		}
+		response.put(cached.m_line);
+		return true;
+	}
+
+	/**
+	 * This class is the formatted line of one second
+	 */
+	private static class _CachedLine
+	{
+		private final long m_second;
+		private final byte[] m_line;
+
+		/**
+		 * Create an instance of a _CachedLine
+		 * @param second Seconds since 1970
+		 * @param line Formatted line
+		 */
+		public _CachedLine(long second, byte[] line)
+		{
+			m_second = second;
+			m_line = line;
+		}
+	}
+}
@@ -0,0 +1,616 @@
+/*
+ * Copyright 2017 Cable Television Laboratories, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cablelabs.time.server;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * This class tracks the heaviest requesting hosts and subnets in fixed memory.
+ *
+ * For each protocol it keeps a Space-Saving sketch of source addresses and one of source subnets
+ * (/24 for IPv4, /64 for IPv6) for the current time window and for the last completed window.
+ * Each sketch holds a fixed number of counters; any source whose true count in the window exceeds
+ * count/capacity is guaranteed to be present, and each reported count overestimates the true
+ * count by at most its reported error.  Updates are O(log capacity) and allocation-free for IPv4.
+ * Windows follow the served clock, the clock the request times passed to {@link #record} are
+ * read from, so reports never rotate a window on a different time than the requests do.
+ */
+public class HeavyHitterTracker
+{
+	public static final int IPV4_SUBNET_BITS = 24;
+	public static final int IPV6_SUBNET_BITS = 64;
+
+	private final int m_capacity;
+	private final long m_windowMs;
+	private final ServedClock m_clock;
+
+	// [protocol - 1][0 = host, 1 = subnet]
+	private final _SpaceSaving[][] m_current = new _SpaceSaving[TimeServer.PROTOCOL_COUNT][2];
+	private final _SpaceSaving[][] m_previous = new _SpaceSaving[TimeServer.PROTOCOL_COUNT][2];
+
+	private volatile long m_windowStart;
+	private volatile long m_windowEnd;
+	private long m_previousWindowStart = 0;
+
+	/**
+	 * Create an instance of a HeavyHitterTracker whose windows follow the host clock
+	 * @param capacity Number of counters in each sketch
+	 * @param windowMs Length of a window in milliseconds
+	 */
+	public HeavyHitterTracker(int capacity, long windowMs)
+	{
+		this(capacity, windowMs, new ServedClock());
+	}
+
+	/**
+	 * Create an instance of a HeavyHitterTracker
+	 * @param capacity Number of counters in each sketch
+	 * @param windowMs Length of a window in milliseconds
+	 * @param clock Clock the request times are read from
+	 */
+	public HeavyHitterTracker(int capacity, long windowMs, ServedClock clock)
+	{
+		if (capacity < 1 || windowMs < 1)
+		{
+			throw new IllegalArgumentException("Capacity and window must be positive");
+		}
+		m_capacity = capacity;
+		m_windowMs = windowMs;
+		m_clock = clock;
+
+		for (int p = 0; p < TimeServer.PROTOCOL_COUNT; p++)
+		{
+			for (int g = 0; g < 2; g++)
+			{
+				m_current[p][g] = new _SpaceSaving(capacity);
+				m_previous[p][g] = new _SpaceSaving(capacity);
+			}
+		}
+
+		long now = m_clock.currentTimeMillis();
+		m_windowStart = now - (now % windowMs);
+		m_windowEnd = m_windowStart + windowMs;
+	}
+
+	/**
+	 * Get the number of counters in each sketch
+	 * @return Capacity
+	 */
+	public int getCapacity()
+	{
+		return m_capacity;
+	}
+
+	/**
+	 * Get the window length
+	 * @return Window length in milliseconds
+	 */
+	public long getWindowMs()
+	{
+		return m_windowMs;
+	}
+
+	/**
+	 * Record a request
+	 * @param protocol One of the {@link TimeServer} PROTOCOL_ constants
+	 * @param address Source address
+	 * @param nowMs Current time of the tracker's clock, in milliseconds
+	 */
+	public void record(byte protocol, InetAddress address, long nowMs)
+	{
+		if (nowMs >= m_windowEnd)
+		{
+			rotate(nowMs);
+		}
+
+		_SpaceSaving[] sketches = m_current[protocol - 1];
+		if (address instanceof Inet4Address)
+		{
+			// Inet4Address.hashCode() is the address itself, which avoids the copy made by getAddress()
+			int addr = address.hashCode();
+			long hostKey = (1L << 32) | (addr & 0xFFFFFFFFL);
+			long subnetKey = (1L << 32) | (addr & 0xFFFFFF00L);
+			sketches[0].offer(hostKey, addr, 0, 0, 4);
+			sketches[1].offer(subnetKey, addr & 0xFFFFFF00, 0, 0, 4);
+		}
+		else
+		{
+			byte[] bytes = address.getAddress();
+			long high = toLong(bytes, 0);
+			long low = toLong(bytes, 8);
+			// hosts are keyed by a mix of the full address; the stored bytes are exact
+			sketches[0].offer(mix(high, low), 0, high, low, 16);
+			sketches[1].offer(high, 0, high, 0, 16);
+		}
+	}
+
+	/**
+	 * Get the heaviest sources
+	 * @param protocol One of the {@link TimeServer} PROTOCOL_ constants
+	 * @param subnets True for subnets, false for hosts
+	 * @param count Maximum number of entries
+	 * @param completedWindow True for the last completed window, false for the current one
+	 * @return Entries, heaviest first
+	 */
+	public List<HeavyHitter> getTopTalkers(byte protocol, boolean subnets, int count, boolean completedWindow)
+	{
+		long now = m_clock.currentTimeMillis();
+		if (now >= m_windowEnd)
+		{
+			rotate(now);
+		}
+
+		_SpaceSaving sketch = (completedWindow ? m_previous : m_current)[protocol - 1][subnets ? 1 : 0];
+		return sketch.top(count, subnets);
+	}
+
+	/**
+	 * Get the start of the current window
+	 * @return Milliseconds since 1970
+	 */
+	public long getWindowStart()
+	{
+		return m_windowStart;
+	}
+
+	/**
+	 * Get the start of the last completed window
+	 * @return Milliseconds since 1970, or 0 if no window has completed
+	 */
+	public synchronized long getPreviousWindowStart()
+	{
+		return m_previousWindowStart;
+	}
+
+	/**
+	 * Start a new window if the current one has ended
+	 * @param nowMs Current time in milliseconds
+	 */
+	private synchronized void rotate(long nowMs)
+	{
+		if (nowMs < m_windowEnd)
+		{
+			return;
+		}
+
+		long start = nowMs - (nowMs % m_windowMs);
+		// if whole windows passed without traffic, the completed window is empty
+		boolean adjacent = (start == m_windowEnd);
+		m_previousWindowStart = (adjacent ? m_windowStart : start - m_windowMs);
+
+		for (int p = 0; p < TimeServer.PROTOCOL_COUNT; p++)
+		{
+			for (int g = 0; g < 2; g++)
+			{
+				_SpaceSaving completed = m_current[p][g];
+				_SpaceSaving recycled = m_previous[p][g];
+				recycled.clear();
+				if (!adjacent)
+				{
+					completed.clear();
+				}
+				m_previous[p][g] = completed;
+				m_current[p][g] = recycled;
+			}
+		}
+
+		m_windowStart = start;
+		m_windowEnd = start + m_windowMs;
+	}
+
+	/**
+	 * Read 8 bytes as a big-endian long
+	 * @param bytes Byte array
+	 * @param offset Offset of the first byte
+	 * @return Long value
+	 */
+	private static long toLong(byte[] bytes, int offset)
+	{
+		long value = 0;
+		for (int i = 0; i < 8; i++)
+		{
+			value = (value << 8) | (bytes[offset + i] & 0xFF);
+		}
+		return value;
+	}
+
+	/**
+	 * Mix two longs into a well-distributed key
+	 * @param high First value
+	 * @param low Second value
+	 * @return Mixed key
+	 */
+	private static long mix(long high, long low)
+	{
+		long h = high * 0x9E3779B97F4A7C15L + low;
+		h ^= (h >>> 32);
+		h *= 0xD6E8FEB86659FD93L;
+		return h ^ (h >>> 32);
+	}
+
+	/**
+	 * This class is a heavy-hitter entry
+	 */
+	public static class HeavyHitter
+	{
+		private final InetAddress m_address;
+		private final int m_prefixLength;
+		private final long m_count;
+		private final long m_error;
+
+		/**
+		 * Create an instance of a HeavyHitter
+		 * @param address Host or subnet address
+		 * @param prefixLength Prefix length (32 or 128 for hosts)
+		 * @param count Estimated request count (an upper bound)
+		 * @param error Maximum overestimation of the count
+		 */
+		public HeavyHitter(InetAddress address, int prefixLength, long count, long error)
+		{
+			m_address = address;
+			m_prefixLength = prefixLength;
+			m_count = count;
+			m_error = error;
+		}
+
+		/**
+		 * Get the host or subnet address
+		 * @return Address
+		 */
+		public InetAddress getAddress()
+		{
+			return m_address;
+		}
+
+		/**
+		 * Get the prefix length
+		 * @return Prefix length (32 or 128 for hosts)
+		 */
+		public int getPrefixLength()
+		{
+			return m_prefixLength;
+		}
+
+		/**
+		 * Get the estimated request count
+		 * @return Count (an upper bound of the true count)
+		 */
+		public long getCount()
+		{
+			return m_count;
+		}
+
+		/**
+		 * Get the maximum overestimation of the count
+		 * @return Error bound
+		 */
+		public long getError()
+		{
+			return m_error;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * @see java.lang.Object#toString()
+		 */
+		@Override
+		public String toString()
+		{
+			return m_address.getHostAddress() + "/" + m_prefixLength + " " + m_count +
+					(m_error > 0 ? " (+/-" + m_error + ")" : "");
+		}
+	}
+
+	/**
+	 * This class is a Space-Saving sketch: a fixed set of counters, an open-addressing index from
+	 * key to counter and a min-heap of counters used to evict the smallest counter.
+	 */
+	private static class _SpaceSaving
+	{
+		private final int m_capacity;
+		private final long[] m_keys;
+		private final long[] m_counts;
+		private final long[] m_errors;
+		private final long[] m_addrHigh;
+		private final long[] m_addrLow;
+		private final int[] m_addrV4;
+		private final byte[] m_addrLength;
+
+		private final int[] m_index;
+		private final int m_indexMask;
+
+		private final int[] m_heap;
+		private final int[] m_heapPos;
+
+		private int m_size = 0;
+
+		/**
+		 * Create an instance of a _SpaceSaving sketch
+		 * @param capacity Number of counters
+		 */
+		public _SpaceSaving(int capacity)
+		{
+			m_capacity = capacity;
+			m_keys = new long[capacity];
+			m_counts = new long[capacity];
+			m_errors = new long[capacity];
+			m_addrHigh = new long[capacity];
+			m_addrLow = new long[capacity];
+			m_addrV4 = new int[capacity];
+			m_addrLength = new byte[capacity];
+			m_heap = new int[capacity];
+			m_heapPos = new int[capacity];
+
+			int indexSize = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1) << 1;
+			m_index = new int[indexSize];
+			m_indexMask = indexSize - 1;
+		}
+
+		/**
+		 * Count one occurrence of a key
+		 * @param key Key
+		 * @param v4 IPv4 address (if length is 4)
+		 * @param high First 8 bytes of an IPv6 address (if length is 16)
+		 * @param low Last 8 bytes of an IPv6 address (if length is 16)
+		 * @param length Address length
+		 */
+		public synchronized void offer(long key, int v4, long high, long low, int length)
+		{
+			int pos = find(key);
+			int slot = (pos >= 0 ? m_index[pos] - 1 : -1);
+			if (slot >= 0)
+			{
+				m_counts[slot]++;
+				siftDown(m_heapPos[slot]);
+				return;
+			}
+
+			long minCount = 0;
+			if (m_size < m_capacity)
+			{
+				slot = m_size;
+				m_heap[m_size] = slot;
+				m_heapPos[slot] = m_size;
+				m_size++;
+			}
+			else
+			{
+				// replace the smallest counter, inheriting its count as the error bound
+				slot = m_heap[0];
+				minCount = m_counts[slot];
+				remove(m_keys[slot]);
+			}
+
+			m_keys[slot] = key;
+			m_counts[slot] = minCount + 1;
+			m_errors[slot] = minCount;
+			m_addrV4[slot] = v4;
+			m_addrHigh[slot] = high;
+			m_addrLow[slot] = low;
+			m_addrLength[slot] = (byte)length;
+			insert(key, slot);
+			if (minCount == 0)
+			{
+				siftUp(m_heapPos[slot]);
+			}
+			else
+			{
+				siftDown(m_heapPos[slot]);
+			}
+		}
+
+		/**
+		 * Remove every counter
+		 */
+		public synchronized void clear()
+		{
+			Arrays.fill(m_index, 0);
+			m_size = 0;
+		}
+
+		/**
+		 * Get the largest counters
+		 * @param count Maximum number of entries
+		 * @param subnets True if the keys are subnets
+		 * @return Entries, largest first
+		 */
+		public List<HeavyHitter> top(int count, boolean subnets)
+		{
+			List<HeavyHitter> entries = new ArrayList<HeavyHitter>();
+			synchronized (this)
+			{
+				for (int slot = 0; slot < m_size; slot++)
+				{
+					byte[] bytes = null;
+					if (m_addrLength[slot] == 4)
+					{
+						int v4 = m_addrV4[slot];
+						bytes = new byte[] { (byte)(v4 >>> 24), (byte)(v4 >>> 16), (byte)(v4 >>> 8), (byte)v4 };
+					}
+					else
+					{
+						bytes = new byte[16];
+						for (int i = 0; i < 8; i++)
+						{
+							bytes[i] = (byte)(m_addrHigh[slot] >>> (56 - 8 * i));
+							bytes[8 + i] = (byte)(m_addrLow[slot] >>> (56 - 8 * i));
+						}
+					}
+
+					int prefix = (bytes.length == 4 ?
+							(subnets ? IPV4_SUBNET_BITS : 32) :
+							(subnets ? IPV6_SUBNET_BITS : 128));
+					try
+					{
+						entries.add(new HeavyHitter(InetAddress.getByAddress(bytes), prefix,
+								m_counts[slot], m_errors[slot]));
+					}
+					catch (UnknownHostException e)
+					{
+						// cannot happen for 4 or 16 bytes
+					}
+				}
+			}
+
+			Collections.sort(entries, new Comparator<HeavyHitter>() {
+				public int compare(HeavyHitter a, HeavyHitter b)
+				{
+					return Long.compare(b.getCount(), a.getCount());
+				}
+			});
+			return (entries.size() > count ? new ArrayList<HeavyHitter>(entries.subList(0, count)) : entries);
+		}
+
+		/**
+		 * Find the index position holding a key
+		 * @param key Key
+		 * @return Index position, or -1 if absent
+		 */
+		private int find(long key)
+		{
+			int pos = hash(key) & m_indexMask;
+			while (m_index[pos] != 0)
+			{
+				if (m_keys[m_index[pos] - 1] == key)
+				{
+					return pos;
+				}
+				pos = (pos + 1) & m_indexMask;
+			}
+			return -1;
+		}
+
+		/**
+		 * Add a key to the index
+		 * @param key Key
+		 * @param slot Counter slot
+		 */
+		private void insert(long key, int slot)
+		{
+			int pos = hash(key) & m_indexMask;
+			while (m_index[pos] != 0)
+			{
+				pos = (pos + 1) & m_indexMask;
+			}
+			m_index[pos] = slot + 1;
+		}
+
+		/**
+		 * Remove a key from the index, shifting back later entries of its probe run
+		 * @param key Key
+		 */
+		private void remove(long key)
+		{
+			int pos = find(key);
+			if (pos < 0)
+			{
+				return;
+			}
+
+			int next = (pos + 1) & m_indexMask;
+			while (m_index[next] != 0)
+			{
+				int home = hash(m_keys[m_index[next] - 1]) & m_indexMask;
+				// move the entry back if its home is not in (pos, next]
+				if (((next - home) & m_indexMask) >= ((next - pos) & m_indexMask))
+				{
+					m_index[pos] = m_index[next];
+					pos = next;
+				}
+				next = (next + 1) & m_indexMask;
+			}
+			m_index[pos] = 0;
+		}
+
+		/**
+		 * Hash a key
+		 * @param key Key
+		 * @return Hash code
+		 */
+		private static int hash(long key)
+		{
+			long h = key * 0x9E3779B97F4A7C15L;
+			return (int)(h ^ (h >>> 32));
+		}
+
+		/**
+		 * Restore the heap order upwards from a position
+		 * @param pos Heap position
+		 */
+		private void siftUp(int pos)
+		{
+			int slot = m_heap[pos];
+			while (pos > 0)
+			{
+				int parent = (pos - 1) >>> 1;
+				if (m_counts[m_heap[parent]] <= m_counts[slot])
+				{
+					break;
+				}
+				move(m_heap[parent], pos);
+				pos = parent;
+			}
+			move(slot, pos);
+		}
+
+		/**
+		 * Restore the heap order downwards from a position
+		 * @param pos Heap position
+		 */
+		private void siftDown(int pos)
+		{
+			int slot = m_heap[pos];
+			while (true)
+			{
+				int child = (pos << 1) + 1;
+				if (child >= m_size)
+				{
+					break;
+				}
+				if (child + 1 < m_size && m_counts[m_heap[child + 1]] < m_counts[m_heap[child]])
+				{
+					child++;
+				}
+				if (m_counts[m_heap[child]] >= m_counts[slot])
+				{
+					break;
+				}
+				move(m_heap[child], pos);
+				pos = child;
+			}
+			move(slot, pos);
+		}
+
+		/**
+		 * Place a counter at a heap position
+		 * @param slot Counter slot
+		 * @param pos Heap position
+		 */
+		private void move(int slot, int pos)
+		{
+			m_heap[pos] = slot;
+			m_heapPos[slot] = pos;
+		}
+	}
+}
@@ -0,0 +1,322 @@
+/*
+ * Copyright 2017 Cable Television Laboratories, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cablelabs.time.server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class is what a listener thread does while it has nothing to do.
+ *
+ * With {@link Type#BLOCKING} (the default) the listener blocks in the kernel and is woken up by
+ * the next request.  The other types poll a non-blocking socket, and call {@link #idle(int)} after
+ * every poll: the thread spins, yields or parks, trading CPU for the wake-up latency saved.  An
+ * instance keeps the state of one thread, so each listener creates its own with {@link #create}.
+ */
+public abstract class IdleStrategy
+{
+	/**
+	 * This enumeration lists the idle strategies
+	 */
+	public enum Type
+	{
+		/** Block in the kernel until there is work */
+		BLOCKING("blocking"),
+		/** Busy-poll, for a dedicated core */
+		SPIN("spin"),
+		/** Busy-poll for a while, then yield the core between polls */
+		SPIN_YIELD("yield"),
+		/** Busy-poll, then yield, then park for longer and longer, up to a millisecond */
+		PARK("park");
+
+		private final String m_name;
+
+		private Type(String name)
+		{
+			m_name = name;
+		}
+
+		/**
+		 * Get the name of the strategy, as given on the command line
+		 * @return Name
+		 */
+		public String getName()
+		{
+			return m_name;
+		}
+
+		/**
+		 * Get a strategy by name
+		 * @param name Name, as returned by {@link #getName()}
+		 * @return Strategy type
+		 */
+		public static Type fromName(String name)
+		{
+			for (Type type : values())
+			{
+				if (type.m_name.equals(name))
+				{
+					return type;
+				}
+			}
+			throw new IllegalArgumentException("Invalid idle strategy: " + name);
+		}
+	}
+
+	// idle polls spent spinning and then yielding before a strategy backs off further
+	public static final int SPIN_POLLS = 100;
+	public static final int YIELD_POLLS = 100;
+
+	public static final long MIN_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(1);
+	public static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private final Type m_type;
+
+	/**
+	 * Create an instance of an IdleStrategy
+	 * @param type Strategy type
+	 */
+	protected IdleStrategy(Type type)
+	{
+		m_type = type;
+	}
+
+	/**
+	 * Create the state of a strategy for one thread
+	 * @param type Strategy type
+	 * @return Idle strategy
+	 */
+	public static IdleStrategy create(Type type)
+	{
+		switch (type)
+		{
+		case SPIN:
+			return new _Spin();
+		case SPIN_YIELD:
+			return new _SpinYield();
+		case PARK:
+			return new _Park();
+		default:
+			return new _Blocking();
+		}
+	}
+
+	/**
+	 * Get the strategy type
+	 * @return Type
+	 */
+	public Type getType()
+	{
+		return m_type;
+	}
+
+	/**
+	 * Get a flag indicating if the listener blocks in the kernel instead of polling
+	 * @return True if the socket should be left blocking
+	 */
+	public boolean isBlocking()
+	{
+		return (m_type == Type.BLOCKING);
+	}
+
+	/**
+	 * Called after each poll of the listener
+	 * @param workCount Amount of work the poll found; any work resets the strategy
+	 */
+	public void idle(int workCount)
+	{
+		if (workCount > 0)
+		{
+			reset();
+		}
+		else
+		{
+			idle();
+		}
+	}
+
+	/**
+	 * Wait a little, after a poll that found nothing to do
+	 */
+	protected abstract void idle();
+
+	/**
+	 * Start over from the shortest wait, after a poll that found work
+	 */
+	public abstract void reset();
+
+	/**
+	 * This class is the strategy of a blocking listener: there is nothing to wait for
+	 */
+	private static class _Blocking extends IdleStrategy
+	{
+		/**
+		 * Create an instance of a _Blocking
+		 */
+		public _Blocking()
+		{
+			super(Type.BLOCKING);
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * @see com.cablelabs.time.server.IdleStrategy#idle()
+		 */
+		@Override
+		protected void idle()
+		{
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * @see com.cablelabs.time.server.IdleStrategy#reset()
+		 */
+		@Override
+		public void reset()
+		{
+		}
+	}
+
+	/**
+	 * This class spins
+	 */
+	private static class _Spin extends IdleStrategy
+	{
+		/**
+		 * Create an instance of a _Spin
+		 */
+		public _Spin()
+		{
+			super(Type.SPIN);
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * @see com.cablelabs.time.server.IdleStrategy#idle()
+		 */
+		@Override
+		protected void idle()
+		{
+			Thread.onSpinWait();
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * @see com.cablelabs.time.server.IdleStrategy#reset()
+		 */
+		@Override
+		public void reset()
+		{
+		}
+	}
+
+	/**
+	 * This class spins, then yields
+	 */
+	private static class _SpinYield extends IdleStrategy
+	{
+		private int m_polls = 0;
+
+		/**
+		 * Create an instance of a _SpinYield
+		 */
+		public _SpinYield()
+		{
+			super(Type.SPIN_YIELD);
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * @see com.cablelabs.time.server.IdleStrategy#idle()
+		 */
+		@Override
+		protected void idle()
+		{
+			if (m_polls < SPIN_POLLS)
+			{
+				m_polls++;
+				Thread.onSpinWait();
+			}
+			else
+			{
+				Thread.yield();
+			}
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * @see com.cablelabs.time.server.IdleStrategy#reset()
+		 */
+		@Override
+		public void reset()
+		{
+			m_polls = 0;
+		}
+	}
+
+	/**
+	 * This class spins, yields, then parks for twice as long each time, up to a maximum
+	 */
+	private static class _Park extends IdleStrategy
+	{
+		private int m_polls = 0;
+		private long m_parkNanos = MIN_PARK_NANOS;
+
+		/**
+		 * Create an instance of a _Park
+		 */
+		public _Park()
+		{
+			super(Type.PARK);
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * @see com.cablelabs.time.server.IdleStrategy#idle()
+		 */
+		@Override
+		protected void idle()
+		{
+			if (m_polls < SPIN_POLLS)
+			{
+				m_polls++;
+				Thread.onSpinWait();
+			}
+			else if (m_polls < SPIN_POLLS + YIELD_POLLS)
+			{
+				m_polls++;
+				Thread.yield();
+			}
+			else
+			{
+				LockSupport.parkNanos(m_parkNanos);
+				m_parkNanos = Math.min(m_parkNanos << 1, MAX_PARK_NANOS);
+			}
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * @see com.cablelabs.time.server.IdleStrategy#reset()
+		 */
+		@Override
+		public void reset()
+		{
+			m_polls = 0;
+			m_parkNanos = MIN_PARK_NANOS;
+		}
+	}
+}
@@ -0,0 +1,560 @@
+/*
+ * Copyright 2017 Cable Television Laboratories, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cablelabs.time.server;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * This class samples what the Linux kernel knows about the UDP listener sockets.
+ *
+ * Datagrams the kernel drops because a socket receive buffer is full never reach the process, so
+ * the in-process counters cannot show them.  Each {@link #sample()} reads, for the sockets of this
+ * process bound to the listener ports, the receive queue depth and drop count from
+ * /proc/net/udp and /proc/net/udp6, and the host-wide RcvbufErrors and InErrors from
+ * /proc/net/snmp (and /proc/net/snmp6, for IPv6 datagrams).  Socket drops that rise with the
+ * receive queue near the buffer size mean the listener is overloaded; a throughput drop without
+ * them is loss in the network.
+ */
+public class KernelUdpStats
+{
+	public static final String PROC = "/proc";
+
+	private static final String SOCKET_LINK = "socket:[";
+
+	// fields of a /proc/net/udp line
+	private static final int FIELD_LOCAL_ADDRESS = 1;
+	private static final int FIELD_QUEUES = 4;
+	private static final int FIELD_INODE = 9;
+	private static final int FIELD_DROPS = 12;
+
+	private final File m_proc;
+	private final List<Listener> m_listeners = new ArrayList<Listener>();
+
+	private long m_rcvbufErrors = 0;
+	private long m_previousRcvbufErrors = 0;
+	private long m_inErrors = 0;
+	private long m_previousInErrors = 0;
+	private long m_samples = 0;
+
+	/**
+	 * Create an instance of a KernelUdpStats reading the statistics of the running kernel
+	 */
+	public KernelUdpStats()
+	{
+		this(new File(PROC));
+	}
+
+	/**
+	 * Create an instance of a KernelUdpStats
+	 * @param proc Root of the proc file system
+	 */
+	public KernelUdpStats(File proc)
+	{
+		m_proc = proc;
+	}
+
+	/**
+	 * Get a flag indicating if the kernel statistics can be read (on Linux)
+	 * @return True if /proc/net/udp is readable
+	 */
+	public boolean isSupported()
+	{
+		return new File(m_proc, "net/udp").canRead();
+	}
+
+	/**
+	 * Add a listener whose socket is sampled
+	 * @param name Listener name, such as {@link CableLabsTimeServer#LISTENER_UDP}
+	 * @param server Listener; it is found by the port it is bound to
+	 */
+	public synchronized void addServer(String name, UdpTimeServer server)
+	{
+		m_listeners.add(new Listener(name, server));
+	}
+
+	/**
+	 * Get the sampled listeners
+	 * @return Listeners, in the order they were added
+	 */
+	public synchronized List<Listener> getListeners()
+	{
+		return new ArrayList<Listener>(m_listeners);
+	}
+
+	/**
+	 * Get the number of datagrams the host dropped because a socket receive buffer was full
+	 * @return RcvbufErrors of UDP over IPv4 and IPv6, for every process, as of the last sample
+	 */
+	public synchronized long getRcvbufErrors()
+	{
+		return m_rcvbufErrors;
+	}
+
+	/**
+	 * Get the number of datagrams the host could not deliver, including RcvbufErrors
+	 * @return InErrors of UDP over IPv4 and IPv6, for every process, as of the last sample
+	 */
+	public synchronized long getInErrors()
+	{
+		return m_inErrors;
+	}
+
+	/**
+	 * Get the number of samples taken
+	 * @return Count
+	 */
+	public synchronized long getSamples()
+	{
+		return m_samples;
+	}
+
+	/**
+	 * Read the kernel statistics
+	 * @throws IOException if /proc/net/udp cannot be read
+	 */
+	public synchronized void sample() throws IOException
+	{
+		Set<Long> inodes = socketInodes();
+		for (Listener listener : m_listeners)
+		{
+			listener.startSample();
+		}
+		readSockets(new File(m_proc, "net/udp"), inodes, true);
+		readSockets(new File(m_proc, "net/udp6"), inodes, false);
+		for (Listener listener : m_listeners)
+		{
+			listener.endSample();
+		}
+
+		long[] errors = new long[2];
+		readSnmp(new File(m_proc, "net/snmp"), errors);
+		readSnmp6(new File(m_proc, "net/snmp6"), errors);
+		m_previousRcvbufErrors = (m_samples > 0 ? m_rcvbufErrors : errors[0]);
+		m_previousInErrors = (m_samples > 0 ? m_inErrors : errors[1]);
+		m_rcvbufErrors = errors[0];
+		m_inErrors = errors[1];
+		m_samples++;
+	}
+
+	/**
+	 * Describe the last sample, next to the in-process counters of each listener
+	 * @return Status lines
+	 */
+	public synchronized String getStatus()
+	{
+		StringBuilder status = new StringBuilder();
+		for (Listener listener : m_listeners)
+		{
+			status.append("Kernel UDP ").append(listener.getName());
+			if (listener.getPort() == 0)
+			{
+				status.append(": socket not found");
+			}
+			else
+			{
+				int receiveBuffer = listener.m_server.getReceiveBufferSize();
+				status.append(" (port ").append(listener.getPort()).append("): ")
+						.append(listener.getReceiveQueue()).append(" bytes queued")
+						.append(receiveBuffer > 0 ? " of " + receiveBuffer : "").append(", ")
+						.append(listener.getDrops()).append(" socket drops (+").append(listener.getNewDrops()).append(")");
+			}
+			TimeServer server = listener.m_server;
+			status.append("; in process ").append(server.getReceivedCount()).append(" received, ")
+					.append(server.getAnsweredCount()).append(" answered, ")
+					.append(server.getDroppedCount()).append(" dropped")
+					.append(System.lineSeparator());
+		}
+		status.append("Kernel UDP host: ").append(m_rcvbufErrors).append(" RcvbufErrors (+")
+				.append(m_rcvbufErrors - m_previousRcvbufErrors).append("), ")
+				.append(m_inErrors).append(" InErrors (+").append(m_inErrors - m_previousInErrors).append(")");
+		return status.toString();
+	}
+
+	/**
+	 * Get the inodes of the sockets open in this process
+	 * @return Inodes, or null if they cannot be listed (every socket on a listener port then matches)
+	 */
+	private Set<Long> socketInodes()
+	{
+		File fds = new File(m_proc, "self/fd");
+		if (!fds.isDirectory())
+		{
+			return null;
+		}
+		Set<Long> inodes = new HashSet<Long>();
+		DirectoryStream<Path> stream = null;
+		try
+		{
+			stream = Files.newDirectoryStream(fds.toPath());
+			for (Path fd : stream)
+			{
+				String target;
+				try
+				{
+					target = Files.readSymbolicLink(fd).toString();
+				}
+				catch (IOException | UnsupportedOperationException e)
+				{
+					// closed since it was listed, or not a link
+					continue;
+				}
+				if (target.startsWith(SOCKET_LINK) && target.endsWith("]"))
+				{
+					try
+					{
+						inodes.add(Long.parseLong(target.substring(SOCKET_LINK.length(), target.length() - 1)));
+					}
+					catch (NumberFormatException e)
+					{
+						// not a socket inode
+					}
+				}
+			}
+		}
+		catch (IOException e)
+		{
+			return null;
+		}
+		finally
+		{
+			if (stream != null)
+			{
+				try
+				{
+					stream.close();
+				}
+				catch (IOException e)
+				{
+					// do nothing
+				}
+			}
+		}
+		return inodes;
+	}
+
+	/**
+	 * Add the queue depth and drops of the listener sockets in a /proc/net/udp file
+	 * @param file /proc/net/udp or /proc/net/udp6
+	 * @param inodes Socket inodes of this process, or null to match any
+	 * @param required True if a missing file is an error (udp6 is missing without IPv6)
+	 * @throws IOException if the file cannot be read
+	 */
+	private void readSockets(File file, Set<Long> inodes, boolean required) throws IOException
+	{
+		if (!required && !file.exists())
+		{
+			return;
+		}
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				Files.newInputStream(file.toPath()), StandardCharsets.US_ASCII));
+		try
+		{
+			// the first line is the header
+			String line = reader.readLine();
+			while ((line = reader.readLine()) != null)
+			{
+				String[] fields = line.trim().split("\\s+");
+				if (fields.length <= FIELD_DROPS)
+				{
+					continue;
+				}
+
+				String local = fields[FIELD_LOCAL_ADDRESS];
+				int port = Integer.parseInt(local.substring(local.lastIndexOf(':') + 1), 16);
+				Listener listener = findListener(port);
+				if (listener == null || (inodes != null && !inodes.contains(Long.parseLong(fields[FIELD_INODE]))))
+				{
+					continue;
+				}
+
+				String queues = fields[FIELD_QUEUES];
+				listener.addSocket(Long.parseLong(queues.substring(queues.indexOf(':') + 1), 16),
+						Long.parseLong(fields[FIELD_DROPS]));
+			}
+		}
+		catch (NumberFormatException | IndexOutOfBoundsException e)
+		{
+			throw new IOException("Unexpected format of " + file + ": " + e.getMessage());
+		}
+		finally
+		{
+			reader.close();
+		}
+	}
+
+	/**
+	 * Find the listener bound to a port
+	 * @param port Local port of a socket
+	 * @return Listener, or null if none is bound to the port
+	 */
+	private Listener findListener(int port)
+	{
+		if (port == 0)
+		{
+			return null;
+		}
+		for (Listener listener : m_listeners)
+		{
+			if (listener.m_samplePort == port)
+			{
+				return listener;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Add the UDP error counters of /proc/net/snmp, a header line of names followed by a line of
+	 * values
+	 * @param file /proc/net/snmp
+	 * @param errors RcvbufErrors and InErrors, added to
+	 * @throws IOException if the file cannot be read
+	 */
+	private static void readSnmp(File file, long[] errors) throws IOException
+	{
+		if (!file.exists())
+		{
+			return;
+		}
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				Files.newInputStream(file.toPath()), StandardCharsets.US_ASCII));
+		try
+		{
+			String[] names = null;
+			String line = null;
+			while ((line = reader.readLine()) != null)
+			{
+				if (!line.startsWith("Udp:"))
+				{
+					continue;
+				}
+				String[] fields = line.trim().split("\\s+");
+				if (names == null)
+				{
+					names = fields;
+					continue;
+				}
+				for (int i = 1; i < fields.length && i < names.length; i++)
+				{
+					addError(names[i], fields[i], errors);
+				}
+				break;
+			}
+		}
+		catch (NumberFormatException e)
+		{
+			throw new IOException("Unexpected format of " + file + ": " + e.getMessage());
+		}
+		finally
+		{
+			reader.close();
+		}
+	}
+
+	/**
+	 * Add the UDP error counters of /proc/net/snmp6, a line per name and value
+	 * @param file /proc/net/snmp6
+	 * @param errors RcvbufErrors and InErrors, added to
+	 * @throws IOException if the file cannot be read
+	 */
+	private static void readSnmp6(File file, long[] errors) throws IOException
+	{
+		if (!file.exists())
+		{
+			return;
+		}
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				Files.newInputStream(file.toPath()), StandardCharsets.US_ASCII));
+		try
+		{
+			String line = null;
+			while ((line = reader.readLine()) != null)
+			{
+				if (!line.startsWith("Udp6"))
+				{
+					continue;
+				}
+				String[] fields = line.trim().split("\\s+");
+				if (fields.length == 2)
+				{
+					addError(fields[0].substring(4), fields[1], errors);
+				}
+			}
+		}
+		catch (NumberFormatException e)
+		{
+			throw new IOException("Unexpected format of " + file + ": " + e.getMessage());
+		}
+		finally
+		{
+			reader.close();
+		}
+	}
+
+	/**
+	 * Add a counter if it is one of the error counters sampled
+	 * @param name Counter name, without its protocol prefix
+	 * @param value Counter value
+	 * @param errors RcvbufErrors and InErrors, added to
+	 */
+	private static void addError(String name, String value, long[] errors)
+	{
+		if (name.equals("RcvbufErrors"))
+		{
+			errors[0] += Long.parseLong(value);
+		}
+		else if (name.equals("InErrors"))
+		{
+			errors[1] += Long.parseLong(value);
+		}
+	}
+
+	/**
+	 * This class is the kernel view of a listener socket, as of the last sample
+	 */
+	public static class Listener
+	{
+		private final String m_name;
+		private final UdpTimeServer m_server;
+		private int m_samplePort = 0;
+		private int m_port = 0;
+		private long m_receiveQueue = 0;
+		private long m_drops = 0;
+		private long m_previousDrops = 0;
+		private long m_sampleQueue = 0;
+		private long m_sampleDrops = 0;
+		private boolean m_found = false;
+
+		/**
+		 * Create an instance of a Listener
+		 * @param name Listener name
+		 * @param server Listener
+		 */
+		private Listener(String name, UdpTimeServer server)
+		{
+			m_name = name;
+			m_server = server;
+		}
+
+		/**
+		 * Get the listener name
+		 * @return Name
+		 */
+		public String getName()
+		{
+			return m_name;
+		}
+
+		/**
+		 * Get the port the socket was found on
+		 * @return Port, or 0 if the socket was not found in the last sample
+		 */
+		public int getPort()
+		{
+			return m_port;
+		}
+
+		/**
+		 * Get the datagrams waiting in the socket receive queue
+		 * @return Bytes, as charged against the receive buffer (including the kernel overhead)
+		 */
+		public long getReceiveQueue()
+		{
+			return m_receiveQueue;
+		}
+
+		/**
+		 * Get the number of datagrams the kernel dropped on the socket
+		 * @return Count, since the socket was opened
+		 */
+		public long getDrops()
+		{
+			return m_drops;
+		}
+
+		/**
+		 * Get the number of datagrams dropped on the socket between the last two samples
+		 * @return Count
+		 */
+		public long getNewDrops()
+		{
+			return m_drops - m_previousDrops;
+		}
+
+		/**
+		 * Get ready to sample the socket bound to the listener port
+		 */
+		private void startSample()
+		{
+			m_samplePort = 0;
+			CompletableFuture<InetSocketAddress> bound = m_server.getBoundAddress();
+			if (bound != null && bound.isDone() && !bound.isCompletedExceptionally() && m_server.getServerRunning())
+			{
+				m_samplePort = bound.join().getPort();
+			}
+			m_sampleQueue = 0;
+			m_sampleDrops = 0;
+			m_found = false;
+		}
+
+		/**
+		 * Add a socket found on the listener port
+		 * @param receiveQueue Bytes in the receive queue
+		 * @param drops Datagrams dropped
+		 */
+		private void addSocket(long receiveQueue, long drops)
+		{
+			m_sampleQueue += receiveQueue;
+			m_sampleDrops += drops;
+			m_found = true;
+		}
+
+		/**
+		 * Take the sockets found as the new sample
+		 */
+		private void endSample()
+		{
+			if (!m_found)
+			{
+				// not bound, or stopped
+				m_port = 0;
+				m_receiveQueue = 0;
+				m_previousDrops = m_drops;
+				return;
+			}
+			// a new socket counts its drops from zero
+			boolean sameSocket = (m_port == m_samplePort && m_sampleDrops >= m_drops);
+			m_previousDrops = (sameSocket ? m_drops : 0);
+			m_port = m_samplePort;
+			m_receiveQueue = m_sampleQueue;
+			m_drops = m_sampleDrops;
+		}
+	}
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2017 Cable Television Laboratories, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cablelabs.time.server;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class is a fixed-size, log-linear histogram of nanosecond durations.
+ *
+ * Each power of two is split into 8 sub-buckets, so any reported value is within
+ * 12.5% of the recorded one.  Recording is lock-free and allocation-free, and the
+ * memory used does not depend on the number of recorded values.
+ */
+public class LatencyHistogram
+{
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	/**
+	 * Number of buckets needed to cover every positive long value
+	 */
+	public static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray m_buckets = new AtomicLongArray(BUCKET_COUNT);
+
+	/**
+	 * Create an instance of a LatencyHistogram
+	 */
+	public LatencyHistogram()
+	{
+	}
+
+	/**
+	 * Get the bucket index holding the specified value
+	 * @param value Recorded value (negative values are treated as 0)
+	 * @return Bucket index
+	 */
+	public static int bucketIndex(long value)
+	{
+		if (value < SUB_BUCKETS)
+		{
+			return (value < 0 ? 0 : (int)value);
+		}
+		int msb = 63 - Long.numberOfLeadingZeros(value);
+		int shift = msb - SUB_BUCKET_BITS;
+		return ((shift + 1) << SUB_BUCKET_BITS) + (int)((value >>> shift) & (SUB_BUCKETS - 1));
+	}
+
+	/**
+	 * Get the largest value that falls into the specified bucket
+	 * @param index Bucket index
+	 * @return Inclusive upper bound of the bucket
+	 */
+	public static long bucketUpperBound(int index)
+	{
+		if (index < SUB_BUCKETS)
+		{
+			return index;
+		}
+		int shift = (index >>> SUB_BUCKET_BITS) - 1;
+		long lower = ((long)(SUB_BUCKETS + (index & (SUB_BUCKETS - 1)))) << shift;
+		return lower + (1L << shift) - 1;
+	}
+
+	/**
+	 * Record a value
+	 * @param nanos Duration in nanoseconds
+	 */
+	public void record(long nanos)
+	{
+		m_buckets.incrementAndGet(bucketIndex(nanos));
+	}
+
+	/**
+	 * Add a number of values directly to a bucket (used when merging histograms)
+	 * @param index Bucket index
+	 * @param count Number of values
+	 */
+	public void addToBucket(int index, long count)
+	{
+		m_buckets.addAndGet(index, count);
+	}
+
+	/**
+	 * Get the number of values recorded in a bucket
+	 * @param index Bucket index
+	 * @return Count
+	 */
+	public long getBucketCount(int index)
+	{
+		return m_buckets.get(index);
+	}
+
+	/**
+	 * Get the total number of recorded values
+	 * @return Count
+	 */
+	public long getCount()
+	{
+		long count = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++)
+		{
+			count += m_buckets.get(i);
+		}
+		return count;
+	}
+
+	/**
+	 * Get the value at the specified percentile
+	 * @param percentile Percentile (0.0 - 100.0)
+	 * @return Upper bound of the bucket holding the percentile, or 0 if nothing was recorded
+	 */
+	public long getPercentile(double percentile)
+	{
+		long count = getCount();
+		if (count == 0)
+		{
+			return 0;
+		}
+
+		long rank = (long)Math.ceil((percentile / 100.0) * count);
+		if (rank < 1)
+		{
+			rank = 1;
+		}
+
+		long seen = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++)
+		{
+			seen += m_buckets.get(i);
+			if (seen >= rank)
+			{
+				return bucketUpperBound(i);
+			}
+		}
+		return bucketUpperBound(BUCKET_COUNT - 1);
+	}
+
+	/**
+	 * Clear all recorded values
+	 */
+	public void reset()
+	{
+		for (int i = 0; i < BUCKET_COUNT; i++)
+		{
+			m_buckets.set(i, 0);
+		}
+	}
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2017 Cable Television Laboratories, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cablelabs.time.server;
+
+import java.nio.ByteBuffer;
+
+/**
+ * This interface is a protocol answered by the time server listeners.
+ *
+ * The listeners own the sockets, deadlines, access control, journal, heavy-hitter tracking and
+ * flight recorder events; a handler only turns a request into a response.  {@link TcpTimeServer}
+ * answers as soon as a connection is accepted (the request is empty) and then half-closes it,
+ * {@link UdpTimeServer} answers each datagram.  A handler may be shared by several listeners, so
+ * it is called concurrently and must be thread-safe; it should not allocate per request.
+ */
+public interface ProtocolHandler
+{
+	public static final int TRANSPORT_TCP = 1;
+	public static final int TRANSPORT_UDP = 2;
+
+	/**
+	 * Get the name of the protocol, used in status messages
+	 * @return Protocol name
+	 */
+	String getName();
+
+	/**
+	 * Get the well-known port of the protocol
+	 * @return Port number
+	 */
+	int getDefaultPort();
+
+	/**
+	 * Check whether the protocol can be served over a transport
+	 * @param transport {@link #TRANSPORT_TCP} or {@link #TRANSPORT_UDP}
+	 * @return True if supported
+	 */
+	boolean supportsTransport(int transport);
+
+	/**
+	 * Get the protocol recorded in the journal, heavy-hitter reports and events
+	 * @param transport {@link #TRANSPORT_TCP} or {@link #TRANSPORT_UDP}
+	 * @return One of the TimeServer PROTOCOL_ constants
+	 */
+	byte getProtocol(int transport);
+
+	/**
+	 * Get the size of the largest response
+	 * @return Bytes
+	 */
+	int getMaxResponseSize();
+
+	/**
+	 * Answer a request
+	 * @param request Request between its position and limit (empty over TCP)
+	 * @param context Request metadata; the handler sets the time value it answered with
+	 * @param response Cleared buffer of {@link #getMaxResponseSize()} bytes; the handler writes the
+	 * response from position 0 and leaves the position at its end
+	 * @return True to send the response, false to drop the request as invalid
+	 */
+	boolean handle(ByteBuffer request, RequestContext context, ByteBuffer response);
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2017 Cable Television Laboratories, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cablelabs.time.server;
+
+import java.net.InetSocketAddress;
+
+/**
+ * This class is the metadata of a request passed to a {@link ProtocolHandler}.
+ *
+ * Listeners reuse one context per request in progress, so handlers must not keep a reference
+ * to it after {@link ProtocolHandler#handle} returns.
+ */
+public class RequestContext
+{
+	private final int m_transport;
+	private final ServedClock m_clock;
+	private InetSocketAddress m_client = null;
+	private long m_receiveMs = 0;
+	private long m_receiveNanos = 0;
+	private long m_timeValueSec = 0;
+
+	/**
+	 * Create an instance of a RequestContext
+	 * @param transport {@link ProtocolHandler#TRANSPORT_TCP} or {@link ProtocolHandler#TRANSPORT_UDP}
+	 * @param clock Served clock
+	 */
+	public RequestContext(int transport, ServedClock clock)
+	{
+		m_transport = transport;
+		m_clock = clock;
+	}
+
+	/**
+	 * Prepare the context for a new request
+	 * @param client Client address
+	 * @param receiveMs Served time at which the request arrived
+	 */
+	public void reset(InetSocketAddress client, long receiveMs)
+	{
+		reset(client, receiveMs, System.nanoTime());
+	}
+
+	/**
+	 * Prepare the context for a new request that arrived before it was handed to this thread
+	 * @param client Client address
+	 * @param receiveMs Served time at which the request arrived
+	 * @param receiveNanos {@link System#nanoTime()} value at which the request arrived
+	 */
+	public void reset(InetSocketAddress client, long receiveMs, long receiveNanos)
+	{
+		m_client = client;
+		m_receiveMs = receiveMs;
+		m_receiveNanos = receiveNanos;
+		m_timeValueSec = TimeServer.timeServerValueFromMillis(receiveMs);
+	}
+
+	/**
+	 * Get the transport of the request
+	 * @return {@link ProtocolHandler#TRANSPORT_TCP} or {@link ProtocolHandler#TRANSPORT_UDP}
+	 */
+	public int getTransport()
+	{
+		return m_transport;
+	}
+
+	/**
+	 * Get the client address
+	 * @return Client address
+	 */
+	public InetSocketAddress getClient()
+	{
+		return m_client;
+	}
+
+	/**
+	 * Get the served time at which the request arrived
+	 * @return Milliseconds since 1970
+	 */
+	public long getReceiveMillis()
+	{
+		return m_receiveMs;
+	}
+
+	/**
+	 * Get the monotonic time at which the request arrived, for measuring the reply time
+	 * @return {@link System#nanoTime()} value
+	 */
+	public long getReceiveNanos()
+	{
+		return m_receiveNanos;
+	}
+
+	/**
+	 * Get the current served time, for timestamps taken just before the response is sent
+	 * @return Milliseconds since 1970
+	 */
+	public long currentTimeMillis()
+	{
+		return m_clock.currentTimeMillis();
+	}
+
+	/**
+	 * Get the time value answered, as recorded in the journal and request log
+	 * @return Time Server value (seconds since 1900)
+	 */
+	public long getTimeValue()
+	{
+		return m_timeValueSec;
+	}
+
+	/**
+	 * Set the time value answered; defaults to the arrival time
+	 * @param timeValueSec Time Server value (seconds since 1900)
+	 */
+	public void setTimeValue(long timeValueSec)
+	{
+		m_timeValueSec = timeValueSec;
+	}
+}
@@ -0,0 +1,564 @@
+/*
+ * Copyright 2017 Cable Television Laboratories, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cablelabs.time.server;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * This class is a binary, memory-mapped journal of time requests.
+ *
+ * The journal is a sequence of segment files (journal-NNNNNNNNNN.bin) in a directory.  Each segment
+ * starts with a header record and is then divided into regions; every thread writing to the journal
+ * claims a whole region with a single atomic add and fills it with fixed-size records without any
+ * further coordination.  When a segment is exhausted the thread that wins a compare-and-set switches
+ * to the next one.  Once {@link #start(ScheduledExecutorService)} has been called, that segment is
+ * created ahead of time and the old segment is flushed on the scheduler, where the oldest segments
+ * beyond the retention count are also deleted, so a roll does no file I/O on the thread that
+ * answers the request; otherwise that thread does it all.  A segment in
+ * which a thread still holds a region that is not full is only deleted at a later roll, once that
+ * region has been filled or, for a thread that has exited or gone quiet, once the segment has been
+ * rolled away from for longer than the writer grace period.  A thread that finds the segment of its
+ * region deleted claims a new region; a record it writes while the file is being deleted goes to a
+ * mapping that outlives the file, so it is lost but harms nothing.
+ *
+ * Record layout ({@link #RECORD_SIZE} bytes, big-endian):
+ * <pre>
+ *  0  long   request time (ms since 1970)
+ *  8  int    returned Time Server value (for SNTP, the seconds of the transmit timestamp; for Daytime, of the time sent)
+ * 12  short  source port
+ * 14  byte   protocol (one of the {@link TimeServer} PROTOCOL_ constants; 0 marks an unused slot)
+ * 15  byte   address length (4 or 16)
+ * 16  byte[16] source address
+ * </pre>
+ * Regions that were not filled before a roll or shutdown are left zeroed and skipped by readers.
+ */
+public class RequestJournal implements Closeable
+{
+	public static final int RECORD_SIZE = 32;
+	public static final int HEADER_MAGIC = 0x434C544A; // "CLTJ"
+	public static final int FORMAT_VERSION = 1;
+
+	public static final byte PROTOCOL_TCP = TimeServer.PROTOCOL_TCP;
+	public static final byte PROTOCOL_UDP = TimeServer.PROTOCOL_UDP;
+	public static final byte PROTOCOL_SNTP = TimeServer.PROTOCOL_SNTP;
+	public static final byte PROTOCOL_DAYTIME_TCP = TimeServer.PROTOCOL_DAYTIME_TCP;
+	public static final byte PROTOCOL_DAYTIME_UDP = TimeServer.PROTOCOL_DAYTIME_UDP;
+
+	public static final String SEGMENT_PREFIX = "journal-";
+	public static final String SEGMENT_SUFFIX = ".bin";
+
+	private static final int DEFAULT_REGION_RECORDS = 2048;
+	private static final int DEFAULT_REGIONS_PER_SEGMENT = 1024;
+	private static final long DEFAULT_WRITER_GRACE_MS = 60000;
+
+	private final File m_directory;
+	private final int m_regionSize;
+	private final int m_regionsPerSegment;
+	private final int m_maxSegments;
+
+	private final AtomicLong m_nextSequence = new AtomicLong(0);
+	private final AtomicReference<_Segment> m_current = new AtomicReference<_Segment>();
+	// the next segment, created ahead of the roll that needs it
+	private final AtomicReference<_Segment> m_spare = new AtomicReference<_Segment>();
+	private final AtomicLong m_failures = new AtomicLong(0);
+	private final ThreadLocal<_Region> m_region = new ThreadLocal<_Region>();
+	// segments mapped by this journal and not deleted yet, by sequence number
+	private final ConcurrentHashMap<Long, _Segment> m_segments = new ConcurrentHashMap<Long, _Segment>();
+
+	private volatile boolean m_closed = false;
+	private volatile boolean m_rollFailed = false;
+	private volatile long m_writerGraceMs = DEFAULT_WRITER_GRACE_MS;
+	private volatile ScheduledExecutorService m_scheduler = null;
+
+	/**
+	 * Create an instance of a RequestJournal with 64 KiB regions and 64 MiB segments
+	 * @param directory Directory holding the segment files (created if necessary)
+	 * @param maxSegments Number of segment files to keep (0 keeps every segment)
+	 * @throws IOException If the first segment cannot be created
+	 */
+	public RequestJournal(File directory, int maxSegments) throws IOException
+	{
+		this(directory, maxSegments, DEFAULT_REGION_RECORDS, DEFAULT_REGIONS_PER_SEGMENT);
+	}
+
+	/**
+	 * Create an instance of a RequestJournal
+	 * @param directory Directory holding the segment files (created if necessary)
+	 * @param maxSegments Number of segment files to keep (0 keeps every segment)
+	 * @param regionRecords Number of records in each per-thread region
+	 * @param regionsPerSegment Number of regions in each segment file
+	 * @throws IOException If the first segment cannot be created
+	 */
+	public RequestJournal(File directory, int maxSegments, int regionRecords, int regionsPerSegment) throws IOException
+	{
+		if (regionRecords < 1 || regionsPerSegment < 1 ||
+				((long)regionRecords * RECORD_SIZE * regionsPerSegment) > Integer.MAX_VALUE - RECORD_SIZE)
+		{
+			throw new IllegalArgumentException("Invalid journal segment geometry");
+		}
+
+		m_directory = directory;
+		m_regionSize = regionRecords * RECORD_SIZE;
+		m_regionsPerSegment = regionsPerSegment;
+		m_maxSegments = maxSegments;
+
+		if (!m_directory.isDirectory() && !m_directory.mkdirs())
+		{
+			throw new IOException("Unable to create journal directory " + m_directory);
+		}
+
+		// continue numbering after any existing segments
+		long[] existing = listSegmentSequences(m_directory);
+		m_nextSequence.set(existing.length > 0 ? existing[existing.length - 1] + 1 : 0);
+
+		m_current.set(openSegment());
+	}
+
+	/**
+	 * Create the next segment ahead of time and do the work of later rolls on a scheduler
+	 * @param scheduler Scheduler
+	 */
+	public void start(ScheduledExecutorService scheduler)
+	{
+		m_scheduler = scheduler;
+		scheduleMaintenance(null);
+	}
+
+	/**
+	 * Get the journal directory
+	 * @return Directory
+	 */
+	public File getDirectory()
+	{
+		return m_directory;
+	}
+
+	/**
+	 * Get the number of records that could not be written
+	 * @return Failure count
+	 */
+	public long getFailures()
+	{
+		return m_failures.get();
+	}
+
+	/**
+	 * Get the time a segment is kept for threads that have not filled their region of it, once it is rolled away from
+	 * @return Grace period (ms)
+	 */
+	public long getWriterGraceMillis()
+	{
+		return m_writerGraceMs;
+	}
+
+	/**
+	 * Set the time a segment is kept for threads that have not filled their region of it, once it is rolled away from
+	 * @param graceMs Grace period (ms)
+	 */
+	public void setWriterGraceMillis(long graceMs)
+	{
+		m_writerGraceMs = graceMs;
+	}
+
+	/**
+	 * Append a record for a request
+	 * @param timeMillis Request time (ms since 1970)
+	 * @param protocol One of the {@link TimeServer} PROTOCOL_ constants
+	 * @param address Source address
+	 * @param port Source port
+	 * @param value Returned Time Server value
+	 */
+	public void append(long timeMillis, byte protocol, InetAddress address, int port, long value)
+	{
+		if (m_closed)
+		{
+			return;
+		}
+
+		_Region region = m_region.get();
+		if (region != null && region.m_segment.m_deleted)
+		{
+			// the segment outlived the grace period, so the rest of the region is given up
+			m_region.remove();
+			region = null;
+		}
+		if (region == null)
+		{
+			region = claimRegion();
+			if (region == null)
+			{
+				m_failures.incrementAndGet();
+				return;
+			}
+			m_region.set(region);
+		}
+
+		ByteBuffer buf = region.m_buffer;
+		int pos = region.m_position;
+		buf.putLong(pos, timeMillis);
+		buf.putInt(pos + 8, (int)value);
+		buf.putShort(pos + 12, (short)port);
+		buf.put(pos + 15, (byte)(address instanceof Inet4Address ? 4 : 16));
+		if (address instanceof Inet4Address)
+		{
+			// Inet4Address.hashCode() is the address itself, which avoids the copy made by getAddress()
+			buf.putInt(pos + 16, address.hashCode());
+		}
+		else
+		{
+			byte[] bytes = address.getAddress();
+			for (int i = 0; i < bytes.length && i < 16; i++)
+			{
+				buf.put(pos + 16 + i, bytes[i]);
+			}
+		}
+		// the protocol byte is written last; a non-zero protocol marks the slot as complete
+		buf.put(pos + 14, protocol);
+		region.m_position = pos + RECORD_SIZE;
+		if (region.m_position >= m_regionSize)
+		{
+			// the thread is done with the segment of its full region
+			region.m_segment.m_writers.decrementAndGet();
+			m_region.remove();
+		}
+	}
+
+	/**
+	 * Claim a new region for the calling thread, rolling to a new segment if necessary
+	 * @return Region, or null if the journal is closed or a segment could not be created
+	 */
+	private _Region claimRegion()
+	{
+		while (!m_closed)
+		{
+			_Segment segment = m_current.get();
+			// counted before the region is claimed, so a segment rolled away from is never seen idle
+			// while a region of it is being handed out
+			segment.m_writers.incrementAndGet();
+			long index = segment.m_nextRegion.getAndIncrement();
+			if (index < m_regionsPerSegment)
+			{
+				int offset = RECORD_SIZE + (int)index * m_regionSize;
+				ByteBuffer dup = segment.m_buffer.duplicate();
+				dup.position(offset);
+				dup.limit(offset + m_regionSize);
+				return new _Region(segment, dup.slice());
+			}
+			segment.m_writers.decrementAndGet();
+
+			if (segment.m_rolling.compareAndSet(false, true))
+			{
+				try
+				{
+					// only when the scheduler has not caught up is the segment created here
+					_Segment next = m_spare.getAndSet(null);
+					m_current.set(next != null ? next : openSegment());
+					m_rollFailed = false;
+					segment.m_retiredNanos = System.nanoTime();
+					if (m_scheduler == null)
+					{
+						segment.m_buffer.force();
+						pruneSegments();
+					}
+					else
+					{
+						scheduleMaintenance(segment);
+					}
+				}
+				catch (IOException e)
+				{
+					// reported once; the records lost until a roll succeeds are counted as failures
+					if (!m_rollFailed)
+					{
+						m_rollFailed = true;
+						System.out.println("Unable to roll the request journal to a new segment: " + e.getLocalizedMessage());
+					}
+					segment.m_rolling.set(false);
+					return null;
+				}
+			}
+			else
+			{
+				while (m_current.get() == segment && segment.m_rolling.get() && !m_closed)
+				{
+					Thread.yield();
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Flush a segment rolled away from, delete old segments and create the next spare segment on the scheduler
+	 * @param retired Segment rolled away from, or null
+	 */
+	private void scheduleMaintenance(final _Segment retired)
+	{
+		try
+		{
+			m_scheduler.execute(new Runnable() {
+				public void run()
+				{
+					if (retired != null)
+					{
+						retired.m_buffer.force();
+						pruneSegments();
+					}
+					prepareSpare();
+				}
+			});
+		}
+		catch (RejectedExecutionException e)
+		{
+			// the scheduler is shutting down; the next roll creates its segment itself
+		}
+	}
+
+	/**
+	 * Create the next segment unless one is ready or the journal is closed
+	 */
+	private synchronized void prepareSpare()
+	{
+		if (m_closed || m_spare.get() != null)
+		{
+			return;
+		}
+		try
+		{
+			m_spare.set(openSegment());
+		}
+		catch (IOException e)
+		{
+			// the roll tries again, and reports it if it fails too
+		}
+	}
+
+	/**
+	 * Delete the spare segment, which holds no records
+	 */
+	private synchronized void discardSpare()
+	{
+		_Segment spare = m_spare.getAndSet(null);
+		if (spare != null)
+		{
+			m_segments.remove(spare.m_sequence);
+			new File(m_directory, segmentFileName(spare.m_sequence)).delete();
+		}
+	}
+
+	/**
+	 * Create and map the next segment file
+	 * @return Segment
+	 * @throws IOException If the file cannot be created or mapped
+	 */
+	private _Segment openSegment() throws IOException
+	{
+		long sequence = m_nextSequence.getAndIncrement();
+		File file = new File(m_directory, segmentFileName(sequence));
+		int size = RECORD_SIZE + m_regionSize * m_regionsPerSegment;
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try
+		{
+			raf.setLength(size);
+			MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+			buffer.putInt(0, HEADER_MAGIC);
+			buffer.putInt(4, FORMAT_VERSION);
+			buffer.putInt(8, RECORD_SIZE);
+			buffer.putInt(12, m_regionSize);
+			buffer.putLong(16, System.currentTimeMillis());
+			_Segment segment = new _Segment(sequence, buffer);
+			m_segments.put(sequence, segment);
+			return segment;
+		}
+		finally
+		{
+			// the mapping remains valid after the file is closed
+			raf.close();
+		}
+	}
+
+	/**
+	 * Delete the oldest segment files beyond the retention count, but none that a thread still
+	 * writes to within the writer grace period; those are retried at the next roll
+	 */
+	private synchronized void pruneSegments()
+	{
+		if (m_maxSegments <= 0)
+		{
+			return;
+		}
+		// the spare segment is not counted
+		long[] sequences = listSegmentSequences(m_directory);
+		int count = sequences.length;
+		_Segment spare = m_spare.get();
+		while (spare != null && count > 0 && sequences[count - 1] >= spare.m_sequence)
+		{
+			count--;
+		}
+		for (int i = 0; i < count - m_maxSegments; i++)
+		{
+			_Segment segment = m_segments.get(sequences[i]);
+			if (segment != null)
+			{
+				if (segment.m_writers.get() > 0 &&
+						System.nanoTime() - segment.m_retiredNanos < TimeUnit.MILLISECONDS.toNanos(m_writerGraceMs))
+				{
+					continue;
+				}
+				segment.m_deleted = true;
+				m_segments.remove(sequences[i]);
+			}
+			new File(m_directory, segmentFileName(sequences[i])).delete();
+		}
+	}
+
+	/**
+	 * Get the file name of a segment
+	 * @param sequence Segment sequence number
+	 * @return File name
+	 */
+	public static String segmentFileName(long sequence)
+	{
+		return String.format("%s%010d%s", SEGMENT_PREFIX, sequence, SEGMENT_SUFFIX);
+	}
+
+	/**
+	 * List the sequence numbers of the segment files in a directory
+	 * @param directory Journal directory
+	 * @return Sorted sequence numbers
+	 */
+	public static long[] listSegmentSequences(File directory)
+	{
+		String[] names = directory.list();
+		if (names == null)
+		{
+			return new long[0];
+		}
+
+		long[] sequences = new long[names.length];
+		int count = 0;
+		for (String name : names)
+		{
+			if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX))
+			{
+				try
+				{
+					sequences[count] = Long.parseLong(
+							name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+					count++;
+				}
+				catch (NumberFormatException e)
+				{
+					// not a segment
+				}
+			}
+		}
+		sequences = Arrays.copyOf(sequences, count);
+		Arrays.sort(sequences);
+		return sequences;
+	}
+
+	/**
+	 * Flush the current segment to disk
+	 */
+	public void flush()
+	{
+		_Segment segment = m_current.get();
+		if (segment != null)
+		{
+			segment.m_buffer.force();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see java.io.Closeable#close()
+	 */
+	@Override
+	public void close()
+	{
+		m_closed = true;
+		discardSpare();
+		flush();
+	}
+
+	/**
+	 * This class is a mapped segment file
+	 */
+	private static class _Segment
+	{
+		private final long m_sequence;
+		private final MappedByteBuffer m_buffer;
+		private final AtomicLong m_nextRegion = new AtomicLong(0);
+		private final AtomicBoolean m_rolling = new AtomicBoolean(false);
+		// regions claimed in this segment by threads that have not moved on to another segment
+		private final AtomicInteger m_writers = new AtomicInteger(0);
+		// when the segment stopped being the current one
+		private volatile long m_retiredNanos = 0;
+		private volatile boolean m_deleted = false;
+
+		/**
+		 * Create an instance of a _Segment
+		 * @param sequence Segment sequence number
+		 * @param buffer Mapped segment file
+		 */
+		public _Segment(long sequence, MappedByteBuffer buffer)
+		{
+			m_sequence = sequence;
+			m_buffer = buffer;
+		}
+	}
+
+	/**
+	 * This class is a region of a segment owned by a single thread
+	 */
+	private static class _Region
+	{
+		private final _Segment m_segment;
+		private final ByteBuffer m_buffer;
+		private int m_position = 0;
+
+		/**
+		 * Create an instance of a _Region
+		 * @param segment Segment holding the region
+		 * @param buffer Slice of the segment covering the region
+		 */
+		public _Region(_Segment segment, ByteBuffer buffer)
+		{
+			m_segment = segment;
+			m_buffer = buffer;
+		}
+	}
+}
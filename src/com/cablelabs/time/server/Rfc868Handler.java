@@ -0,0 +1,94 @@
+/*
+ * Copyright 2017 Cable Television Laboratories, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cablelabs.time.server;
+
+import java.nio.ByteBuffer;
+
+/**
+ * This class is the Time Protocol (RFC868): a 32-bit count of seconds since 1900, whatever the
+ * request.  It is the default handler of the time servers.
+ */
+public class Rfc868Handler implements ProtocolHandler
+{
+	/**
+	 * Create an instance of a Rfc868Handler
+	 */
+	public Rfc868Handler()
+	{
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.cablelabs.time.server.ProtocolHandler#getName()
+	 */
+	@Override
+	public String getName()
+	{
+		return "time";
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.cablelabs.time.server.ProtocolHandler#getDefaultPort()
+	 */
+	@Override
+	public int getDefaultPort()
+	{
+		return TimeServer.TIME_SERVER_PORT;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.cablelabs.time.server.ProtocolHandler#supportsTransport(int)
+	 */
+	@Override
+	public boolean supportsTransport(int transport)
+	{
+		return true;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.cablelabs.time.server.ProtocolHandler#getProtocol(int)
+	 */
+	@Override
+	public byte getProtocol(int transport)
+	{
+		return (transport == TRANSPORT_TCP ? TimeServer.PROTOCOL_TCP : TimeServer.PROTOCOL_UDP);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.cablelabs.time.server.ProtocolHandler#getMaxResponseSize()
+	 */
+	@Override
+	public int getMaxResponseSize()
+	{
+		return 4;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.cablelabs.time.server.ProtocolHandler#handle(java.nio.ByteBuffer, com.cablelabs.time.server.RequestContext, java.nio.ByteBuffer)
+	 */
+	@Override
+	public boolean handle(ByteBuffer request, RequestContext context, ByteBuffer response)
+	{
+		response.putInt((int)context.getTimeValue());
+		return true;
+	}
+}
@@ -0,0 +1,300 @@
+/*
+ * Copyright 2017 Cable Television Laboratories, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cablelabs.time.server;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * This class is an immutable snapshot of the server settings that can be given in a configuration
+ * file.
+ *
+ * Settings are named after the long command line options.  A snapshot starts from the settings
+ * the server was started with, and a configuration file overrides some of them; a setting removed
+ * from the file goes back to its start value.  Every value is checked when the snapshot is built,
+ * and a file with any invalid value is rejected as a whole, so a server never runs on half of a
+ * configuration.  Live settings take effect as soon as a new snapshot is swapped in; the others
+ * configure the listeners, and only take effect once the listeners are bound again.
+ */
+public class RuntimeConfig
+{
+	// settings applied to running listeners
+	public static final String LOG_INTERVAL = "log_interval";
+	public static final String JFR_SAMPLE = "jfr_sample";
+	public static final String ALLOW = "allow";
+	public static final String DENY = "deny";
+	public static final String WORKERS = "workers";
+	public static final String WORKER_REJECT = "worker_reject";
+
+	// settings of the listeners themselves
+	public static final String INTERFACE = "interface";
+	public static final String PORT = "port";
+	public static final String NO_TCP = "no_tcp";
+	public static final String NO_UDP = "no_udp";
+	public static final String SNTP = "sntp";
+	public static final String SNTP_PORT = "sntp_port";
+	public static final String DAYTIME = "daytime";
+	public static final String DAYTIME_PORT = "daytime_port";
+	public static final String SUBSCRIBE = "subscribe";
+	public static final String IDLE = "idle";
+	public static final String UDP_PIPELINE = "udp_pipeline";
+	public static final String WORKER_POOL = "worker_pool";
+	public static final String WORKER_QUEUE = "worker_queue";
+
+	private static final String[] LIVE_SETTINGS = { LOG_INTERVAL, JFR_SAMPLE, ALLOW, DENY, WORKERS, WORKER_REJECT };
+	private static final String[] LISTENER_SETTINGS = { INTERFACE, PORT, NO_TCP, NO_UDP, SNTP, SNTP_PORT, DAYTIME,
+			DAYTIME_PORT, SUBSCRIBE, IDLE, UDP_PIPELINE, WORKER_POOL, WORKER_QUEUE };
+
+	private final Map<String, String> m_values;
+
+	/**
+	 * Create an instance of a RuntimeConfig
+	 * @param values Checked values, by setting name
+	 */
+	private RuntimeConfig(Map<String, String> values)
+	{
+		m_values = Collections.unmodifiableMap(values);
+	}
+
+	/**
+	 * Build a snapshot from a set of values
+	 * @param values Values by setting name; an empty value means the setting is not set
+	 * @param errors List the invalid settings are added to
+	 * @return Snapshot, or null if any value is invalid
+	 */
+	public static RuntimeConfig parse(Map<String, String> values, List<String> errors)
+	{
+		int errorCount = errors.size();
+		Map<String, String> checked = new TreeMap<String, String>();
+		for (Map.Entry<String, String> entry : values.entrySet())
+		{
+			String name = entry.getKey().trim();
+			String value = (entry.getValue() != null ? entry.getValue().trim() : "");
+			if (!isLive(name) && !isListenerSetting(name))
+			{
+				errors.add("unknown setting " + name);
+			}
+			else if (!value.isEmpty())
+			{
+				String error = check(name, value);
+				if (error != null)
+				{
+					errors.add(name + " = " + value + ": " + error);
+				}
+				checked.put(name, value);
+			}
+		}
+		return (errors.size() == errorCount ? new RuntimeConfig(checked) : null);
+	}
+
+	/**
+	 * Build a snapshot from a configuration file, on top of another snapshot
+	 * @param file Properties file
+	 * @param base Snapshot holding the settings the file does not set
+	 * @param errors List the invalid settings are added to
+	 * @return Snapshot, or null if any value is invalid
+	 * @throws IOException if the file cannot be read
+	 */
+	public static RuntimeConfig load(File file, RuntimeConfig base, List<String> errors) throws IOException
+	{
+		Properties properties = new Properties();
+		InputStreamReader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8);
+		try
+		{
+			properties.load(reader);
+		}
+		finally
+		{
+			reader.close();
+		}
+
+		Map<String, String> values = new TreeMap<String, String>(base.m_values);
+		for (String name : properties.stringPropertyNames())
+		{
+			values.put(name, properties.getProperty(name));
+		}
+		return parse(values, errors);
+	}
+
+	/**
+	 * Test whether a setting takes effect on running listeners
+	 * @param name Setting name
+	 * @return True for a live setting
+	 */
+	public static boolean isLive(String name)
+	{
+		for (String live : LIVE_SETTINGS)
+		{
+			if (live.equals(name))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Test whether a setting configures the listeners themselves, so they must be bound again for
+	 * it to take effect
+	 * @param name Setting name
+	 * @return True for a listener setting
+	 */
+	public static boolean isListenerSetting(String name)
+	{
+		for (String listener : LISTENER_SETTINGS)
+		{
+			if (listener.equals(name))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Get the value of a setting
+	 * @param name Setting name
+	 * @return Value, or null if it is not set
+	 */
+	public String get(String name)
+	{
+		return m_values.get(name);
+	}
+
+	/**
+	 * Get the value of a numeric setting
+	 * @param name Setting name
+	 * @param defaultValue Value if it is not set
+	 * @return Value
+	 */
+	public int getInt(String name, int defaultValue)
+	{
+		String value = m_values.get(name);
+		return (value != null ? Integer.parseInt(value) : defaultValue);
+	}
+
+	/**
+	 * Get the value of a flag
+	 * @param name Setting name
+	 * @return True if the flag is set to true
+	 */
+	public boolean getFlag(String name)
+	{
+		return Boolean.parseBoolean(m_values.get(name));
+	}
+
+	/**
+	 * Get the settings whose value differs from another snapshot
+	 * @param other Other snapshot
+	 * @return Setting names, in order
+	 */
+	public List<String> getChanges(RuntimeConfig other)
+	{
+		TreeMap<String, String> names = new TreeMap<String, String>(m_values);
+		names.putAll(other.m_values);
+		List<String> changes = new ArrayList<String>();
+		for (String name : names.keySet())
+		{
+			String value = m_values.get(name);
+			String otherValue = other.m_values.get(name);
+			if (value == null ? otherValue != null : !value.equals(otherValue))
+			{
+				changes.add(name);
+			}
+		}
+		return changes;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString()
+	{
+		return m_values.toString();
+	}
+
+	/**
+	 * Check the value of a setting
+	 * @param name Setting name
+	 * @param value Value, not empty
+	 * @return Error, or null if the value is valid
+	 */
+	private static String check(String name, String value)
+	{
+		try
+		{
+			if (name.equals(LOG_INTERVAL) || name.equals(JFR_SAMPLE) || name.equals(UDP_PIPELINE) ||
+					name.equals(WORKER_QUEUE) || name.equals(WORKERS))
+			{
+				return (Integer.parseInt(value) < 0 ? "must not be negative" : null);
+			}
+			if (name.equals(PORT) || name.equals(SNTP_PORT) || name.equals(DAYTIME_PORT) || name.equals(SUBSCRIBE))
+			{
+				int port = Integer.parseInt(value);
+				return (port < 0 || port > 65535 ? "not a port" : null);
+			}
+			if (name.equals(NO_TCP) || name.equals(NO_UDP) || name.equals(SNTP) || name.equals(DAYTIME))
+			{
+				return (value.equals("true") || value.equals("false") ? null : "must be true or false");
+			}
+			if (name.equals(ALLOW) || name.equals(DENY))
+			{
+				return (new File(value).canRead() ? null : "cannot be read");
+			}
+			if (name.equals(WORKER_REJECT))
+			{
+				return (value.equals("drop") || value.equals("caller") ? null : "must be drop or caller");
+			}
+			if (name.equals(WORKER_POOL))
+			{
+				return (value.equals("thread") || value.equals("forkjoin") ? null : "must be thread or forkjoin");
+			}
+			if (name.equals(IDLE))
+			{
+				for (String setting : value.split(","))
+				{
+					int equals = setting.indexOf('=');
+					String listener = setting.substring(0, Math.max(equals, 0));
+					if (equals >= 0 && !listener.equals(CableLabsTimeServer.LISTENER_TCP) &&
+							!listener.equals(CableLabsTimeServer.LISTENER_UDP) && !listener.equals(CableLabsTimeServer.LISTENER_SNTP) &&
+							!listener.equals(CableLabsTimeServer.LISTENER_DAYTIME_TCP) &&
+							!listener.equals(CableLabsTimeServer.LISTENER_DAYTIME_UDP))
+					{
+						return "unknown listener " + listener;
+					}
+					IdleStrategy.Type.fromName(setting.substring(equals + 1));
+				}
+			}
+			return null;
+		}
+		catch (IllegalArgumentException e)
+		{
+			return e.getLocalizedMessage();
+		}
+	}
+}
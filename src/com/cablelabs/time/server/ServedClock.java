@@ -0,0 +1,82 @@
+/*
+ * Copyright 2017 Cable Television Laboratories, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cablelabs.time.server;
+
+/**
+ * This class is the clock served to time clients: the host clock plus a correction.
+ *
+ * The correction and health flag are plain volatile fields written by the
+ * {@link UpstreamSynchronizer} (if any), so reading the served time costs one volatile read
+ * and an add on top of {@link System#currentTimeMillis()}.
+ */
+public class ServedClock
+{
+	private volatile long m_offsetMs = 0;
+	private volatile boolean m_synchronized = true;
+
+	/**
+	 * Create an instance of a ServedClock that serves the host clock and is healthy
+	 */
+	public ServedClock()
+	{
+	}
+
+	/**
+	 * Get the current served time
+	 * @return Milliseconds since 1970
+	 */
+	public long currentTimeMillis()
+	{
+		return System.currentTimeMillis() + m_offsetMs;
+	}
+
+	/**
+	 * Get the correction applied to the host clock
+	 * @return Offset in milliseconds
+	 */
+	public long getOffsetMillis()
+	{
+		return m_offsetMs;
+	}
+
+	/**
+	 * Set the correction applied to the host clock
+	 * @param offsetMs Offset in milliseconds
+	 */
+	public void setOffsetMillis(long offsetMs)
+	{
+		m_offsetMs = offsetMs;
+	}
+
+	/**
+	 * Get the flag indicating if the served time may be answered
+	 * @return True if the clock is synchronized (or not disciplined at all)
+	 */
+	public boolean isSynchronized()
+	{
+		return m_synchronized;
+	}
+
+	/**
+	 * Set the flag indicating if the served time may be answered
+	 * @param synced True if the clock is synchronized
+	 */
+	public void setSynchronized(boolean synced)
+	{
+		m_synchronized = synced;
+	}
+}
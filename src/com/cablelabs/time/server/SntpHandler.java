@@ -0,0 +1,197 @@
+/*
+ * Copyright 2017 Cable Television Laboratories, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cablelabs.time.server;
+
+import java.nio.ByteBuffer;
+
+/**
+ * This class is SNTPv4 (RFC 4330) over UDP.
+ *
+ * Only client-mode (3) requests of NTP versions 1 to 4 are answered; anything else is dropped.
+ * The reply echoes the client's version and poll interval, and its transmit timestamp as the
+ * originate timestamp.
+ */
+public class SntpHandler implements ProtocolHandler
+{
+	// the served clock has millisecond resolution: 2^-10 s
+	private static final byte PRECISION = -10;
+	// root dispersion of one clock tick, in NTP short format (16.16 seconds)
+	private static final int ROOT_DISPERSION = 0x42;
+
+	private volatile int m_stratum = 1;
+	private volatile int m_referenceId = SntpTimeServer.referenceIdFromString("LOCL");
+	private volatile UpstreamSynchronizer m_synchronizer = null;
+
+	/**
+	 * Create an instance of a SntpHandler
+	 */
+	public SntpHandler()
+	{
+	}
+
+	/**
+	 * Get the stratum announced in replies
+	 * @return Stratum
+	 */
+	public int getStratum()
+	{
+		return m_stratum;
+	}
+
+	/**
+	 * Set the stratum announced in replies
+	 * @param stratum Stratum (1 for a primary server, up to 15)
+	 */
+	public void setStratum(int stratum)
+	{
+		if (stratum < 1 || stratum > 15)
+		{
+			throw new IllegalArgumentException("Invalid stratum: " + stratum);
+		}
+		m_stratum = stratum;
+	}
+
+	/**
+	 * Get the reference identifier announced in replies
+	 * @return Reference identifier
+	 */
+	public int getReferenceId()
+	{
+		return m_referenceId;
+	}
+
+	/**
+	 * Set the reference identifier announced in replies
+	 * @param referenceId Reference identifier (see {@link SntpTimeServer#referenceIdFromString})
+	 */
+	public void setReferenceId(int referenceId)
+	{
+		m_referenceId = referenceId;
+	}
+
+	/**
+	 * Get the synchronizer whose selected upstream is announced as the reference
+	 * @return Synchronizer, or null if the reference identifier is announced
+	 */
+	public UpstreamSynchronizer getSynchronizer()
+	{
+		return m_synchronizer;
+	}
+
+	/**
+	 * Set the synchronizer whose selected upstream is announced as the reference, instead of the reference identifier
+	 * @param synchronizer Synchronizer disciplining the served clock, or null
+	 */
+	public void setSynchronizer(UpstreamSynchronizer synchronizer)
+	{
+		m_synchronizer = synchronizer;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.cablelabs.time.server.ProtocolHandler#getName()
+	 */
+	@Override
+	public String getName()
+	{
+		return "SNTP";
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.cablelabs.time.server.ProtocolHandler#getDefaultPort()
+	 */
+	@Override
+	public int getDefaultPort()
+	{
+		return SntpTimeServer.SNTP_PORT;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.cablelabs.time.server.ProtocolHandler#supportsTransport(int)
+	 */
+	@Override
+	public boolean supportsTransport(int transport)
+	{
+		return (transport == TRANSPORT_UDP);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.cablelabs.time.server.ProtocolHandler#getProtocol(int)
+	 */
+	@Override
+	public byte getProtocol(int transport)
+	{
+		return TimeServer.PROTOCOL_SNTP;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.cablelabs.time.server.ProtocolHandler#getMaxResponseSize()
+	 */
+	@Override
+	public int getMaxResponseSize()
+	{
+		return SntpTimeServer.PACKET_SIZE;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.cablelabs.time.server.ProtocolHandler#handle(java.nio.ByteBuffer, com.cablelabs.time.server.RequestContext, java.nio.ByteBuffer)
+	 */
+	@Override
+	public boolean handle(ByteBuffer request, RequestContext context, ByteBuffer response)
+	{
+		int base = request.position();
+		if (request.remaining() < SntpTimeServer.PACKET_SIZE)
+		{
+			return false;
+		}
+		int flags = request.get(base);
+		int version = (flags >> 3) & 0x07;
+		int mode = flags & 0x07;
+		if (mode != SntpTimeServer.MODE_CLIENT || version < 1 || version > SntpTimeServer.MAX_VERSION)
+		{
+			return false;
+		}
+
+		long receiveTimestamp = SntpTimeServer.ntpTimestampFromMillis(context.getReceiveMillis());
+
+		// leap indicator 0 (the servers drop requests while unsynchronized), the client's version
+		response.put(0, (byte)((version << 3) | SntpTimeServer.MODE_SERVER));
+		response.put(1, (byte)m_stratum);
+		response.put(2, request.get(base + 2));
+		response.put(3, PRECISION);
+		response.putInt(4, 0);
+		response.putInt(8, ROOT_DISPERSION);
+		UpstreamSynchronizer synchronizer = m_synchronizer;
+		response.putInt(12, (synchronizer != null ? synchronizer.getReferenceId() : m_referenceId));
+		response.putLong(16, receiveTimestamp);
+		// the originate timestamp is the client's transmit timestamp
+		response.putLong(24, request.getLong(base + 40));
+		response.putLong(32, receiveTimestamp);
+
+		long transmitTimestamp = SntpTimeServer.ntpTimestampFromMillis(context.currentTimeMillis());
+		response.putLong(40, transmitTimestamp);
+		response.position(SntpTimeServer.PACKET_SIZE);
+
+		context.setTimeValue(transmitTimestamp >>> 32);
+		return true;
+	}
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright 2017 Cable Television Laboratories, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cablelabs.time.server;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * This class is an SNTPv4 (RFC 4330) server: a {@link UdpTimeServer} answering with a
+ * {@link SntpHandler}.
+ *
+ * It serves the same {@link ServedClock} as the RFC868 servers, so both protocols can be answered
+ * by one process, and like them it allocates nothing per request (with request logging, the
+ * journal and heavy-hitter tracking disabled).
+ */
+public class SntpTimeServer extends UdpTimeServer
+{
+	public static final int SNTP_PORT = 123;
+	public static final int PACKET_SIZE = 48;
+
+	public static final int MODE_CLIENT = 3;
+	public static final int MODE_SERVER = 4;
+	public static final int MAX_VERSION = 4;
+
+	private final SntpHandler m_sntpHandler = new SntpHandler();
+
+	/**
+	 * Create an instance of a SntpTimeServer
+	 */
+	public SntpTimeServer()
+	{
+		m_handler = m_sntpHandler;
+		m_port = SNTP_PORT;
+	}
+
+	/**
+	 * Convert the specified time in milliseconds since the Java epoch to an NTP timestamp
+	 * @param timeMillis Milliseconds since 00:00 1 January 1970 GMT
+	 * @return NTP timestamp (32 bits of seconds since 1900, modulo 2^32, and 32 bits of fraction)
+	 */
+	public static long ntpTimestampFromMillis(long timeMillis)
+	{
+		long seconds = timeServerValueFromMillis(timeMillis);
+		long fraction = (Math.floorMod(timeMillis, 1000L) << 32) / 1000L;
+		return (seconds << 32) | fraction;
+	}
+
+	/**
+	 * Convert an NTP timestamp to milliseconds since the Java epoch
+	 * @param timestamp NTP timestamp
+	 * @return Milliseconds since 00:00 1 January 1970 GMT; timestamps with the top bit of the
+	 * seconds clear are taken to be in era 1 (after February 2036), as RFC 4330 recommends
+	 */
+	public static long ntpTimestampToMillis(long timestamp)
+	{
+		long seconds = timestamp >>> 32;
+		if ((seconds & 0x80000000L) == 0)
+		{
+			seconds += (1L << 32);
+		}
+		long fractionMs = ((timestamp & 0xFFFFFFFFL) * 1000L + (1L << 31)) >>> 32;
+		return timeServerValueToMillis(seconds) + fractionMs;
+	}
+
+	/**
+	 * Convert a reference identifier of up to four ASCII characters to its wire form
+	 * @param id Identifier, such as "LOCL" or "GPS"
+	 * @return Reference identifier
+	 */
+	public static int referenceIdFromString(String id)
+	{
+		byte[] bytes = id.getBytes(StandardCharsets.US_ASCII);
+		if (bytes.length > 4)
+		{
+			throw new IllegalArgumentException("Invalid reference identifier: " + id);
+		}
+		int value = 0;
+		for (int i = 0; i < 4; i++)
+		{
+			value = (value << 8) | (i < bytes.length ? bytes[i] & 0xFF : 0);
+		}
+		return value;
+	}
+
+	/**
+	 * Convert the address of an upstream server to the reference identifier of a secondary server
+	 * @param address Upstream address
+	 * @return The IPv4 address, or the first 32 bits of the MD5 hash of the IPv6 address (RFC 4330)
+	 */
+	public static int referenceIdFromAddress(InetAddress address)
+	{
+		if (address instanceof Inet4Address)
+		{
+			return ByteBuffer.wrap(address.getAddress()).getInt();
+		}
+		try
+		{
+			return ByteBuffer.wrap(MessageDigest.getInstance("MD5").digest(address.getAddress())).getInt();
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			// every Java platform has MD5
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Get the stratum announced in replies
+	 * @return Stratum
+	 */
+	public int getStratum()
+	{
+		return m_sntpHandler.getStratum();
+	}
+
+	/**
+	 * Set the stratum announced in replies
+	 * @param stratum Stratum (1 for a primary server, up to 15)
+	 */
+	public void setStratum(int stratum)
+	{
+		m_sntpHandler.setStratum(stratum);
+	}
+
+	/**
+	 * Get the reference identifier announced in replies
+	 * @return Reference identifier
+	 */
+	public int getReferenceId()
+	{
+		return m_sntpHandler.getReferenceId();
+	}
+
+	/**
+	 * Set the reference identifier announced in replies
+	 * @param referenceId Reference identifier (see {@link #referenceIdFromString})
+	 */
+	public void setReferenceId(int referenceId)
+	{
+		m_sntpHandler.setReferenceId(referenceId);
+	}
+
+	/**
+	 * Announce the upstream selected by a synchronizer as the reference, instead of the reference identifier
+	 * @param synchronizer Synchronizer disciplining the served clock, or null
+	 */
+	public void setSynchronizer(UpstreamSynchronizer synchronizer)
+	{
+		m_sntpHandler.setSynchronizer(synchronizer);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.cablelabs.time.server.TimeServer#setHandler(com.cablelabs.time.server.ProtocolHandler)
+	 */
+	@Override
+	public void setHandler(ProtocolHandler handler)
+	{
+		if (handler != m_sntpHandler)
+		{
+			throw new IllegalArgumentException("An SNTP server only answers SNTP");
+		}
+	}
+
+	/**
+	 * This class builds a SntpTimeServer
+	 */
+	public static class Builder extends TimeServer.Builder<SntpTimeServer>
+	{
+		private int m_stratum = 1;
+		private int m_referenceId = referenceIdFromString("LOCL");
+
+		/**
+		 * Set the stratum announced in replies
+		 * @param stratum Stratum (1 for a primary server, up to 15)
+		 * @return This builder
+		 */
+		public Builder setStratum(int stratum)
+		{
+			m_stratum = stratum;
+			return this;
+		}
+
+		/**
+		 * Set the reference identifier announced in replies
+		 * @param referenceId Reference identifier (see {@link SntpTimeServer#referenceIdFromString})
+		 * @return This builder
+		 */
+		public Builder setReferenceId(int referenceId)
+		{
+			m_referenceId = referenceId;
+			return this;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * @see com.cablelabs.time.server.TimeServer.Builder#create()
+		 */
+		@Override
+		protected SntpTimeServer create()
+		{
+			SntpTimeServer server = new SntpTimeServer();
+			server.setStratum(m_stratum);
+			server.setReferenceId(m_referenceId);
+			return server;
+		}
+	}
+}
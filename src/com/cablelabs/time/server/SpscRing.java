@@ -0,0 +1,178 @@
+/*
+ * Copyright 2017 Cable Television Laboratories, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cablelabs.time.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class is a bounded, lock-free, single-producer single-consumer ring of preallocated slots.
+ *
+ * The slots are created by the owner and reused: the producer {@link #claim()}s the next free slot,
+ * fills it in and {@link #publish()}es it; the consumer reads the {@link #available()} slots with
+ * {@link #get(int)} and {@link #release(int)}s a whole batch at once, so neither side allocates and
+ * the shared indexes are written once per slot (producer) or per batch (consumer).  A consumer
+ * with nothing to do parks in {@link #await()} and the producer unparks it when it publishes; the
+ * consumer publishes that it waits before it checks the tail, and the producer publishes the tail
+ * before it checks for a waiter, so one of them always sees the other and no wakeup is missed.
+ * @param <T> Slot type
+ */
+public class SpscRing<T>
+{
+	private final T[] m_slots;
+	private final int m_mask;
+
+	// next slot to publish (written by the producer) and to release (written by the consumer)
+	private final AtomicLong m_tail = new AtomicLong(0);
+	private final AtomicLong m_head = new AtomicLong(0);
+
+	// producer-local
+	private long m_producerTail = 0;
+	private long m_cachedHead = 0;
+
+	// consumer-local
+	private long m_consumerHead = 0;
+	private long m_cachedTail = 0;
+
+	private volatile Thread m_consumer = null;
+	private volatile boolean m_waiting = false;
+	private volatile boolean m_closed = false;
+
+	/**
+	 * Create an instance of a SpscRing
+	 * @param slots Preallocated slots; the length must be a power of two
+	 */
+	public SpscRing(T[] slots)
+	{
+		if (slots.length == 0 || Integer.bitCount(slots.length) != 1)
+		{
+			throw new IllegalArgumentException("Ring size must be a power of two: " + slots.length);
+		}
+		m_slots = slots;
+		m_mask = slots.length - 1;
+	}
+
+	/**
+	 * Get the number of slots
+	 * @return Capacity
+	 */
+	public int capacity()
+	{
+		return m_slots.length;
+	}
+
+	/**
+	 * Get the number of slots published and not yet released; may be called from any thread
+	 * @return Occupancy
+	 */
+	public int size()
+	{
+		return (int)(m_tail.get() - m_head.get());
+	}
+
+	/**
+	 * Get the next free slot; called by the producer
+	 * @return Slot to fill in and publish, or null if the ring is full
+	 */
+	public T claim()
+	{
+		if (m_producerTail - m_cachedHead >= m_slots.length)
+		{
+			m_cachedHead = m_head.get();
+			if (m_producerTail - m_cachedHead >= m_slots.length)
+			{
+				return null;
+			}
+		}
+		return m_slots[(int)(m_producerTail & m_mask)];
+	}
+
+	/**
+	 * Publish the slot returned by the last {@link #claim()}; called by the producer
+	 */
+	public void publish()
+	{
+		// a volatile write, ordered before the read of m_waiting (the consumer does the reverse)
+		m_tail.set(++m_producerTail);
+		if (m_waiting)
+		{
+			LockSupport.unpark(m_consumer);
+		}
+	}
+
+	/**
+	 * Get the number of published slots the consumer has not released; called by the consumer
+	 * @return Slots that can be read
+	 */
+	public int available()
+	{
+		if (m_cachedTail == m_consumerHead)
+		{
+			m_cachedTail = m_tail.get();
+		}
+		return (int)(m_cachedTail - m_consumerHead);
+	}
+
+	/**
+	 * Get a published slot; called by the consumer
+	 * @param index Index among the {@link #available()} slots
+	 * @return Slot
+	 */
+	public T get(int index)
+	{
+		return m_slots[(int)((m_consumerHead + index) & m_mask)];
+	}
+
+	/**
+	 * Release the first slots, making them free for the producer; called by the consumer
+	 * @param count Number of slots
+	 */
+	public void release(int count)
+	{
+		m_consumerHead += count;
+		m_head.lazySet(m_consumerHead);
+	}
+
+	/**
+	 * Park the consumer until something is published or the ring is closed (or the consumer is
+	 * interrupted); called by the consumer
+	 */
+	public void await()
+	{
+		m_consumer = Thread.currentThread();
+		m_waiting = true;
+		if (m_tail.get() == m_consumerHead && !m_closed)
+		{
+			LockSupport.park(this);
+		}
+		m_waiting = false;
+	}
+
+	/**
+	 * Close the ring: wake the consumer, and never park it again
+	 */
+	public void close()
+	{
+		// the same handshake as publish(): a consumer not yet parked sees the flag
+		m_closed = true;
+		Thread consumer = m_consumer;
+		if (consumer != null)
+		{
+			LockSupport.unpark(consumer);
+		}
+	}
+}
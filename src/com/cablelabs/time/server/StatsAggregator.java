@@ -0,0 +1,640 @@
+/*
+ * Copyright 2017 Cable Television Laboratories, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cablelabs.time.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class merges the statistics pushed by the {@link StatsExporter}s of a fleet of nodes.
+ *
+ * The deltas of each export are added to the totals of the node and listener that sent them, and
+ * to the fleet-wide totals of the listener, so a listener's fleet view is the sum over every node
+ * serving it.  Exports are numbered, so lost ones are counted (their deltas are lost, and the
+ * totals are that much low) and duplicated ones are ignored.  For heavy hitters, each node's list
+ * for the latest window replaces its previous one, and the fleet list sums the entries of every
+ * node that reported that window.
+ */
+public class StatsAggregator
+{
+	private final String m_listenAddress;
+	private final int m_port;
+
+	private DatagramSocket m_socket = null;
+	private Thread m_thread = null;
+	private volatile boolean m_terminate = false;
+
+	private final Map<String, _Node> m_nodes = new TreeMap<String, _Node>();
+	private final Map<String, Totals> m_fleet = new TreeMap<String, Totals>();
+	private long m_packets = 0;
+	private long m_invalidPackets = 0;
+
+	/**
+	 * Create an instance of a StatsAggregator
+	 * @param listenAddress Address on which to listen, or null for every address
+	 * @param port Port on which to listen (0 picks a free port)
+	 */
+	public StatsAggregator(String listenAddress, int port)
+	{
+		m_listenAddress = listenAddress;
+		m_port = port;
+	}
+
+	/**
+	 * Bind the socket and start receiving exports
+	 * @return Bound address
+	 * @throws IOException if the socket cannot be bound
+	 */
+	public synchronized InetSocketAddress start() throws IOException
+	{
+		m_terminate = false;
+		m_socket = (m_listenAddress == null ? new DatagramSocket(m_port) :
+				new DatagramSocket(new InetSocketAddress(InetAddress.getByName(m_listenAddress), m_port)));
+		final DatagramSocket socket = m_socket;
+		m_thread = new Thread(new Runnable() {
+			public void run()
+			{
+				receive(socket);
+			}
+		}, "StatsAggregator");
+		m_thread.start();
+		return (InetSocketAddress)m_socket.getLocalSocketAddress();
+	}
+
+	/**
+	 * Stop receiving exports; the totals are kept
+	 */
+	public void stop()
+	{
+		Thread thread;
+		synchronized (this)
+		{
+			m_terminate = true;
+			if (m_socket != null)
+			{
+				m_socket.close();
+				m_socket = null;
+			}
+			thread = m_thread;
+			m_thread = null;
+		}
+		if (thread != null)
+		{
+			try
+			{
+				thread.join(TimeUnit.SECONDS.toMillis(1));
+			}
+			catch (InterruptedException e)
+			{
+				// the socket is closed, so the thread is finishing
+			}
+		}
+	}
+
+	/**
+	 * Receive and merge exports until stopped
+	 * @param socket Socket
+	 */
+	private void receive(DatagramSocket socket)
+	{
+		byte[] data = new byte[StatsExporter.MAX_PACKET_SIZE];
+		DatagramPacket packet = new DatagramPacket(data, data.length);
+		while (!m_terminate)
+		{
+			try
+			{
+				packet.setLength(data.length);
+				socket.receive(packet);
+				merge(data, packet.getLength());
+			}
+			catch (SocketException e)
+			{
+				// closed by stop()
+				if (!m_terminate)
+				{
+					e.printStackTrace();
+				}
+				return;
+			}
+			catch (IOException e)
+			{
+				if (!m_terminate)
+				{
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Merge one export
+	 * @param data Datagram payload
+	 * @param length Payload length
+	 */
+	public synchronized void merge(byte[] data, int length)
+	{
+		m_packets++;
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, 0, length));
+		try
+		{
+			if (in.readInt() != StatsExporter.MAGIC || in.readByte() != StatsExporter.VERSION)
+			{
+				m_invalidPackets++;
+				return;
+			}
+			String name = readName(in);
+			int session = in.readInt();
+			int sequence = in.readInt();
+			long sentMs = in.readLong();
+
+			_Node node = m_nodes.get(name);
+			if (node == null)
+			{
+				node = new _Node();
+				m_nodes.put(name, node);
+			}
+			if (node.m_exports == 0 || session != node.m_session)
+			{
+				// a new node, or one that restarted
+				node.m_session = session;
+				node.m_lostExports += (node.m_exports == 0 ? 0 : sequence);
+			}
+			else if (sequence - node.m_sequence <= 0)
+			{
+				// a duplicate or a late export, whose deltas would be counted twice
+				return;
+			}
+			else
+			{
+				node.m_lostExports += sequence - node.m_sequence - 1;
+			}
+			node.m_sequence = sequence;
+			node.m_exports++;
+			node.m_lastSentMs = sentMs;
+
+			int listeners = in.readUnsignedByte();
+			for (int l = 0; l < listeners; l++)
+			{
+				String listener = readName(in);
+				Totals nodeTotals = node.getTotals(listener);
+				Totals fleetTotals = m_fleet.get(listener);
+				if (fleetTotals == null)
+				{
+					fleetTotals = new Totals();
+					m_fleet.put(listener, fleetTotals);
+				}
+
+				long received = readVarint(in);
+				long answered = readVarint(in);
+				long dropped = readVarint(in);
+				nodeTotals.add(received, answered, dropped);
+				fleetTotals.add(received, answered, dropped);
+
+				int buckets = (int)readVarint(in);
+				int index = 0;
+				for (int b = 0; b < buckets; b++)
+				{
+					index += (int)readVarint(in);
+					long count = readVarint(in);
+					if (index >= LatencyHistogram.BUCKET_COUNT)
+					{
+						throw new IOException("Invalid bucket index " + index);
+					}
+					nodeTotals.m_replyTime.addToBucket(index, count);
+					fleetTotals.m_replyTime.addToBucket(index, count);
+				}
+			}
+
+			long windowStart = in.readLong();
+			if (windowStart != 0)
+			{
+				int hitters = in.readUnsignedByte();
+				List<_Hitter> list = new ArrayList<_Hitter>(hitters);
+				for (int h = 0; h < hitters; h++)
+				{
+					byte protocol = in.readByte();
+					byte[] address = new byte[in.readUnsignedByte()];
+					in.readFully(address);
+					int prefixLength = in.readUnsignedByte();
+					long count = readVarint(in);
+					long error = readVarint(in);
+					list.add(new _Hitter(protocol,
+							new HeavyHitterTracker.HeavyHitter(InetAddress.getByAddress(address), prefixLength, count, error)));
+				}
+				if (windowStart >= node.m_windowStart)
+				{
+					node.m_windowStart = windowStart;
+					node.m_hitters = list;
+				}
+			}
+		}
+		catch (IOException e)
+		{
+			// truncated or corrupt; whatever was merged before the error is kept
+			m_invalidPackets++;
+		}
+	}
+
+	/**
+	 * Get the names of the nodes heard from
+	 * @return Node names, sorted
+	 */
+	public synchronized List<String> getNodes()
+	{
+		return new ArrayList<String>(m_nodes.keySet());
+	}
+
+	/**
+	 * Get the names of the listeners reported by any node
+	 * @return Listener names, sorted
+	 */
+	public synchronized List<String> getListeners()
+	{
+		return new ArrayList<String>(m_fleet.keySet());
+	}
+
+	/**
+	 * Get the fleet-wide totals of a listener
+	 * @param listener Listener name
+	 * @return Totals (a copy), or null if no node reported the listener
+	 */
+	public synchronized Totals getFleetTotals(String listener)
+	{
+		Totals totals = m_fleet.get(listener);
+		return (totals != null ? totals.copy() : null);
+	}
+
+	/**
+	 * Get the totals of a listener of one node
+	 * @param node Node name
+	 * @param listener Listener name
+	 * @return Totals (a copy), or null if the node did not report the listener
+	 */
+	public synchronized Totals getNodeTotals(String node, String listener)
+	{
+		_Node state = m_nodes.get(node);
+		Totals totals = (state != null ? state.m_listeners.get(listener) : null);
+		return (totals != null ? totals.copy() : null);
+	}
+
+	/**
+	 * Get the number of exports of a node that were lost
+	 * @param node Node name
+	 * @return Count
+	 */
+	public synchronized long getLostExports(String node)
+	{
+		_Node state = m_nodes.get(node);
+		return (state != null ? state.m_lostExports : 0);
+	}
+
+	/**
+	 * Get the time a node sent its latest export
+	 * @param node Node name
+	 * @return Milliseconds since 1970 (by the node's clock), or 0 if the node was not heard from
+	 */
+	public synchronized long getLastExportMillis(String node)
+	{
+		_Node state = m_nodes.get(node);
+		return (state != null ? state.m_lastSentMs : 0);
+	}
+	
+	/**
+	 * Get the number of datagrams received
+	 * @return Count
+	 */
+	public synchronized long getPackets()
+	{
+		return m_packets;
+	}
+
+	/**
+	 * Get the number of datagrams that were not valid exports
+	 * @return Count
+	 */
+	public synchronized long getInvalidPackets()
+	{
+		return m_invalidPackets;
+	}
+
+	/**
+	 * Get the latest heavy-hitter window reported by any node
+	 * @return Milliseconds since 1970, or 0 if none was reported
+	 */
+	public synchronized long getWindowStart()
+	{
+		long windowStart = 0;
+		for (_Node node : m_nodes.values())
+		{
+			windowStart = Math.max(windowStart, node.m_windowStart);
+		}
+		return windowStart;
+	}
+
+	/**
+	 * Get the heaviest sources of the fleet in the latest window, summed over the nodes that
+	 * reported it
+	 * @param protocol One of the {@link TimeServer} PROTOCOL_ constants
+	 * @param subnets True for subnets, false for hosts
+	 * @param count Maximum number of entries
+	 * @return Entries, heaviest first
+	 */
+	public synchronized List<HeavyHitterTracker.HeavyHitter> getTopTalkers(byte protocol, boolean subnets, int count)
+	{
+		long windowStart = getWindowStart();
+		Map<String, long[]> sums = new HashMap<String, long[]>();
+		Map<String, HeavyHitterTracker.HeavyHitter> first = new HashMap<String, HeavyHitterTracker.HeavyHitter>();
+		for (_Node node : m_nodes.values())
+		{
+			if (node.m_windowStart != windowStart)
+			{
+				continue;
+			}
+			for (_Hitter hitter : node.m_hitters)
+			{
+				HeavyHitterTracker.HeavyHitter entry = hitter.m_entry;
+				boolean host = (entry.getPrefixLength() == entry.getAddress().getAddress().length * 8);
+				if (hitter.m_protocol != protocol || host == subnets)
+				{
+					continue;
+				}
+				String key = entry.getAddress().getHostAddress() + "/" + entry.getPrefixLength();
+				long[] sum = sums.get(key);
+				if (sum == null)
+				{
+					sum = new long[2];
+					sums.put(key, sum);
+					first.put(key, entry);
+				}
+				sum[0] += entry.getCount();
+				sum[1] += entry.getError();
+			}
+		}
+
+		List<HeavyHitterTracker.HeavyHitter> merged = new ArrayList<HeavyHitterTracker.HeavyHitter>();
+		for (Map.Entry<String, long[]> sum : sums.entrySet())
+		{
+			HeavyHitterTracker.HeavyHitter entry = first.get(sum.getKey());
+			merged.add(new HeavyHitterTracker.HeavyHitter(entry.getAddress(), entry.getPrefixLength(),
+					sum.getValue()[0], sum.getValue()[1]));
+		}
+		Collections.sort(merged, new Comparator<HeavyHitterTracker.HeavyHitter>() {
+			public int compare(HeavyHitterTracker.HeavyHitter a, HeavyHitterTracker.HeavyHitter b)
+			{
+				return Long.compare(b.getCount(), a.getCount());
+			}
+		});
+		return (merged.size() > count ? new ArrayList<HeavyHitterTracker.HeavyHitter>(merged.subList(0, count)) : merged);
+	}
+
+	/**
+	 * Get a summary of the fleet
+	 * @param topCount Maximum number of heavy hitters per protocol and granularity
+	 * @return Report, one line per listener, then the heavy hitters of the latest window
+	 */
+	public synchronized String getStatus(int topCount)
+	{
+		long lost = 0;
+		for (_Node node : m_nodes.values())
+		{
+			lost += node.m_lostExports;
+		}
+		String report = "Fleet statistics from " + m_nodes.size() + " nodes (" + lost + " lost exports):";
+		for (Map.Entry<String, Totals> entry : m_fleet.entrySet())
+		{
+			report += System.lineSeparator() + "  " + entry.getKey() + ": " + entry.getValue();
+		}
+		long windowStart = getWindowStart();
+		if (windowStart != 0)
+		{
+			TreeSet<Byte> protocols = new TreeSet<Byte>();
+			for (_Node node : m_nodes.values())
+			{
+				for (_Hitter hitter : node.m_hitters)
+				{
+					protocols.add(hitter.m_protocol);
+				}
+			}
+			String start;
+			synchronized (TimeServer.getDateFormat())
+			{
+				start = TimeServer.getDateFormat().format(new Date(windowStart));
+			}
+			report += System.lineSeparator() + "  Top talkers for window starting " + start + ":";
+			for (byte protocol : protocols)
+			{
+				String name = TimeServer.protocolName(protocol);
+				report += System.lineSeparator() + "    " + name + " hosts:   " + getTopTalkers(protocol, false, topCount);
+				report += System.lineSeparator() + "    " + name + " subnets: " + getTopTalkers(protocol, true, topCount);
+			}
+		}
+		return report;
+	}
+
+	/**
+	 * Read a short name
+	 * @param in Source
+	 * @return Name
+	 * @throws IOException
+	 */
+	private static String readName(DataInputStream in) throws IOException
+	{
+		byte[] bytes = new byte[in.readUnsignedByte()];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Read a value written by {@link StatsExporter#writeVarint}
+	 * @param in Source
+	 * @return Value
+	 * @throws IOException if the value is truncated or too long
+	 */
+	private static long readVarint(DataInputStream in) throws IOException
+	{
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7)
+		{
+			int b = in.readUnsignedByte();
+			value |= (long)(b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+			{
+				return value;
+			}
+		}
+		throw new IOException("Invalid variable-length integer");
+	}
+
+	/**
+	 * This class is the totals of a listener, on one node or on the whole fleet
+	 */
+	public static class Totals
+	{
+		private long m_received = 0;
+		private long m_answered = 0;
+		private long m_dropped = 0;
+		private final LatencyHistogram m_replyTime = new LatencyHistogram();
+
+		/**
+		 * Add deltas
+		 * @param received Requests received
+		 * @param answered Requests answered
+		 * @param dropped Requests dropped
+		 */
+		private void add(long received, long answered, long dropped)
+		{
+			m_received += received;
+			m_answered += answered;
+			m_dropped += dropped;
+		}
+
+		/**
+		 * Copy the totals
+		 * @return Copy
+		 */
+		private Totals copy()
+		{
+			Totals copy = new Totals();
+			copy.add(m_received, m_answered, m_dropped);
+			for (int i = 0; i < LatencyHistogram.BUCKET_COUNT; i++)
+			{
+				long count = m_replyTime.getBucketCount(i);
+				if (count != 0)
+				{
+					copy.m_replyTime.addToBucket(i, count);
+				}
+			}
+			return copy;
+		}
+
+		/**
+		 * Get the number of requests received
+		 * @return Count
+		 */
+		public long getReceived()
+		{
+			return m_received;
+		}
+
+		/**
+		 * Get the number of requests answered
+		 * @return Count
+		 */
+		public long getAnswered()
+		{
+			return m_answered;
+		}
+
+		/**
+		 * Get the number of requests dropped
+		 * @return Count
+		 */
+		public long getDropped()
+		{
+			return m_dropped;
+		}
+
+		/**
+		 * Get the reply times of the answered requests
+		 * @return Histogram
+		 */
+		public LatencyHistogram getReplyTime()
+		{
+			return m_replyTime;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * @see java.lang.Object#toString()
+		 */
+		@Override
+		public String toString()
+		{
+			return m_received + " received, " + m_answered + " answered, " + m_dropped + " dropped, reply p50 " +
+					TimeUnit.NANOSECONDS.toMicros(m_replyTime.getPercentile(50)) + "us p99 " +
+					TimeUnit.NANOSECONDS.toMicros(m_replyTime.getPercentile(99)) + "us";
+		}
+	}
+
+	/**
+	 * This class is what the aggregator knows of a node
+	 */
+	private static class _Node
+	{
+		private int m_session = 0;
+		private int m_sequence = 0;
+		private long m_exports = 0;
+		private long m_lostExports = 0;
+		private long m_lastSentMs = 0;
+		private final Map<String, Totals> m_listeners = new TreeMap<String, Totals>();
+		private long m_windowStart = 0;
+		private List<_Hitter> m_hitters = new ArrayList<_Hitter>();
+
+		/**
+		 * Get the totals of a listener, creating them if needed
+		 * @param listener Listener name
+		 * @return Totals
+		 */
+		public Totals getTotals(String listener)
+		{
+			Totals totals = m_listeners.get(listener);
+			if (totals == null)
+			{
+				totals = new Totals();
+				m_listeners.put(listener, totals);
+			}
+			return totals;
+		}
+	}
+
+	/**
+	 * This class is a heavy-hitter entry reported by a node
+	 */
+	private static class _Hitter
+	{
+		private final byte m_protocol;
+		private final HeavyHitterTracker.HeavyHitter m_entry;
+
+		/**
+		 * Create an instance of a _Hitter
+		 * @param protocol One of the {@link TimeServer} PROTOCOL_ constants
+		 * @param entry Entry
+		 */
+		public _Hitter(byte protocol, HeavyHitterTracker.HeavyHitter entry)
+		{
+			m_protocol = protocol;
+			m_entry = entry;
+		}
+	}
+}
@@ -0,0 +1,386 @@
+/*
+ * Copyright 2017 Cable Television Laboratories, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cablelabs.time.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class periodically pushes the statistics of a node's listeners to a
+ * {@link StatsAggregator} over UDP.
+ *
+ * Each export is one datagram holding what changed since the previous one: the received,
+ * answered and dropped counts and the non-empty reply-time histogram buckets of each listener,
+ * plus, once per completed heavy-hitter window, the top hosts and subnets of each protocol.
+ * Nothing is sent per request.  Counts and bucket indexes are variable-length integers, so an
+ * idle listener costs a few bytes.
+ *
+ * Datagram layout (big-endian):
+ * <pre>
+ * int     MAGIC
+ * byte    VERSION
+ * byte    node name length, then the name (UTF-8)
+ * int     session (random, new each time the exporter is created)
+ * int     sequence (0, 1, 2...; a gap means a lost export)
+ * long    time sent (ms since 1970)
+ * byte    listener count, then for each listener:
+ *   byte    name length, then the name (UTF-8)
+ *   varint  received, answered and dropped deltas
+ *   varint  bucket count, then for each bucket: varint index gap, varint count delta
+ * long    start of the heavy-hitter window completed since the previous export (ms since
+ *         1970), or 0 if none has; if not 0:
+ *   byte    entry count, then for each entry: byte protocol, byte address length (4 or 16),
+ *           address, byte prefix length, varint count, varint error
+ * </pre>
+ */
+public class StatsExporter
+{
+	public static final int MAGIC = 0x434C5453; // "CLTS"
+	public static final byte VERSION = 1;
+
+	public static final long DEFAULT_INTERVAL_MS = 10000;
+	public static final int DEFAULT_HEAVY_HITTERS = 10;
+
+	// the largest UDP payload over IPv4
+	public static final int MAX_PACKET_SIZE = 65507;
+
+	private final String m_node;
+	private final InetSocketAddress m_aggregator;
+	private final int m_session = ThreadLocalRandom.current().nextInt();
+	private final List<_Source> m_sources = new ArrayList<_Source>();
+
+	private HeavyHitterTracker m_heavyHitters = null;
+	private int m_heavyHitterCount = DEFAULT_HEAVY_HITTERS;
+	private long m_exportedWindowStart = 0;
+
+	private DatagramSocket m_socket = null;
+	private ScheduledFuture<?> m_exportTask = null;
+	private int m_sequence = 0;
+	private long m_bytesSent = 0;
+
+	/**
+	 * Create an instance of a StatsExporter
+	 * @param node Name of this node, as shown by the aggregator (at most 255 bytes of UTF-8)
+	 * @param aggregator Address of the aggregator
+	 */
+	public StatsExporter(String node, InetSocketAddress aggregator)
+	{
+		if (node.getBytes(StandardCharsets.UTF_8).length > 255)
+		{
+			throw new IllegalArgumentException("Node name too long: " + node);
+		}
+		m_node = node;
+		m_aggregator = aggregator;
+	}
+
+	/**
+	 * Add a listener whose statistics are exported
+	 * @param name Listener name, such as {@link CableLabsTimeServer#LISTENER_UDP}
+	 * @param server Listener
+	 */
+	public synchronized void addServer(String name, TimeServer server)
+	{
+		m_sources.add(new _Source(name, server));
+	}
+
+	/**
+	 * Export the top sources of each completed heavy-hitter window
+	 * @param heavyHitters Heavy-hitter tracker, or null to export none
+	 * @param count Number of hosts, and of subnets, exported per protocol
+	 */
+	public synchronized void setHeavyHitters(HeavyHitterTracker heavyHitters, int count)
+	{
+		m_heavyHitters = heavyHitters;
+		m_heavyHitterCount = count;
+	}
+
+	/**
+	 * Get the name of this node
+	 * @return Node name
+	 */
+	public String getNode()
+	{
+		return m_node;
+	}
+
+	/**
+	 * Start exporting
+	 * @param scheduler Scheduler running the exports
+	 * @param intervalMs Time between exports
+	 * @throws IOException if the socket cannot be opened
+	 */
+	public synchronized void start(ScheduledExecutorService scheduler, long intervalMs) throws IOException
+	{
+		m_socket = new DatagramSocket();
+		m_exportTask = scheduler.scheduleAtFixedRate(new Runnable() {
+			public void run()
+			{
+				try
+				{
+					export();
+				}
+				catch (IOException e)
+				{
+					System.out.println("Unable to export statistics to " + m_aggregator + ": " + e.getMessage());
+				}
+			}
+		}, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stop exporting, after a last export of what changed since the previous one
+	 */
+	public synchronized void stop()
+	{
+		if (m_exportTask != null)
+		{
+			m_exportTask.cancel(false);
+			m_exportTask = null;
+		}
+		if (m_socket != null)
+		{
+			try
+			{
+				export();
+			}
+			catch (IOException e)
+			{
+				// the last deltas are lost
+			}
+			m_socket.close();
+			m_socket = null;
+		}
+	}
+
+	/**
+	 * Send one export now
+	 * @throws IOException if the exporter is not started or the datagram cannot be sent
+	 */
+	public synchronized void export() throws IOException
+	{
+		if (m_socket == null)
+		{
+			throw new IOException("Exporter not started");
+		}
+		byte[] data = encode();
+		m_socket.send(new DatagramPacket(data, data.length, m_aggregator));
+		m_sequence++;
+		m_bytesSent += data.length;
+	}
+
+	/**
+	 * Get the number of exports sent
+	 * @return Count
+	 */
+	public synchronized int getExports()
+	{
+		return m_sequence;
+	}
+
+	/**
+	 * Get the number of bytes sent
+	 * @return UDP payload bytes
+	 */
+	public synchronized long getBytesSent()
+	{
+		return m_bytesSent;
+	}
+
+	/**
+	 * Encode the changes since the previous export, and take them as exported
+	 * @return Datagram payload
+	 * @throws IOException if the export does not fit in a datagram
+	 */
+	private byte[] encode() throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(MAGIC);
+		out.writeByte(VERSION);
+		writeName(out, m_node);
+		out.writeInt(m_session);
+		out.writeInt(m_sequence);
+		out.writeLong(System.currentTimeMillis());
+
+		out.writeByte(m_sources.size());
+		for (_Source source : m_sources)
+		{
+			source.encode(out);
+		}
+
+		HeavyHitterTracker tracker = m_heavyHitters;
+		long windowStart = (tracker != null ? tracker.getPreviousWindowStart() : 0);
+		if (windowStart == 0 || windowStart == m_exportedWindowStart)
+		{
+			// no new window
+			out.writeLong(0);
+		}
+		else
+		{
+			// sent even if empty, so the aggregator drops the node's entries of older windows
+			List<HeavyHitterTracker.HeavyHitter> hitters = new ArrayList<HeavyHitterTracker.HeavyHitter>();
+			List<Byte> protocols = new ArrayList<Byte>();
+			for (byte protocol = 1; protocol <= TimeServer.PROTOCOL_COUNT; protocol++)
+			{
+				for (int g = 0; g < 2; g++)
+				{
+					for (HeavyHitterTracker.HeavyHitter hitter : tracker.getTopTalkers(protocol, (g == 1), m_heavyHitterCount, true))
+					{
+						hitters.add(hitter);
+						protocols.add(protocol);
+					}
+				}
+			}
+			m_exportedWindowStart = windowStart;
+
+			int count = Math.min(hitters.size(), 255);
+			out.writeLong(windowStart);
+			out.writeByte(count);
+			for (int i = 0; i < count; i++)
+			{
+				HeavyHitterTracker.HeavyHitter hitter = hitters.get(i);
+				byte[] address = hitter.getAddress().getAddress();
+				out.writeByte(protocols.get(i));
+				out.writeByte(address.length);
+				out.write(address);
+				out.writeByte(hitter.getPrefixLength());
+				writeVarint(out, hitter.getCount());
+				writeVarint(out, hitter.getError());
+			}
+		}
+
+		out.flush();
+		if (bytes.size() > MAX_PACKET_SIZE)
+		{
+			throw new IOException("Export of " + bytes.size() + " bytes does not fit in a datagram");
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Write a short name
+	 * @param out Destination
+	 * @param name Name, at most 255 bytes of UTF-8
+	 * @throws IOException
+	 */
+	private static void writeName(DataOutputStream out, String name) throws IOException
+	{
+		byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+		out.writeByte(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Write a non-negative value, 7 bits per byte, low bits first
+	 * @param out Destination
+	 * @param value Value
+	 * @throws IOException
+	 */
+	static void writeVarint(DataOutputStream out, long value) throws IOException
+	{
+		while ((value & ~0x7FL) != 0)
+		{
+			out.writeByte((int)((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.writeByte((int)value);
+	}
+
+	/**
+	 * This class is an exported listener, with what it had when last exported
+	 */
+	private static class _Source
+	{
+		private final String m_name;
+		private final TimeServer m_server;
+		private long m_received = 0;
+		private long m_answered = 0;
+		private long m_dropped = 0;
+		private final long[] m_buckets = new long[LatencyHistogram.BUCKET_COUNT];
+
+		/**
+		 * Create an instance of a _Source
+		 * @param name Listener name
+		 * @param server Listener
+		 */
+		public _Source(String name, TimeServer server)
+		{
+			if (name.getBytes(StandardCharsets.UTF_8).length > 255)
+			{
+				throw new IllegalArgumentException("Listener name too long: " + name);
+			}
+			m_name = name;
+			m_server = server;
+		}
+
+		/**
+		 * Encode the changes since the previous export
+		 * @param out Destination
+		 * @throws IOException
+		 */
+		public void encode(DataOutputStream out) throws IOException
+		{
+			writeName(out, m_name);
+
+			long received = m_server.getReceivedCount();
+			long answered = m_server.getAnsweredCount();
+			long dropped = m_server.getDroppedCount();
+			writeVarint(out, received - m_received);
+			writeVarint(out, answered - m_answered);
+			writeVarint(out, dropped - m_dropped);
+			m_received = received;
+			m_answered = answered;
+			m_dropped = dropped;
+
+			LatencyHistogram replyTime = m_server.getReplyTime();
+			long[] deltas = new long[LatencyHistogram.BUCKET_COUNT];
+			int changed = 0;
+			for (int i = 0; i < LatencyHistogram.BUCKET_COUNT; i++)
+			{
+				long count = replyTime.getBucketCount(i);
+				deltas[i] = count - m_buckets[i];
+				m_buckets[i] = count;
+				if (deltas[i] != 0)
+				{
+					changed++;
+				}
+			}
+			writeVarint(out, changed);
+			int previous = 0;
+			for (int i = 0; i < LatencyHistogram.BUCKET_COUNT; i++)
+			{
+				if (deltas[i] != 0)
+				{
+					writeVarint(out, i - previous);
+					writeVarint(out, deltas[i]);
+					previous = i;
+				}
+			}
+		}
+	}
+}
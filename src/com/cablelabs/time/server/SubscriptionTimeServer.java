@@ -0,0 +1,587 @@
+/*
+ * Copyright 2017 Cable Television Laboratories, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cablelabs.time.server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class is a TCP Time Server that streams the time to subscribers.
+ *
+ * A client connects once and receives the 4-byte RFC868 time value as soon as it is accepted, and
+ * again at each second boundary of the served clock, until it closes the connection; clients that
+ * track the time no longer open and close a connection every second.  A single non-blocking
+ * selector loop serves every subscriber: at each boundary the value is encoded once into a shared
+ * buffer, and the same buffer is written to every connection.  A subscriber whose socket cannot
+ * take a whole value when it is due is sent the rest as soon as it can, and is dropped if the next
+ * value is due before then, so a stalled client holds no memory in the server.  A socket only
+ * refuses a value once its send buffer and the client's receive buffer are full, though, which at
+ * four bytes a second takes many minutes; until then the values queue in the kernel, and a client
+ * that stops reading and reads again first receives the values queued meanwhile.  Send buffers are
+ * kept small to shorten that queue, but a client that pauses should reconnect, or skip to the
+ * last value available, rather than trust the first value it reads.  No value is sent while the
+ * served clock is unsynchronized.
+ *
+ * Each subscription counts as one request (in the journal, access control, heavy hitters and
+ * request log); the values streamed afterwards are only counted by {@link #getTicksSent()}.  The
+ * listener always waits in the selector for the next boundary, whatever its idle strategy.
+ */
+public class SubscriptionTimeServer extends TimeServer
+{
+	public static final int DEFAULT_MAX_SUBSCRIBERS = 10000;
+	
+	// shortens the queue of values for a client that stops reading (the kernel rounds this up to its own minimum)
+	private static final int SEND_BUFFER_SIZE = 1024;
+	
+	private volatile ServerSocketChannel m_tcpChannel = null;
+	private volatile Selector m_selector = null;
+	
+	private int m_maxSubscribers = DEFAULT_MAX_SUBSCRIBERS;
+	
+	private volatile int m_subscribers = 0;
+	private final AtomicLong m_ticksSent = new AtomicLong(0);
+	private final AtomicLong m_slowSubscribers = new AtomicLong(0);
+	
+	/**
+	 * Create an instance of a SubscriptionTimeServer
+	 */
+	public SubscriptionTimeServer()
+	{
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see com.cablelabs.TimeServer#getServerRunning()
+	 */
+	@Override
+	public boolean getServerRunning()
+	{
+		ServerSocketChannel channel = m_tcpChannel;
+		return (super.getServerRunning() && (channel != null) && (channel.isOpen()));
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see com.cablelabs.time.server.TimeServer#getTransport()
+	 */
+	@Override
+	protected int getTransport()
+	{
+		return ProtocolHandler.TRANSPORT_TCP;
+	}
+	
+	/**
+	 * Set the number of subscribers above which new connections are refused; takes effect when
+	 * the server is started
+	 * @param maxSubscribers Maximum number of subscribers
+	 */
+	public void setMaxSubscribers(int maxSubscribers)
+	{
+		if (maxSubscribers < 1)
+		{
+			throw new IllegalArgumentException("Invalid subscriber limit: " + maxSubscribers);
+		}
+		m_maxSubscribers = maxSubscribers;
+	}
+	
+	/**
+	 * Get the number of subscribers currently connected
+	 * @return Number of subscribers
+	 */
+	public int getSubscribers()
+	{
+		return m_subscribers;
+	}
+	
+	/**
+	 * Get the number of time values written to subscribers
+	 * @return Number of values
+	 */
+	public long getTicksSent()
+	{
+		return m_ticksSent.get();
+	}
+	
+	/**
+	 * Get the number of subscribers dropped because they could not keep up
+	 * @return Number of subscribers
+	 */
+	public long getSlowSubscribers()
+	{
+		return m_slowSubscribers.get();
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see com.cablelabs.TimeServer#startServer()
+	 */
+	@Override
+	public void startServer()
+	{
+		super.startServer();
+		
+		startListener(new _SubscriptionTimeServer(m_maxSubscribers), "SubscriptionTimeServer");
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see com.cablelabs.time.server.TimeServer#closeListener()
+	 */
+	@Override
+	protected void closeListener()
+	{
+		ServerSocketChannel channel = m_tcpChannel;
+		if (channel != null)
+		{
+			try
+			{
+				channel.close();
+			}
+			catch (IOException e)
+			{
+				// do nothing
+			}
+		}
+		Selector selector = m_selector;
+		if (selector != null)
+		{
+			selector.wakeup();
+		}
+	}
+	
+	/**
+	 * This class is the subscription server runner
+	 */
+	private class _SubscriptionTimeServer implements Runnable
+	{
+		private final int m_maxSubscribers;
+		private final byte m_protocol;
+		private _Subscriber[] m_list = new _Subscriber[64];
+		private int m_count = 0;
+		private final ByteBuffer m_discard = ByteBuffer.allocate(256);
+		
+		// the value of the current second, shared by every subscriber
+		private final ByteBuffer m_tick = ByteBuffer.allocateDirect(4);
+		private final byte[] m_tickBytes = new byte[4];
+		private long m_tickValue = 0;
+		private long m_nextTickMs = 0;
+		
+		/**
+		 * Create an instance of a _SubscriptionTimeServer
+		 * @param maxSubscribers Maximum number of subscribers
+		 */
+		public _SubscriptionTimeServer(int maxSubscribers)
+		{
+			m_maxSubscribers = maxSubscribers;
+			m_protocol = m_handler.getProtocol(ProtocolHandler.TRANSPORT_TCP);
+		}
+		
+		/*
+		 * (non-Javadoc)
+		 * @see java.lang.Runnable#run()
+		 */
+		public void run()
+		{
+			try
+			{
+				m_selector = Selector.open();
+				m_tcpChannel = ServerSocketChannel.open();
+				if (m_listenAddress == null)
+				{
+					m_tcpChannel.bind(new InetSocketAddress(m_port), m_requestBacklog);
+				}
+				else
+				{
+					InetAddress inetAddr = InetAddress.getByName(m_listenAddress);
+					m_tcpChannel.bind(new InetSocketAddress(inetAddr, m_port), m_requestBacklog);
+				}
+				
+				// stopServer() may have run while binding, before there was a socket to close
+				if (m_terminate)
+				{
+					m_tcpChannel.close();
+				}
+				listenerBound((InetSocketAddress)m_tcpChannel.getLocalAddress());
+				
+				System.out.println("Streaming time values to TCP subscribers on " + m_tcpChannel.socket().getInetAddress().toString() +
+						", port " + m_tcpChannel.socket().getLocalPort() + ", for at most " + m_maxSubscribers + " subscribers");
+				
+				m_tcpChannel.configureBlocking(false);
+				m_tcpChannel.register(m_selector, SelectionKey.OP_ACCEPT);
+				
+				while (!m_terminate)
+				{
+					long nowMs = m_clock.currentTimeMillis();
+					// a step of the served clock moves the next boundary
+					if (nowMs >= m_nextTickMs || m_nextTickMs - nowMs > 1000)
+					{
+						tick(nowMs);
+					}
+					m_selector.select(Math.max(1, m_nextTickMs - m_clock.currentTimeMillis()));
+					
+					Iterator<SelectionKey> iter = m_selector.selectedKeys().iterator();
+					while (iter.hasNext())
+					{
+						SelectionKey key = iter.next();
+						iter.remove();
+						if (!key.isValid())
+						{
+							continue;
+						}
+						if (key.isAcceptable())
+						{
+							accept();
+						}
+						else
+						{
+							_Subscriber subscriber = (_Subscriber)key.attachment();
+							if (key.isWritable())
+							{
+								subscriber.flush();
+							}
+							if (key.isValid() && key.isReadable())
+							{
+								subscriber.read(m_discard);
+							}
+						}
+					}
+				}
+			}
+			catch (UnknownHostException ex)
+			{
+				System.out.println("Invalid Inet Address specified: " + m_listenAddress);
+				listenerFailed(ex);
+			}
+			catch(IOException ex)
+			{
+				// if we are trying to terminate, this is expected
+				if (!m_terminate)
+				{
+					ex.printStackTrace();
+				}
+				listenerFailed(ex);
+			}
+			finally
+			{
+				shutdown();
+			}
+		}
+		
+		/**
+		 * Encode the value of the current second and write it to every subscriber
+		 * @param nowMs Served time
+		 */
+		private void tick(long nowMs)
+		{
+			m_nextTickMs = Math.floorDiv(nowMs, 1000L) * 1000 + 1000;
+			if (!m_clock.isSynchronized())
+			{
+				m_tickValue = 0;
+				return;
+			}
+			
+			m_tickValue = timeServerValueFromMillis(nowMs);
+			timeServerValueToBytes(m_tickValue, m_tickBytes, 0);
+			m_tick.clear();
+			m_tick.put(m_tickBytes);
+			
+			// backwards, so that a subscriber dropped on the way is replaced by one already written
+			for (int i = m_count - 1; i >= 0; i--)
+			{
+				m_list[i].send();
+			}
+		}
+		
+		/**
+		 * Accept every pending connection and send it the current value
+		 */
+		private void accept()
+		{
+			while (true)
+			{
+				SocketChannel channel;
+				try
+				{
+					channel = m_tcpChannel.accept();
+				}
+				catch (IOException e)
+				{
+					// if we are trying to terminate, this is expected
+					if (!m_terminate)
+					{
+						e.printStackTrace();
+					}
+					return;
+				}
+				if (channel == null)
+				{
+					return;
+				}
+				
+				try
+				{
+					InetSocketAddress remote = (InetSocketAddress)channel.getRemoteAddress();
+					requestReceived(remote.getAddress());
+					if (!isRequestAllowed(remote.getAddress()))
+					{
+						channel.close();
+						continue;
+					}
+					if (m_count >= m_maxSubscribers)
+					{
+						requestDropped(remote.getAddress(), "subscriber limit");
+						channel.close();
+						continue;
+					}
+					
+					channel.configureBlocking(false);
+					// values are tiny and time-critical, so they must not wait for acknowledgements
+					channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+					channel.setOption(StandardSocketOptions.SO_SNDBUF, SEND_BUFFER_SIZE);
+					_Subscriber subscriber = new _Subscriber(channel, remote);
+					subscriber.m_key = channel.register(m_selector, SelectionKey.OP_READ, subscriber);
+					add(subscriber);
+					if (m_tickValue != 0 && m_tickValue == timeServerValueFromMillis(m_clock.currentTimeMillis()))
+					{
+						subscriber.send();
+					}
+				}
+				catch (IOException e)
+				{
+					e.printStackTrace();
+					try
+					{
+						channel.close();
+					}
+					catch (IOException ex)
+					{
+						// do nothing
+					}
+				}
+			}
+		}
+		
+		/**
+		 * Add a subscriber to the list the ticks are sent to, growing the list if it is full
+		 * @param subscriber Registered subscriber
+		 */
+		private void add(_Subscriber subscriber)
+		{
+			if (m_count == m_list.length)
+			{
+				m_list = Arrays.copyOf(m_list, m_count * 2);
+			}
+			subscriber.m_index = m_count;
+			m_list[m_count++] = subscriber;
+			m_subscribers = m_count;
+		}
+		
+		/**
+		 * Remove a subscriber from the list, moving the last subscriber into its place
+		 * @param subscriber Subscriber in the list
+		 */
+		private void remove(_Subscriber subscriber)
+		{
+			_Subscriber last = m_list[--m_count];
+			m_list[subscriber.m_index] = last;
+			last.m_index = subscriber.m_index;
+			m_list[m_count] = null;
+			m_subscribers = m_count;
+		}
+		
+		/**
+		 * Close the listener, every subscriber and the selector
+		 */
+		private void shutdown()
+		{
+			try
+			{
+				if (m_tcpChannel != null)
+				{
+					m_tcpChannel.close();
+				}
+				while (m_count > 0)
+				{
+					m_list[m_count - 1].close();
+				}
+				if (m_selector != null)
+				{
+					m_selector.close();
+				}
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+		}
+		
+		/**
+		 * This class is a subscribed connection
+		 */
+		private class _Subscriber
+		{
+			private final SocketChannel m_channel;
+			private final InetSocketAddress m_remote;
+			private final long m_subscribeNanos = System.nanoTime();
+			private final long m_subscribeMs = m_clock.currentTimeMillis();
+			private SelectionKey m_key = null;
+			private int m_index = -1;
+			// bytes of the current value not yet written
+			private int m_pending = 0;
+			private boolean m_answered = false;
+			private final TimeServerEvents.RequestReplied m_replyEvent = new TimeServerEvents.RequestReplied();
+			
+			/**
+			 * Create an instance of a _Subscriber
+			 * @param channel Accepted, non-blocking client channel
+			 * @param remote Client address
+			 */
+			public _Subscriber(SocketChannel channel, InetSocketAddress remote)
+			{
+				m_channel = channel;
+				m_remote = remote;
+				m_replyEvent.begin();
+			}
+			
+			/**
+			 * Write the current value, or drop the subscriber if it has not taken the previous one
+			 */
+			public void send()
+			{
+				if (m_pending > 0)
+				{
+					m_slowSubscribers.incrementAndGet();
+					requestDropped(m_remote.getAddress(), "slow subscriber");
+					close();
+					return;
+				}
+				m_pending = 4;
+				flush();
+			}
+			
+			/**
+			 * Write as much of the current value as the socket accepts
+			 */
+			public void flush()
+			{
+				try
+				{
+					m_tick.limit(4).position(4 - m_pending);
+					m_pending -= m_channel.write(m_tick);
+					if (m_pending > 0)
+					{
+						m_key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+						return;
+					}
+					m_key.interestOps(SelectionKey.OP_READ);
+					m_ticksSent.incrementAndGet();
+					
+					if (!m_answered)
+					{
+						m_answered = true;
+						requestAnswered(m_protocol, m_remote.getAddress(), m_remote.getPort(), m_subscribeMs, m_tickValue,
+								m_subscribeNanos);
+						requestReplied(m_replyEvent, m_remote.getAddress(), m_remote.getPort(), m_tickValue);
+						if (shouldLogRequest())
+						{
+							logRequest(m_remote, m_tickValue);
+						}
+					}
+				}
+				catch (IOException e)
+				{
+					close();
+				}
+			}
+			
+			/**
+			 * Read (and discard) client data until the client closes the connection
+			 * @param discard Scratch buffer
+			 */
+			public void read(ByteBuffer discard)
+			{
+				try
+				{
+					int n;
+					do
+					{
+						discard.clear();
+						n = m_channel.read(discard);
+					}
+					while (n > 0);
+					
+					if (n < 0)
+					{
+						close();
+					}
+				}
+				catch (IOException e)
+				{
+					close();
+				}
+			}
+			
+			/**
+			 * Close the connection and remove the subscriber
+			 */
+			public void close()
+			{
+				if (m_index < 0)
+				{
+					return;
+				}
+				remove(this);
+				m_index = -1;
+				try
+				{
+					m_channel.close();
+				}
+				catch (IOException e)
+				{
+					// do nothing
+				}
+			}
+		}
+	}
+	
+	/**
+	 * This class builds a SubscriptionTimeServer
+	 */
+	public static class Builder extends TimeServer.Builder<SubscriptionTimeServer>
+	{
+		/*
+		 * (non-Javadoc)
+		 * @see com.cablelabs.time.server.TimeServer.Builder#create()
+		 */
+		@Override
+		protected SubscriptionTimeServer create()
+		{
+			return new SubscriptionTimeServer();
+		}
+	}
+}
@@ -18,20 +18,54 @@ package com.cablelabs.time.server;
 
 import java.io.IOException;
 import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
-import java.util.Calendar;
-import java.util.TimeZone;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * This class is a TCP Time Server
+ * This class is a TCP Time Server.
+ *
+ * Connections are served by a single non-blocking selector loop.  The time value is written as
+ * soon as a connection is accepted, the server then half-closes the connection and waits for the
+ * client to close its side (RFC868 leaves the close to the client).  Both phases have a deadline,
+ * kept on a {@link TimingWheel}; a connection that misses one is aborted with a reset, so clients
+ * that never read or never close cannot pin server resources.  The protocol is RFC868 unless
+ * another {@link ProtocolHandler} is set; it is asked for a response as soon as a connection is
+ * accepted, with an empty request.  With a {@link WorkerPool}, a worker asks the handler and hands
+ * the connection back to the selector loop, which writes the response and keeps the deadlines.
+ * With a polling {@link IdleStrategy}, the loop polls the selector instead of blocking in it.
  */
 public class TcpTimeServer extends TimeServer
 {
-	private ServerSocket m_tcpSocket = null;
+	public static final long DEFAULT_WRITE_TIMEOUT_MS = 2000;
+	public static final long DEFAULT_CLOSE_TIMEOUT_MS = 2000;
+	
+	private static final long WHEEL_TICK_MS = 10;
+	private static final int WHEEL_SLOTS = 1024;
+	private static final int MAX_POOLED_CONNECTIONS = 1024;
+	
+	// connection-oriented protocols here answer on accept, before the client sends anything
+	private static final ByteBuffer EMPTY_REQUEST = ByteBuffer.allocate(0).asReadOnlyBuffer();
+	
+	private volatile ServerSocketChannel m_tcpChannel = null;
+	private volatile Selector m_selector = null;
+	
+	private long m_writeTimeoutMs = DEFAULT_WRITE_TIMEOUT_MS;
+	private long m_closeTimeoutMs = DEFAULT_CLOSE_TIMEOUT_MS;
+	
+	private final AtomicLong m_openConnections = new AtomicLong(0);
+	private final AtomicLong m_expiredWrites = new AtomicLong(0);
+	private final AtomicLong m_expiredCloses = new AtomicLong(0);
 	
 	/**
 	 * Create an instance of a TcpTimeServer
@@ -47,8 +81,56 @@ public class TcpTimeServer extends TimeServer
 	@Override
 	public boolean getServerRunning()
 	{
-		return (super.getServerRunning() &&
-				(m_tcpSocket != null) && (m_tcpSocket.isBound()) && (!m_tcpSocket.isClosed()));
+		ServerSocketChannel channel = m_tcpChannel;
+		return (super.getServerRunning() && (channel != null) && (channel.isOpen()));
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see com.cablelabs.time.server.TimeServer#getTransport()
+	 */
+	@Override
+	protected int getTransport()
+	{
+		return ProtocolHandler.TRANSPORT_TCP;
+	}
+	
+	/**
+	 * Set the connection deadlines; takes effect for connections accepted afterwards
+	 * @param writeTimeoutMs Time allowed for the time value to be written
+	 * @param closeTimeoutMs Time allowed, after the write, for the client to close the connection
+	 */
+	public void setTimeouts(long writeTimeoutMs, long closeTimeoutMs)
+	{
+		m_writeTimeoutMs = writeTimeoutMs;
+		m_closeTimeoutMs = closeTimeoutMs;
+	}
+	
+	/**
+	 * Get the number of connections currently open
+	 * @return Number of connections
+	 */
+	public long getOpenConnections()
+	{
+		return m_openConnections.get();
+	}
+	
+	/**
+	 * Get the number of connections aborted because the time value could not be written in time
+	 * @return Number of connections
+	 */
+	public long getExpiredWrites()
+	{
+		return m_expiredWrites.get();
+	}
+	
+	/**
+	 * Get the number of connections aborted because the client did not close them in time
+	 * @return Number of connections
+	 */
+	public long getExpiredCloses()
+	{
+		return m_expiredCloses.get();
 	}
 	
 	/*
@@ -60,30 +142,42 @@ public class TcpTimeServer extends TimeServer
 	{
 		super.startServer();
 		
-		_TcpTimeServer server = new _TcpTimeServer();
-		m_listenerThread = new Thread(server, "TcpTimeServer");
-		m_listenerThread.start();
+		startListener(new _TcpTimeServer(m_handler, m_workers), "TcpTimeServer");
 	}
 	
 	/*
 	 * (non-Javadoc)
-	 * @see com.cablelabs.time.server.TimeServer#stopServer()
+	 * @see com.cablelabs.time.server.TimeServer#closeListener()
 	 */
 	@Override
-	public void stopServer()
+	protected void closeListener()
 	{
-		if (m_tcpSocket != null)
+		ServerSocketChannel channel = m_tcpChannel;
+		if (channel != null)
 		{
 			try
 			{
-				m_tcpSocket.close();
+				channel.close();
 			}
 			catch (IOException e)
 			{
 				// do nothing
 			}
 		}
-		super.stopServer();
+		Selector selector = m_selector;
+		if (selector != null)
+		{
+			selector.wakeup();
+		}
+	}
+	
+	/**
+	 * Get a monotonic time for the connection deadlines
+	 * @return Milliseconds
+	 */
+	private static long monotonicMillis()
+	{
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
 	}
 	
 	/**
@@ -91,11 +185,27 @@ public class TcpTimeServer extends TimeServer
 	 */
 	private class _TcpTimeServer implements Runnable
 	{
+		private final ProtocolHandler m_handler;
+		private final byte m_protocol;
+		private final WorkerPool m_workers;
+		private final IdleStrategy m_idle;
+		private TimingWheel m_wheel = null;
+		private final ByteBuffer m_discard = ByteBuffer.allocate(256);
+		private final ArrayDeque<_Connection> m_pool = new ArrayDeque<_Connection>();
+		// connections whose response a worker has prepared
+		private final ConcurrentLinkedQueue<_Connection> m_ready = new ConcurrentLinkedQueue<_Connection>();
+		
 		/**
 		 * Create an instance of a _TcpTimeServer
+		 * @param handler Protocol answered
+		 * @param workers Pool asking the handler, or null to ask it on the listener thread
 		 */
-		public _TcpTimeServer()
+		public _TcpTimeServer(ProtocolHandler handler, WorkerPool workers)
 		{
+			m_handler = handler;
+			m_protocol = handler.getProtocol(ProtocolHandler.TRANSPORT_TCP);
+			m_workers = workers;
+			m_idle = IdleStrategy.create(m_idleStrategy);
 		}
 		
 		/*
@@ -106,108 +216,454 @@ public class TcpTimeServer extends TimeServer
 		{
 			try
 			{
+				m_selector = Selector.open();
+				m_tcpChannel = ServerSocketChannel.open();
 				if (m_listenAddress == null)
 				{
-					m_tcpSocket = new ServerSocket(m_port, m_requestBacklog);
+					m_tcpChannel.bind(new InetSocketAddress(m_port), m_requestBacklog);
 				}
 				else
 				{
 					InetAddress inetAddr = InetAddress.getByName(m_listenAddress);
-					m_tcpSocket = new ServerSocket(m_port, m_requestBacklog, inetAddr);
+					m_tcpChannel.bind(new InetSocketAddress(inetAddr, m_port), m_requestBacklog);
+				}
+				
+				// stopServer() may have run while binding, before there was a socket to close
+				if (m_terminate)
+				{
+					m_tcpChannel.close();
 				}
+				listenerBound((InetSocketAddress)m_tcpChannel.getLocalAddress());
 				
-				String status = "Listening for TCP time requests on " + m_tcpSocket.getInetAddress().toString() +
-						", port " + m_tcpSocket.getLocalPort() + ", with backlog " + m_requestBacklog;
+				String status = "Listening for TCP " + m_handler.getName() + " requests on " + m_tcpChannel.socket().getInetAddress().toString() +
+						", port " + m_tcpChannel.socket().getLocalPort() + ", with backlog " + m_requestBacklog;
+				if (m_workers != null)
+				{
+					status += ", answered by " + m_workers.getThreads() + " workers";
+				}
+				if (!m_idle.isBlocking())
+				{
+					status += ", polling with the " + m_idle.getType().getName() + " idle strategy";
+				}
 				System.out.println(status);
 				
+				m_tcpChannel.configureBlocking(false);
+				m_tcpChannel.register(m_selector, SelectionKey.OP_ACCEPT);
+				m_wheel = new TimingWheel(WHEEL_TICK_MS, WHEEL_SLOTS, monotonicMillis());
+				
 				while (!m_terminate)
 				{
-					try
+					if (m_idle.isBlocking())
 					{
-						// this blocks
-						Socket clientSocket = m_tcpSocket.accept();
-						
-						// a request arrived
-						
-						_TcpTimeRequestHandler handler = new _TcpTimeRequestHandler(clientSocket);
-						Thread timeRequestThread = new Thread(handler, "TimeRequestHandler");
-						timeRequestThread.run();
+						// only wake up for the wheel while deadlines are pending
+						m_selector.select(m_wheel.size() > 0 ? WHEEL_TICK_MS : 0);
 					}
-					catch(SocketException e)
+					else
 					{
-						// if we are trying to terminate, this is expected
-						if (!m_terminate)
+						m_idle.idle(m_selector.selectNow() + (m_ready.isEmpty() ? 0 : 1));
+					}
+					
+					Iterator<SelectionKey> iter = m_selector.selectedKeys().iterator();
+					while (iter.hasNext())
+					{
+						SelectionKey key = iter.next();
+						iter.remove();
+						if (!key.isValid())
+						{
+							continue;
+						}
+						if (key.isAcceptable())
+						{
+							accept();
+						}
+						else
 						{
-							e.printStackTrace();
+							_Connection connection = (_Connection)key.attachment();
+							if (key.isWritable())
+							{
+								connection.write();
+							}
+							else if (key.isReadable())
+							{
+								connection.read(m_discard);
+							}
 						}
 					}
+					
+					_Connection ready;
+					while ((ready = m_ready.poll()) != null)
+					{
+						ready.respond();
+					}
+					
+					m_wheel.advance(monotonicMillis());
 				}
 			}
 			catch (UnknownHostException ex)
 			{
 				System.out.println("Invalid Inet Address specified: " + m_listenAddress);
+				listenerFailed(ex);
 			}
 			catch(IOException ex)
 			{
-				ex.printStackTrace();
+				// if we are trying to terminate, this is expected
+				if (!m_terminate)
+				{
+					ex.printStackTrace();
+				}
+				listenerFailed(ex);
+			}
+			finally
+			{
+				shutdown();
+			}
+		}
+		
+		/**
+		 * Accept every pending connection and start writing the time value to each
+		 */
+		private void accept()
+		{
+			while (true)
+			{
+				SocketChannel channel;
+				try
+				{
+					channel = m_tcpChannel.accept();
+				}
+				catch (IOException e)
+				{
+					// if we are trying to terminate, this is expected
+					if (!m_terminate)
+					{
+						e.printStackTrace();
+					}
+					return;
+				}
+				if (channel == null)
+				{
+					return;
+				}
+				
+				// a request arrived
+				
+				try
+				{
+					InetSocketAddress remote = (InetSocketAddress)channel.getRemoteAddress();
+					requestReceived(remote.getAddress());
+					if (!isRequestAllowed(remote.getAddress()))
+					{
+						channel.close();
+						continue;
+					}
+					
+					channel.configureBlocking(false);
+					m_openConnections.incrementAndGet();
+					_Connection connection = m_pool.poll();
+					if (connection == null)
+					{
+						connection = new _Connection(this);
+					}
+					connection.start(channel, remote, m_selector);
+				}
+				catch (IOException e)
+				{
+					e.printStackTrace();
+					try
+					{
+						channel.close();
+					}
+					catch (IOException ex)
+					{
+						// do nothing
+					}
+				}
+			}
+		}
+		
+		/**
+		 * Return a closed connection to the pool for reuse
+		 * @param connection Closed connection
+		 */
+		private void release(_Connection connection)
+		{
+			if (m_pool.size() < MAX_POOLED_CONNECTIONS)
+			{
+				m_pool.push(connection);
+			}
+		}
+		
+		/**
+		 * Close the listener, every open connection and the selector
+		 */
+		private void shutdown()
+		{
+			try
+			{
+				if (m_tcpChannel != null)
+				{
+					m_tcpChannel.close();
+				}
+				if (m_selector != null)
+				{
+					for (SelectionKey key : m_selector.keys())
+					{
+						if (key.attachment() instanceof _Connection)
+						{
+							((_Connection)key.attachment()).close();
+						}
+					}
+					m_selector.close();
+				}
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
 			}
 		}
 	}
 	
 	/**
-	 * This class is the handler for time requests
+	 * This class is a connection being answered; it is its own deadline on the timing wheel, and
+	 * is pooled by the listener so that answering a connection does not allocate one
 	 */
-	private class _TcpTimeRequestHandler implements Runnable
+	private class _Connection extends TimingWheel.Timeout
 	{
-		private Socket m_clientSocket = null;
+		private final _TcpTimeServer m_listener;
+		private final TimingWheel m_wheel;
+		private final RequestContext m_context;
+		private final ByteBuffer m_response;
+		private final TimeServerEvents.RequestReplied m_replyEvent = new TimeServerEvents.RequestReplied();
+		private final _Handle m_handle = new _Handle();
+		private SocketChannel m_channel = null;
+		private InetSocketAddress m_remote = null;
+		private SelectionKey m_key = null;
+		private boolean m_handled = false;
+		
+		/**
+		 * Create an instance of a _Connection
+		 * @param listener Listener owning the connection pool and timing wheel
+		 */
+		public _Connection(_TcpTimeServer listener)
+		{
+			m_listener = listener;
+			m_wheel = listener.m_wheel;
+			m_context = new RequestContext(ProtocolHandler.TRANSPORT_TCP, m_clock);
+			m_response = ByteBuffer.allocate(listener.m_handler.getMaxResponseSize());
+		}
+		
+		/**
+		 * Register the connection and prepare the response, on the listener thread or by a worker
+		 * @param channel Accepted, non-blocking client channel
+		 * @param remote Client address
+		 * @param selector Selector of the listener
+		 * @throws IOException
+		 */
+		public void start(SocketChannel channel, InetSocketAddress remote, Selector selector) throws IOException
+		{
+			m_replyEvent.begin();
+			m_channel = channel;
+			m_remote = remote;
+			m_key = m_channel.register(selector, 0, this);
+			
+			m_context.reset(remote, m_clock.currentTimeMillis());
+			m_response.clear();
+			WorkerPool workers = m_listener.m_workers;
+			if (workers == null)
+			{
+				m_handled = m_listener.m_handler.handle(EMPTY_REQUEST, m_context, m_response);
+				respond();
+			}
+			else if (!workers.execute(m_handle))
+			{
+				requestDropped(remote.getAddress(), "overloaded");
+				close();
+			}
+		}
 		
 		/**
-		 * Create an instance of a TimeRequestHandler
-		 * @param clientSocket The client socket on which to reply
+		 * Write the prepared response, or drop the connection if the handler refused it; called on
+		 * the listener thread
 		 */
-		public _TcpTimeRequestHandler(Socket clientSocket)
+		public void respond()
 		{
-			m_clientSocket = clientSocket;
+			if (m_channel == null)
+			{
+				// closed while a worker had it
+				return;
+			}
+			if (!m_handled)
+			{
+				requestDropped(m_remote.getAddress(), "invalid request");
+				close();
+				return;
+			}
+			m_response.flip();
+			
+			m_wheel.schedule(this, monotonicMillis() + m_writeTimeoutMs);
+			write();
+		}
+		
+		/**
+		 * Write as much of the response as the socket accepts; once it is all written,
+		 * half-close the connection and wait for the client to close
+		 */
+		public void write()
+		{
+			try
+			{
+				m_channel.write(m_response);
+				if (m_response.hasRemaining())
+				{
+					m_key.interestOps(SelectionKey.OP_WRITE);
+					return;
+				}
+				
+				long timeValueSec = m_context.getTimeValue();
+				requestAnswered(m_listener.m_protocol, m_remote.getAddress(), m_remote.getPort(),
+						m_context.getReceiveMillis(), timeValueSec, m_context.getReceiveNanos());
+				requestReplied(m_replyEvent, m_remote.getAddress(), m_remote.getPort(), timeValueSec);
+				if (shouldLogRequest())
+				{
+					logRequest(m_remote, timeValueSec);
+				}
+				
+				m_channel.shutdownOutput();
+				m_key.interestOps(SelectionKey.OP_READ);
+				m_wheel.schedule(this, monotonicMillis() + m_closeTimeoutMs);
+			}
+			catch (IOException e)
+			{
+				close();
+			}
+		}
+		
+		/**
+		 * Read (and discard) client data until the client closes the connection
+		 * @param discard Scratch buffer
+		 */
+		public void read(ByteBuffer discard)
+		{
+			try
+			{
+				int n;
+				do
+				{
+					discard.clear();
+					n = m_channel.read(discard);
+				}
+				while (n > 0);
+				
+				if (n < 0)
+				{
+					close();
+				}
+			}
+			catch (IOException e)
+			{
+				close();
+			}
 		}
 		
 		/*
 		 * (non-Javadoc)
-		 * @see java.lang.Runnable#run()
+		 * @see com.cablelabs.time.server.TimingWheel.Timeout#expired()
 		 */
-		public void run()
+		@Override
+		protected void expired()
 		{
-			if (m_clientSocket != null)
+			if (m_response.hasRemaining())
 			{
-				System.out.print("Processing request from " + m_clientSocket.getRemoteSocketAddress().toString());
-				
+				m_expiredWrites.incrementAndGet();
+				requestDropped(m_remote.getAddress(), "write deadline");
+			}
+			else
+			{
+				m_expiredCloses.incrementAndGet();
+				requestDropped(m_remote.getAddress(), "close deadline");
+			}
+			
+			// abort with a reset rather than leaving the connection in TIME_WAIT or FIN_WAIT
+			try
+			{
+				m_channel.setOption(StandardSocketOptions.SO_LINGER, 0);
+			}
+			catch (IOException e)
+			{
+				// closing anyway
+			}
+			close();
+		}
+		
+		/**
+		 * Close the connection, cancel its deadline and return it to the pool
+		 */
+		public void close()
+		{
+			m_wheel.cancel(this);
+			if (m_channel != null)
+			{
+				m_openConnections.decrementAndGet();
 				try
 				{
-					long timeValueSec =
-							TimeServer.timeServerValueFromDate(Calendar.getInstance(
-									TimeZone.getTimeZone(TIME_SERVER_TIMEZONE)));
-					
-					ByteBuffer buf = ByteBuffer.allocate(4);
-					buf.putInt((int)timeValueSec);
-					byte[] responseData = buf.array();
-					
-					m_clientSocket.getOutputStream().write(responseData);
-					
-					// According to RFC868, it looks like the client is supposed to close the socket,
-					// but let's make sure that it's closed
-					m_clientSocket.close();
-					
-					System.out.println("; returned " + timeValueSec +
-							" ( " + getDateFormat().format(
-									TimeServer.timeServerValueToDate(timeValueSec).getTime()) + " )");
+					m_channel.close();
 				}
 				catch (IOException e)
 				{
-					// we probably didn't end the line
-					System.out.println("");
-					
-					e.printStackTrace();
+					// do nothing
+				}
+				m_channel = null;
+				m_remote = null;
+				m_key = null;
+				m_listener.release(this);
+			}
+		}
+		
+		/**
+		 * This class asks the handler for the response of the connection on a worker thread; the
+		 * deadlines are only scheduled once the connection is back with the listener, as the
+		 * timing wheel belongs to the listener thread
+		 */
+		private class _Handle extends WorkerPool.Task
+		{
+			/*
+			 * (non-Javadoc)
+			 * @see com.cablelabs.time.server.WorkerPool.Task#work()
+			 */
+			@Override
+			protected void work()
+			{
+				m_handled = false;
+				try
+				{
+					m_handled = m_listener.m_handler.handle(EMPTY_REQUEST, m_context, m_response);
+				}
+				finally
+				{
+					m_listener.m_ready.offer(_Connection.this);
+					Selector selector = m_selector;
+					if (selector != null)
+					{
+						selector.wakeup();
+					}
 				}
 			}
 		}
 	}
+	
+	/**
+	 * This class builds a TcpTimeServer
+	 */
+	public static class Builder extends TimeServer.Builder<TcpTimeServer>
+	{
+		/*
+		 * (non-Javadoc)
+		 * @see com.cablelabs.time.server.TimeServer.Builder#create()
+		 */
+		@Override
+		protected TcpTimeServer create()
+		{
+			return new TcpTimeServer();
+		}
+	}
 }
@@ -17,20 +17,32 @@
 package com.cablelabs.time.server;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
 import java.util.TimeZone;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 public abstract class TimeServer
 {
 	// On unix-based systems, can't open a socket on port < 1024 without sudo 
 	public static final int TIME_SERVER_PORT = 37;
-	// TESTING!
-	//public static final int TIME_SERVER_PORT = 10001;
 	public static final String TIME_SERVER_TIMEZONE = "GMT";
 	
-	protected static SimpleDateFormat s_dateFormat = null;
+	public static final byte PROTOCOL_TCP = 1;
+	public static final byte PROTOCOL_UDP = 2;
+	public static final byte PROTOCOL_SNTP = 3;
+	public static final byte PROTOCOL_DAYTIME_TCP = 4;
+	public static final byte PROTOCOL_DAYTIME_UDP = 5;
+	public static final int PROTOCOL_COUNT = 5;
+	
+	public static final int DEFAULT_EVENT_SAMPLE_INTERVAL = 100;
 	
 	protected static long s_referenceValueSec = 0;
 	
@@ -39,9 +51,35 @@ public abstract class TimeServer
 	protected String m_listenAddress = null;
 	protected boolean m_autoListenInterface = false;
 	
+	protected Executor m_executor = null;
 	protected Thread m_listenerThread = null;
+	private _ListenerRun m_listenerRun = null;
+	
+	protected volatile boolean m_terminate = false;
+	
+	protected volatile int m_requestLogInterval = 1;
+	private long m_requestLogCounter = 0;
+	
+	protected volatile int m_eventSampleInterval = DEFAULT_EVENT_SAMPLE_INTERVAL;
+	private long m_receivedSampleCounter = 0;
+	private long m_droppedSampleCounter = 0;
+	private final TimeServerEvents.RequestReceived m_receivedEvent = new TimeServerEvents.RequestReceived();
+	private final TimeServerEvents.RequestDropped m_droppedEvent = new TimeServerEvents.RequestDropped();
+	private TimeServerEvents.Listener m_bindEvent = null;
 	
-	protected boolean m_terminate = false;
+	// totals since the server was created, exported by a StatsExporter
+	private final AtomicLong m_receivedCount = new AtomicLong(0);
+	private final AtomicLong m_answeredCount = new AtomicLong(0);
+	private final AtomicLong m_droppedCount = new AtomicLong(0);
+	private final LatencyHistogram m_replyTime = new LatencyHistogram();
+	
+	protected RequestJournal m_journal = null;
+	protected volatile AccessControlList m_accessControl = null;
+	protected HeavyHitterTracker m_heavyHitters = null;
+	protected ServedClock m_clock = new ServedClock();
+	protected ProtocolHandler m_handler = new Rfc868Handler();
+	protected WorkerPool m_workers = null;
+	protected IdleStrategy.Type m_idleStrategy = IdleStrategy.Type.BLOCKING;
 	
 	static {
 		/*
@@ -49,14 +87,23 @@ public abstract class TimeServer
 		 * The time is the number of seconds since 00:00 (midnight) 1 January 1900
 		 * GMT, such that the time 1 is 12:00:01 am on 1 January 1900 GMT; this
 		 * base will serve until the year 2036.
+		 * 
+		 * That is 2208988800 seconds (70 years, 17 of them leap years) before the Java epoch;
+		 * as a constant, loading the class does not load the calendar and time zone data.
 		 */
-		Calendar cal = Calendar.getInstance(TimeZone.getTimeZone(TIME_SERVER_TIMEZONE));
-		cal.set(1900, 0, 1, 0, 0, 0);
-		cal.set(Calendar.MILLISECOND, 0);
-		s_referenceValueSec = cal.getTimeInMillis() / 1000;
+		s_referenceValueSec = -2208988800L;
+	}
+	
+	/**
+	 * This class holds the date formatter, so it is only created if something is logged
+	 */
+	private static class _DateFormat
+	{
+		private static final SimpleDateFormat s_dateFormat = new SimpleDateFormat("HH:mm:ss dd MMM yyyy z");
 		
-		s_dateFormat = new SimpleDateFormat("HH:mm:ss dd MMM yyyy z");
-		s_dateFormat.setTimeZone(TimeZone.getTimeZone(TIME_SERVER_TIMEZONE));
+		static {
+			s_dateFormat.setTimeZone(TimeZone.getTimeZone(TIME_SERVER_TIMEZONE));
+		}
 	}
 	
 	/**
@@ -65,11 +112,12 @@ public abstract class TimeServer
 	 */
 	public boolean getServerRunning()
 	{
-		return ((m_listenerThread != null) && (m_listenerThread.isAlive()));
+		_ListenerRun run = m_listenerRun;
+		return ((run != null) && (run.m_done.getCount() > 0));
 	}
 	
 	/**
-	 * Starts this server
+	 * Starts this server; the listener binds asynchronously (see {@link #getBoundAddress()})
 	 */
 	public void startServer()
 	{
@@ -77,33 +125,250 @@ public abstract class TimeServer
 	}
 	
 	/**
-	 * Stops this server
+	 * Starts this server
+	 * @return Future completed with the bound address, or failed with the bind error
 	 */
-	public void stopServer()
+	public CompletableFuture<InetSocketAddress> start()
 	{
-		m_terminate = true;
-		if (m_listenerThread != null)
+		startServer();
+		return getBoundAddress();
+	}
+	
+	/**
+	 * Get the address the listener is bound to
+	 * @return Future completed with the bound address, or failed with the bind error
+	 * (or null if the server was never started)
+	 */
+	public CompletableFuture<InetSocketAddress> getBoundAddress()
+	{
+		_ListenerRun run = m_listenerRun;
+		return (run != null ? run.m_bound : null);
+	}
+	
+	/**
+	 * Run the listener on the injected executor, or on a new thread if there is none
+	 * @param listener Listener loop; it must call {@link #listenerBound} or {@link #listenerFailed}
+	 * @param name Thread name
+	 */
+	protected void startListener(Runnable listener, String name)
+	{
+		m_bindEvent = new TimeServerEvents.Listener();
+		m_bindEvent.begin();
+		
+		final _ListenerRun run = new _ListenerRun(listener);
+		m_listenerRun = run;
+		
+		if (m_executor == null)
 		{
-			m_listenerThread.interrupt();
-			
+			m_listenerThread = new Thread(run, name);
+			m_listenerThread.start();
+		}
+		else
+		{
+			m_listenerThread = null;
 			try
 			{
-				m_listenerThread.join();
+				m_executor.execute(run);
 			}
-			catch (InterruptedException e)
+			catch (RejectedExecutionException e)
 			{
-				e.printStackTrace();
+				run.m_claimed.set(true);
+				run.m_bound.completeExceptionally(e);
+				run.m_done.countDown();
 			}
 		}
 	}
 	
 	/**
-	 * Get the date formatter
+	 * Report that the listener socket is bound
+	 * @param address Bound address
+	 */
+	protected void listenerBound(InetSocketAddress address)
+	{
+		m_listenerRun.m_bound.complete(address);
+		commitListenerEvent(m_bindEvent, "bind", address.getAddress().getHostAddress(), address.getPort(), null);
+	}
+	
+	/**
+	 * Report that the listener socket could not be bound
+	 * @param error Bind error
+	 */
+	protected void listenerFailed(Throwable error)
+	{
+		m_listenerRun.m_bound.completeExceptionally(error);
+		commitListenerEvent(m_bindEvent, "bind", m_listenAddress, m_port, error.toString());
+	}
+	
+	/**
+	 * Commit a listener flight recorder event
+	 * @param event Event, begun when the action started
+	 * @param action Action ("bind", "restart" or "stop")
+	 * @param address Listen address
+	 * @param port Listen port
+	 * @param error Error description, or null on success
+	 */
+	private void commitListenerEvent(TimeServerEvents.Listener event, String action, String address, int port,
+			String error)
+	{
+		if (event != null && event.shouldCommit())
+		{
+			event.protocol = protocolName(getProtocol());
+			event.action = action;
+			event.address = address;
+			event.port = port;
+			event.error = error;
+			event.commit();
+		}
+	}
+	
+	/**
+	 * Get the name of a protocol
+	 * @param protocol One of the PROTOCOL_ constants
+	 * @return Protocol name
+	 */
+	public static String protocolName(byte protocol)
+	{
+		switch (protocol)
+		{
+		case PROTOCOL_TCP:
+			return "TCP";
+		case PROTOCOL_SNTP:
+			return "SNTP";
+		case PROTOCOL_DAYTIME_TCP:
+			return "DAYTIME-TCP";
+		case PROTOCOL_DAYTIME_UDP:
+			return "DAYTIME-UDP";
+		default:
+			return "UDP";
+		}
+	}
+	
+	/**
+	 * Get the protocol served by this server, as recorded in the journal and events
+	 * @return One of the PROTOCOL_ constants
+	 */
+	protected byte getProtocol()
+	{
+		return m_handler.getProtocol(getTransport());
+	}
+	
+	/**
+	 * Get the transport of the listener
+	 * @return {@link ProtocolHandler#TRANSPORT_TCP} or {@link ProtocolHandler#TRANSPORT_UDP}
+	 */
+	protected abstract int getTransport();
+	
+	/**
+	 * Close the listener socket so that a blocked listener returns
+	 */
+	protected abstract void closeListener();
+	
+	/**
+	 * Stops this server and waits for the listener to return
+	 */
+	public void stopServer()
+	{
+		TimeServerEvents.Listener event = new TimeServerEvents.Listener();
+		event.begin();
+		
+		// the flag is set before the socket is closed, so the listener knows the close is expected
+		m_terminate = true;
+		closeListener();
+		
+		_ListenerRun run = m_listenerRun;
+		if (run == null)
+		{
+			return;
+		}
+		if (run.m_claimed.compareAndSet(false, true))
+		{
+			// still queued on the executor; it will return without binding when it runs
+			run.m_bound.completeExceptionally(new IOException("Server stopped before binding"));
+			run.m_done.countDown();
+			return;
+		}
+		
+		if (m_listenerThread != null)
+		{
+			m_listenerThread.interrupt();
+		}
+		try
+		{
+			run.m_done.await();
+		}
+		catch (InterruptedException e)
+		{
+			e.printStackTrace();
+		}
+		commitListenerEvent(event, "stop", m_listenAddress, m_port, null);
+	}
+	
+	/**
+	 * Get the executor running the listener
+	 * @return Executor, or null if the server creates its own listener thread
+	 */
+	public Executor getExecutor()
+	{
+		return m_executor;
+	}
+	
+	/**
+	 * Set the executor running the listener; the listener occupies one of its threads while the
+	 * server is running. Takes effect the next time the server is started.
+	 * @param executor Executor, or null to create a listener thread
+	 */
+	public void setExecutor(Executor executor)
+	{
+		m_executor = executor;
+	}
+	
+	/**
+	 * Get the pool answering requests handed over by the listener
+	 * @return Worker pool, or null if the listener answers requests itself
+	 */
+	public WorkerPool getWorkers()
+	{
+		return m_workers;
+	}
+	
+	/**
+	 * Set the pool answering requests handed over by the listener; the pool may be shared by
+	 * several servers and is not shut down when they stop. Takes effect the next time the server
+	 * is started.
+	 * @param workers Worker pool, or null for the listener to answer requests itself
+	 */
+	public void setWorkers(WorkerPool workers)
+	{
+		m_workers = workers;
+	}
+	
+	/**
+	 * Get what the listener does while waiting for requests
+	 * @return Idle strategy
+	 */
+	public IdleStrategy.Type getIdleStrategy()
+	{
+		return m_idleStrategy;
+	}
+	
+	/**
+	 * Set what the listener does while waiting for requests: block in the kernel (the default),
+	 * or poll a non-blocking socket and spin, yield or park in between. Takes effect the next
+	 * time the server is started.
+	 * @param idleStrategy Idle strategy
+	 */
+	public void setIdleStrategy(IdleStrategy.Type idleStrategy)
+	{
+		m_idleStrategy = idleStrategy;
+	}
+	
+	/**
+	 * Get the date formatter; it is shared, so synchronize on it while formatting
 	 * @return
 	 */
 	public static SimpleDateFormat getDateFormat()
 	{
-		return s_dateFormat;
+		return _DateFormat.s_dateFormat;
 	}
 	
 	/**
@@ -113,7 +378,7 @@ public abstract class TimeServer
 	 */
 	public static Calendar timeServerValueToDate(long timeServerValue)
 	{
-		long timeValueMs = (timeServerValue + s_referenceValueSec) * 1000;
+		long timeValueMs = timeServerValueToMillis(timeServerValue);
 		
 		Calendar cal = Calendar.getInstance(TimeZone.getTimeZone(TimeServer.TIME_SERVER_TIMEZONE));
 		cal.setTimeInMillis(timeValueMs);
@@ -121,6 +386,16 @@ public abstract class TimeServer
 		return cal;
 	}
 	
+	/**
+	 * Convert the specified Time Server value to milliseconds since the Java epoch
+	 * @param timeServerValue Time Server value (seconds since 00:00 1 January 1900 GMT)
+	 * @return Milliseconds since 00:00 1 January 1970 GMT
+	 */
+	public static long timeServerValueToMillis(long timeServerValue)
+	{
+		return (timeServerValue + s_referenceValueSec) * 1000;
+	}
+	
 	/**
 	 * Convert the specified date (Calendar object) to a Time Server value
 	 * @param calendar Calendar object holding the date
@@ -135,6 +410,16 @@ public abstract class TimeServer
 		return timeValueSec;
 	}
 	
+	/**
+	 * Convert the specified time in milliseconds since the Java epoch to a Time Server value
+	 * @param timeMillis Milliseconds since 00:00 1 January 1970 GMT
+	 * @return Time Server value (seconds since 00:00 1 January 1900 GMT)
+	 */
+	public static long timeServerValueFromMillis(long timeMillis)
+	{
+		return Math.floorDiv(timeMillis, 1000L) - s_referenceValueSec;
+	}
+	
 	/**
 	 * Convert a Time Server value into a byte array
 	 * @param timeServerValue Time Server value
@@ -142,12 +427,23 @@ public abstract class TimeServer
 	 */
 	public static byte[] timeServerValueToBytes(long timeServerValue)
 	{
-		ByteBuffer buf = ByteBuffer.allocate(4);
-	    buf.putInt((int)timeServerValue);
-	    
-	    byte[] bytes = buf.array();
-	    
-	    return bytes;
+		byte[] bytes = new byte[4];
+		timeServerValueToBytes(timeServerValue, bytes, 0);
+		return bytes;
+	}
+	
+	/**
+	 * Write a Time Server value into a byte array without allocating
+	 * @param timeServerValue Time Server value
+	 * @param bytes Destination array
+	 * @param offset Offset of the 4 (big-endian) bytes in the array
+	 */
+	public static void timeServerValueToBytes(long timeServerValue, byte[] bytes, int offset)
+	{
+		bytes[offset] = (byte)(timeServerValue >>> 24);
+		bytes[offset + 1] = (byte)(timeServerValue >>> 16);
+		bytes[offset + 2] = (byte)(timeServerValue >>> 8);
+		bytes[offset + 3] = (byte)timeServerValue;
 	}
 	
 	/**
@@ -157,13 +453,19 @@ public abstract class TimeServer
 	 */
 	public static long timeServerValueFromBytes(byte[] bytes)
 	{
-		ByteBuffer buf = ByteBuffer.allocate(4+bytes.length);
-		buf.putInt(0);
-		buf.put(bytes);
-		buf.flip();
-		long value = buf.getLong();
-		
-		return value;
+		return timeServerValueFromBytes(bytes, 0);
+	}
+	
+	/**
+	 * Read a Time Server value from a byte array without allocating
+	 * @param bytes Source array
+	 * @param offset Offset of the 4 (big-endian) bytes in the array
+	 * @return Time Server value
+	 */
+	public static long timeServerValueFromBytes(byte[] bytes, int offset)
+	{
+		return ((bytes[offset] & 0xFFL) << 24) | ((bytes[offset + 1] & 0xFFL) << 16) |
+				((bytes[offset + 2] & 0xFFL) << 8) | (bytes[offset + 3] & 0xFFL);
 	}
 	
 	/**
@@ -177,8 +479,11 @@ public abstract class TimeServer
 		boolean running = getServerRunning();
 		if (running)
 		{
+			TimeServerEvents.Listener event = new TimeServerEvents.Listener();
+			event.begin();
 			stopServer();
 			startServer();
+			commitListenerEvent(event, "restart", m_listenAddress, m_port, null);
 		}
 	}
 	
@@ -248,4 +553,588 @@ public abstract class TimeServer
 		m_requestBacklog = backlog;
 		restartServerIfNecessary();
 	}
+	
+	/**
+	 * Get the request log sampling interval
+	 * @return Interval (1 logs every request, 0 logs none)
+	 */
+	public int getRequestLogInterval()
+	{
+		return m_requestLogInterval;
+	}
+	
+	/**
+	 * Set the request log sampling interval; logging formats a line per logged request, so busy
+	 * servers should log a sample (or nothing) to keep the request path free of garbage
+	 * @param interval Log every interval-th request (1 logs every request, 0 logs none)
+	 */
+	public void setRequestLogInterval(int interval)
+	{
+		if (interval < 0)
+		{
+			throw new IllegalArgumentException("Invalid request log interval: " + interval);
+		}
+		m_requestLogInterval = interval;
+	}
+	
+	/**
+	 * Check whether the current request should be logged; called once per request by the
+	 * listener thread (or by the worker answering it, in which case the sample is approximate)
+	 * @return True if the request should be logged
+	 */
+	protected boolean shouldLogRequest()
+	{
+		int interval = m_requestLogInterval;
+		if (interval == 0)
+		{
+			return false;
+		}
+		return (m_requestLogCounter++ % interval == 0);
+	}
+	
+	/**
+	 * Log an answered request
+	 * @param source Request source
+	 * @param timeValueSec Time Server value returned
+	 */
+	protected void logRequest(Object source, long timeValueSec)
+	{
+		String date;
+		SimpleDateFormat format = getDateFormat();
+		synchronized (format)
+		{
+			date = format.format(timeServerValueToDate(timeValueSec).getTime());
+		}
+		System.out.println("Processing request from " + source + "; returned " + timeValueSec + " ( " + date + " )");
+	}
+	
+	/**
+	 * Get the journal receiving a record for every request
+	 * @return Request journal, or null if journaling is disabled
+	 */
+	public RequestJournal getJournal()
+	{
+		return m_journal;
+	}
+	
+	/**
+	 * Set the journal receiving a record for every request
+	 * @param journal Request journal, or null to disable journaling
+	 */
+	public void setJournal(RequestJournal journal)
+	{
+		m_journal = journal;
+	}
+	
+	/**
+	 * Get the access control list applied to requests
+	 * @return Access control list, or null if every request is answered
+	 */
+	public AccessControlList getAccessControl()
+	{
+		return m_accessControl;
+	}
+	
+	/**
+	 * Set the access control list applied to requests
+	 * @param accessControl Access control list, or null to answer every request
+	 */
+	public void setAccessControl(AccessControlList accessControl)
+	{
+		m_accessControl = accessControl;
+	}
+	
+	/**
+	 * Get the clock served by this server
+	 * @return Served clock
+	 */
+	public ServedClock getClock()
+	{
+		return m_clock;
+	}
+	
+	/**
+	 * Set the clock served by this server
+	 * @param clock Served clock
+	 */
+	public void setClock(ServedClock clock)
+	{
+		m_clock = clock;
+	}
+	
+	/**
+	 * Get the protocol answered by this server
+	 * @return Protocol handler
+	 */
+	public ProtocolHandler getHandler()
+	{
+		return m_handler;
+	}
+	
+	/**
+	 * Set the protocol answered by this server; takes effect when the server is (re)started.
+	 * The port is not changed.
+	 * @param handler Protocol handler
+	 */
+	public void setHandler(ProtocolHandler handler)
+	{
+		if (!handler.supportsTransport(getTransport()))
+		{
+			throw new IllegalArgumentException("The " + handler.getName() + " protocol cannot be served over " +
+					(getTransport() == ProtocolHandler.TRANSPORT_TCP ? "TCP" : "UDP"));
+		}
+		m_handler = handler;
+	}
+	
+	/**
+	 * Check whether a request from the specified address should be answered: the served clock
+	 * must be synchronized and the access control list (if any) must allow the address
+	 * @param address Source address
+	 * @return True if the request should be answered
+	 */
+	protected boolean isRequestAllowed(InetAddress address)
+	{
+		if (!m_clock.isSynchronized())
+		{
+			requestDropped(address, "unsynchronized");
+			return false;
+		}
+		AccessControlList acl = m_accessControl;
+		if (acl != null && !acl.isAllowed(address))
+		{
+			requestDropped(address, "access denied");
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Get the flight recorder sampling interval of the per-request received and dropped events
+	 * @return Interval (1 records every event, 0 records none)
+	 */
+	public int getEventSampleInterval()
+	{
+		return m_eventSampleInterval;
+	}
+	
+	/**
+	 * Set the flight recorder sampling interval of the per-request received and dropped events
+	 * @param interval Record every interval-th event (1 records every event, 0 records none)
+	 */
+	public void setEventSampleInterval(int interval)
+	{
+		if (interval < 0)
+		{
+			throw new IllegalArgumentException("Invalid event sample interval: " + interval);
+		}
+		m_eventSampleInterval = interval;
+	}
+	
+	/**
+	 * Check whether a sampled event should be recorded
+	 * @param count Number of events of this type seen before this one
+	 * @return True if the event is in the sample
+	 */
+	private boolean sampleEvent(long count)
+	{
+		int interval = m_eventSampleInterval;
+		return (interval > 0 && count % interval == 0);
+	}
+	
+	/**
+	 * Record the arrival of a request; called on the listener thread
+	 * @param address Source address
+	 */
+	protected void requestReceived(InetAddress address)
+	{
+		m_receivedCount.incrementAndGet();
+		TimeServerEvents.RequestReceived event = m_receivedEvent;
+		if (event.isEnabled() && sampleEvent(m_receivedSampleCounter++))
+		{
+			event.begin();
+			event.protocol = protocolName(getProtocol());
+			event.source = address.getHostAddress();
+			event.commit();
+		}
+	}
+	
+	/**
+	 * Record a request that was not answered; called on the listener thread or, with a
+	 * {@link WorkerPool}, on a worker thread (the sample count is then approximate)
+	 * @param address Source address
+	 * @param reason Reason the request was dropped
+	 */
+	protected void requestDropped(InetAddress address, String reason)
+	{
+		m_droppedCount.incrementAndGet();
+		TimeServerEvents.RequestDropped event = m_droppedEvent;
+		if (event.isEnabled() && sampleEvent(m_droppedSampleCounter++))
+		{
+			synchronized (event)
+			{
+				event.begin();
+				event.protocol = protocolName(getProtocol());
+				event.source = address.getHostAddress();
+				event.reason = reason;
+				event.commit();
+			}
+		}
+	}
+	
+	/**
+	 * Record a reply; the event must have been begun when the request arrived
+	 * @param event Reply event owned by the caller
+	 * @param address Source address
+	 * @param port Source port
+	 * @param timeValueSec Time Server value returned
+	 */
+	protected void requestReplied(TimeServerEvents.RequestReplied event, InetAddress address, int port,
+			long timeValueSec)
+	{
+		event.end();
+		if (event.shouldCommit())
+		{
+			event.protocol = protocolName(getProtocol());
+			event.source = address.getHostAddress();
+			event.sourcePort = port;
+			event.timeValue = timeValueSec;
+			event.commit();
+		}
+	}
+	
+	/**
+	 * Get the number of requests received, including those dropped
+	 * @return Count, since the server was created
+	 */
+	public long getReceivedCount()
+	{
+		return m_receivedCount.get();
+	}
+	
+	/**
+	 * Get the number of requests answered
+	 * @return Count, since the server was created
+	 */
+	public long getAnsweredCount()
+	{
+		return m_answeredCount.get();
+	}
+	
+	/**
+	 * Get the number of requests dropped, for any reason
+	 * @return Count, since the server was created
+	 */
+	public long getDroppedCount()
+	{
+		return m_droppedCount.get();
+	}
+	
+	/**
+	 * Get the time from the arrival of each answered request to its reply being sent
+	 * @return Histogram, since the server was created
+	 */
+	public LatencyHistogram getReplyTime()
+	{
+		return m_replyTime;
+	}
+	
+	/**
+	 * Get the heavy-hitter tracker fed by this server
+	 * @return Heavy-hitter tracker, or null if tracking is disabled
+	 */
+	public HeavyHitterTracker getHeavyHitters()
+	{
+		return m_heavyHitters;
+	}
+	
+	/**
+	 * Set the heavy-hitter tracker fed by this server
+	 * @param heavyHitters Heavy-hitter tracker, or null to disable tracking
+	 */
+	public void setHeavyHitters(HeavyHitterTracker heavyHitters)
+	{
+		m_heavyHitters = heavyHitters;
+	}
+	
+	/**
+	 * Record a request that has been answered
+	 * @param protocol One of the PROTOCOL_ constants
+	 * @param address Source address
+	 * @param port Source port
+	 * @param nowMs Time the request was handled (ms since 1970)
+	 * @param timeValueSec Time Server value returned
+	 * @param receiveNanos {@link System#nanoTime()} when the request arrived
+	 */
+	protected void requestAnswered(byte protocol, InetAddress address, int port, long nowMs, long timeValueSec,
+			long receiveNanos)
+	{
+		m_answeredCount.incrementAndGet();
+		m_replyTime.record(System.nanoTime() - receiveNanos);
+		
+		RequestJournal journal = m_journal;
+		if (journal != null)
+		{
+			journal.append(nowMs, protocol, address, port, timeValueSec);
+		}
+		
+		HeavyHitterTracker heavyHitters = m_heavyHitters;
+		if (heavyHitters != null)
+		{
+			heavyHitters.record(protocol, address, nowMs);
+		}
+	}
+	
+	/**
+	 * This class is one run of the listener, from start until it returns
+	 */
+	private static class _ListenerRun implements Runnable
+	{
+		private final Runnable m_listener;
+		private final AtomicBoolean m_claimed = new AtomicBoolean(false);
+		private final CountDownLatch m_done = new CountDownLatch(1);
+		private final CompletableFuture<InetSocketAddress> m_bound = new CompletableFuture<InetSocketAddress>();
+		
+		/**
+		 * Create an instance of a _ListenerRun
+		 * @param listener Listener loop
+		 */
+		public _ListenerRun(Runnable listener)
+		{
+			m_listener = listener;
+		}
+		
+		/*
+		 * (non-Javadoc)
+		 * @see java.lang.Runnable#run()
+		 */
+		public void run()
+		{
+			// a stopped server may still be queued on an executor
+			if (!m_claimed.compareAndSet(false, true))
+			{
+				return;
+			}
+			try
+			{
+				m_listener.run();
+			}
+			catch (RuntimeException e)
+			{
+				m_bound.completeExceptionally(e);
+				throw e;
+			}
+			finally
+			{
+				m_bound.completeExceptionally(new IOException("Listener stopped"));
+				m_done.countDown();
+			}
+		}
+	}
+	
+	/**
+	 * This class builds a time server for embedding in another application
+	 * @param <S> Time server type
+	 */
+	public static abstract class Builder<S extends TimeServer>
+	{
+		private int m_port = -1;
+		private String m_listenAddress = null;
+		private int m_requestBacklog = 100;
+		private Executor m_executor = null;
+		private ServedClock m_clock = null;
+		private ProtocolHandler m_handler = null;
+		private RequestJournal m_journal = null;
+		private AccessControlList m_accessControl = null;
+		private HeavyHitterTracker m_heavyHitters = null;
+		private WorkerPool m_workers = null;
+		private IdleStrategy.Type m_idleStrategy = IdleStrategy.Type.BLOCKING;
+		private int m_requestLogInterval = 1;
+		private int m_eventSampleInterval = DEFAULT_EVENT_SAMPLE_INTERVAL;
+		
+		/**
+		 * Set the port on which the server will listen
+		 * @param port Port number (0 picks a free port; by default, the well-known port of the protocol)
+		 * @return This builder
+		 */
+		public Builder<S> setPort(int port)
+		{
+			m_port = port;
+			return this;
+		}
+		
+		/**
+		 * Set the Inet Address on which the server will listen
+		 * @param address String Inet Address, or null for all interfaces
+		 * @return This builder
+		 */
+		public Builder<S> setListenAddress(String address)
+		{
+			m_listenAddress = address;
+			return this;
+		}
+		
+		/**
+		 * Set the request backlog of the server
+		 * @param backlog Backlog
+		 * @return This builder
+		 */
+		public Builder<S> setRequestBacklog(int backlog)
+		{
+			m_requestBacklog = backlog;
+			return this;
+		}
+		
+		/**
+		 * Set the executor running the listener
+		 * @param executor Executor, or null to create a listener thread
+		 * @return This builder
+		 */
+		public Builder<S> setExecutor(Executor executor)
+		{
+			m_executor = executor;
+			return this;
+		}
+		
+		/**
+		 * Set the clock served by the server
+		 * @param clock Served clock, or null for the host clock
+		 * @return This builder
+		 */
+		public Builder<S> setClock(ServedClock clock)
+		{
+			m_clock = clock;
+			return this;
+		}
+		
+		/**
+		 * Set the protocol answered by the server
+		 * @param handler Protocol handler, or null for the server's own protocol
+		 * @return This builder
+		 */
+		public Builder<S> setHandler(ProtocolHandler handler)
+		{
+			m_handler = handler;
+			return this;
+		}
+		
+		/**
+		 * Set the journal receiving a record for every request
+		 * @param journal Request journal, or null
+		 * @return This builder
+		 */
+		public Builder<S> setJournal(RequestJournal journal)
+		{
+			m_journal = journal;
+			return this;
+		}
+		
+		/**
+		 * Set the access control list applied to requests
+		 * @param accessControl Access control list, or null
+		 * @return This builder
+		 */
+		public Builder<S> setAccessControl(AccessControlList accessControl)
+		{
+			m_accessControl = accessControl;
+			return this;
+		}
+		
+		/**
+		 * Set the heavy-hitter tracker fed by the server
+		 * @param heavyHitters Heavy-hitter tracker, or null
+		 * @return This builder
+		 */
+		public Builder<S> setHeavyHitters(HeavyHitterTracker heavyHitters)
+		{
+			m_heavyHitters = heavyHitters;
+			return this;
+		}
+		
+		/**
+		 * Set the pool answering requests handed over by the listener
+		 * @param workers Worker pool, or null for the listener to answer requests itself
+		 * @return This builder
+		 */
+		public Builder<S> setWorkers(WorkerPool workers)
+		{
+			m_workers = workers;
+			return this;
+		}
+		
+		/**
+		 * Set what the listener does while waiting for requests
+		 * @param idleStrategy Idle strategy (by default, blocking)
+		 * @return This builder
+		 */
+		public Builder<S> setIdleStrategy(IdleStrategy.Type idleStrategy)
+		{
+			m_idleStrategy = idleStrategy;
+			return this;
+		}
+		
+		/**
+		 * Set the request log sampling interval
+		 * @param interval Log every interval-th request (1 logs every request, 0 logs none)
+		 * @return This builder
+		 */
+		public Builder<S> setRequestLogInterval(int interval)
+		{
+			if (interval < 0)
+			{
+				throw new IllegalArgumentException("Invalid request log interval: " + interval);
+			}
+			m_requestLogInterval = interval;
+			return this;
+		}
+		
+		/**
+		 * Set the flight recorder sampling interval of the per-request received and dropped events
+		 * @param interval Record every interval-th event (1 records every event, 0 records none)
+		 * @return This builder
+		 */
+		public Builder<S> setEventSampleInterval(int interval)
+		{
+			if (interval < 0)
+			{
+				throw new IllegalArgumentException("Invalid event sample interval: " + interval);
+			}
+			m_eventSampleInterval = interval;
+			return this;
+		}
+		
+		/**
+		 * Create the (unconfigured) server
+		 * @return Time server
+		 */
+		protected abstract S create();
+		
+		/**
+		 * Build the server; it is not started
+		 * @return Time server
+		 */
+		public S build()
+		{
+			S server = create();
+			if (m_handler != null)
+			{
+				server.setHandler(m_handler);
+			}
+			server.m_port = (m_port < 0 ? server.m_handler.getDefaultPort() : m_port);
+			server.m_listenAddress = m_listenAddress;
+			server.m_requestBacklog = m_requestBacklog;
+			server.m_executor = m_executor;
+			if (m_clock != null)
+			{
+				server.m_clock = m_clock;
+			}
+			server.m_journal = m_journal;
+			server.m_accessControl = m_accessControl;
+			server.m_heavyHitters = m_heavyHitters;
+			server.m_workers = m_workers;
+			server.m_idleStrategy = m_idleStrategy;
+			server.m_requestLogInterval = m_requestLogInterval;
+			server.m_eventSampleInterval = m_eventSampleInterval;
+			return server;
+		}
+	}
 }
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2017 Cable Television Laboratories, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cablelabs.time.server;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * This class holds the JDK Flight Recorder events emitted by the time servers.
+ *
+ * The events are sized to stay enabled in a continuous recording: replies are only recorded
+ * when they take longer than a threshold, and the per-request received and shed events are
+ * sampled (see {@link TimeServer#setEventSampleInterval}).  Event objects are reused by the
+ * listener thread that emits them, and fields that need formatting are only filled in for
+ * events that will be committed, so no recording means no garbage.
+ */
+public final class TimeServerEvents
+{
+	public static final String CATEGORY = "CableLabs Time Server";
+
+	/**
+	 * Not instantiable
+	 */
+	private TimeServerEvents()
+	{
+	}
+
+	/**
+	 * This class is a request arriving at a listener (sampled; disabled unless enabled in the
+	 * recording settings, since it fires for every request)
+	 */
+	@Name("com.cablelabs.time.RequestReceived")
+	@Label("Time Request Received")
+	@Category(CATEGORY)
+	@Description("A time request arrived (sampled)")
+	@StackTrace(false)
+	@Enabled(false)
+	public static class RequestReceived extends Event
+	{
+		@Label("Protocol")
+		String protocol;
+
+		@Label("Source")
+		String source;
+	}
+
+	/**
+	 * This class is a reply sent to a client, spanning the request's residence in the server
+	 */
+	@Name("com.cablelabs.time.RequestReplied")
+	@Label("Time Request Replied")
+	@Category(CATEGORY)
+	@Description("A time request was answered; the duration is the time from arrival to reply")
+	@StackTrace(false)
+	@Threshold("1 ms")
+	public static class RequestReplied extends Event
+	{
+		@Label("Protocol")
+		String protocol;
+
+		@Label("Source")
+		String source;
+
+		@Label("Source Port")
+		int sourcePort;
+
+		@Label("Time Value")
+		long timeValue;
+	}
+
+	/**
+	 * This class is a request that was shed by policy or dropped by the server (sampled)
+	 */
+	@Name("com.cablelabs.time.RequestDropped")
+	@Label("Time Request Dropped")
+	@Category(CATEGORY)
+	@Description("A time request was not answered (sampled)")
+	@StackTrace(false)
+	public static class RequestDropped extends Event
+	{
+		@Label("Protocol")
+		String protocol;
+
+		@Label("Source")
+		String source;
+
+		@Label("Reason")
+		String reason;
+	}
+
+	/**
+	 * This class is a listener being bound, restarted or stopped
+	 */
+	@Name("com.cablelabs.time.Listener")
+	@Label("Time Server Listener")
+	@Category(CATEGORY)
+	@Description("A listener socket was bound, restarted or stopped")
+	public static class Listener extends Event
+	{
+		@Label("Protocol")
+		String protocol;
+
+		@Label("Action")
+		String action;
+
+		@Label("Address")
+		String address;
+
+		@Label("Port")
+		int port;
+
+		@Label("Error")
+		String error;
+	}
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2017 Cable Television Laboratories, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cablelabs.time.server;
+
+/**
+ * This class is a hashed timing wheel of deadlines.
+ *
+ * Time is divided into ticks, and each tick hashes to one of a power-of-two number of slots.  A
+ * slot is an intrusive doubly-linked list of {@link Timeout}s, so scheduling and cancelling are
+ * O(1) and allocate nothing: the owner of a deadline (a connection, say) extends Timeout and
+ * reuses the same node for every deadline it arms.  Deadlines more than one revolution away
+ * simply stay in their slot until the wheel comes round to their tick.
+ *
+ * The wheel is not thread-safe; it is meant to be driven by the single thread that owns the
+ * timeouts, such as a selector loop.
+ */
+public class TimingWheel
+{
+	private final long m_tickMs;
+	private final Timeout[] m_slots;
+	private final int m_mask;
+
+	private long m_currentTick;
+	private int m_size = 0;
+
+	/**
+	 * Create an instance of a TimingWheel
+	 * @param tickMs Resolution of the wheel in milliseconds
+	 * @param slots Number of slots (rounded up to a power of two)
+	 * @param nowMs Current time in milliseconds
+	 */
+	public TimingWheel(long tickMs, int slots, long nowMs)
+	{
+		if (tickMs < 1 || slots < 1 || slots > (1 << 30))
+		{
+			throw new IllegalArgumentException("Invalid timing wheel geometry");
+		}
+		int size = Integer.highestOneBit(slots);
+		if (size < slots)
+		{
+			size <<= 1;
+		}
+		m_tickMs = tickMs;
+		m_slots = new Timeout[size];
+		m_mask = size - 1;
+		m_currentTick = nowMs / tickMs;
+	}
+
+	/**
+	 * Get the resolution of the wheel
+	 * @return Tick length in milliseconds
+	 */
+	public long getTickMillis()
+	{
+		return m_tickMs;
+	}
+
+	/**
+	 * Get the number of scheduled timeouts
+	 * @return Number of timeouts
+	 */
+	public int size()
+	{
+		return m_size;
+	}
+
+	/**
+	 * Schedule a timeout, replacing its current deadline if it is already scheduled.  A deadline
+	 * that has already passed expires on the next {@link #advance}.
+	 * @param timeout Timeout
+	 * @param deadlineMs Deadline in milliseconds; expiry is late by up to one tick
+	 */
+	public void schedule(Timeout timeout, long deadlineMs)
+	{
+		if (timeout.m_wheel != null)
+		{
+			timeout.m_wheel.cancel(timeout);
+		}
+
+		// round up so a timeout never expires early
+		long tick = Math.max((deadlineMs + m_tickMs - 1) / m_tickMs, m_currentTick);
+		int slot = (int)(tick & m_mask);
+		timeout.m_tick = tick;
+		timeout.m_wheel = this;
+		timeout.m_prev = null;
+		timeout.m_next = m_slots[slot];
+		if (timeout.m_next != null)
+		{
+			timeout.m_next.m_prev = timeout;
+		}
+		m_slots[slot] = timeout;
+		m_size++;
+	}
+
+	/**
+	 * Cancel a timeout
+	 * @param timeout Timeout
+	 * @return True if the timeout was scheduled on this wheel
+	 */
+	public boolean cancel(Timeout timeout)
+	{
+		if (timeout.m_wheel != this)
+		{
+			return false;
+		}
+
+		if (timeout.m_prev != null)
+		{
+			timeout.m_prev.m_next = timeout.m_next;
+		}
+		else
+		{
+			m_slots[(int)(timeout.m_tick & m_mask)] = timeout.m_next;
+		}
+		if (timeout.m_next != null)
+		{
+			timeout.m_next.m_prev = timeout.m_prev;
+		}
+		timeout.m_prev = null;
+		timeout.m_next = null;
+		timeout.m_wheel = null;
+		m_size--;
+		return true;
+	}
+
+	/**
+	 * Expire every timeout whose deadline is at or before the specified time
+	 * @param nowMs Current time in milliseconds
+	 * @return Number of timeouts expired
+	 */
+	public int advance(long nowMs)
+	{
+		long targetTick = nowMs / m_tickMs;
+		int expired = 0;
+
+		// after a long pause there is no point going round the wheel more than once
+		long firstTick = Math.max(m_currentTick, targetTick - m_mask);
+		for (long tick = firstTick; tick <= targetTick && m_size > 0; tick++)
+		{
+			Timeout timeout = m_slots[(int)(tick & m_mask)];
+			while (timeout != null)
+			{
+				Timeout next = timeout.m_next;
+				if (timeout.m_tick <= targetTick)
+				{
+					cancel(timeout);
+					expired++;
+					// the callback may schedule or cancel other timeouts, including next
+					timeout.expired();
+					next = m_slots[(int)(tick & m_mask)];
+				}
+				timeout = next;
+				// skip over the timeouts of later revolutions already checked in this slot
+				while (timeout != null && timeout.m_tick > targetTick)
+				{
+					timeout = timeout.m_next;
+				}
+			}
+		}
+		m_currentTick = targetTick;
+		return expired;
+	}
+
+	/**
+	 * This class is a deadline that can be scheduled on a TimingWheel
+	 */
+	public static abstract class Timeout
+	{
+		private TimingWheel m_wheel = null;
+		private Timeout m_prev = null;
+		private Timeout m_next = null;
+		private long m_tick = 0;
+
+		/**
+		 * Get the flag indicating if this timeout is scheduled
+		 * @return True if scheduled
+		 */
+		public boolean isScheduled()
+		{
+			return (m_wheel != null);
+		}
+
+		/**
+		 * Called by {@link TimingWheel#advance} when the deadline passes
+		 */
+		protected abstract void expired();
+	}
+}
@@ -17,21 +17,47 @@
 package com.cablelabs.time.server;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.net.SocketException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
-import java.util.Calendar;
-import java.util.TimeZone;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * This class is a UDP Time Server
+ * This class is a UDP Time Server.
+ *
+ * The listener receives and answers each request on a single blocking datagram channel, reusing
+ * the same request and response buffers, so answering a request allocates nothing (with request
+ * logging, the journal and heavy-hitter tracking disabled).  The protocol is RFC868 unless
+ * another {@link ProtocolHandler} is set.  With a {@link WorkerPool}, the listener only receives:
+ * each request is handed over with its own (reused) buffers, and a worker answers it.
+ *
+ * In pipelined mode (see {@link #setPipeline}), the listener thread only drains the socket into
+ * preallocated ring slots and sender threads answer from the rings, so a stall in sending or
+ * logging does not slow down draining the socket receive queue during a burst.
+ *
+ * With a polling {@link IdleStrategy}, the listener (and the senders, if pipelined) poll a
+ * non-blocking socket instead of blocking in the kernel.
  */
 public class UdpTimeServer extends TimeServer
 {
-	private DatagramSocket m_udpSocket = null;
+	public static final int DEFAULT_RING_SIZE = 4096;
+	
+	// requests are copied into their ring slot up to this size (the longest, SNTP, is 48 bytes)
+	private static final int SLOT_REQUEST_SIZE = 64;
+	// slots answered before a sender releases them to the receiver
+	private static final int SENDER_BATCH = 64;
+	
+	private volatile DatagramChannel m_udpChannel = null;
+	
+	private int m_pipelineSenders = 0;
+	private int m_ringSize = DEFAULT_RING_SIZE;
+	private volatile _PipelinedUdpTimeServer m_pipeline = null;
+	private final AtomicLong m_ringOverflows = new AtomicLong(0);
 	
 	/**
 	 * Create an instance of a UdpTimeServer
@@ -47,8 +73,18 @@ public class UdpTimeServer extends TimeServer
 	@Override
 	public boolean getServerRunning()
 	{
-		return (super.getServerRunning() &&
-				(m_udpSocket != null));
+		DatagramChannel channel = m_udpChannel;
+		return (super.getServerRunning() && (channel != null) && (channel.isOpen()));
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see com.cablelabs.time.server.TimeServer#getTransport()
+	 */
+	@Override
+	protected int getTransport()
+	{
+		return ProtocolHandler.TRANSPORT_UDP;
 	}
 	
 	/*
@@ -60,23 +96,172 @@ public class UdpTimeServer extends TimeServer
 	{
 		super.startServer();
 		
-		_UdpTimeServer server = new _UdpTimeServer();
-		m_listenerThread = new Thread(server, "UdpTimeServer");
-		m_listenerThread.start();
+		if (m_pipelineSenders > 0)
+		{
+			m_pipeline = new _PipelinedUdpTimeServer(m_handler, m_pipelineSenders, m_ringSize);
+			startListener(m_pipeline, "UdpTimeServer");
+		}
+		else
+		{
+			m_pipeline = null;
+			startListener(new _UdpTimeServer(m_handler, m_workers), "UdpTimeServer");
+		}
+	}
+	
+	/**
+	 * Set the pipelined mode, in which the listener only receives and sender threads answer; it
+	 * replaces the worker pool, if any. Takes effect the next time the server is started.
+	 * @param senders Number of sender threads (0 for the listener to answer requests itself)
+	 * @param ringSize Total ring slots, shared out between the senders (rounded up to a power
+	 * of two per sender)
+	 */
+	public void setPipeline(int senders, int ringSize)
+	{
+		if (senders < 0 || ringSize < 1)
+		{
+			throw new IllegalArgumentException("Invalid pipeline: " + senders + " senders, " + ringSize + " slots");
+		}
+		m_pipelineSenders = senders;
+		m_ringSize = ringSize;
+	}
+	
+	/**
+	 * Get the number of sender threads of the pipelined mode
+	 * @return Sender threads, or 0 if the server is not pipelined
+	 */
+	public int getPipelineSenders()
+	{
+		return m_pipelineSenders;
+	}
+	
+	/**
+	 * Get the number of requests waiting in the rings of the pipelined mode
+	 * @return Occupancy (0 if the server was not started pipelined)
+	 */
+	public int getRingOccupancy()
+	{
+		_PipelinedUdpTimeServer pipeline = m_pipeline;
+		if (pipeline == null)
+		{
+			return 0;
+		}
+		int occupancy = 0;
+		for (SpscRing<_Slot> ring : pipeline.m_rings)
+		{
+			occupancy += ring.size();
+		}
+		return occupancy;
+	}
+	
+	/**
+	 * Get the number of ring slots of the pipelined mode
+	 * @return Capacity (0 if the server was not started pipelined)
+	 */
+	public int getRingCapacity()
+	{
+		_PipelinedUdpTimeServer pipeline = m_pipeline;
+		if (pipeline == null)
+		{
+			return 0;
+		}
+		return pipeline.m_rings.length * pipeline.m_rings[0].capacity();
+	}
+	
+	/**
+	 * Get the number of requests dropped because every ring was full
+	 * @return Count, since the server was created
+	 */
+	public long getRingOverflows()
+	{
+		return m_ringOverflows.get();
+	}
+	
+	/**
+	 * Get the size of the listener socket receive buffer
+	 * @return Bytes the kernel queues before dropping datagrams, or 0 if the server is not running
+	 */
+	public int getReceiveBufferSize()
+	{
+		DatagramChannel channel = m_udpChannel;
+		if (channel == null || !channel.isOpen())
+		{
+			return 0;
+		}
+		try
+		{
+			return channel.getOption(StandardSocketOptions.SO_RCVBUF);
+		}
+		catch (IOException e)
+		{
+			// closed since it was checked
+			return 0;
+		}
+	}
+	
+	/**
+	 * Open and bind the listener socket and report it bound
+	 * @param idle Idle strategy of the listener; the socket is non-blocking unless it blocks
+	 * @return Bound address
+	 * @throws IOException if the socket cannot be bound
+	 */
+	private InetSocketAddress bindChannel(IdleStrategy idle) throws IOException
+	{
+		m_udpChannel = DatagramChannel.open();
+		if (m_listenAddress == null)
+		{
+			m_udpChannel.bind(new InetSocketAddress(m_port));
+		}
+		else
+		{
+			InetAddress inetAddr = InetAddress.getByName(m_listenAddress);
+			m_udpChannel.bind(new InetSocketAddress(inetAddr, m_port));
+		}
+		
+		// stopServer() may have run while binding, before there was a socket to close
+		if (m_terminate)
+		{
+			m_udpChannel.close();
+		}
+		m_udpChannel.configureBlocking(idle.isBlocking());
+		InetSocketAddress bound = (InetSocketAddress)m_udpChannel.getLocalAddress();
+		listenerBound(bound);
+		return bound;
+	}
+	
+	/**
+	 * Describe the listener socket
+	 * @param handler Protocol answered
+	 * @param bound Bound address
+	 * @param idle Idle strategy of the listener
+	 * @return Status line
+	 */
+	private String describe(ProtocolHandler handler, InetSocketAddress bound, IdleStrategy idle)
+	{
+		return "Listening for UDP " + handler.getName() + " requests on " +
+				(m_listenAddress != null ? m_listenAddress + ", " : "") +
+				"port " + bound.getPort() + ", with backlog " + m_requestBacklog +
+				(idle.isBlocking() ? "" : ", polling with the " + idle.getType().getName() + " idle strategy");
 	}
 	
 	/*
 	 * (non-Javadoc)
-	 * @see com.cablelabs.time.server.TimeServer#stopServer()
+	 * @see com.cablelabs.time.server.TimeServer#closeListener()
 	 */
 	@Override
-	public void stopServer()
+	protected void closeListener()
 	{
-		if (m_udpSocket != null)
+		DatagramChannel channel = m_udpChannel;
+		if (channel != null)
 		{
-			m_udpSocket.close();
+			try
+			{
+				channel.close();
+			}
+			catch (IOException e)
+			{
+				// do nothing
+			}
 		}
-		super.stopServer();
 	}
 	
 	/**
@@ -84,11 +269,65 @@ public class UdpTimeServer extends TimeServer
 	 */
 	private class _UdpTimeServer implements Runnable
 	{
+		private final ProtocolHandler m_handler;
+		private final byte m_protocol;
+		private final WorkerPool m_workers;
+		private final IdleStrategy m_idle;
+		private final _Request m_inline;
+		private final ArrayBlockingQueue<_Request> m_free;
+		private final int m_maxRequests;
+		private int m_requests = 0;
+		
 		/**
 		 * Create an instance of a _UdpTimeServer
+		 * @param handler Protocol answered
+		 * @param workers Pool answering the requests, or null to answer them on the listener thread
 		 */
-		public _UdpTimeServer()
+		public _UdpTimeServer(ProtocolHandler handler, WorkerPool workers)
 		{
+			m_handler = handler;
+			m_protocol = handler.getProtocol(ProtocolHandler.TRANSPORT_UDP);
+			m_workers = workers;
+			m_idle = IdleStrategy.create(m_idleStrategy);
+			if (workers == null)
+			{
+				m_inline = new _Request();
+				m_free = null;
+				m_maxRequests = 1;
+			}
+			else
+			{
+				// the pool holds at most its capacity, and the listener fills one more
+				m_inline = null;
+				m_maxRequests = workers.getCapacity() + 1;
+				m_free = new ArrayBlockingQueue<_Request>(m_maxRequests);
+			}
+		}
+		
+		/**
+		 * Get a request to receive into; requests are created as needed, up to what the worker
+		 * pool can hold
+		 * @return Request
+		 * @throws InterruptedException
+		 */
+		private _Request nextRequest() throws InterruptedException
+		{
+			if (m_workers == null)
+			{
+				return m_inline;
+			}
+			_Request request = m_free.poll();
+			if (request == null)
+			{
+				if (m_requests < m_maxRequests)
+				{
+					m_requests++;
+					return new _Request();
+				}
+				// a worker has finished with its request, or is about to
+				request = m_free.take();
+			}
+			return request;
 		}
 		
 		/*
@@ -99,125 +338,502 @@ public class UdpTimeServer extends TimeServer
 		{
 			try
 			{
-				if (m_listenAddress == null)
-				{
-					m_udpSocket = new DatagramSocket(m_port);
-				}
-				else
+				InetSocketAddress bound = bindChannel(m_idle);
+				String status = describe(m_handler, bound, m_idle);
+				if (m_workers != null)
 				{
-					InetAddress inetAddr = InetAddress.getByName(m_listenAddress);
-					m_udpSocket = new DatagramSocket(m_port, inetAddr);
+					status += ", answered by " + m_workers.getThreads() + " workers";
 				}
-				
-				String status = "Listening for UDP time requests on " +
-						(m_listenAddress != null ? m_listenAddress + ", " : "") +
-						"port " + m_udpSocket.getLocalPort() + ", with backlog " + m_requestBacklog;
 				System.out.println(status);
 				
-				byte[] udpData = new byte[1024];
+				// the request being received into; it is kept until handed over
+				_Request request = null;
 				while (!m_terminate)
 				{
-					DatagramPacket udpPacket = new DatagramPacket(udpData, udpData.length);
-					
-					// this blocks
-		            try
-		            {
-						m_udpSocket.receive(udpPacket);
+					try
+					{
+						if (request == null)
+						{
+							request = nextRequest();
+						}
+						
+						// this blocks, unless the listener polls
+						request.m_request.clear();
+						SocketAddress source = m_udpChannel.receive(request.m_request);
+						if (source == null)
+						{
+							m_idle.idle(0);
+							continue;
+						}
+						m_idle.reset();
+						long receiveMs = m_clock.currentTimeMillis();
 						
 						// a request arrived
 						
-			 			_UdpTimeRequestHandler handler = new _UdpTimeRequestHandler(udpPacket);
-			 			Thread udpTimeRequestThread = new Thread(handler, "UdpTimeRequestHandler");
-			 			udpTimeRequestThread.run();
+						request.m_replyEvent.begin();
+						InetSocketAddress client = (InetSocketAddress)source;
+						requestReceived(client.getAddress());
+						if (!isRequestAllowed(client.getAddress()))
+						{
+							continue;
+						}
+						
+						request.m_request.flip();
+						request.m_context.reset(client, receiveMs);
+						if (m_workers == null)
+						{
+							request.work();
+						}
+						else if (m_workers.execute(request))
+						{
+							request = null;
+						}
+						else
+						{
+							requestDropped(client.getAddress(), "overloaded");
+						}
 					}
-		            catch(SocketException e)
+					catch (IOException e)
 					{
-		            	// if we are trying to terminate, this is expected
+						// if we are trying to terminate, this is expected
 						if (!m_terminate)
 						{
 							e.printStackTrace();
 						}
 					}
-		            catch (IOException e)
-		            {
-						e.printStackTrace();
+					catch (InterruptedException e)
+					{
+						// stopServer() interrupts the listener
 					}
 				}
 			}
 			catch (UnknownHostException ex)
 			{
 				System.out.println("Invalid Inet Address specified: " + m_listenAddress);
+				listenerFailed(ex);
+			}
+			catch (IOException ex)
+			{
+				// if we are trying to terminate, this is expected
+				if (!m_terminate)
+				{
+					ex.printStackTrace();
+				}
+				listenerFailed(ex);
+			}
+			finally
+			{
+				closeListener();
+			}
+		}
+		
+		/**
+		 * This class is a received request, with the buffers and context used to answer it; with
+		 * a worker pool, it returns to the listener's free list once answered
+		 */
+		private class _Request extends WorkerPool.Task
+		{
+			private final RequestContext m_context = new RequestContext(ProtocolHandler.TRANSPORT_UDP, m_clock);
+			private final ByteBuffer m_request = ByteBuffer.allocateDirect(1024);
+			private final ByteBuffer m_response = ByteBuffer.allocateDirect(m_handler.getMaxResponseSize());
+			private final TimeServerEvents.RequestReplied m_replyEvent = new TimeServerEvents.RequestReplied();
+			
+			/*
+			 * (non-Javadoc)
+			 * @see com.cablelabs.time.server.WorkerPool.Task#work()
+			 */
+			@Override
+			protected void work()
+			{
+				try
+				{
+					InetSocketAddress client = m_context.getClient();
+					m_response.clear();
+					if (!m_handler.handle(m_request, m_context, m_response))
+					{
+						requestDropped(client.getAddress(), "invalid request");
+						return;
+					}
+					
+					answer(client);
+				}
+				catch (IOException e)
+				{
+					// if we are trying to terminate, this is expected
+					if (!m_terminate)
+					{
+						e.printStackTrace();
+					}
+				}
+				finally
+				{
+					if (m_free != null)
+					{
+						m_free.offer(this);
+					}
+				}
 			}
-			catch(SocketException ex)
+			
+			/**
+			 * Send the response written by the handler to a client
+			 * @param client Client address
+			 * @throws IOException
+			 */
+			private void answer(InetSocketAddress client) throws IOException
 			{
-            	ex.printStackTrace();
+				m_response.flip();
+				m_udpChannel.send(m_response, client);
+				
+				long timeValueSec = m_context.getTimeValue();
+				requestAnswered(m_protocol, client.getAddress(), client.getPort(), m_context.getReceiveMillis(), timeValueSec,
+						m_context.getReceiveNanos());
+				requestReplied(m_replyEvent, client.getAddress(), client.getPort(), timeValueSec);
+				
+				if (shouldLogRequest())
+				{
+					logRequest(client.getAddress(), timeValueSec);
+				}
 			}
 		}
+	}
+	
+	/**
+	 * This class is a request waiting in a ring for a sender
+	 */
+	private static class _Slot
+	{
+		private final ByteBuffer m_request;
+		// begun by the receiver and committed by the sender, so it covers the time in the ring
+		private final TimeServerEvents.RequestReplied m_replyEvent = new TimeServerEvents.RequestReplied();
+		private InetSocketAddress m_client = null;
+		private long m_receiveMs = 0;
+		private long m_receiveNanos = 0;
 		
+		/**
+		 * Create an instance of a _Slot
+		 * @param request Request buffer of the slot
+		 */
+		public _Slot(ByteBuffer request)
+		{
+			m_request = request;
+		}
 	}
 	
 	/**
-	 * This class is the handler for time requests
+	 * This class is the receiver of the pipelined mode: it drains the socket into the rings of
+	 * the senders, in turn
 	 */
-	private class _UdpTimeRequestHandler implements Runnable
+	private class _PipelinedUdpTimeServer implements Runnable
 	{
-		private DatagramPacket m_clientPacket = null;
+		private final ProtocolHandler m_handler;
+		private final byte m_protocol;
+		private final ByteBuffer m_request = ByteBuffer.allocateDirect(1024);
+		private final IdleStrategy m_idle;
+		private final SpscRing<_Slot>[] m_rings;
+		private final _Sender[] m_senders;
+		private int m_next = 0;
 		
 		/**
-		 * Create an instance of a TimeRequestHandler
-		 * @param clientSocket The client socket on which to reply
+		 * Create an instance of a _PipelinedUdpTimeServer
+		 * @param handler Protocol answered
+		 * @param senders Number of sender threads
+		 * @param ringSize Total ring slots
 		 */
-		public _UdpTimeRequestHandler(DatagramPacket clientPacket)
+		@SuppressWarnings("unchecked")
+		public _PipelinedUdpTimeServer(ProtocolHandler handler, int senders, int ringSize)
 		{
-			m_clientPacket = clientPacket;
+			m_handler = handler;
+			m_protocol = handler.getProtocol(ProtocolHandler.TRANSPORT_UDP);
+			m_idle = IdleStrategy.create(m_idleStrategy);
+			
+			int perSender = Math.max(ringSize / senders, 1);
+			if (Integer.bitCount(perSender) != 1)
+			{
+				perSender = Integer.highestOneBit(perSender) << 1;
+			}
+			// the request buffers of all the slots are slices of one direct buffer
+			ByteBuffer requests = ByteBuffer.allocateDirect(senders * perSender * SLOT_REQUEST_SIZE);
+			m_rings = newRings(senders);
+			m_senders = new _Sender[senders];
+			for (int i = 0; i < senders; i++)
+			{
+				_Slot[] slots = new _Slot[perSender];
+				for (int j = 0; j < perSender; j++)
+				{
+					int offset = (i * perSender + j) * SLOT_REQUEST_SIZE;
+					requests.limit(offset + SLOT_REQUEST_SIZE).position(offset);
+					slots[j] = new _Slot(requests.slice());
+				}
+				m_rings[i] = new SpscRing<_Slot>(slots);
+				m_senders[i] = new _Sender(m_rings[i]);
+			}
 		}
-				
+		
+		/**
+		 * Allocate the array holding the ring of each sender
+		 * @param senders Number of senders
+		 * @return Empty array
+		 */
+		@SuppressWarnings("unchecked")
+		private SpscRing<_Slot>[] newRings(int senders)
+		{
+			return (SpscRing<_Slot>[])new SpscRing<?>[senders];
+		}
+		
 		/*
 		 * (non-Javadoc)
 		 * @see java.lang.Runnable#run()
 		 */
 		public void run()
 		{
-			if (m_clientPacket != null)
+			Thread[] threads = new Thread[m_senders.length];
+			try
 			{
-				InetAddress inetAddr = m_clientPacket.getAddress();
-				int port = m_clientPacket.getPort();
-				
-				System.out.print("Processing request from " + inetAddr.toString());
+				InetSocketAddress bound = bindChannel(m_idle);
+				System.out.println(describe(m_handler, bound, m_idle) + ", answered by " + m_senders.length +
+						" senders from " + getRingCapacity() + " ring slots");
 				
-				long timeValueSec =
-						timeServerValueFromDate(Calendar.getInstance(
-								TimeZone.getTimeZone(TIME_SERVER_TIMEZONE)));
-				ByteBuffer buf = ByteBuffer.allocate(4);
-				buf.putInt((int)timeValueSec);
-				byte[] responseData = buf.array();
+				for (int i = 0; i < threads.length; i++)
+				{
+					threads[i] = new Thread(m_senders[i], "UdpTimeServerSender-" + (i + 1));
+					threads[i].setDaemon(true);
+					threads[i].start();
+				}
 				
-				DatagramPacket response = new DatagramPacket(responseData, responseData.length, inetAddr, port);
-            	
-				try
+				while (!m_terminate)
 				{
-					m_udpSocket.send(response);
-					
-					System.out.println("; returned " + timeValueSec +
-							" ( " + getDateFormat().format(
-									TimeServer.timeServerValueToDate(timeValueSec).getTime()) + " )");
+					try
+					{
+						// this blocks, unless the listener polls
+						m_request.clear();
+						SocketAddress source = m_udpChannel.receive(m_request);
+						if (source == null)
+						{
+							m_idle.idle(0);
+							continue;
+						}
+						m_idle.reset();
+						long receiveNanos = System.nanoTime();
+						long receiveMs = m_clock.currentTimeMillis();
+						
+						// a request arrived
+						
+						InetSocketAddress client = (InetSocketAddress)source;
+						requestReceived(client.getAddress());
+						if (!isRequestAllowed(client.getAddress()))
+						{
+							continue;
+						}
+						
+						SpscRing<_Slot> ring = nextRing();
+						if (ring == null)
+						{
+							m_ringOverflows.incrementAndGet();
+							requestDropped(client.getAddress(), "ring full");
+							continue;
+						}
+						_Slot slot = ring.claim();
+						slot.m_replyEvent.begin();
+						m_request.flip();
+						if (m_request.remaining() > SLOT_REQUEST_SIZE)
+						{
+							m_request.limit(SLOT_REQUEST_SIZE);
+						}
+						slot.m_request.clear();
+						slot.m_request.put(m_request);
+						slot.m_request.flip();
+						slot.m_client = client;
+						slot.m_receiveMs = receiveMs;
+						slot.m_receiveNanos = receiveNanos;
+						ring.publish();
+					}
+					catch (IOException e)
+					{
+						// if we are trying to terminate, this is expected
+						if (!m_terminate)
+						{
+							e.printStackTrace();
+						}
+					}
 				}
-				catch (SocketException e)
+			}
+			catch (UnknownHostException ex)
+			{
+				System.out.println("Invalid Inet Address specified: " + m_listenAddress);
+				listenerFailed(ex);
+			}
+			catch (IOException ex)
+			{
+				// if we are trying to terminate, this is expected
+				if (!m_terminate)
 				{
-					e.printStackTrace();
+					ex.printStackTrace();
+				}
+				listenerFailed(ex);
+			}
+			finally
+			{
+				closeListener();
+				for (int i = 0; i < threads.length; i++)
+				{
+					if (threads[i] != null)
+					{
+						m_rings[i].close();
+						try
+						{
+							threads[i].join();
+						}
+						catch (InterruptedException e)
+						{
+							// the sender is a daemon
+						}
+					}
+				}
+			}
+		}
+		
+		/**
+		 * Get the next ring with a free slot, taking the senders in turn
+		 * @return Ring, or null if every ring is full
+		 */
+		private SpscRing<_Slot> nextRing()
+		{
+			for (int i = 0; i < m_rings.length; i++)
+			{
+				SpscRing<_Slot> ring = m_rings[m_next];
+				m_next = (m_next + 1 == m_rings.length ? 0 : m_next + 1);
+				if (ring.claim() != null)
+				{
+					return ring;
+				}
+			}
+			return null;
+		}
+		
+		/**
+		 * This class is a sender of the pipelined mode: it answers the requests of its ring, in
+		 * batches
+		 */
+		private class _Sender implements Runnable
+		{
+			private final SpscRing<_Slot> m_ring;
+			private final IdleStrategy m_idle = IdleStrategy.create(m_idleStrategy);
+			private final RequestContext m_context = new RequestContext(ProtocolHandler.TRANSPORT_UDP, m_clock);
+			private final ByteBuffer m_response = ByteBuffer.allocateDirect(m_handler.getMaxResponseSize());
+			
+			/**
+			 * Create an instance of a _Sender
+			 * @param ring Ring answered by this sender
+			 */
+			public _Sender(SpscRing<_Slot> ring)
+			{
+				m_ring = ring;
+			}
+			
+			/*
+			 * (non-Javadoc)
+			 * @see java.lang.Runnable#run()
+			 */
+			public void run()
+			{
+				while (!m_terminate)
+				{
+					int count = m_ring.available();
+					if (count == 0)
+					{
+						// a polling listener has polling senders too
+						if (m_idle.isBlocking())
+						{
+							m_ring.await();
+						}
+						else
+						{
+							m_idle.idle(0);
+						}
+						continue;
+					}
+					m_idle.reset();
+					count = Math.min(count, SENDER_BATCH);
+					for (int i = 0; i < count; i++)
+					{
+						answer(m_ring.get(i));
+					}
+					m_ring.release(count);
+				}
+			}
+			
+			/**
+			 * Answer a request
+			 * @param slot Request
+			 */
+			private void answer(_Slot slot)
+			{
+				InetSocketAddress client = slot.m_client;
+				try
+				{
+					m_context.reset(client, slot.m_receiveMs, slot.m_receiveNanos);
+					m_response.clear();
+					if (!m_handler.handle(slot.m_request, m_context, m_response))
+					{
+						requestDropped(client.getAddress(), "invalid request");
+						return;
+					}
+					m_response.flip();
+					m_udpChannel.send(m_response, client);
+					
+					long timeValueSec = m_context.getTimeValue();
+					requestAnswered(m_protocol, client.getAddress(), client.getPort(), m_context.getReceiveMillis(), timeValueSec,
+							m_context.getReceiveNanos());
+					requestReplied(slot.m_replyEvent, client.getAddress(), client.getPort(), timeValueSec);
+					
+					if (shouldLogRequest())
+					{
+						logRequest(client.getAddress(), timeValueSec);
+					}
 				}
 				catch (IOException e)
-                {
-					e.printStackTrace();
+				{
+					// if we are trying to terminate, this is expected
+					if (!m_terminate)
+					{
+						e.printStackTrace();
+					}
 				}
-//				finally
-//				{
-//					if (m_udpSocket != null)
-//					{
-//						m_udpSocket.close();
-//					}
-//				}
 			}
 		}
 	}
+	
+	/**
+	 * This class builds a UdpTimeServer
+	 */
+	public static class Builder extends TimeServer.Builder<UdpTimeServer>
+	{
+		private int m_pipelineSenders = 0;
+		private int m_ringSize = DEFAULT_RING_SIZE;
+		
+		/**
+		 * Set the pipelined mode, in which the listener only receives and sender threads answer
+		 * @param senders Number of sender threads (0 for the listener to answer requests itself)
+		 * @param ringSize Total ring slots, shared out between the senders
+		 * @return This builder
+		 */
+		public Builder setPipeline(int senders, int ringSize)
+		{
+			m_pipelineSenders = senders;
+			m_ringSize = ringSize;
+			return this;
+		}
+		
+		/*
+		 * (non-Javadoc)
+		 * @see com.cablelabs.time.server.TimeServer.Builder#create()
+		 */
+		@Override
+		protected UdpTimeServer create()
+		{
+			UdpTimeServer server = new UdpTimeServer();
+			server.setPipeline(m_pipelineSenders, m_ringSize);
+			return server;
+		}
+	}
 }
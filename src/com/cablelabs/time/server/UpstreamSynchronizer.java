@@ -0,0 +1,589 @@
+/*
+ * Copyright 2017 Cable Television Laboratories, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cablelabs.time.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class disciplines a {@link ServedClock} from one or more upstream RFC868 servers.
+ *
+ * RFC868 only carries whole seconds, so a single exchange bounds the offset of the upstream clock
+ * to an interval a little over one second wide.  Samples taken at different phases of the second
+ * narrow it down: the intervals of the most recent samples from each upstream are intersected
+ * (dropping older samples once they stop overlapping, e.g. after a clock step).  Upstreams whose
+ * intervals disagree with the largest overlapping majority are rejected as outliers (Marzullo's
+ * algorithm).  The majority is of the configured upstreams, not of those that answered, so
+ * upstreams that cannot be reached never leave an outlier to set the time on its own.  The served
+ * clock is only stepped, to the middle of the majority's intersection, when its offset falls
+ * outside that intersection, so it does not jump from one poll to the next while it agrees with
+ * the upstreams.
+ *
+ * The served clock is marked unsynchronized until the first good poll, and again after a
+ * configurable number of consecutive polls without a majority; time servers do not answer
+ * while their clock is unsynchronized.
+ */
+public class UpstreamSynchronizer
+{
+	private static final int FILTER_SAMPLES = 16;
+
+	private final ServedClock m_clock;
+	private final List<_UpstreamState> m_upstreams = new ArrayList<_UpstreamState>();
+	private final long m_pollIntervalMs;
+	private final int m_maxMissedPolls;
+	private int m_timeoutMs = 1000;
+
+	private ScheduledExecutorService m_executor = null;
+	private ScheduledFuture<?> m_pollTask = null;
+	private int m_missedPolls = 0;
+	private volatile long m_uncertaintyMs = Long.MAX_VALUE;
+	private volatile int m_truechimers = 0;
+	private volatile InetAddress m_selectedAddress = null;
+	private volatile int m_referenceId = 0;
+
+	/**
+	 * Create an instance of an UpstreamSynchronizer
+	 * @param clock Clock to discipline
+	 * @param upstreams Upstream servers
+	 * @param pollIntervalMs Interval between polls in milliseconds
+	 * @param maxMissedPolls Consecutive failed polls after which the clock is marked unsynchronized
+	 */
+	public UpstreamSynchronizer(ServedClock clock, List<Upstream> upstreams, long pollIntervalMs, int maxMissedPolls)
+	{
+		if (upstreams.isEmpty())
+		{
+			throw new IllegalArgumentException("At least one upstream server is required");
+		}
+		m_clock = clock;
+		for (Upstream upstream : upstreams)
+		{
+			m_upstreams.add(new _UpstreamState(upstream));
+		}
+		m_pollIntervalMs = pollIntervalMs;
+		m_maxMissedPolls = Math.max(1, maxMissedPolls);
+	}
+
+	/**
+	 * Set the timeout of each upstream query
+	 * @param timeoutMs Timeout in milliseconds
+	 */
+	public void setTimeoutMillis(int timeoutMs)
+	{
+		m_timeoutMs = timeoutMs;
+	}
+
+	/**
+	 * Get the half-width of the interval the current offset was chosen from
+	 * @return Uncertainty in milliseconds, or Long.MAX_VALUE if not synchronized yet
+	 */
+	public long getUncertaintyMillis()
+	{
+		return m_uncertaintyMs;
+	}
+
+	/**
+	 * Get the number of upstreams that agreed with the current offset at the last good poll
+	 * @return Number of upstreams
+	 */
+	public int getTruechimerCount()
+	{
+		return m_truechimers;
+	}
+
+	/**
+	 * Get the address of the upstream the offset follows: of those that agreed at the last good
+	 * poll, the one with the narrowest interval
+	 * @return Address, or null if not synchronized yet
+	 */
+	public InetAddress getSelectedAddress()
+	{
+		return m_selectedAddress;
+	}
+
+	/**
+	 * Get the NTP reference identifier of the upstream the offset follows
+	 * @return Reference identifier (see {@link SntpTimeServer#referenceIdFromAddress}), or 0 if not synchronized yet
+	 */
+	public int getReferenceId()
+	{
+		return m_referenceId;
+	}
+
+	/**
+	 * Get the upstream servers
+	 * @return Unmodifiable list of upstream servers
+	 */
+	public List<Upstream> getUpstreams()
+	{
+		List<Upstream> upstreams = new ArrayList<Upstream>();
+		for (_UpstreamState state : m_upstreams)
+		{
+			upstreams.add(state.m_upstream);
+		}
+		return Collections.unmodifiableList(upstreams);
+	}
+
+	/**
+	 * Mark the clock unsynchronized and start polling on a thread of its own
+	 */
+	public synchronized void start()
+	{
+		m_executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r)
+			{
+				Thread thread = new Thread(r, "UpstreamSynchronizer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		start(m_executor);
+	}
+
+	/**
+	 * Mark the clock unsynchronized and start polling
+	 * @param scheduler Scheduler running the polls; each poll blocks for up to one timeout per upstream
+	 */
+	public synchronized void start(ScheduledExecutorService scheduler)
+	{
+		m_clock.setSynchronized(false);
+		m_pollTask = scheduler.scheduleWithFixedDelay(new Runnable() {
+			public void run()
+			{
+				poll();
+			}
+		}, 0, m_pollIntervalMs, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stop polling
+	 */
+	public synchronized void stop()
+	{
+		if (m_pollTask != null)
+		{
+			m_pollTask.cancel(false);
+			m_pollTask = null;
+		}
+		if (m_executor != null)
+		{
+			m_executor.shutdownNow();
+			m_executor = null;
+		}
+	}
+
+	/**
+	 * Query every upstream once and update the served clock
+	 * @return True if more than half of the configured upstreams answered and agreed
+	 */
+	public synchronized boolean poll()
+	{
+		List<_UpstreamState> responding = new ArrayList<_UpstreamState>();
+		for (_UpstreamState state : m_upstreams)
+		{
+			try
+			{
+				state.sample(m_timeoutMs);
+				responding.add(state);
+			}
+			catch (IOException e)
+			{
+				state.m_lastError = e.toString();
+			}
+		}
+
+		long[] best = selectMajority(responding, m_upstreams.size());
+		if (best == null)
+		{
+			m_missedPolls++;
+			if (m_missedPolls >= m_maxMissedPolls && m_clock.isSynchronized())
+			{
+				m_clock.setSynchronized(false);
+				System.out.println("Upstream sync lost after " + m_missedPolls + " polls; no longer answering: " + getStatus());
+			}
+			return false;
+		}
+
+		long offset = m_clock.getOffsetMillis();
+		if (offset < best[0] || offset > best[1])
+		{
+			m_clock.setOffsetMillis((best[0] + best[1]) / 2);
+		}
+		m_uncertaintyMs = (best[1] - best[0] + 1) / 2;
+		m_truechimers = (int)best[2];
+		_UpstreamState selected = null;
+		for (_UpstreamState state : responding)
+		{
+			if (state.m_truechimer && (selected == null || state.m_high - state.m_low < selected.m_high - selected.m_low))
+			{
+				selected = state;
+			}
+		}
+		if (!selected.m_address.equals(m_selectedAddress))
+		{
+			m_referenceId = SntpTimeServer.referenceIdFromAddress(selected.m_address);
+			m_selectedAddress = selected.m_address;
+		}
+		m_missedPolls = 0;
+		if (!m_clock.isSynchronized())
+		{
+			m_clock.setSynchronized(true);
+			System.out.println("Upstream sync acquired: " + getStatus());
+		}
+		return true;
+	}
+
+	/**
+	 * Find the offset interval shared by the largest set of upstreams (Marzullo's algorithm)
+	 * @param responding Upstreams that answered this poll
+	 * @param configured Number of configured upstreams, of which a majority must agree
+	 * @return { low, high, count } of the best interval, or null if no majority agrees
+	 */
+	private static long[] selectMajority(List<_UpstreamState> responding, int configured)
+	{
+		int n = responding.size();
+		if (n == 0)
+		{
+			return null;
+		}
+
+		// edges sorted by offset; starts sort before ends at the same offset
+		long[][] edges = new long[n * 2][];
+		for (int i = 0; i < n; i++)
+		{
+			_UpstreamState state = responding.get(i);
+			edges[i * 2] = new long[] { state.m_low, -1 };
+			edges[i * 2 + 1] = new long[] { state.m_high, 1 };
+		}
+		Arrays.sort(edges, new Comparator<long[]>() {
+			public int compare(long[] a, long[] b)
+			{
+				return (a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]));
+			}
+		});
+
+		int count = 0;
+		int bestCount = 0;
+		long bestLow = 0;
+		long bestHigh = 0;
+		for (int i = 0; i < edges.length; i++)
+		{
+			if (edges[i][1] < 0)
+			{
+				count++;
+				if (count > bestCount)
+				{
+					bestCount = count;
+					bestLow = edges[i][0];
+					bestHigh = edges[i + 1][0];
+				}
+			}
+			else
+			{
+				count--;
+			}
+		}
+
+		if (bestCount <= configured / 2)
+		{
+			return null;
+		}
+
+		for (_UpstreamState state : responding)
+		{
+			state.m_truechimer = (state.m_low <= bestHigh && state.m_high >= bestLow);
+		}
+		return new long[] { bestLow, bestHigh, bestCount };
+	}
+
+	/**
+	 * Get a description of the synchronization state
+	 * @return Status text
+	 */
+	public synchronized String getStatus()
+	{
+		String status = (m_clock.isSynchronized() ? "synchronized" : "unsynchronized") +
+				", offset " + m_clock.getOffsetMillis() + "ms" +
+				(m_uncertaintyMs != Long.MAX_VALUE ? " (+/-" + m_uncertaintyMs + "ms)" : "");
+		for (_UpstreamState state : m_upstreams)
+		{
+			status += "; " + state.m_upstream + " " +
+					(state.m_lastError != null ? state.m_lastError :
+						("[" + state.m_low + ", " + state.m_high + "]" + (state.m_truechimer ? "" : " rejected")));
+		}
+		return status;
+	}
+
+	/**
+	 * This class is an upstream server specification
+	 */
+	public static class Upstream
+	{
+		private final String m_host;
+		private final int m_port;
+		private final boolean m_tcp;
+
+		/**
+		 * Create an instance of an Upstream
+		 * @param host Host name or address
+		 * @param port Port
+		 * @param tcp True to query over TCP, false for UDP
+		 */
+		public Upstream(String host, int port, boolean tcp)
+		{
+			m_host = host;
+			m_port = port;
+			m_tcp = tcp;
+		}
+
+		/**
+		 * Parse an upstream specification of the form <code>host[:port][/tcp|/udp]</code>
+		 * (IPv6 literals with a port must be bracketed); UDP is the default
+		 * @param spec Specification
+		 * @param defaultPort Port used if none is given
+		 * @return Upstream
+		 */
+		public static Upstream parse(String spec, int defaultPort)
+		{
+			boolean tcp = false;
+			String hostPort = spec.trim();
+			int slash = hostPort.lastIndexOf('/');
+			if (slash >= 0)
+			{
+				String protocol = hostPort.substring(slash + 1);
+				if ("tcp".equalsIgnoreCase(protocol))
+				{
+					tcp = true;
+				}
+				else if (!"udp".equalsIgnoreCase(protocol))
+				{
+					throw new IllegalArgumentException("Invalid upstream protocol: " + spec);
+				}
+				hostPort = hostPort.substring(0, slash);
+			}
+
+			String host = hostPort;
+			int port = defaultPort;
+			if (hostPort.startsWith("["))
+			{
+				int close = hostPort.indexOf(']');
+				if (close < 0)
+				{
+					throw new IllegalArgumentException("Invalid upstream address: " + spec);
+				}
+				host = hostPort.substring(1, close);
+				if (hostPort.length() > close + 1)
+				{
+					port = Integer.parseInt(hostPort.substring(close + 2));
+				}
+			}
+			else if (hostPort.indexOf(':') >= 0 && hostPort.indexOf(':') == hostPort.lastIndexOf(':'))
+			{
+				host = hostPort.substring(0, hostPort.indexOf(':'));
+				port = Integer.parseInt(hostPort.substring(hostPort.indexOf(':') + 1));
+			}
+			if (port < 0 || port > 65535)
+			{
+				throw new IllegalArgumentException("Invalid upstream port: " + spec);
+			}
+			return new Upstream(host, port, tcp);
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * @see java.lang.Object#toString()
+		 */
+		@Override
+		public String toString()
+		{
+			return (m_host.indexOf(':') >= 0 ? "[" + m_host + "]" : m_host) + ":" + m_port + (m_tcp ? "/tcp" : "/udp");
+		}
+	}
+
+	/**
+	 * This class holds the recent samples of one upstream
+	 */
+	private static class _UpstreamState
+	{
+		private final Upstream m_upstream;
+		private final ArrayDeque<long[]> m_samples = new ArrayDeque<long[]>();
+
+		private long m_low = 0;
+		private long m_high = 0;
+		private boolean m_truechimer = false;
+		private String m_lastError = null;
+		// address the last sample was taken from
+		private InetAddress m_address = null;
+
+		/**
+		 * Create an instance of an _UpstreamState
+		 * @param upstream Upstream server
+		 */
+		public _UpstreamState(Upstream upstream)
+		{
+			m_upstream = upstream;
+		}
+
+		/**
+		 * Query the upstream and update its offset interval
+		 * @param timeoutMs Query timeout
+		 * @throws IOException If the query fails, including on an invalid upstream address
+		 */
+		public void sample(int timeoutMs) throws IOException
+		{
+			long t0;
+			long t1;
+			long value;
+			InetSocketAddress address;
+			try
+			{
+				address = new InetSocketAddress(InetAddress.getByName(m_upstream.m_host), m_upstream.m_port);
+
+				t0 = System.currentTimeMillis();
+				long n0 = System.nanoTime();
+				value = (m_upstream.m_tcp ? queryTcp(address, timeoutMs) : queryUdp(address, timeoutMs));
+				t1 = t0 + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - n0) + 1;
+			}
+			catch (RuntimeException e)
+			{
+				// a failed sample, rather than an exception that would cancel the scheduled polls
+				throw new IOException(e.toString(), e);
+			}
+
+			// the upstream read a clock in [serverMs, serverMs + 1000) at some local instant in [t0, t1]
+			long serverMs = TimeServer.timeServerValueToMillis(value);
+			m_samples.addFirst(new long[] { serverMs - t1, serverMs + 1000 - t0 });
+			while (m_samples.size() > FILTER_SAMPLES)
+			{
+				m_samples.removeLast();
+			}
+
+			// intersect from the newest sample back, dropping samples that no longer overlap
+			Iterator<long[]> iter = m_samples.iterator();
+			long[] newest = iter.next();
+			long low = newest[0];
+			long high = newest[1];
+			while (iter.hasNext())
+			{
+				long[] sample = iter.next();
+				if (sample[0] > high || sample[1] < low)
+				{
+					iter.remove();
+					while (iter.hasNext())
+					{
+						iter.next();
+						iter.remove();
+					}
+					break;
+				}
+				low = Math.max(low, sample[0]);
+				high = Math.min(high, sample[1]);
+			}
+
+			m_low = low;
+			m_high = high;
+			m_address = address.getAddress();
+			m_lastError = null;
+		}
+
+		/**
+		 * Perform a UDP Time Protocol request
+		 * @param address Server address
+		 * @param timeoutMs Timeout in milliseconds
+		 * @return Time Server value
+		 * @throws IOException On errors or timeout
+		 */
+		private static long queryUdp(InetSocketAddress address, int timeoutMs) throws IOException
+		{
+			DatagramSocket socket = new DatagramSocket();
+			try
+			{
+				socket.setSoTimeout(timeoutMs);
+				socket.send(new DatagramPacket(new byte[0], 0, address));
+
+				byte[] data = new byte[4];
+				DatagramPacket response = new DatagramPacket(data, data.length);
+				do
+				{
+					socket.receive(response);
+				}
+				while (!address.equals(response.getSocketAddress()));
+
+				if (response.getLength() < 4)
+				{
+					throw new IOException("Short response from " + address);
+				}
+				return TimeServer.timeServerValueFromBytes(data);
+			}
+			finally
+			{
+				socket.close();
+			}
+		}
+
+		/**
+		 * Perform a TCP Time Protocol request
+		 * @param address Server address
+		 * @param timeoutMs Timeout in milliseconds
+		 * @return Time Server value
+		 * @throws IOException On errors or timeout
+		 */
+		private static long queryTcp(InetSocketAddress address, int timeoutMs) throws IOException
+		{
+			Socket socket = new Socket();
+			try
+			{
+				socket.connect(address, timeoutMs);
+				socket.setSoTimeout(timeoutMs);
+
+				byte[] data = new byte[4];
+				InputStream in = socket.getInputStream();
+				int read = 0;
+				while (read < 4)
+				{
+					int n = in.read(data, read, 4 - read);
+					if (n < 0)
+					{
+						throw new IOException("Short response from " + address);
+					}
+					read += n;
+				}
+				return TimeServer.timeServerValueFromBytes(data);
+			}
+			finally
+			{
+				socket.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,319 @@
+/*
+ * Copyright 2017 Cable Television Laboratories, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cablelabs.time.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.CompilationMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * This class warms up the request path before the public listeners are bound, so the first
+ * requests after a restart are not answered by interpreted code.
+ *
+ * Each protocol to be served gets a private listener on a free loopback port, answering with the
+ * same handler (and worker pool) as the public one.  Every round sends one request to each of them
+ * and runs the Time Server codec in-process.  After the minimum number of rounds, rounds continue
+ * until the JIT has compiled nothing new for {@link #SETTLE_ROUNDS} rounds, or the time limit is
+ * reached.
+ */
+public class WarmUp
+{
+	public static final int DEFAULT_ROUNDS = 10000;
+	public static final long DEFAULT_MAX_TIME_MS = 10000;
+
+	// rounds without new compilation after which compilation is considered settled
+	public static final int SETTLE_ROUNDS = 1000;
+
+	private static final int TIMEOUT_MS = 1000;
+
+	private final int m_minRounds;
+	private final long m_maxTimeMs;
+	private final List<_Target> m_targets = new ArrayList<_Target>();
+
+	private int m_rounds = 0;
+	private int m_failures = 0;
+	private long m_elapsedMs = 0;
+	private long m_compilationMs = -1;
+	private boolean m_settled = false;
+
+	/**
+	 * Create an instance of a WarmUp
+	 * @param minRounds Minimum number of rounds
+	 * @param maxTimeMs Time after which the warm-up stops, settled or not
+	 */
+	public WarmUp(int minRounds, long maxTimeMs)
+	{
+		if (minRounds < 1 || maxTimeMs < 1)
+		{
+			throw new IllegalArgumentException("Invalid warm-up: " + minRounds + " rounds, " + maxTimeMs + " ms");
+		}
+		m_minRounds = minRounds;
+		m_maxTimeMs = maxTimeMs;
+	}
+
+	/**
+	 * Add a protocol to warm up
+	 * @param handler Protocol handler
+	 * @param transport {@link ProtocolHandler#TRANSPORT_TCP} or {@link ProtocolHandler#TRANSPORT_UDP}
+	 * @param request Request sent each round (ignored over TCP, where the server speaks first)
+	 * @param workers Worker pool of the public listener, or null
+	 */
+	public void addProtocol(ProtocolHandler handler, int transport, byte[] request, WorkerPool workers)
+	{
+		TimeServer.Builder<? extends TimeServer> builder = (transport == ProtocolHandler.TRANSPORT_TCP ?
+				new TcpTimeServer.Builder() : new UdpTimeServer.Builder());
+		TimeServer server = builder
+				.setHandler(handler)
+				.setListenAddress("127.0.0.1")
+				.setPort(0)
+				.setWorkers(workers)
+				.setRequestLogInterval(0)
+				.setEventSampleInterval(0)
+				.build();
+		m_targets.add(new _Target(server, transport, request, handler.getMaxResponseSize()));
+	}
+
+	/**
+	 * Build an SNTP client request, for warming up an SNTP listener
+	 * @return Client-mode NTPv4 request
+	 */
+	public static byte[] sntpRequest()
+	{
+		byte[] request = new byte[SntpTimeServer.PACKET_SIZE];
+		request[0] = (byte)((SntpTimeServer.MAX_VERSION << 3) | SntpTimeServer.MODE_CLIENT);
+		return request;
+	}
+
+	/**
+	 * Run the warm-up; the private listeners are stopped when it returns
+	 * @throws IOException if a private listener could not be started
+	 */
+	public void run() throws IOException
+	{
+		CompilationMXBean jit = ManagementFactory.getCompilationMXBean();
+		boolean monitorJit = (jit != null && jit.isCompilationTimeMonitoringSupported());
+		long startCompilationMs = (monitorJit ? jit.getTotalCompilationTime() : 0);
+		long start = System.nanoTime();
+
+		DatagramSocket datagram = null;
+		try
+		{
+			for (_Target target : m_targets)
+			{
+				target.m_address = target.m_server.start().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+			}
+			datagram = new DatagramSocket();
+			datagram.setSoTimeout(TIMEOUT_MS);
+
+			Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone(TimeServer.TIME_SERVER_TIMEZONE));
+			byte[] bytes = new byte[4];
+			long lastCompilationMs = startCompilationMs;
+			int quietRounds = 0;
+			while (true)
+			{
+				// the codec, in-process
+				calendar.setTimeInMillis(System.currentTimeMillis());
+				long value = TimeServer.timeServerValueFromDate(calendar);
+				TimeServer.timeServerValueToBytes(value, bytes, 0);
+				if (TimeServer.timeServerValueFromBytes(bytes, 0) != value)
+				{
+					m_failures++;
+				}
+
+				for (_Target target : m_targets)
+				{
+					try
+					{
+						target.request(datagram);
+					}
+					catch (IOException e)
+					{
+						m_failures++;
+					}
+				}
+				m_rounds++;
+
+				if (monitorJit)
+				{
+					long compilationMs = jit.getTotalCompilationTime();
+					quietRounds = (compilationMs == lastCompilationMs ? quietRounds + 1 : 0);
+					lastCompilationMs = compilationMs;
+				}
+				if (m_rounds >= m_minRounds && (!monitorJit || quietRounds >= SETTLE_ROUNDS))
+				{
+					m_settled = monitorJit;
+					break;
+				}
+				if (System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(m_maxTimeMs))
+				{
+					break;
+				}
+			}
+			if (monitorJit)
+			{
+				m_compilationMs = lastCompilationMs - startCompilationMs;
+			}
+		}
+		catch (InterruptedException | ExecutionException | TimeoutException e)
+		{
+			throw new IOException("Unable to start the warm-up listeners", e);
+		}
+		finally
+		{
+			m_elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+			if (datagram != null)
+			{
+				datagram.close();
+			}
+			for (_Target target : m_targets)
+			{
+				target.m_server.stopServer();
+			}
+		}
+	}
+
+	/**
+	 * Get the number of rounds run
+	 * @return Rounds
+	 */
+	public int getRounds()
+	{
+		return m_rounds;
+	}
+
+	/**
+	 * Get the number of requests that were not answered (or answered wrongly)
+	 * @return Failures
+	 */
+	public int getFailures()
+	{
+		return m_failures;
+	}
+
+	/**
+	 * Get the time the warm-up took
+	 * @return Milliseconds
+	 */
+	public long getElapsedMillis()
+	{
+		return m_elapsedMs;
+	}
+
+	/**
+	 * Get the time the JIT spent compiling during the warm-up
+	 * @return Milliseconds, or -1 if the JVM does not report it
+	 */
+	public long getCompilationMillis()
+	{
+		return m_compilationMs;
+	}
+
+	/**
+	 * Get a flag indicating if the warm-up stopped because compilation settled
+	 * @return True if compilation settled, false if the time limit was reached (or the JVM does
+	 * not report compilation time)
+	 */
+	public boolean isSettled()
+	{
+		return m_settled;
+	}
+
+	/**
+	 * Get a one-line summary of the warm-up
+	 * @return Summary
+	 */
+	public String getStatus()
+	{
+		return "Warm-up: " + m_rounds + " rounds of " + m_targets.size() + " protocols in " + m_elapsedMs + " ms" +
+				(m_compilationMs >= 0 ? ", " + m_compilationMs + " ms compiling" : "") +
+				(m_settled ? ", compilation settled" : ", stopped before compilation settled") +
+				(m_failures > 0 ? ", " + m_failures + " failed requests" : "");
+	}
+
+	/**
+	 * This class is a private listener and how to query it
+	 */
+	private static class _Target
+	{
+		private final TimeServer m_server;
+		private final int m_transport;
+		private final DatagramPacket m_request;
+		private final DatagramPacket m_response;
+		private InetSocketAddress m_address = null;
+
+		/**
+		 * Create an instance of a _Target
+		 * @param server Private listener
+		 * @param transport Transport
+		 * @param request Request sent over UDP
+		 * @param maxResponseSize Largest response
+		 */
+		public _Target(TimeServer server, int transport, byte[] request, int maxResponseSize)
+		{
+			m_server = server;
+			m_transport = transport;
+			m_request = new DatagramPacket(request, request.length);
+			m_response = new DatagramPacket(new byte[maxResponseSize], maxResponseSize);
+		}
+
+		/**
+		 * Send one request and read the response
+		 * @param datagram UDP client socket
+		 * @throws IOException if there is no response
+		 */
+		public void request(DatagramSocket datagram) throws IOException
+		{
+			if (m_transport == ProtocolHandler.TRANSPORT_UDP)
+			{
+				m_request.setSocketAddress(m_address);
+				datagram.send(m_request);
+				m_response.setLength(m_response.getData().length);
+				datagram.receive(m_response);
+				return;
+			}
+
+			Socket socket = new Socket();
+			try
+			{
+				socket.connect(m_address, TIMEOUT_MS);
+				socket.setSoTimeout(TIMEOUT_MS);
+				InputStream in = socket.getInputStream();
+				byte[] data = m_response.getData();
+				while (in.read(data) >= 0)
+				{
+					// until the server half-closes
+				}
+			}
+			finally
+			{
+				socket.close();
+			}
+		}
+	}
+}
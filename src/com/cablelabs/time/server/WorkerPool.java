@@ -0,0 +1,360 @@
+/*
+ * Copyright 2017 Cable Television Laboratories, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cablelabs.time.server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class is a bounded pool of worker threads answering requests handed over by the listeners.
+ *
+ * At most {@link #getCapacity()} requests (one per thread plus the queue bound) are accepted at a
+ * time; beyond that the {@link RejectionPolicy} applies, so a burst cannot grow the queue without
+ * limit.  The time each request waits in the queue and the number of rejections are recorded.
+ * Requests are {@link Task}s owned and reused by the listeners, so handing one over does not
+ * allocate (with the thread pool; the fork-join pool allocates a small wrapper per task).
+ */
+public class WorkerPool
+{
+	/**
+	 * Executor types
+	 */
+	public enum Type
+	{
+		/** Fixed-size ThreadPoolExecutor with a bounded FIFO queue */
+		THREAD_POOL,
+		/** ForkJoinPool in FIFO (async) mode; the queue bound is enforced by counting */
+		FORK_JOIN
+	}
+
+	/**
+	 * What happens to a request when the pool is full
+	 */
+	public enum RejectionPolicy
+	{
+		/** The request is not answered */
+		DROP,
+		/** The listener answers the request itself, which slows down accepting new ones */
+		CALLER_RUNS
+	}
+
+	public static final int DEFAULT_QUEUE_BOUND = 1024;
+
+	// a thread pool can be resized up to this many times the threads it was created with
+	public static final int MAX_GROWTH = 4;
+
+	private final Type m_type;
+	private final int m_maxThreads;
+	private volatile int m_threads;
+	private final int m_queueBound;
+	private volatile RejectionPolicy m_policy;
+	private final ExecutorService m_executor;
+
+	private final AtomicInteger m_outstanding = new AtomicInteger(0);
+	private final AtomicLong m_completed = new AtomicLong(0);
+	private final AtomicLong m_rejected = new AtomicLong(0);
+	private final LatencyHistogram m_queueTime = new LatencyHistogram();
+
+	/**
+	 * Create an instance of a WorkerPool
+	 * @param type Executor type
+	 * @param threads Number of worker threads
+	 * @param queueBound Maximum number of requests waiting for a worker
+	 * @param policy What happens to a request when the pool is full
+	 */
+	public WorkerPool(Type type, int threads, int queueBound, RejectionPolicy policy)
+	{
+		if (threads < 1 || queueBound < 0)
+		{
+			throw new IllegalArgumentException("Invalid worker pool size: " + threads + " threads, queue " + queueBound);
+		}
+		m_type = type;
+		m_maxThreads = (type == Type.THREAD_POOL ? threads * MAX_GROWTH : threads);
+		m_threads = threads;
+		m_queueBound = queueBound;
+		m_policy = policy;
+
+		if (type == Type.FORK_JOIN)
+		{
+			m_executor = new ForkJoinPool(threads, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+				private final AtomicInteger m_count = new AtomicInteger(0);
+
+				public ForkJoinWorkerThread newThread(ForkJoinPool pool)
+				{
+					ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+					thread.setName("TimeServerWorker-" + m_count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			}, null, true);
+		}
+		else
+		{
+			// the outstanding count is the bound: a request handed to an idle thread still passes
+			// through the queue, so the queue itself must have room for the whole capacity, at the
+			// largest size the pool can be given
+			ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+					new ArrayBlockingQueue<Runnable>(m_maxThreads + queueBound), new ThreadFactory() {
+						private final AtomicInteger m_count = new AtomicInteger(0);
+
+						public Thread newThread(Runnable r)
+						{
+							Thread thread = new Thread(r, "TimeServerWorker-" + m_count.incrementAndGet());
+							thread.setDaemon(true);
+							return thread;
+						}
+					}, new ThreadPoolExecutor.AbortPolicy());
+			executor.prestartAllCoreThreads();
+			m_executor = executor;
+		}
+	}
+
+	/**
+	 * Get the executor type
+	 * @return Type
+	 */
+	public Type getType()
+	{
+		return m_type;
+	}
+
+	/**
+	 * Get the number of worker threads
+	 * @return Threads
+	 */
+	public int getThreads()
+	{
+		return m_threads;
+	}
+
+	/**
+	 * Get the largest number of worker threads the pool can be given
+	 * @return Threads
+	 */
+	public int getMaxThreads()
+	{
+		return m_maxThreads;
+	}
+
+	/**
+	 * Change the number of worker threads while the pool runs; threads beyond the new number
+	 * leave once they finish their current request; a fork-join pool cannot be resized
+	 * @param threads Number of worker threads, up to {@link #getMaxThreads()}
+	 */
+	public void setThreads(int threads)
+	{
+		if (m_type == Type.FORK_JOIN)
+		{
+			throw new IllegalStateException("A fork-join worker pool cannot be resized");
+		}
+		if (threads < 1 || threads > m_maxThreads)
+		{
+			throw new IllegalArgumentException("Invalid worker pool size: " + threads + " threads, at most " + m_maxThreads);
+		}
+		if (threads == m_threads)
+		{
+			return;
+		}
+		ThreadPoolExecutor executor = (ThreadPoolExecutor)m_executor;
+		synchronized (executor)
+		{
+			if (threads > executor.getMaximumPoolSize())
+			{
+				executor.setMaximumPoolSize(threads);
+				executor.setCorePoolSize(threads);
+			}
+			else
+			{
+				executor.setCorePoolSize(threads);
+				executor.setMaximumPoolSize(threads);
+			}
+			executor.prestartAllCoreThreads();
+			m_threads = threads;
+		}
+	}
+
+	/**
+	 * Get the maximum number of requests waiting for a worker
+	 * @return Queue bound
+	 */
+	public int getQueueBound()
+	{
+		return m_queueBound;
+	}
+
+	/**
+	 * Get the maximum number of requests accepted at a time
+	 * @return Threads plus the queue bound
+	 */
+	public int getCapacity()
+	{
+		return m_threads + m_queueBound;
+	}
+
+	/**
+	 * Get the rejection policy
+	 * @return Rejection policy
+	 */
+	public RejectionPolicy getRejectionPolicy()
+	{
+		return m_policy;
+	}
+
+	/**
+	 * Change what happens to a request when the pool is full
+	 * @param policy Rejection policy
+	 */
+	public void setRejectionPolicy(RejectionPolicy policy)
+	{
+		m_policy = policy;
+	}
+
+	/**
+	 * Hand a request over to a worker
+	 * @param task Request
+	 * @return True if a worker (or, with {@link RejectionPolicy#CALLER_RUNS}, the caller) answered
+	 * or will answer it; false if it was dropped, in which case the task is back with the caller
+	 */
+	public boolean execute(Task task)
+	{
+		if (m_outstanding.incrementAndGet() <= getCapacity())
+		{
+			task.m_pool = this;
+			task.m_enqueuedNanos = System.nanoTime();
+			try
+			{
+				m_executor.execute(task);
+				return true;
+			}
+			catch (RejectedExecutionException e)
+			{
+				// the pool is shut down
+			}
+		}
+		m_outstanding.decrementAndGet();
+		m_rejected.incrementAndGet();
+
+		if (m_policy == RejectionPolicy.CALLER_RUNS && !m_executor.isShutdown())
+		{
+			task.m_pool = null;
+			task.work();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Get the number of requests accepted and not yet answered
+	 * @return Requests in the queue or being answered
+	 */
+	public int getOutstanding()
+	{
+		return m_outstanding.get();
+	}
+
+	/**
+	 * Get the number of requests answered by the workers
+	 * @return Count
+	 */
+	public long getCompleted()
+	{
+		return m_completed.get();
+	}
+
+	/**
+	 * Get the number of requests the pool had no room for (dropped or run by the caller)
+	 * @return Count
+	 */
+	public long getRejected()
+	{
+		return m_rejected.get();
+	}
+
+	/**
+	 * Get the histogram of the time requests waited for a worker
+	 * @return Queue time histogram (nanoseconds)
+	 */
+	public LatencyHistogram getQueueTime()
+	{
+		return m_queueTime;
+	}
+
+	/**
+	 * Get a one-line summary of the pool statistics
+	 * @return Summary
+	 */
+	public String getStatus()
+	{
+		return m_threads + " " + (m_type == Type.FORK_JOIN ? "fork-join" : "pooled") + " workers: " +
+				m_completed.get() + " completed, " + m_rejected.get() + " rejected (" +
+				(m_policy == RejectionPolicy.DROP ? "dropped" : "run by listener") + "), " +
+				m_outstanding.get() + " outstanding, queue time p50 " +
+				TimeUnit.NANOSECONDS.toMicros(m_queueTime.getPercentile(50)) + "us p99 " +
+				TimeUnit.NANOSECONDS.toMicros(m_queueTime.getPercentile(99)) + "us";
+	}
+
+	/**
+	 * Stop the worker threads; requests still queued are not answered
+	 */
+	public void shutdown()
+	{
+		m_executor.shutdownNow();
+	}
+
+	/**
+	 * This class is a request handed to a worker; listeners reuse their tasks
+	 */
+	public static abstract class Task implements Runnable
+	{
+		private WorkerPool m_pool = null;
+		private long m_enqueuedNanos = 0;
+
+		/*
+		 * (non-Javadoc)
+		 * @see java.lang.Runnable#run()
+		 */
+		@Override
+		public final void run()
+		{
+			WorkerPool pool = m_pool;
+			pool.m_queueTime.record(System.nanoTime() - m_enqueuedNanos);
+			try
+			{
+				work();
+			}
+			finally
+			{
+				pool.m_completed.incrementAndGet();
+				pool.m_outstanding.decrementAndGet();
+			}
+		}
+
+		/**
+		 * Answer the request; called on a worker thread, or on the caller's thread when the
+		 * pool is full and the policy is {@link RejectionPolicy#CALLER_RUNS}
+		 */
+		protected abstract void work();
+	}
+}
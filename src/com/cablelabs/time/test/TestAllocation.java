@@ -0,0 +1,362 @@
+/*
+ * Copyright 2017 Cable Television Laboratories, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cablelabs.time.test;
+
+import static org.junit.Assert.*;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.cablelabs.time.client.AsyncTimeClient;
+import com.cablelabs.time.client.TimeQueryResult;
+import com.cablelabs.time.server.CompactTimeServer;
+import com.cablelabs.time.server.SntpTimeServer;
+import com.cablelabs.time.server.TcpTimeServer;
+import com.cablelabs.time.server.TimeServer;
+import com.cablelabs.time.server.UdpTimeServer;
+
+/**
+ * This class checks the bytes allocated per request on the hot paths against fixed budgets,
+ * using the per-thread allocation counters of the HotSpot ThreadMXBean.
+ *
+ * The budgets assume request logging, the journal and heavy-hitter tracking are disabled.  The
+ * TCP budgets cover what the JDK allocates for every accepted or connected socket (channel,
+ * file descriptor, selection key), which the server and client cannot avoid.
+ */
+public class TestAllocation
+{
+	private static final double CODEC_BUDGET = 0.0;
+	private static final double UDP_SERVER_BUDGET = 0.0;
+	private static final double SNTP_SERVER_BUDGET = 0.0;
+	private static final double TCP_SERVER_BUDGET = 1024;
+	private static final double CLIENT_BUDGET = 1536;
+
+	// allowance for the measurement itself, and for the odd JIT deoptimization, per run
+	private static final long NOISE_BYTES = 16 * 1024;
+
+	private static final int WARMUP = 20000;
+	private static final int REQUESTS = 20000;
+
+	private static com.sun.management.ThreadMXBean s_threads = null;
+
+	@BeforeClass
+	public static void setUpClass()
+	{
+		Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+		s_threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue(s_threads.isThreadAllocatedMemorySupported());
+		s_threads.setThreadAllocatedMemoryEnabled(true);
+	}
+
+	/**
+	 * Get the bytes allocated so far by a thread
+	 * @param thread Thread
+	 * @return Allocated bytes
+	 */
+	private static long allocated(Thread thread)
+	{
+		return s_threads.getThreadAllocatedBytes(thread.getId());
+	}
+
+	/**
+	 * Fail if the bytes allocated per operation exceed a budget
+	 * @param what Hot path name
+	 * @param bytes Bytes allocated by the run
+	 * @param operations Operations in the run
+	 * @param budget Budget in bytes per operation
+	 */
+	private static void assertBudget(String what, long bytes, int operations, double budget)
+	{
+		double perOperation = (double)Math.max(0, bytes - NOISE_BYTES) / operations;
+		System.out.println(String.format("%s: %.1f bytes/request (budget %.0f)", what,
+				(double)bytes / operations, budget));
+		assertTrue(String.format("%s allocates %.1f bytes/request, budget is %.0f", what, perOperation, budget),
+				perOperation <= budget);
+	}
+
+	/**
+	 * This class runs each listener on a thread the test can measure
+	 */
+	private static class _MeasuredExecutor implements Executor
+	{
+		private volatile Thread m_thread = null;
+
+		public void execute(Runnable command)
+		{
+			m_thread = new Thread(command, "MeasuredListener");
+			m_thread.start();
+		}
+	}
+
+	@Test
+	public void testCodec()
+	{
+		byte[] bytes = new byte[4];
+		long sum = 0;
+		Thread self = Thread.currentThread();
+		long before = 0;
+		for (int pass = 0; pass < 2; pass++)
+		{
+			// the first pass warms up the JIT
+			before = allocated(self);
+			for (int i = 0; i < REQUESTS * 10; i++)
+			{
+				long value = TimeServer.timeServerValueFromMillis(1500000000000L + i * 1000L);
+				TimeServer.timeServerValueToBytes(value, bytes, 0);
+				sum += TimeServer.timeServerValueFromBytes(bytes, 0);
+				sum += TimeServer.timeServerValueToMillis(value);
+			}
+		}
+		long bytesAllocated = allocated(self) - before;
+		assertTrue(sum != 0);
+		assertBudget("codec", bytesAllocated, REQUESTS * 10, CODEC_BUDGET);
+	}
+
+	@Test
+	public void testUdpServer() throws Exception
+	{
+		_MeasuredExecutor executor = new _MeasuredExecutor();
+		UdpTimeServer server = new UdpTimeServer.Builder()
+				.setListenAddress("127.0.0.1")
+				.setPort(0)
+				.setExecutor(executor)
+				.setRequestLogInterval(0)
+				.build();
+		InetSocketAddress address = server.start().get(5, TimeUnit.SECONDS);
+
+		DatagramChannel channel = DatagramChannel.open();
+		try
+		{
+			channel.connect(address);
+			ByteBuffer request = ByteBuffer.allocate(1);
+			ByteBuffer response = ByteBuffer.allocate(4);
+			long before = 0;
+			for (int pass = 0; pass < 2; pass++)
+			{
+				before = allocated(executor.m_thread);
+				for (int i = 0; i < (pass == 0 ? WARMUP : REQUESTS); i++)
+				{
+					request.clear();
+					channel.write(request);
+					response.clear();
+					channel.read(response);
+				}
+			}
+			assertBudget("UDP server", allocated(executor.m_thread) - before, REQUESTS, UDP_SERVER_BUDGET);
+		}
+		finally
+		{
+			channel.close();
+			server.stopServer();
+		}
+	}
+
+	@Test
+	public void testSntpServer() throws Exception
+	{
+		_MeasuredExecutor executor = new _MeasuredExecutor();
+		SntpTimeServer server = new SntpTimeServer.Builder()
+				.setListenAddress("127.0.0.1")
+				.setPort(0)
+				.setExecutor(executor)
+				.setRequestLogInterval(0)
+				.build();
+		InetSocketAddress address = server.start().get(5, TimeUnit.SECONDS);
+
+		DatagramChannel channel = DatagramChannel.open();
+		try
+		{
+			channel.connect(address);
+			ByteBuffer request = ByteBuffer.allocate(SntpTimeServer.PACKET_SIZE);
+			ByteBuffer response = ByteBuffer.allocate(SntpTimeServer.PACKET_SIZE);
+			request.put(0, (byte)((4 << 3) | SntpTimeServer.MODE_CLIENT));
+			long before = 0;
+			for (int pass = 0; pass < 2; pass++)
+			{
+				before = allocated(executor.m_thread);
+				for (int i = 0; i < (pass == 0 ? WARMUP : REQUESTS); i++)
+				{
+					request.clear();
+					channel.write(request);
+					response.clear();
+					channel.read(response);
+				}
+			}
+			assertBudget("SNTP server", allocated(executor.m_thread) - before, REQUESTS, SNTP_SERVER_BUDGET);
+		}
+		finally
+		{
+			channel.close();
+			server.stopServer();
+		}
+	}
+
+	@Test
+	public void testTcpServer() throws Exception
+	{
+		_MeasuredExecutor executor = new _MeasuredExecutor();
+		TcpTimeServer server = new TcpTimeServer.Builder()
+				.setListenAddress("127.0.0.1")
+				.setPort(0)
+				.setExecutor(executor)
+				.setRequestLogInterval(0)
+				.build();
+		InetSocketAddress address = server.start().get(5, TimeUnit.SECONDS);
+
+		try
+		{
+			ByteBuffer response = ByteBuffer.allocate(4);
+			long before = 0;
+			for (int pass = 0; pass < 2; pass++)
+			{
+				before = allocated(executor.m_thread);
+				for (int i = 0; i < (pass == 0 ? WARMUP : REQUESTS) / 4; i++)
+				{
+					SocketChannel channel = SocketChannel.open(address);
+					response.clear();
+					while (channel.read(response) >= 0)
+					{
+						response.clear();
+					}
+					channel.close();
+				}
+				while (server.getOpenConnections() > 0)
+				{
+					Thread.sleep(1);
+				}
+			}
+			assertBudget("TCP server", allocated(executor.m_thread) - before, REQUESTS / 4, TCP_SERVER_BUDGET);
+		}
+		finally
+		{
+			server.stopServer();
+		}
+	}
+
+	@Test
+	public void testCompactServer() throws Exception
+	{
+		CompactTimeServer server = new CompactTimeServer.Builder()
+				.setListenAddress("127.0.0.1")
+				.setPort(0)
+				.build();
+		server.startServer();
+
+		DatagramChannel channel = DatagramChannel.open();
+		try
+		{
+			Thread loop = null;
+			for (Thread thread : Thread.getAllStackTraces().keySet())
+			{
+				if (thread.getName().equals("CompactTimeServer") && thread.isAlive())
+				{
+					loop = thread;
+				}
+			}
+			assertNotNull(loop);
+
+			channel.connect(server.getUdpAddress());
+			ByteBuffer request = ByteBuffer.allocate(1);
+			ByteBuffer response = ByteBuffer.allocate(4);
+			long before = 0;
+			for (int pass = 0; pass < 2; pass++)
+			{
+				before = allocated(loop);
+				for (int i = 0; i < (pass == 0 ? WARMUP : REQUESTS); i++)
+				{
+					request.clear();
+					channel.write(request);
+					response.clear();
+					channel.read(response);
+				}
+			}
+			assertBudget("Compact UDP server", allocated(loop) - before, REQUESTS, UDP_SERVER_BUDGET);
+		}
+		finally
+		{
+			channel.close();
+			server.stopServer();
+		}
+	}
+
+	@Test
+	public void testClient() throws Exception
+	{
+		UdpTimeServer server = new UdpTimeServer.Builder()
+				.setListenAddress("127.0.0.1")
+				.setPort(0)
+				.setRequestLogInterval(0)
+				.build();
+		InetSocketAddress address = server.start().get(5, TimeUnit.SECONDS);
+
+		final AtomicLong failures = new AtomicLong(0);
+		AsyncTimeClient.ResultListener listener = new AsyncTimeClient.ResultListener() {
+			public void onResult(TimeQueryResult result)
+			{
+				if (result.getStatus() != TimeQueryResult.Status.OK)
+				{
+					failures.incrementAndGet();
+				}
+			}
+		};
+
+		AsyncTimeClient client = new AsyncTimeClient(16, 2000);
+		try
+		{
+			Thread engine = null;
+			for (Thread thread : Thread.getAllStackTraces().keySet())
+			{
+				if (thread.getName().equals("AsyncTimeClient") && thread.isAlive())
+				{
+					engine = thread;
+				}
+			}
+			assertNotNull(engine);
+
+			Thread self = Thread.currentThread();
+			long before = 0;
+			for (int pass = 0; pass < 2; pass++)
+			{
+				client.drain();
+				before = allocated(self) + allocated(engine);
+				for (int i = 0; i < (pass == 0 ? WARMUP : REQUESTS) / 4; i++)
+				{
+					client.query(null, address, false, listener);
+				}
+				client.drain();
+			}
+			long bytesAllocated = allocated(self) + allocated(engine) - before;
+			assertEquals(0, failures.get());
+			assertBudget("UDP client", bytesAllocated, REQUESTS / 4, CLIENT_BUDGET);
+		}
+		finally
+		{
+			client.close();
+			server.stopServer();
+		}
+	}
+}
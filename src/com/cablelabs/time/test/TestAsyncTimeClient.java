@@ -0,0 +1,92 @@
+/*
+ * Copyright 2017 Cable Television Laboratories, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cablelabs.time.test;
+
+import static org.junit.Assert.*;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.cablelabs.time.client.AsyncTimeClient;
+import com.cablelabs.time.client.TimeQueryResult;
+import com.cablelabs.time.server.UdpTimeServer;
+
+/**
+ * This class tests the non-blocking query engine
+ */
+public class TestAsyncTimeClient
+{
+	@Test(timeout = 10000)
+	public void testFailuresStayWithTheirQuery() throws Exception
+	{
+		UdpTimeServer server = new UdpTimeServer.Builder()
+				.setListenAddress("127.0.0.1")
+				.setPort(0)
+				.setRequestLogInterval(0)
+				.build();
+		AsyncTimeClient client = new AsyncTimeClient(1, 1000);
+		try
+		{
+			InetSocketAddress address = server.start().get(5, TimeUnit.SECONDS);
+			final List<TimeQueryResult> results = Collections.synchronizedList(new ArrayList<TimeQueryResult>());
+			AsyncTimeClient.ResultListener listener = new AsyncTimeClient.ResultListener() {
+				public void onResult(TimeQueryResult result)
+				{
+					results.add(result);
+				}
+			};
+
+			// a listener that throws, and a query the engine cannot even send, only fail themselves
+			client.query("throws", address, false, new AsyncTimeClient.ResultListener() {
+				public void onResult(TimeQueryResult result)
+				{
+					throw new IllegalStateException("listener failure");
+				}
+			});
+			client.query("ipv6", new InetSocketAddress(InetAddress.getByName("::1"), 37), false,
+					InetAddress.getByName("127.0.0.1"), listener);
+			client.query("ok", address, false, listener);
+			client.drain();
+
+			assertEquals(2, results.size());
+			assertEquals(TimeQueryResult.Status.ERROR, results.get(0).getStatus());
+			assertEquals(TimeQueryResult.Status.OK, results.get(1).getStatus());
+			assertEquals(0, client.getInFlight());
+		}
+		finally
+		{
+			client.close();
+			server.stopServer();
+		}
+
+		try
+		{
+			client.query("closed", new InetSocketAddress("127.0.0.1", 37), false, null);
+			fail("Query accepted after close");
+		}
+		catch (IllegalStateException e)
+		{
+			// expected
+		}
+	}
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2017 Cable Television Laboratories, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cablelabs.time.test;
+
+import static org.junit.Assert.*;
+
+import java.net.InetAddress;
+
+import org.junit.Test;
+
+import com.cablelabs.time.server.CidrTrie;
+
+/**
+ * This class tests the CidrTrie
+ */
+public class TestCidrTrie
+{
+	@Test
+	public void testLongestPrefixWins() throws Exception
+	{
+		CidrTrie trie = new CidrTrie.Builder()
+				.add("10.0.0.0/8", true)
+				.add("10.1.0.0/16", false)
+				.add("10.1.2.0/24", true)
+				.add("2001:db8::/32", true)
+				.add("2001:db8:bad::/48", false)
+				.setDefault(CidrTrie.VERDICT_DENY)
+				.build();
+
+		assertEquals(5, trie.getPrefixCount());
+		assertEquals(CidrTrie.VERDICT_ALLOW, trie.lookup(InetAddress.getByName("10.200.0.1")));
+		assertEquals(CidrTrie.VERDICT_DENY, trie.lookup(InetAddress.getByName("10.1.9.9")));
+		assertEquals(CidrTrie.VERDICT_ALLOW, trie.lookup(InetAddress.getByName("10.1.2.3")));
+		assertEquals(CidrTrie.VERDICT_DENY, trie.lookup(InetAddress.getByName("192.168.1.1")));
+		assertEquals(CidrTrie.VERDICT_ALLOW, trie.lookup(InetAddress.getByName("2001:db8:1::1")));
+		assertEquals(CidrTrie.VERDICT_DENY, trie.lookup(InetAddress.getByName("2001:db8:bad::1")));
+		assertEquals(CidrTrie.VERDICT_DENY, trie.lookup(InetAddress.getByName("::1")));
+	}
+
+	@Test
+	public void testDenyOverridesAllowOfSamePrefix() throws Exception
+	{
+		CidrTrie trie = new CidrTrie.Builder()
+				.add("192.0.2.0/24", false)
+				.add("192.0.2.0/24", true)
+				.add("0.0.0.0/0", true)
+				.setDefault(CidrTrie.VERDICT_DENY)
+				.build();
+
+		assertEquals(CidrTrie.VERDICT_DENY, trie.lookup(InetAddress.getByName("192.0.2.7")));
+		assertEquals(CidrTrie.VERDICT_ALLOW, trie.lookup(InetAddress.getByName("198.51.100.7")));
+		assertEquals(CidrTrie.VERDICT_ALLOW, trie.lookupV4(0x7F000001));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRejectsHostNames()
+	{
+		new CidrTrie.Builder().add("example.com/24", true);
+	}
+
+	@Test
+	public void testRejectsPartialLiterals()
+	{
+		// all hexadecimal or dotted, but neither IPv6 nor four decimal octets
+		for (String cidr : new String[] { "cafe/16", "10.1/16", "10.0.0.256/8", "10.0.0.0.0/8", "10..0.0/8", "0x0a.0.0.0/8" })
+		{
+			try
+			{
+				new CidrTrie.Builder().add(cidr, true);
+				fail(cidr + " accepted");
+			}
+			catch (IllegalArgumentException e)
+			{
+				// expected
+			}
+		}
+		assertEquals(2, new CidrTrie.Builder().add("10.0.0.0/8", true).add("fe80::/10", true).build().getPrefixCount());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRejectsBadPrefixLength()
+	{
+		new CidrTrie.Builder().add("10.0.0.0/33", true);
+	}
+}
@@ -0,0 +1,406 @@
+/*
+ * Copyright 2017 Cable Television Laboratories, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cablelabs.time.test;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.cablelabs.time.client.CableLabsTimeClient;
+import com.cablelabs.time.client.RetryBudget;
+import com.cablelabs.time.client.RttEstimator;
+import com.cablelabs.time.client.TimeQueryResult;
+import com.cablelabs.time.server.ProtocolHandler;
+import com.cablelabs.time.server.RequestContext;
+import com.cablelabs.time.server.TcpTimeServer;
+import com.cablelabs.time.server.TimeServer;
+import com.cablelabs.time.server.UdpTimeServer;
+
+/**
+ * This class tests the client retransmission timeouts, retry budget and hedged requests
+ */
+public class TestClientRetries
+{
+	private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	/**
+	 * This class answers RFC868 over UDP, except for the requests it is told to lose
+	 */
+	private static class _LossyHandler implements ProtocolHandler
+	{
+		private final AtomicInteger m_losses = new AtomicInteger(0);
+
+		public void lose(int requests)
+		{
+			m_losses.set(requests);
+		}
+
+		public String getName()
+		{
+			return "lossy";
+		}
+
+		public int getDefaultPort()
+		{
+			return 0;
+		}
+
+		public boolean supportsTransport(int transport)
+		{
+			return (transport == TRANSPORT_UDP);
+		}
+
+		public byte getProtocol(int transport)
+		{
+			return TimeServer.PROTOCOL_UDP;
+		}
+
+		public int getMaxResponseSize()
+		{
+			return 4;
+		}
+
+		public boolean handle(ByteBuffer request, RequestContext context, ByteBuffer response)
+		{
+			if (m_losses.getAndDecrement() > 0)
+			{
+				return false;
+			}
+			response.putInt((int)context.getTimeValue());
+			return true;
+		}
+	}
+
+	@Test
+	public void testEstimator()
+	{
+		RttEstimator estimator = new RttEstimator(1000, 100, 2000);
+		assertEquals(1000 * MS, estimator.getRtoNanos());
+
+		// SRTT = R, RTTVAR = R / 2, RTO = SRTT + 4 RTTVAR
+		estimator.sample(100 * MS);
+		assertEquals(100 * MS, estimator.getSmoothedRttNanos());
+		assertEquals(50 * MS, estimator.getRttVariationNanos());
+		assertEquals(300 * MS, estimator.getRtoNanos());
+
+		estimator.sample(100 * MS);
+		assertEquals(100 * MS, estimator.getSmoothedRttNanos());
+		assertEquals(37500000, estimator.getRttVariationNanos());
+		assertEquals(250 * MS, estimator.getRtoNanos());
+
+		// backed off up to the maximum, until the next sample
+		for (int i = 0; i < 5; i++)
+		{
+			estimator.backoff();
+		}
+		assertEquals(2000 * MS, estimator.getRtoNanos());
+		estimator.sample(100 * MS);
+		assertTrue(estimator.getRtoNanos() < 250 * MS);
+
+		// never below the minimum
+		for (int i = 0; i < 50; i++)
+		{
+			estimator.sample(MS);
+		}
+		assertEquals(100 * MS, estimator.getRtoNanos());
+
+		// no hedging before enough queries
+		assertEquals(0, estimator.getHedgeDelayNanos(50));
+		for (int i = 0; i < RttEstimator.MIN_HEDGE_SAMPLES; i++)
+		{
+			estimator.recordLatency(10 * MS);
+		}
+		long delay = estimator.getHedgeDelayNanos(50);
+		assertTrue(delay >= 10 * MS && delay < 12 * MS);
+	}
+
+	@Test
+	public void testBudget()
+	{
+		RetryBudget budget = new RetryBudget(0.5, 2);
+		assertTrue(budget.tryRetry());
+		assertTrue(budget.tryRetry());
+		assertFalse(budget.tryRetry());
+		budget.queryStarted();
+		assertFalse(budget.tryRetry());
+		budget.queryStarted();
+		assertTrue(budget.tryRetry());
+		assertEquals(2, budget.getRefused());
+
+		// the balance never exceeds the reserve
+		for (int i = 0; i < 100; i++)
+		{
+			budget.queryStarted();
+		}
+		assertEquals(2, budget.getBalance());
+	}
+
+	@Test
+	public void testUdpRetransmission() throws Exception
+	{
+		_LossyHandler handler = new _LossyHandler();
+		UdpTimeServer server = startUdp(handler);
+		try
+		{
+			CableLabsTimeClient client = newClient(server, false);
+			client.setRtoBounds(50, 10, 1000);
+			handler.lose(1);
+
+			TimeQueryResult result = client.query();
+			assertEquals(TimeQueryResult.Status.OK, result.getStatus());
+			assertEquals(2, result.getRequests());
+			assertEquals(1, client.getRetransmissions());
+			long now = TimeServer.timeServerValueFromMillis(System.currentTimeMillis());
+			assertTrue(Math.abs(result.getServerValue() - now) <= 1);
+
+			// the retransmitted request gave no sample, and the timeout stays backed off
+			RttEstimator estimator = client.getEstimator(result.getAddress(), false);
+			assertEquals(0, estimator.getSamples());
+			assertEquals(100 * MS, estimator.getRtoNanos());
+
+			result = client.query();
+			assertEquals(1, result.getRequests());
+			assertEquals(1, estimator.getSamples());
+		}
+		finally
+		{
+			server.stopServer();
+		}
+	}
+
+	@Test
+	public void testUdpTimeout() throws Exception
+	{
+		_LossyHandler handler = new _LossyHandler();
+		UdpTimeServer server = startUdp(handler);
+		try
+		{
+			CableLabsTimeClient client = newClient(server, false);
+			client.setRtoBounds(50, 10, 1000);
+			client.setTimeout(500);
+			client.setRetries(2);
+			handler.lose(Integer.MAX_VALUE);
+
+			long start = System.nanoTime();
+			TimeQueryResult result = client.query();
+			long elapsed = System.nanoTime() - start;
+			assertEquals(TimeQueryResult.Status.TIMEOUT, result.getStatus());
+			assertEquals(3, result.getRequests());
+			assertTrue(elapsed >= 500 * MS && elapsed < 1500 * MS);
+		}
+		finally
+		{
+			server.stopServer();
+		}
+	}
+
+	@Test
+	public void testBudgetLimitsRetries() throws Exception
+	{
+		_LossyHandler handler = new _LossyHandler();
+		UdpTimeServer server = startUdp(handler);
+		try
+		{
+			CableLabsTimeClient client = newClient(server, false);
+			client.setRtoBounds(20, 10, 1000);
+			client.setTimeout(300);
+			client.setRetryBudget(new RetryBudget(0, 1));
+			handler.lose(Integer.MAX_VALUE);
+
+			TimeQueryResult result = client.query();
+			assertEquals(TimeQueryResult.Status.TIMEOUT, result.getStatus());
+			assertEquals(2, result.getRequests());
+			assertEquals(1, client.getRetryBudget().getRefused());
+		}
+		finally
+		{
+			server.stopServer();
+		}
+	}
+
+	@Test
+	public void testHedge() throws Exception
+	{
+		_LossyHandler handler = new _LossyHandler();
+		UdpTimeServer server = startUdp(handler);
+		try
+		{
+			CableLabsTimeClient client = newClient(server, false);
+			client.setRtoBounds(1000, 1000, 2000);
+			client.setHedgePercentile(50);
+			client.setRetryBudget(new RetryBudget(0.5, 1));
+			for (int i = 0; i < RttEstimator.MIN_HEDGE_SAMPLES; i++)
+			{
+				assertEquals(1, client.query().getRequests());
+			}
+			assertEquals(0, client.getHedges());
+
+			// the lost request is covered by the hedged request, long before the retransmission timeout
+			handler.lose(1);
+			TimeQueryResult result = client.query();
+			assertEquals(TimeQueryResult.Status.OK, result.getStatus());
+			assertEquals(2, result.getRequests());
+			assertEquals(1, client.getHedges());
+			assertEquals(0, client.getRetransmissions());
+			assertTrue(result.getRttNanos() < 500 * MS);
+		}
+		finally
+		{
+			server.stopServer();
+		}
+	}
+
+	@Test
+	public void testTcp() throws Exception
+	{
+		TcpTimeServer server = new TcpTimeServer.Builder()
+				.setListenAddress("127.0.0.1")
+				.setPort(0)
+				.setRequestLogInterval(0)
+				.build();
+		try
+		{
+			CableLabsTimeClient client = newClient(server, true);
+			TimeQueryResult result = client.query();
+			assertEquals(TimeQueryResult.Status.OK, result.getStatus());
+			assertEquals(1, result.getRequests());
+			assertEquals(1, client.getEstimator(result.getAddress(), true).getSamples());
+		}
+		finally
+		{
+			server.stopServer();
+		}
+	}
+
+	@Test
+	public void testTcpTimeout() throws Exception
+	{
+		// connections complete in the accept backlog, and are never answered
+		ServerSocket silent = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+		try
+		{
+			CableLabsTimeClient client = new CableLabsTimeClient();
+			client.setServerIp("127.0.0.1");
+			client.setPort(silent.getLocalPort());
+			client.setUseTcp(true);
+			client.setRtoBounds(50, 10, 1000);
+			client.setTimeout(500);
+
+			long start = System.nanoTime();
+			TimeQueryResult result = client.query();
+			long elapsed = System.nanoTime() - start;
+			assertEquals(TimeQueryResult.Status.TIMEOUT, result.getStatus());
+			assertEquals(4, result.getRequests());
+			assertEquals(3, client.getRetransmissions());
+			assertTrue(elapsed >= 500 * MS && elapsed < 1500 * MS);
+		}
+		finally
+		{
+			silent.close();
+		}
+	}
+
+	@Test
+	public void testTcpRetryRefused() throws Exception
+	{
+		// answers each connection after 200 ms
+		final ServerSocket slow = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+		final AtomicInteger accepted = new AtomicInteger(0);
+		Thread acceptor = new Thread(new Runnable() {
+			public void run()
+			{
+				while (!slow.isClosed())
+				{
+					try
+					{
+						Socket socket = slow.accept();
+						accepted.incrementAndGet();
+						Thread.sleep(200);
+						socket.getOutputStream().write(new byte[] { 1, 2, 3, 4 });
+						socket.close();
+					}
+					catch (IOException | InterruptedException e)
+					{
+						// closed
+					}
+				}
+			}
+		});
+		acceptor.start();
+		try
+		{
+			CableLabsTimeClient client = new CableLabsTimeClient();
+			client.setServerIp("127.0.0.1");
+			client.setPort(slow.getLocalPort());
+			client.setUseTcp(true);
+			client.setRtoBounds(50, 10, 1000);
+			client.setTimeout(1000);
+			// a budget drained by other queries between the check and the retry
+			client.setRetryBudget(new RetryBudget(0, 1) {
+				@Override
+				public synchronized boolean tryRetry()
+				{
+					super.tryRetry();
+					return super.tryRetry();
+				}
+			});
+
+			// the refused retry leaves the query waiting on its first connection
+			TimeQueryResult result = client.query();
+			assertEquals(TimeQueryResult.Status.OK, result.getStatus());
+			assertEquals(0x01020304L, result.getServerValue());
+			assertEquals(1, result.getRequests());
+			assertEquals(0, client.getRetransmissions());
+			Thread.sleep(100);
+			assertEquals(1, accepted.get());
+		}
+		finally
+		{
+			slow.close();
+			acceptor.join();
+		}
+	}
+
+	private static UdpTimeServer startUdp(ProtocolHandler handler)
+	{
+		return new UdpTimeServer.Builder()
+				.setHandler(handler)
+				.setListenAddress("127.0.0.1")
+				.setPort(0)
+				.setRequestLogInterval(0)
+				.build();
+	}
+
+	private static CableLabsTimeClient newClient(TimeServer server, boolean tcp) throws Exception
+	{
+		InetSocketAddress address = server.start().get(5, TimeUnit.SECONDS);
+		CableLabsTimeClient client = new CableLabsTimeClient();
+		client.setServerIp("127.0.0.1");
+		client.setPort(address.getPort());
+		client.setUseTcp(tcp);
+		return client;
+	}
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2017 Cable Television Laboratories, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cablelabs.time.test;
+
+import static org.junit.Assert.*;
+
+import java.io.DataInputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+import org.junit.Test;
+
+import com.cablelabs.time.server.CompactTimeServer;
+import com.cablelabs.time.server.ServedClock;
+import com.cablelabs.time.server.SntpHandler;
+import com.cablelabs.time.server.TimeServer;
+
+/**
+ * This class tests the single-threaded compact server
+ */
+public class TestCompactTimeServer
+{
+	/**
+	 * Read the time value of a TCP connection
+	 * @param address Server address
+	 * @return Time Server value
+	 */
+	private static long queryTcp(InetSocketAddress address) throws Exception
+	{
+		Socket socket = new Socket();
+		try
+		{
+			socket.connect(address, 1000);
+			socket.setSoTimeout(1000);
+			DataInputStream in = new DataInputStream(socket.getInputStream());
+			long value = in.readInt() & 0xFFFFFFFFL;
+			assertEquals(-1, in.read());
+			return value;
+		}
+		finally
+		{
+			socket.close();
+		}
+	}
+
+	/**
+	 * Read the time value of a UDP request
+	 * @param address Server address
+	 * @return Time Server value, or -1 if there is no answer
+	 */
+	private static long queryUdp(InetSocketAddress address) throws Exception
+	{
+		DatagramSocket socket = new DatagramSocket();
+		try
+		{
+			socket.setSoTimeout(500);
+			socket.send(new DatagramPacket(new byte[0], 0, address));
+			byte[] data = new byte[4];
+			socket.receive(new DatagramPacket(data, data.length));
+			return TimeServer.timeServerValueFromBytes(data);
+		}
+		catch (SocketTimeoutException e)
+		{
+			return -1;
+		}
+		finally
+		{
+			socket.close();
+		}
+	}
+
+	@Test
+	public void testTcpAndUdpOnOneThread() throws Exception
+	{
+		CompactTimeServer server = new CompactTimeServer.Builder()
+				.setListenAddress("127.0.0.1")
+				.setPort(0)
+				.setMaxConnections(2)
+				.build();
+		server.startServer();
+		try
+		{
+			assertTrue(server.getServerRunning());
+			// more connections than slots: the extra ones are closed by the server after the answer
+			for (int i = 0; i < 5; i++)
+			{
+				long expected = TimeServer.timeServerValueFromMillis(System.currentTimeMillis());
+				assertTrue(Math.abs(queryTcp(server.getTcpAddress()) - expected) <= 1);
+				assertTrue(Math.abs(queryUdp(server.getUdpAddress()) - expected) <= 1);
+			}
+			assertEquals(10, server.getAnswered());
+			assertEquals(0, server.getDropped());
+		}
+		finally
+		{
+			server.stopServer();
+		}
+		assertFalse(server.getServerRunning());
+	}
+
+	@Test
+	public void testUnsynchronizedDropped() throws Exception
+	{
+		ServedClock clock = new ServedClock();
+		clock.setSynchronized(false);
+		CompactTimeServer server = new CompactTimeServer.Builder()
+				.setListenAddress("127.0.0.1")
+				.setPort(0)
+				.setUseTcp(false)
+				.setClock(clock)
+				.build();
+		server.startServer();
+		try
+		{
+			assertNull(server.getTcpAddress());
+			assertEquals(-1, queryUdp(server.getUdpAddress()));
+			assertEquals(1, server.getDropped());
+		}
+		finally
+		{
+			server.stopServer();
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnsupportedTransport()
+	{
+		new CompactTimeServer.Builder().setHandler(new SntpHandler()).build();
+	}
+}
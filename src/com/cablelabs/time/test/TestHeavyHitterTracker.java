@@ -0,0 +1,106 @@
+/*
+ * Copyright 2017 Cable Television Laboratories, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cablelabs.time.test;
+
+import static org.junit.Assert.*;
+
+import java.net.InetAddress;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import com.cablelabs.time.server.HeavyHitterTracker;
+import com.cablelabs.time.server.ServedClock;
+import com.cablelabs.time.server.TimeServer;
+
+/**
+ * This class tests the HeavyHitterTracker
+ */
+public class TestHeavyHitterTracker
+{
+	@Test
+	public void testHeavyHittersSurviveNoise() throws Exception
+	{
+		HeavyHitterTracker tracker = new HeavyHitterTracker(16, Long.MAX_VALUE / 2);
+		long now = tracker.getWindowStart();
+
+		InetAddress heavy1 = InetAddress.getByName("10.0.0.1");
+		InetAddress heavy2 = InetAddress.getByName("2001:db8::7");
+		for (int i = 0; i < 5000; i++)
+		{
+			tracker.record(TimeServer.PROTOCOL_UDP, heavy1, now);
+			if (i % 2 == 0)
+			{
+				tracker.record(TimeServer.PROTOCOL_UDP, heavy2, now);
+			}
+			// a stream of distinct one-off sources across many subnets
+			tracker.record(TimeServer.PROTOCOL_UDP, InetAddress.getByAddress(new byte[] {
+					(byte)172, (byte)(i >>> 16), (byte)(i >>> 8), (byte)i }), now);
+		}
+
+		List<HeavyHitterTracker.HeavyHitter> hosts = tracker.getTopTalkers(TimeServer.PROTOCOL_UDP, false, 2, false);
+		assertEquals(2, hosts.size());
+		assertEquals(heavy1, hosts.get(0).getAddress());
+		assertTrue(hosts.get(0).getCount() >= 5000);
+		assertTrue(hosts.get(0).getCount() - hosts.get(0).getError() <= 5000);
+		assertEquals(heavy2, hosts.get(1).getAddress());
+		assertTrue(hosts.get(1).getCount() >= 2500);
+
+		List<HeavyHitterTracker.HeavyHitter> subnets = tracker.getTopTalkers(TimeServer.PROTOCOL_UDP, true, 1, false);
+		assertEquals(InetAddress.getByName("10.0.0.0"), subnets.get(0).getAddress());
+		assertEquals(24, subnets.get(0).getPrefixLength());
+
+		assertTrue(tracker.getTopTalkers(TimeServer.PROTOCOL_TCP, false, 10, false).isEmpty());
+	}
+
+	@Test
+	public void testWindowRotation() throws Exception
+	{
+		HeavyHitterTracker tracker = new HeavyHitterTracker(4, 1000);
+		long start = tracker.getWindowStart();
+		InetAddress address = InetAddress.getByName("192.0.2.1");
+
+		tracker.record(TimeServer.PROTOCOL_TCP, address, start);
+		tracker.record(TimeServer.PROTOCOL_TCP, address, start + 1000);
+		tracker.record(TimeServer.PROTOCOL_TCP, address, start + 1001);
+
+		assertEquals(start + 1000, tracker.getWindowStart());
+		assertEquals(start, tracker.getPreviousWindowStart());
+	}
+
+	@Test
+	public void testServedClockWindows() throws Exception
+	{
+		final AtomicLong served = new AtomicLong(1000000000L + 500);
+		ServedClock clock = new ServedClock() {
+			@Override
+			public long currentTimeMillis()
+			{
+				return served.get();
+			}
+		};
+		HeavyHitterTracker tracker = new HeavyHitterTracker(4, 1000, clock);
+		assertEquals(1000000000L, tracker.getWindowStart());
+		tracker.record(TimeServer.PROTOCOL_TCP, InetAddress.getByName("192.0.2.1"), served.get());
+
+		// reports rotate on the served clock too
+		served.addAndGet(1000);
+		assertEquals(1, tracker.getTopTalkers(TimeServer.PROTOCOL_TCP, false, 1, true).size());
+		assertEquals(1000000000L, tracker.getPreviousWindowStart());
+	}
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2017 Cable Television Laboratories, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cablelabs.time.test;
+
+import static org.junit.Assert.*;
+
+import java.io.DataInputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.cablelabs.time.server.CableLabsTimeServer;
+import com.cablelabs.time.server.IdleStrategy;
+import com.cablelabs.time.server.TcpTimeServer;
+import com.cablelabs.time.server.TimeServer;
+import com.cablelabs.time.server.UdpTimeServer;
+
+/**
+ * This class tests the listener idle strategies
+ */
+public class TestIdleStrategy
+{
+	/**
+	 * Send UDP requests and check the answers
+	 * @param address Server address
+	 * @param count Number of requests
+	 */
+	private static void queryUdp(InetSocketAddress address, int count) throws Exception
+	{
+		DatagramSocket socket = new DatagramSocket();
+		try
+		{
+			socket.setSoTimeout(1000);
+			byte[] data = new byte[4];
+			for (int i = 0; i < count; i++)
+			{
+				socket.send(new DatagramPacket(new byte[0], 0, address));
+				DatagramPacket reply = new DatagramPacket(data, data.length);
+				socket.receive(reply);
+				assertEquals(4, reply.getLength());
+				long value = TimeServer.timeServerValueFromBytes(data);
+				assertTrue(Math.abs(value - TimeServer.timeServerValueFromMillis(System.currentTimeMillis())) <= 1);
+			}
+		}
+		finally
+		{
+			socket.close();
+		}
+	}
+
+	@Test
+	public void testNames()
+	{
+		for (IdleStrategy.Type type : IdleStrategy.Type.values())
+		{
+			assertSame(type, IdleStrategy.Type.fromName(type.getName()));
+			IdleStrategy idle = IdleStrategy.create(type);
+			assertSame(type, idle.getType());
+			assertEquals(type == IdleStrategy.Type.BLOCKING, idle.isBlocking());
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnknownName()
+	{
+		IdleStrategy.Type.fromName("sleep");
+	}
+
+	@Test
+	public void testParkBacksOff()
+	{
+		IdleStrategy idle = IdleStrategy.create(IdleStrategy.Type.PARK);
+		for (int i = 0; i < IdleStrategy.SPIN_POLLS + IdleStrategy.YIELD_POLLS; i++)
+		{
+			idle.idle(0);
+		}
+
+		// parking doubles up to the maximum, so a further second of idle polls takes at least a second
+		long start = System.nanoTime();
+		int polls = 0;
+		while (System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1))
+		{
+			idle.idle(0);
+			polls++;
+		}
+		assertTrue(polls <= TimeUnit.SECONDS.toNanos(1) / IdleStrategy.MAX_PARK_NANOS + 20);
+
+		// work starts over from spinning
+		idle.idle(1);
+		start = System.nanoTime();
+		idle.idle(0);
+		assertTrue(System.nanoTime() - start < IdleStrategy.MAX_PARK_NANOS);
+	}
+
+	@Test
+	public void testUdpPolling() throws Exception
+	{
+		UdpTimeServer server = new UdpTimeServer.Builder()
+				.setIdleStrategy(IdleStrategy.Type.PARK)
+				.setListenAddress("127.0.0.1")
+				.setPort(0)
+				.setRequestLogInterval(0)
+				.build();
+		try
+		{
+			queryUdp(server.start().get(5, TimeUnit.SECONDS), 50);
+		}
+		finally
+		{
+			server.stopServer();
+		}
+	}
+
+	@Test
+	public void testPipelinedUdpPolling() throws Exception
+	{
+		UdpTimeServer server = new UdpTimeServer.Builder()
+				.setPipeline(1, 16)
+				.setIdleStrategy(IdleStrategy.Type.SPIN_YIELD)
+				.setListenAddress("127.0.0.1")
+				.setPort(0)
+				.setRequestLogInterval(0)
+				.build();
+		try
+		{
+			queryUdp(server.start().get(5, TimeUnit.SECONDS), 50);
+		}
+		finally
+		{
+			server.stopServer();
+		}
+	}
+
+	@Test
+	public void testTcpPolling() throws Exception
+	{
+		TcpTimeServer server = new TcpTimeServer.Builder()
+				.setIdleStrategy(IdleStrategy.Type.SPIN)
+				.setListenAddress("127.0.0.1")
+				.setPort(0)
+				.setRequestLogInterval(0)
+				.build();
+		try
+		{
+			InetSocketAddress address = server.start().get(5, TimeUnit.SECONDS);
+			for (int i = 0; i < 10; i++)
+			{
+				Socket socket = new Socket();
+				socket.connect(address, 1000);
+				socket.setSoTimeout(1000);
+				DataInputStream in = new DataInputStream(socket.getInputStream());
+				long value = in.readInt() & 0xFFFFFFFFL;
+				assertEquals(-1, in.read());
+				socket.close();
+				assertTrue(Math.abs(value - TimeServer.timeServerValueFromMillis(System.currentTimeMillis())) <= 1);
+			}
+		}
+		finally
+		{
+			server.stopServer();
+		}
+	}
+
+	@Test
+	public void testPerListener()
+	{
+		CableLabsTimeServer server = new CableLabsTimeServer.Builder()
+				.setIdleStrategy(IdleStrategy.Type.PARK)
+				.setIdleStrategy(CableLabsTimeServer.LISTENER_UDP, IdleStrategy.Type.SPIN)
+				.build();
+		assertSame(IdleStrategy.Type.SPIN, server.getIdleStrategy(CableLabsTimeServer.LISTENER_UDP));
+		assertSame(IdleStrategy.Type.PARK, server.getIdleStrategy(CableLabsTimeServer.LISTENER_TCP));
+		server.setIdleStrategy(CableLabsTimeServer.LISTENER_UDP, null);
+		assertSame(IdleStrategy.Type.PARK, server.getIdleStrategy(CableLabsTimeServer.LISTENER_UDP));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnknownListener()
+	{
+		new CableLabsTimeServer().setIdleStrategy("ftp", IdleStrategy.Type.SPIN);
+	}
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright 2017 Cable Television Laboratories, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cablelabs.time.test;
+
+import static org.junit.Assert.*;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cablelabs.time.client.CableLabsTimeClient;
+import com.cablelabs.time.client.TimeQueryResult;
+import com.cablelabs.time.server.CableLabsTimeServer;
+import com.cablelabs.time.tools.Impairment;
+import com.cablelabs.time.tools.ImpairmentProxy;
+
+/**
+ * This class tests the impairment proxy, and the client behind it
+ */
+public class TestImpairmentProxy
+{
+	private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private CableLabsTimeServer m_server = null;
+	private InetSocketAddress m_tcpAddress = null;
+	private InetSocketAddress m_udpAddress = null;
+
+	@Before
+	public void startServer() throws Exception
+	{
+		m_server = new CableLabsTimeServer.Builder()
+				.setListenAddress("127.0.0.1")
+				.setPort(0)
+				.setRequestLogInterval(0)
+				.build();
+		List<InetSocketAddress> bound = m_server.start().get(5, TimeUnit.SECONDS);
+		m_tcpAddress = bound.get(0);
+		m_udpAddress = bound.get(1);
+	}
+
+	@After
+	public void stopServer()
+	{
+		m_server.stopServer();
+	}
+
+	@Test
+	public void testDistributions()
+	{
+		Random random = new Random(1);
+		for (Impairment.Distribution distribution : Impairment.Distribution.values())
+		{
+			Impairment impairment = new Impairment.Builder().setLatency(10, 4, distribution).build();
+			double total = 0;
+			for (int i = 0; i < 20000; i++)
+			{
+				long delay = impairment.sampleDelayNanos(random);
+				assertTrue(delay >= 0);
+				total += delay;
+			}
+			// uniform and normal jitter are centred on the latency, the others add the jitter on average
+			double expected = (distribution == Impairment.Distribution.EXPONENTIAL ||
+					distribution == Impairment.Distribution.PARETO ? 14 : 10) * MS;
+			assertEquals(distribution.getName(), expected, total / 20000, 0.05 * expected);
+		}
+	}
+
+	@Test
+	public void testLatency() throws Exception
+	{
+		ImpairmentProxy proxy = startProxy(new Impairment.Builder().setLatency(40, 0, Impairment.Distribution.CONSTANT).build(), 1);
+		try
+		{
+			// the latency applies to each direction
+			TimeQueryResult result = newClient(proxy, false).query();
+			assertEquals(TimeQueryResult.Status.OK, result.getStatus());
+			assertTrue(result.getRttNanos() >= 80 * MS);
+
+			result = newClient(proxy, true).query();
+			assertEquals(TimeQueryResult.Status.OK, result.getStatus());
+			assertTrue(result.getRttNanos() >= 80 * MS);
+			assertEquals(1, proxy.getConnections());
+		}
+		finally
+		{
+			proxy.close();
+		}
+	}
+
+	@Test
+	public void testSeededLoss() throws Exception
+	{
+		Impairment loss = new Impairment.Builder().setLoss(0.3).build();
+		long[] received = new long[2];
+		for (int run = 0; run < 2; run++)
+		{
+			long before = m_server.getUdpServer().getReceivedCount();
+			ImpairmentProxy proxy = startProxy(loss, Impairment.NONE, 7);
+			DatagramSocket socket = new DatagramSocket();
+			try
+			{
+				send(socket, proxy, 200);
+				waitForCount(proxy, before + 200);
+				received[run] = m_server.getUdpServer().getReceivedCount() - before;
+				assertEquals(200, proxy.getLost() + received[run]);
+			}
+			finally
+			{
+				socket.close();
+				proxy.close();
+			}
+		}
+		// the same seed loses the same requests
+		assertEquals(received[0], received[1]);
+		assertTrue(received[0] > 100 && received[0] < 180);
+	}
+
+	@Test
+	public void testDuplication() throws Exception
+	{
+		Impairment duplication = new Impairment.Builder().setDuplication(1).build();
+		ImpairmentProxy proxy = startProxy(duplication, Impairment.NONE, 1);
+		DatagramSocket socket = new DatagramSocket();
+		try
+		{
+			socket.setSoTimeout(1000);
+			send(socket, proxy, 1);
+			DatagramPacket response = new DatagramPacket(new byte[4], 4);
+			socket.receive(response);
+			socket.receive(response);
+			assertEquals(1, proxy.getDuplicated());
+			assertEquals(2, m_server.getUdpServer().getAnsweredCount());
+		}
+		finally
+		{
+			socket.close();
+			proxy.close();
+		}
+	}
+
+	@Test
+	public void testBandwidth() throws Exception
+	{
+		// 8 kbit/s sends a 100 byte request every 100 ms, and 300 bytes wait at most
+		Impairment slow = new Impairment.Builder().setBandwidth(8000, 300).build();
+		ImpairmentProxy proxy = startProxy(slow, Impairment.NONE, 1);
+		DatagramSocket socket = new DatagramSocket();
+		try
+		{
+			socket.setSoTimeout(1000);
+			DatagramPacket request = new DatagramPacket(new byte[100], 100, proxy.getUdpAddress());
+			long start = System.nanoTime();
+			for (int i = 0; i < 10; i++)
+			{
+				socket.send(request);
+			}
+			DatagramPacket response = new DatagramPacket(new byte[4], 4);
+			int answered = 0;
+			try
+			{
+				while (true)
+				{
+					socket.receive(response);
+					answered++;
+				}
+			}
+			catch (SocketTimeoutException e)
+			{
+				// done
+			}
+			assertEquals(10, answered + proxy.getQueueDrops());
+			assertTrue(answered >= 3 && answered <= 5);
+			assertTrue(System.nanoTime() - start >= (answered * 100 + 1000) * MS);
+		}
+		finally
+		{
+			socket.close();
+			proxy.close();
+		}
+	}
+
+	@Test
+	public void testClientRetriesThroughLoss() throws Exception
+	{
+		ImpairmentProxy proxy = startProxy(Impairment.NONE, 1);
+		try
+		{
+			CableLabsTimeClient client = newClient(proxy, false);
+			client.setRtoBounds(50, 10, 1000);
+			client.setTimeout(500);
+
+			// every request is lost
+			proxy.setImpairment(new Impairment.Builder().setLoss(1).build(), Impairment.NONE);
+			TimeQueryResult result = client.query();
+			assertEquals(TimeQueryResult.Status.TIMEOUT, result.getStatus());
+			assertTrue(result.getRequests() > 1);
+			assertEquals(result.getRequests(), proxy.getLost());
+
+			// a third of the requests and responses are lost, and the retransmissions get through
+			proxy.setImpairment(new Impairment.Builder().setLoss(0.3).build());
+			client.setRtoBounds(50, 10, 200);
+			client.setTimeout(5000);
+			client.setRetries(10);
+			for (int i = 0; i < 5; i++)
+			{
+				assertEquals(TimeQueryResult.Status.OK, client.query().getStatus());
+			}
+			assertTrue(client.getRetransmissions() > 0);
+
+			// a lost TCP connection is never answered
+			proxy.setImpairment(new Impairment.Builder().setLoss(1).build());
+			CableLabsTimeClient tcpClient = newClient(proxy, true);
+			tcpClient.setRtoBounds(50, 10, 1000);
+			tcpClient.setTimeout(300);
+			assertEquals(TimeQueryResult.Status.TIMEOUT, tcpClient.query().getStatus());
+			assertEquals(0, m_server.getTcpServer().getReceivedCount());
+		}
+		finally
+		{
+			proxy.close();
+		}
+	}
+
+	private ImpairmentProxy startProxy(Impairment impairment, long seed) throws Exception
+	{
+		return startProxy(impairment, impairment, seed);
+	}
+
+	private ImpairmentProxy startProxy(Impairment toServer, Impairment toClient, long seed) throws Exception
+	{
+		ImpairmentProxy proxy = new ImpairmentProxy.Builder()
+				.setUdpTarget(m_udpAddress)
+				.setTcpTarget(m_tcpAddress)
+				.setImpairment(toServer, toClient)
+				.setSeed(seed)
+				.build();
+		proxy.start();
+		return proxy;
+	}
+
+	private static CableLabsTimeClient newClient(ImpairmentProxy proxy, boolean tcp)
+	{
+		CableLabsTimeClient client = new CableLabsTimeClient();
+		client.setServerIp("127.0.0.1");
+		client.setPort((tcp ? proxy.getTcpAddress() : proxy.getUdpAddress()).getPort());
+		client.setUseTcp(tcp);
+		return client;
+	}
+
+	private static void send(DatagramSocket socket, ImpairmentProxy proxy, int requests) throws Exception
+	{
+		DatagramPacket request = new DatagramPacket(new byte[0], 0, proxy.getUdpAddress());
+		for (int i = 0; i < requests; i++)
+		{
+			socket.send(request);
+		}
+	}
+
+	private void waitForCount(ImpairmentProxy proxy, long requests) throws InterruptedException
+	{
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (proxy.getLost() + m_server.getUdpServer().getReceivedCount() < requests && System.nanoTime() < deadline)
+		{
+			Thread.sleep(10);
+		}
+		// let the responses be forwarded too
+		Thread.sleep(100);
+	}
+}
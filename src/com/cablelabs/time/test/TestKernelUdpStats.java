@@ -0,0 +1,255 @@
+/*
+ * Copyright 2017 Cable Television Laboratories, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cablelabs.time.test;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.cablelabs.time.server.KernelUdpStats;
+import com.cablelabs.time.server.ProtocolHandler;
+import com.cablelabs.time.server.RequestContext;
+import com.cablelabs.time.server.TimeServer;
+import com.cablelabs.time.server.UdpTimeServer;
+
+/**
+ * This class tests sampling the kernel statistics of the UDP listener sockets
+ */
+public class TestKernelUdpStats
+{
+	private static final String UDP_HEADER =
+			"  sl  local_address rem_address   st tx_queue rx_queue tr tm->when retrnsmt   uid  timeout inode ref pointer drops\n";
+	private static final String UDP6_HEADER =
+			"  sl  local_address                         remote_address                        st tx_queue rx_queue tr tm->when retrnsmt   uid  timeout inode ref pointer drops\n";
+
+	/**
+	 * This class answers RFC868 over UDP once a latch is released
+	 */
+	private static class _SlowHandler implements ProtocolHandler
+	{
+		private final CountDownLatch m_release;
+
+		public _SlowHandler(CountDownLatch release)
+		{
+			m_release = release;
+		}
+
+		public String getName()
+		{
+			return "slow";
+		}
+
+		public int getDefaultPort()
+		{
+			return 0;
+		}
+
+		public boolean supportsTransport(int transport)
+		{
+			return (transport == TRANSPORT_UDP);
+		}
+
+		public byte getProtocol(int transport)
+		{
+			return TimeServer.PROTOCOL_UDP;
+		}
+
+		public int getMaxResponseSize()
+		{
+			return 4;
+		}
+
+		public boolean handle(ByteBuffer request, RequestContext context, ByteBuffer response)
+		{
+			try
+			{
+				m_release.await(5, TimeUnit.SECONDS);
+			}
+			catch (InterruptedException e)
+			{
+				return false;
+			}
+			response.putInt((int)context.getTimeValue());
+			return true;
+		}
+	}
+
+	@Test
+	public void testProcFiles() throws Exception
+	{
+		UdpTimeServer server = new UdpTimeServer.Builder()
+				.setListenAddress("127.0.0.1")
+				.setPort(0)
+				.setRequestLogInterval(0)
+				.build();
+		File proc = Files.createTempDirectory("proc").toFile();
+		try
+		{
+			int port = server.start().get(5, TimeUnit.SECONDS).getPort();
+			String hexPort = String.format("%04X", port);
+			new File(proc, "net").mkdirs();
+			new File(proc, "self/fd").mkdirs();
+			Files.createSymbolicLink(Paths.get(proc.getPath(), "self/fd/3"), Paths.get("socket:[1001]"));
+			Files.createSymbolicLink(Paths.get(proc.getPath(), "self/fd/4"), Paths.get("/dev/null"));
+
+			// the listener socket, another process on the same port (SO_REUSEPORT) and another port
+			writeUdp(proc, hexPort, 0x1040, 1001, 3, 7);
+			write(proc, "net/udp6", UDP6_HEADER);
+			write(proc, "net/snmp",
+					"Udp: InDatagrams NoPorts InErrors OutDatagrams RcvbufErrors SndbufErrors InCsumErrors IgnoredMulti MemErrors\n" +
+					"Udp: 1000 2 12 990 10 0 0 0 0\n" +
+					"UdpLite: InDatagrams NoPorts InErrors OutDatagrams RcvbufErrors SndbufErrors InCsumErrors IgnoredMulti MemErrors\n" +
+					"UdpLite: 0 0 99 0 99 0 0 0 0\n");
+			write(proc, "net/snmp6",
+					"Udp6InDatagrams                 \t4\n" +
+					"Udp6InErrors                    \t3\n" +
+					"Udp6RcvbufErrors                \t1\n" +
+					"UdpLite6RcvbufErrors            \t99\n");
+
+			KernelUdpStats stats = new KernelUdpStats(proc);
+			assertTrue(stats.isSupported());
+			stats.addServer("udp", server);
+			stats.sample();
+			KernelUdpStats.Listener listener = stats.getListeners().get(0);
+			assertEquals(port, listener.getPort());
+			assertEquals(0x1040, listener.getReceiveQueue());
+			assertEquals(3, listener.getDrops());
+			assertEquals(3, listener.getNewDrops());
+			assertEquals(11, stats.getRcvbufErrors());
+			assertEquals(15, stats.getInErrors());
+
+			// a dual-stack listener socket is in udp6
+			new File(proc, "net/udp").delete();
+			write(proc, "net/udp", UDP_HEADER);
+			write(proc, "net/udp6", UDP6_HEADER +
+					" 3923: 00000000000000000000000000000000:" + hexPort + " 00000000000000000000000000000000:0000 07 " +
+					"00000000:00000200 00:00000000 00000000     0        0 1001 2 00000000f4d24e32 5\n");
+			stats.sample();
+			assertEquals(0x200, listener.getReceiveQueue());
+			assertEquals(5, listener.getDrops());
+			assertEquals(2, listener.getNewDrops());
+			assertTrue(stats.getStatus(), stats.getStatus().contains("5 socket drops (+2)"));
+
+			server.stopServer();
+			stats.sample();
+			assertEquals(0, listener.getPort());
+			assertEquals(0, listener.getNewDrops());
+		}
+		finally
+		{
+			server.stopServer();
+			delete(proc);
+		}
+	}
+
+	@Test
+	public void testReceiveQueue() throws Exception
+	{
+		KernelUdpStats stats = new KernelUdpStats();
+		assumeTrue(stats.isSupported());
+
+		CountDownLatch release = new CountDownLatch(1);
+		UdpTimeServer server = new UdpTimeServer.Builder()
+				.setHandler(new _SlowHandler(release))
+				.setListenAddress("127.0.0.1")
+				.setPort(0)
+				.setRequestLogInterval(0)
+				.build();
+		DatagramSocket socket = new DatagramSocket();
+		try
+		{
+			InetSocketAddress address = server.start().get(5, TimeUnit.SECONDS);
+			stats.addServer("udp", server);
+
+			// the listener holds the first request, the others wait in the socket receive queue
+			for (int i = 0; i < 10; i++)
+			{
+				socket.send(new DatagramPacket(new byte[0], 0, address));
+			}
+			long deadline = System.currentTimeMillis() + 5000;
+			while (server.getReceivedCount() == 0 && System.currentTimeMillis() < deadline)
+			{
+				Thread.sleep(10);
+			}
+			stats.sample();
+			KernelUdpStats.Listener listener = stats.getListeners().get(0);
+			assertEquals(address.getPort(), listener.getPort());
+			assertTrue(listener.getReceiveQueue() > 0);
+			assertTrue(server.getReceiveBufferSize() > 0);
+			assertEquals(0, listener.getDrops());
+
+			release.countDown();
+			deadline = System.currentTimeMillis() + 5000;
+			while (server.getAnsweredCount() < 10 && System.currentTimeMillis() < deadline)
+			{
+				Thread.sleep(10);
+			}
+			stats.sample();
+			assertEquals(0, listener.getReceiveQueue());
+		}
+		finally
+		{
+			release.countDown();
+			socket.close();
+			server.stopServer();
+		}
+	}
+
+	/**
+	 * Write /proc/net/udp with the listener socket, a socket of another process on the same port
+	 * and a socket on another port
+	 */
+	private static void writeUdp(File proc, String hexPort, int queue, int inode, int drops, int otherDrops) throws IOException
+	{
+		write(proc, "net/udp", UDP_HEADER +
+				" 1732: 0100007F:" + hexPort + " 00000000:0000 07 00000000:" + String.format("%08X", queue) +
+				" 00:00000000 00000000     0        0 " + inode + " 2 0000000043aafd1e " + drops + "\n" +
+				" 1733: 0100007F:" + hexPort + " 00000000:0000 07 00000000:00000100 00:00000000 00000000     0        0 2002 2 0000000043aafd1f " + otherDrops + "\n" +
+				"  107: 00000000:0044 00000000:0000 07 00000000:00000100 00:00000000 00000000     0        0 1001 2 0000000043aafd20 " + otherDrops + "\n");
+	}
+
+	private static void write(File proc, String name, String content) throws IOException
+	{
+		Files.write(new File(proc, name).toPath(), content.getBytes(StandardCharsets.US_ASCII));
+	}
+
+	private static void delete(File file)
+	{
+		File[] children = file.listFiles();
+		if (children != null && !Files.isSymbolicLink(file.toPath()))
+		{
+			for (File child : children)
+			{
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
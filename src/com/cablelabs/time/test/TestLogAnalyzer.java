@@ -0,0 +1,216 @@
+/*
+ * Copyright 2017 Cable Television Laboratories, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cablelabs.time.test;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+import com.cablelabs.time.tools.LogAnalyzer;
+
+/**
+ * This class tests the console log analyzer
+ */
+public class TestLogAnalyzer
+{
+	private static final long SECOND = 3714000000L;
+
+	@Test
+	public void testParse() throws Exception
+	{
+		File file = File.createTempFile("timeserver", ".log");
+		OutputStream out = new FileOutputStream(file);
+		try
+		{
+			writeLine(out, "Listening for UDP time requests on 0.0.0.0, port 37, with backlog 100");
+			for (int i = 0; i < 3; i++)
+			{
+				writeRequest(out, InetAddress.getByName("10.0.0.1"), SECOND);
+			}
+			for (int i = 0; i < 4; i++)
+			{
+				writeRequest(out, InetAddress.getByName("2001:db8::1"), SECOND);
+			}
+			for (int i = 0; i < 2; i++)
+			{
+				writeRequest(out, new InetSocketAddress("10.0.0.1", 5000), SECOND + 1);
+			}
+			writeRequest(out, new InetSocketAddress("::1", 4000), SECOND + 2);
+			// older JDKs print IPv6 socket addresses without brackets
+			writeLine(out, "Processing request from /0:0:0:0:0:0:0:2:4000; returned " + (SECOND + 2) + " ( ... )");
+			writeLine(out, "Processing request from /[fe80::1%eth0]:1234; returned " + (SECOND + 2) + " ( ... )\r");
+			writeLine(out, "Processing request from /10.0.0.300; returned " + SECOND + " ( ... )");
+			writeLine(out, "Processing request from /10.0.0.1; returned soon");
+			writeLine(out, "");
+		}
+		finally
+		{
+			out.close();
+		}
+
+		try
+		{
+			LogAnalyzer.Result result = new LogAnalyzer().analyze(Collections.singletonList(file), ForkJoinPool.commonPool());
+			assertEquals(16, result.getLines());
+			assertEquals(12, result.getRequests());
+			assertEquals(5, result.getTcpRequests());
+			assertEquals(7, result.getUdpRequests());
+			assertEquals(5, result.getSources());
+			assertEquals(3, result.getActiveSeconds());
+			assertEquals(SECOND, result.getFirstSecond());
+			assertEquals(SECOND + 2, result.getLastSecond());
+			assertEquals(7, result.getRate(SECOND));
+			assertEquals(2, result.getRate(SECOND + 1));
+			assertEquals(SECOND, result.getPeakSecond());
+			assertEquals(7, result.getRatePercentile(100));
+			assertEquals(3, result.getRate(SECOND + 2));
+			assertEquals(3, result.getRatePercentile(50));
+
+			List<LogAnalyzer.Talker> talkers = result.getTopTalkers(10);
+			assertEquals(5, talkers.size());
+			assertEquals(InetAddress.getByName("10.0.0.1"), talkers.get(0).getAddress());
+			assertEquals(5, talkers.get(0).getRequests());
+			assertEquals(3, talkers.get(0).getPeakRate());
+			assertEquals(2.5, talkers.get(0).getMeanRate(), 0.001);
+			assertEquals(InetAddress.getByName("2001:db8::1"), talkers.get(1).getAddress());
+			assertEquals(4, talkers.get(1).getRequests());
+			assertEquals(1, result.getTopTalkers(1).size());
+		}
+		finally
+		{
+			file.delete();
+		}
+	}
+
+	@Test
+	public void testChunks() throws Exception
+	{
+		// small chunks split the lines of many sources, and of the same second, across tasks
+		Random random = new Random(1);
+		InetAddress[] sources = new InetAddress[500];
+		for (int i = 0; i < sources.length; i++)
+		{
+			byte[] address = new byte[i % 5 == 0 ? 16 : 4];
+			random.nextBytes(address);
+			address[0] = (byte)(address.length == 4 ? 10 : 0x20);
+			sources[i] = InetAddress.getByAddress(address);
+		}
+
+		Map<InetAddress, Long> requests = new HashMap<InetAddress, Long>();
+		Map<InetAddress, Long> peaks = new HashMap<InetAddress, Long>();
+		File file = File.createTempFile("timeserver", ".log");
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+		try
+		{
+			for (int second = 0; second < 200; second++)
+			{
+				Map<InetAddress, Long> rates = new HashMap<InetAddress, Long>();
+				int lines = random.nextInt(1000);
+				for (int i = 0; i < lines; i++)
+				{
+					// a few sources send most of the requests
+					InetAddress source = sources[(int)Math.min(sources.length - 1, Math.abs(random.nextGaussian()) * 50)];
+					if (random.nextBoolean())
+					{
+						writeRequest(out, source, SECOND + second);
+					}
+					else
+					{
+						writeRequest(out, new InetSocketAddress(source, 1024 + random.nextInt(60000)), SECOND + second);
+					}
+					Long rate = rates.get(source);
+					rates.put(source, (rate != null ? rate + 1 : 1));
+					if (random.nextInt(100) == 0)
+					{
+						writeLine(out, "Error processing request: " + new String(new char[random.nextInt(10000)]).replace('\0', 'x'));
+					}
+				}
+				for (Map.Entry<InetAddress, Long> entry : rates.entrySet())
+				{
+					Long total = requests.get(entry.getKey());
+					requests.put(entry.getKey(), (total != null ? total : 0) + entry.getValue());
+					Long peak = peaks.get(entry.getKey());
+					peaks.put(entry.getKey(), Math.max(peak != null ? peak : 0, entry.getValue()));
+				}
+			}
+		}
+		finally
+		{
+			out.close();
+		}
+
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try
+		{
+			LogAnalyzer.Result whole = new LogAnalyzer().analyze(Collections.singletonList(file), pool);
+			LogAnalyzer analyzer = new LogAnalyzer();
+			analyzer.setChunkSize(4096);
+			LogAnalyzer.Result chunked = analyzer.analyze(Collections.singletonList(file), pool);
+
+			assertEquals(requests.size(), chunked.getSources());
+			assertEquals(whole.getLines(), chunked.getLines());
+			assertEquals(whole.getRequests(), chunked.getRequests());
+			assertEquals(whole.getTcpRequests(), chunked.getTcpRequests());
+			for (long second = chunked.getFirstSecond(); second <= chunked.getLastSecond(); second++)
+			{
+				assertEquals(whole.getRate(second), chunked.getRate(second));
+			}
+			for (LogAnalyzer.Talker talker : chunked.getTopTalkers(sources.length))
+			{
+				assertEquals(requests.get(talker.getAddress()).longValue(), talker.getRequests());
+				assertEquals(peaks.get(talker.getAddress()).longValue(), talker.getPeakRate());
+			}
+		}
+		finally
+		{
+			pool.shutdown();
+			file.delete();
+		}
+	}
+
+	/**
+	 * Write a request line as the listeners log it
+	 * @param out Log
+	 * @param source Source, an address for UDP and a socket address for TCP
+	 * @param second Time value returned
+	 * @throws IOException
+	 */
+	private static void writeRequest(OutputStream out, Object source, long second) throws IOException
+	{
+		writeLine(out, "Processing request from " + source + "; returned " + second + " ( 00:00:00 01 Sep 2017 UTC )");
+	}
+
+	private static void writeLine(OutputStream out, String line) throws IOException
+	{
+		out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+	}
+}
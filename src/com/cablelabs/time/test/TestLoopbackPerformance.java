@@ -0,0 +1,235 @@
+/*
+ * Copyright 2017 Cable Television Laboratories, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cablelabs.time.test;
+
+import static org.junit.Assert.*;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import com.cablelabs.time.client.AsyncTimeClient;
+import com.cablelabs.time.client.TimeQueryResult;
+import com.cablelabs.time.server.LatencyHistogram;
+import com.cablelabs.time.server.TcpTimeServer;
+import com.cablelabs.time.server.TimeServer;
+import com.cablelabs.time.server.UdpTimeServer;
+
+/**
+ * This class drives each server engine on loopback at a fixed load and compares throughput
+ * and p99 latency with the recorded baseline (loopback-baseline.properties).
+ *
+ * To record a new baseline on the reference machine, run the test with
+ * -Dcablelabs.perf.record=path/to/loopback-baseline.properties; the measured values are
+ * written to that file instead of being checked.
+ */
+public class TestLoopbackPerformance
+{
+	private static final String BASELINE_RESOURCE = "loopback-baseline.properties";
+	private static final String RECORD_PROPERTY = "cablelabs.perf.record";
+
+	private static final int WARMUP_REQUESTS = 5000;
+	private static final int REQUESTS = 20000;
+	private static final int CONCURRENCY = 16;
+	private static final long TIMEOUT_MS = 2000;
+
+	@Test
+	public void testTcpEngine() throws Exception
+	{
+		TcpTimeServer server = new TcpTimeServer.Builder()
+				.setListenAddress("127.0.0.1")
+				.setPort(0)
+				.build();
+		checkEngine("tcp", server, true);
+	}
+
+	@Test
+	public void testUdpEngine() throws Exception
+	{
+		UdpTimeServer server = new UdpTimeServer.Builder()
+				.setListenAddress("127.0.0.1")
+				.setPort(0)
+				.build();
+		checkEngine("udp", server, false);
+	}
+
+	/**
+	 * Measure an engine and check (or record) it against the baseline
+	 * @param name Engine name, the prefix of its baseline keys
+	 * @param server Unstarted server
+	 * @param tcp True to query over TCP
+	 */
+	private void checkEngine(String name, TimeServer server, boolean tcp) throws Exception
+	{
+		// the per-request log line would otherwise flood the test output and dominate the timing
+		PrintStream stdout = System.out;
+		System.setOut(new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b)
+			{
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len)
+			{
+			}
+		}));
+
+		double throughput;
+		long p99Micros;
+		try
+		{
+			InetSocketAddress address = server.start().get(5, TimeUnit.SECONDS);
+			run(address, tcp, WARMUP_REQUESTS, new LatencyHistogram());
+
+			LatencyHistogram histogram = new LatencyHistogram();
+			long start = System.nanoTime();
+			long failures = run(address, tcp, REQUESTS, histogram);
+			long elapsed = System.nanoTime() - start;
+
+			assertEquals(name + " requests failed", 0, failures);
+			throughput = REQUESTS / (elapsed / 1e9);
+			p99Micros = TimeUnit.NANOSECONDS.toMicros(histogram.getPercentile(99));
+		}
+		finally
+		{
+			server.stopServer();
+			System.setOut(stdout);
+		}
+		System.out.println(String.format("%s: %.0f requests/s, p99 %d us", name, throughput, p99Micros));
+
+		String recordFile = System.getProperty(RECORD_PROPERTY);
+		if (recordFile != null)
+		{
+			record(recordFile, name, throughput, p99Micros);
+			return;
+		}
+
+		Properties baseline = new Properties();
+		InputStream in = TestLoopbackPerformance.class.getResourceAsStream(BASELINE_RESOURCE);
+		assertNotNull("Missing " + BASELINE_RESOURCE, in);
+		try
+		{
+			baseline.load(in);
+		}
+		finally
+		{
+			in.close();
+		}
+
+		double minThroughput = Double.parseDouble(baseline.getProperty(name + ".throughput")) *
+				Double.parseDouble(baseline.getProperty("min_throughput_ratio"));
+		double maxP99 = Double.parseDouble(baseline.getProperty(name + ".p99_us")) *
+				Double.parseDouble(baseline.getProperty("max_p99_ratio"));
+		assertTrue(String.format("%s throughput regressed: %.0f/s < %.0f/s", name, throughput, minThroughput),
+				throughput >= minThroughput);
+		assertTrue(String.format("%s p99 latency regressed: %d us > %.0f us", name, p99Micros, maxP99),
+				p99Micros <= maxP99);
+	}
+
+	/**
+	 * Issue requests at a fixed concurrency
+	 * @param address Server address
+	 * @param tcp True to query over TCP
+	 * @param requests Number of requests
+	 * @param histogram Histogram receiving the round-trip times
+	 * @return Number of failed requests
+	 */
+	private static long run(InetSocketAddress address, boolean tcp, int requests, final LatencyHistogram histogram)
+			throws IOException, InterruptedException
+	{
+		final AtomicLong failures = new AtomicLong(0);
+		AsyncTimeClient.ResultListener listener = new AsyncTimeClient.ResultListener() {
+			public void onResult(TimeQueryResult result)
+			{
+				if (result.getStatus() == TimeQueryResult.Status.OK)
+				{
+					histogram.record(result.getRttNanos());
+				}
+				else
+				{
+					failures.incrementAndGet();
+				}
+			}
+		};
+
+		AsyncTimeClient client = new AsyncTimeClient(CONCURRENCY, TIMEOUT_MS);
+		try
+		{
+			for (int i = 0; i < requests; i++)
+			{
+				client.query(null, address, tcp, listener);
+			}
+			client.drain();
+		}
+		finally
+		{
+			client.close();
+		}
+		return failures.get();
+	}
+
+	/**
+	 * Write measured values into a baseline file, keeping its other entries
+	 * @param file Baseline file
+	 * @param name Engine name
+	 * @param throughput Requests per second
+	 * @param p99Micros p99 latency in microseconds
+	 */
+	private static synchronized void record(String file, String name, double throughput, long p99Micros)
+			throws IOException
+	{
+		Properties baseline = new Properties();
+		try
+		{
+			InputStream in = new FileInputStream(file);
+			try
+			{
+				baseline.load(in);
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+		catch (IOException e)
+		{
+			// a new baseline
+		}
+		baseline.setProperty(name + ".throughput", String.format("%.0f", throughput));
+		baseline.setProperty(name + ".p99_us", Long.toString(p99Micros));
+
+		OutputStream out = new FileOutputStream(file);
+		try
+		{
+			baseline.store(out, "Loopback performance baseline");
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright 2017 Cable Television Laboratories, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cablelabs.time.test;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.junit.Test;
+
+import com.cablelabs.time.tools.PcapReader;
+import com.cablelabs.time.tools.PcapReplay;
+
+/**
+ * This class tests the capture reader and the replay tool
+ */
+public class TestPcapReplay
+{
+	private static final int LINK_ETHERNET = 1;
+	private static final int LINK_LINUX_SLL = 113;
+
+	private static final int UDP = 17;
+	private static final int TCP = 6;
+	private static final int SYN = 0x02;
+	private static final int ACK = 0x10;
+
+	@Test
+	public void testReader() throws Exception
+	{
+		ByteBuffer capture = newCapture(LINK_ETHERNET, ByteOrder.LITTLE_ENDIAN);
+		addEthernet(capture, 1000000, 0x0800, 0, ipv4(UDP, new byte[] { 10, 1, 2, 3 }, udp(37, new byte[0])));
+		// the response, another port, a SYN-ACK and a later fragment are skipped
+		addEthernet(capture, 1000100, 0x0800, 0, ipv4(UDP, new byte[] { 10, 9, 9, 9 }, udp(5000, new byte[4])));
+		addEthernet(capture, 1000200, 0x0800, 0, ipv4(UDP, new byte[] { 10, 1, 2, 3 }, udp(123, new byte[48])));
+		addEthernet(capture, 1000300, 0x0800, 0, ipv4(TCP, new byte[] { 10, 1, 2, 4 }, tcp(37, SYN | ACK)));
+		byte[] fragment = ipv4(UDP, new byte[] { 10, 1, 2, 3 }, udp(37, new byte[0]));
+		fragment[7] = 10;
+		addEthernet(capture, 1000400, 0x0800, 0, fragment);
+		// a SYN behind a VLAN tag, and an IPv6 request
+		addEthernet(capture, 1500000, 0x0800, 100, ipv4(TCP, new byte[] { 10, 1, 2, 4 }, tcp(37, SYN)));
+		byte[] source6 = new byte[16];
+		source6[0] = 0x20;
+		source6[1] = 0x01;
+		source6[15] = 7;
+		addEthernet(capture, 2000000, 0x86DD, 0, ipv6(UDP, source6, udp(37, new byte[] { 1, 2 })));
+
+		File file = write(capture);
+		PcapReader reader = new PcapReader(file, 37);
+		try
+		{
+			assertTrue(reader.next());
+			assertFalse(reader.isTcp());
+			assertEquals(1000000001000000000L, reader.getTimeNanos());
+			assertEquals(4, reader.getSourceLength());
+			assertEquals(10, reader.getSourceByte(0));
+			assertEquals(3, reader.getSourceByte(3));
+			assertEquals(0, reader.getPayloadLength());
+
+			assertTrue(reader.next());
+			assertTrue(reader.isTcp());
+			assertEquals(1000000001500000000L, reader.getTimeNanos());
+
+			assertTrue(reader.next());
+			assertFalse(reader.isTcp());
+			assertEquals(16, reader.getSourceLength());
+			assertEquals(7, reader.getSourceByte(15));
+			assertEquals(2, reader.getPayloadLength());
+			byte[] payload = new byte[2];
+			reader.getPayload(payload);
+			assertArrayEquals(new byte[] { 1, 2 }, payload);
+
+			assertFalse(reader.next());
+			assertEquals(7, reader.getPackets());
+			assertEquals(3, reader.getRequests());
+			assertEquals(4, reader.getSkipped());
+		}
+		finally
+		{
+			reader.close();
+			file.delete();
+		}
+	}
+
+	@Test
+	public void testBigEndianCookedCapture() throws Exception
+	{
+		ByteBuffer capture = newCapture(LINK_LINUX_SLL, ByteOrder.BIG_ENDIAN);
+		byte[] packet = ipv4(UDP, new byte[] { 10, 1, 2, 3 }, udp(37, new byte[0]));
+		ByteBuffer cooked = ByteBuffer.allocate(16 + packet.length);
+		cooked.putShort(14, (short)0x0800);
+		cooked.position(16);
+		cooked.put(packet);
+		addRecord(capture, 1000000, cooked.array());
+
+		File file = write(capture);
+		PcapReader reader = new PcapReader(file, 37);
+		try
+		{
+			assertTrue(reader.next());
+			assertEquals(10, reader.getSourceByte(0));
+			assertFalse(reader.next());
+		}
+		finally
+		{
+			reader.close();
+			file.delete();
+		}
+	}
+
+	@Test
+	public void testReplay() throws Exception
+	{
+		ByteBuffer capture = newCapture(LINK_ETHERNET, ByteOrder.LITTLE_ENDIAN);
+		for (int i = 0; i < 200; i++)
+		{
+			// a burst of 100 requests, then the others 2 ms apart
+			long micros = (i < 100 ? 0 : (i - 100) * 2000);
+			byte[] source = new byte[] { 10, 1, (byte)(i / 50), (byte)i };
+			if (i % 10 == 0)
+			{
+				addEthernet(capture, micros, 0x0800, 0, ipv4(TCP, source, tcp(37, SYN)));
+			}
+			else
+			{
+				addEthernet(capture, micros, 0x0800, 0, ipv4(UDP, source, udp(37, new byte[0])));
+			}
+		}
+
+		File file = write(capture);
+		try
+		{
+			PcapReplay replay = new PcapReplay(file);
+			replay.setMapSources(System.getProperty("os.name").toLowerCase().contains("linux"));
+			ByteArrayOutputStream report = new ByteArrayOutputStream();
+			long start = System.nanoTime();
+			replay.run(new PrintStream(report));
+			long elapsedMs = (System.nanoTime() - start) / 1000000;
+
+			assertEquals(200, replay.getAnswered());
+			assertEquals(0, replay.getTimeouts());
+			assertEquals(0, replay.getErrors());
+			assertEquals(200, replay.getLatency().getCount());
+			// the original timing takes 198 ms
+			assertTrue(elapsedMs >= 190);
+			String text = report.toString();
+			assertTrue(text, text.contains("200 requests (180 UDP, 20 TCP)"));
+			assertTrue(text, text.contains("peak 200/s"));
+			assertTrue(text, text.contains("Server udp: 180 received, 180 answered, 0 dropped"));
+
+			// as fast as possible
+			replay.setSpeed(0);
+			replay.run(new PrintStream(new ByteArrayOutputStream()));
+			assertEquals(200, replay.getAnswered());
+		}
+		finally
+		{
+			file.delete();
+		}
+	}
+
+	private static ByteBuffer newCapture(int linkType, ByteOrder order)
+	{
+		ByteBuffer capture = ByteBuffer.allocate(1 << 16).order(order);
+		capture.putInt(0xA1B2C3D4);
+		capture.putShort((short)2);
+		capture.putShort((short)4);
+		capture.putInt(0);
+		capture.putInt(0);
+		capture.putInt(65535);
+		capture.putInt(linkType);
+		return capture;
+	}
+
+	private static void addRecord(ByteBuffer capture, long micros, byte[] packet)
+	{
+		capture.putInt((int)(1000000000L + micros / 1000000));
+		capture.putInt((int)(micros % 1000000));
+		capture.putInt(packet.length);
+		capture.putInt(packet.length);
+		capture.put(packet);
+	}
+
+	private static void addEthernet(ByteBuffer capture, long micros, int type, int vlan, byte[] packet)
+	{
+		ByteBuffer frame = ByteBuffer.allocate(14 + (vlan > 0 ? 4 : 0) + packet.length);
+		frame.position(12);
+		if (vlan > 0)
+		{
+			frame.putShort((short)0x8100);
+			frame.putShort((short)vlan);
+		}
+		frame.putShort((short)type);
+		frame.put(packet);
+		addRecord(capture, micros, frame.array());
+	}
+
+	private static byte[] ipv4(int protocol, byte[] source, byte[] transport)
+	{
+		ByteBuffer packet = ByteBuffer.allocate(20 + transport.length);
+		packet.put((byte)0x45);
+		packet.put((byte)0);
+		packet.putShort((short)packet.capacity());
+		packet.putInt(0);
+		packet.put((byte)64);
+		packet.put((byte)protocol);
+		packet.putShort((short)0);
+		packet.put(source);
+		packet.put(new byte[] { 10, 0, 0, 1 });
+		packet.put(transport);
+		return packet.array();
+	}
+
+	private static byte[] ipv6(int protocol, byte[] source, byte[] transport)
+	{
+		ByteBuffer packet = ByteBuffer.allocate(40 + transport.length);
+		packet.putInt(0x60000000);
+		packet.putShort((short)transport.length);
+		packet.put((byte)protocol);
+		packet.put((byte)64);
+		packet.put(source);
+		packet.put(new byte[16]);
+		packet.put(transport);
+		return packet.array();
+	}
+
+	private static byte[] udp(int port, byte[] payload)
+	{
+		ByteBuffer datagram = ByteBuffer.allocate(8 + payload.length);
+		datagram.putShort((short)40000);
+		datagram.putShort((short)port);
+		datagram.putShort((short)datagram.capacity());
+		datagram.putShort((short)0);
+		datagram.put(payload);
+		return datagram.array();
+	}
+
+	private static byte[] tcp(int port, int flags)
+	{
+		ByteBuffer segment = ByteBuffer.allocate(20);
+		segment.putShort((short)40000);
+		segment.putShort((short)port);
+		segment.putInt(1);
+		segment.putInt(0);
+		segment.put((byte)0x50);
+		segment.put((byte)flags);
+		return segment.array();
+	}
+
+	private static File write(ByteBuffer capture) throws IOException
+	{
+		File file = File.createTempFile("replay", ".pcap");
+		FileOutputStream out = new FileOutputStream(file);
+		try
+		{
+			out.write(capture.array(), 0, capture.position());
+		}
+		finally
+		{
+			out.close();
+		}
+		return file;
+	}
+}
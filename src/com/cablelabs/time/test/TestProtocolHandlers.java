@@ -0,0 +1,223 @@
+/*
+ * Copyright 2017 Cable Television Laboratories, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cablelabs.time.test;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.cablelabs.time.server.DaytimeHandler;
+import com.cablelabs.time.server.ProtocolHandler;
+import com.cablelabs.time.server.RequestContext;
+import com.cablelabs.time.server.ServedClock;
+import com.cablelabs.time.server.SntpHandler;
+import com.cablelabs.time.server.TcpTimeServer;
+import com.cablelabs.time.server.TimeServer;
+import com.cablelabs.time.server.UdpTimeServer;
+
+/**
+ * This class tests the protocol handler SPI and the Daytime handler
+ */
+public class TestProtocolHandlers
+{
+	/**
+	 * Parse a Daytime line
+	 * @param line Line received
+	 * @return Milliseconds since 1970
+	 */
+	private static long parseDaytime(String line) throws Exception
+	{
+		assertTrue(line.endsWith("\r\n"));
+		SimpleDateFormat format = new SimpleDateFormat("EEEE, MMMM d, yyyy HH:mm:ss-'GMT'", Locale.US);
+		format.setTimeZone(TimeZone.getTimeZone("GMT"));
+		return format.parse(line.trim()).getTime();
+	}
+
+	/**
+	 * This class answers with the request it received, in upper case
+	 */
+	private static class _UpperCaseEcho implements ProtocolHandler
+	{
+		public String getName()
+		{
+			return "echo";
+		}
+
+		public int getDefaultPort()
+		{
+			return 7;
+		}
+
+		public boolean supportsTransport(int transport)
+		{
+			return (transport == TRANSPORT_UDP);
+		}
+
+		public byte getProtocol(int transport)
+		{
+			return TimeServer.PROTOCOL_UDP;
+		}
+
+		public int getMaxResponseSize()
+		{
+			return 64;
+		}
+
+		public boolean handle(ByteBuffer request, RequestContext context, ByteBuffer response)
+		{
+			if (!request.hasRemaining() || request.remaining() > 64)
+			{
+				return false;
+			}
+			while (request.hasRemaining())
+			{
+				response.put((byte)Character.toUpperCase(request.get()));
+			}
+			return true;
+		}
+	}
+
+	@Test
+	public void testDaytimeCachedPerSecond() throws Exception
+	{
+		DaytimeHandler handler = new DaytimeHandler();
+		RequestContext context = new RequestContext(ProtocolHandler.TRANSPORT_UDP, new ServedClock());
+		ByteBuffer request = ByteBuffer.allocate(0);
+		ByteBuffer response = ByteBuffer.allocate(handler.getMaxResponseSize());
+
+		// 14 September 2017 was a Thursday
+		long base = 1505390400000L;
+		context.reset(null, base + 10);
+		assertTrue(handler.handle(request, context, response));
+		String first = new String(response.array(), 0, response.position(), StandardCharsets.US_ASCII);
+		assertEquals("Thursday, September 14, 2017 12:00:00-GMT\r\n", first);
+
+		response.clear();
+		context.reset(null, base + 990);
+		assertTrue(handler.handle(request, context, response));
+		assertEquals(first, new String(response.array(), 0, response.position(), StandardCharsets.US_ASCII));
+
+		response.clear();
+		context.reset(null, base + 1000);
+		assertTrue(handler.handle(request, context, response));
+		assertEquals("Thursday, September 14, 2017 12:00:01-GMT\r\n",
+				new String(response.array(), 0, response.position(), StandardCharsets.US_ASCII));
+		assertEquals(TimeServer.timeServerValueFromMillis(base) + 1, context.getTimeValue());
+	}
+
+	@Test
+	public void testDaytimeOverTcpAndUdp() throws Exception
+	{
+		DaytimeHandler daytime = new DaytimeHandler();
+		TcpTimeServer tcp = new TcpTimeServer.Builder()
+				.setHandler(daytime)
+				.setListenAddress("127.0.0.1")
+				.setPort(0)
+				.setRequestLogInterval(0)
+				.build();
+		UdpTimeServer udp = new UdpTimeServer.Builder()
+				.setHandler(daytime)
+				.setListenAddress("127.0.0.1")
+				.setPort(0)
+				.setRequestLogInterval(0)
+				.build();
+		try
+		{
+			InetSocketAddress tcpAddress = tcp.start().get(5, TimeUnit.SECONDS);
+			InetSocketAddress udpAddress = udp.start().get(5, TimeUnit.SECONDS);
+			long before = System.currentTimeMillis() / 1000 * 1000;
+
+			Socket socket = new Socket();
+			socket.connect(tcpAddress, 1000);
+			socket.setSoTimeout(1000);
+			InputStream in = socket.getInputStream();
+			ByteArrayOutputStream line = new ByteArrayOutputStream();
+			int b;
+			while ((b = in.read()) >= 0)
+			{
+				line.write(b);
+			}
+			socket.close();
+			long tcpTime = parseDaytime(line.toString("US-ASCII"));
+
+			DatagramSocket datagram = new DatagramSocket();
+			datagram.setSoTimeout(1000);
+			datagram.send(new DatagramPacket(new byte[0], 0, udpAddress));
+			byte[] data = new byte[daytime.getMaxResponseSize()];
+			DatagramPacket reply = new DatagramPacket(data, data.length);
+			datagram.receive(reply);
+			datagram.close();
+			long udpTime = parseDaytime(new String(data, 0, reply.getLength(), StandardCharsets.US_ASCII));
+
+			long after = System.currentTimeMillis();
+			assertTrue(tcpTime >= before && tcpTime <= after);
+			assertTrue(udpTime >= tcpTime && udpTime <= after);
+		}
+		finally
+		{
+			tcp.stopServer();
+			udp.stopServer();
+		}
+	}
+
+	@Test
+	public void testCustomHandler() throws Exception
+	{
+		UdpTimeServer server = new UdpTimeServer.Builder()
+				.setHandler(new _UpperCaseEcho())
+				.setListenAddress("127.0.0.1")
+				.setPort(0)
+				.setRequestLogInterval(0)
+				.build();
+		try
+		{
+			InetSocketAddress address = server.start().get(5, TimeUnit.SECONDS);
+			DatagramSocket socket = new DatagramSocket();
+			socket.setSoTimeout(1000);
+			byte[] request = "time".getBytes(StandardCharsets.US_ASCII);
+			socket.send(new DatagramPacket(request, request.length, address));
+			byte[] data = new byte[64];
+			DatagramPacket reply = new DatagramPacket(data, data.length);
+			socket.receive(reply);
+			socket.close();
+			assertEquals("TIME", new String(data, 0, reply.getLength(), StandardCharsets.US_ASCII));
+		}
+		finally
+		{
+			server.stopServer();
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnsupportedTransport()
+	{
+		new TcpTimeServer().setHandler(new SntpHandler());
+	}
+}
@@ -0,0 +1,324 @@
+/*
+ * Copyright 2017 Cable Television Laboratories, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cablelabs.time.test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cablelabs.time.server.RequestJournal;
+import com.cablelabs.time.tools.JournalDecoder;
+
+/**
+ * This class tests the RequestJournal
+ */
+public class TestRequestJournal
+{
+	private File m_directory = null;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		m_directory = Files.createTempDirectory("journal").toFile();
+	}
+
+	@After
+	public void tearDown() throws Exception
+	{
+		File[] files = m_directory.listFiles();
+		if (files != null)
+		{
+			for (File file : files)
+			{
+				file.delete();
+			}
+		}
+		m_directory.delete();
+	}
+
+	@Test
+	public void testRecordLayout() throws Exception
+	{
+		RequestJournal journal = new RequestJournal(m_directory, 0, 4, 2);
+		journal.append(1234567890123L, RequestJournal.PROTOCOL_UDP,
+				InetAddress.getByName("10.1.2.3"), 40000, 3711719665L);
+		journal.close();
+
+		ByteBuffer buf = map(new File(m_directory, RequestJournal.segmentFileName(0)));
+		assertEquals(RequestJournal.HEADER_MAGIC, buf.getInt(0));
+
+		int pos = RequestJournal.RECORD_SIZE;
+		assertEquals(1234567890123L, buf.getLong(pos));
+		assertEquals(3711719665L, buf.getInt(pos + 8) & 0xFFFFFFFFL);
+		assertEquals(40000, buf.getShort(pos + 12) & 0xFFFF);
+		assertEquals(RequestJournal.PROTOCOL_UDP, buf.get(pos + 14));
+		assertEquals(4, buf.get(pos + 15));
+		assertEquals(0x0A010203, buf.getInt(pos + 16));
+	}
+
+	@Test
+	public void testRollingAndRetention() throws Exception
+	{
+		// 4 records per region, 2 regions per segment
+		final RequestJournal journal = new RequestJournal(m_directory, 3, 4, 2);
+		final InetAddress address = InetAddress.getByName("::1");
+
+		Thread[] writers = new Thread[4];
+		for (int t = 0; t < writers.length; t++)
+		{
+			writers[t] = new Thread(new Runnable() {
+				public void run()
+				{
+					for (int i = 0; i < 100; i++)
+					{
+						journal.append(System.currentTimeMillis(), RequestJournal.PROTOCOL_TCP, address, i, i);
+					}
+				}
+			});
+			writers[t].start();
+		}
+		for (Thread writer : writers)
+		{
+			writer.join();
+		}
+		journal.close();
+
+		assertEquals(0, journal.getFailures());
+		long[] sequences = RequestJournal.listSegmentSequences(m_directory);
+		assertEquals(3, sequences.length);
+		assertTrue(sequences[2] >= 49);
+	}
+
+	@Test
+	public void testSegmentKeptWhileWritten() throws Exception
+	{
+		// 4 records per region, 2 regions per segment, a single segment kept
+		final RequestJournal journal = new RequestJournal(m_directory, 1, 4, 2);
+		final InetAddress address = InetAddress.getByName("10.0.0.1");
+		ExecutorService other = Executors.newSingleThreadExecutor();
+		try
+		{
+			// another thread claims the first region of segment 0 and stops half-way
+			append(other, journal, address, 7, 1);
+			for (int i = 0; i < 20; i++)
+			{
+				journal.append(System.currentTimeMillis(), RequestJournal.PROTOCOL_UDP, address, 1, i);
+			}
+			long[] sequences = RequestJournal.listSegmentSequences(m_directory);
+			assertEquals(0, sequences[0]);
+			assertTrue(sequences.length < 4);
+
+			// once its region is full, the segment holds all its records and goes at the next roll
+			append(other, journal, address, 7, 3);
+			ByteBuffer buf = map(new File(m_directory, RequestJournal.segmentFileName(0)));
+			for (int i = 0; i < 4; i++)
+			{
+				assertEquals(7, buf.getShort(RequestJournal.RECORD_SIZE * (i + 1) + 12));
+			}
+			journal.append(System.currentTimeMillis(), RequestJournal.PROTOCOL_UDP, address, 1, 0);
+			assertEquals(-1, Arrays.binarySearch(RequestJournal.listSegmentSequences(m_directory), 0));
+			assertEquals(1, RequestJournal.listSegmentSequences(m_directory).length);
+			assertEquals(0, journal.getFailures());
+		}
+		finally
+		{
+			other.shutdown();
+			journal.close();
+		}
+	}
+
+	@Test
+	public void testQuietWriterReleased() throws Exception
+	{
+		// 4 records per region, 2 regions per segment, a single segment kept
+		final RequestJournal journal = new RequestJournal(m_directory, 1, 4, 2);
+		journal.setWriterGraceMillis(100);
+		final InetAddress address = InetAddress.getByName("10.0.0.1");
+		ExecutorService other = Executors.newSingleThreadExecutor();
+		try
+		{
+			// another thread claims the first region of segment 0 and goes quiet
+			append(other, journal, address, 7, 1);
+			for (int i = 0; i < 20; i++)
+			{
+				journal.append(System.currentTimeMillis(), RequestJournal.PROTOCOL_UDP, address, 1, i);
+			}
+			assertEquals(0, RequestJournal.listSegmentSequences(m_directory)[0]);
+
+			// after the grace period the next roll deletes the segment anyway
+			Thread.sleep(200);
+			for (int i = 0; i < 8; i++)
+			{
+				journal.append(System.currentTimeMillis(), RequestJournal.PROTOCOL_UDP, address, 1, i);
+			}
+			assertEquals(-1, Arrays.binarySearch(RequestJournal.listSegmentSequences(m_directory), 0));
+			assertTrue(RequestJournal.listSegmentSequences(m_directory).length <= 2);
+
+			// the quiet thread moves on to a region of the current segment
+			append(other, journal, address, 7, 1);
+			long[] sequences = RequestJournal.listSegmentSequences(m_directory);
+			ByteBuffer buf = map(new File(m_directory, RequestJournal.segmentFileName(sequences[sequences.length - 1])));
+			boolean found = false;
+			for (int pos = RequestJournal.RECORD_SIZE; pos < buf.limit(); pos += RequestJournal.RECORD_SIZE)
+			{
+				found |= (buf.getShort(pos + 12) == 7);
+			}
+			assertTrue(found);
+			assertEquals(0, journal.getFailures());
+		}
+		finally
+		{
+			other.shutdown();
+			journal.close();
+		}
+	}
+
+	@Test
+	public void testRollOnScheduler() throws Exception
+	{
+		// 4 records per region, 2 regions per segment, 3 segments kept
+		RequestJournal journal = new RequestJournal(m_directory, 3, 4, 2);
+		InetAddress address = InetAddress.getByName("10.0.0.1");
+		ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+		try
+		{
+			// the next segment is there before any roll needs it
+			journal.start(scheduler);
+			waitForSegments(2, 1);
+
+			for (int i = 0; i < 80; i++)
+			{
+				journal.append(System.currentTimeMillis(), RequestJournal.PROTOCOL_UDP, address, 1, i);
+				if (i > 0 && i % 8 == 0)
+				{
+					// a roll; let the scheduler catch up with it
+					waitForSegments(Math.min(4, i / 8 + 2), i / 8 + 1);
+				}
+			}
+			long[] sequences = RequestJournal.listSegmentSequences(m_directory);
+			assertEquals(4, sequences.length);
+			assertEquals(10, sequences[3]);
+
+			// the spare holds no records and goes with the journal
+			journal.close();
+			assertEquals(3, RequestJournal.listSegmentSequences(m_directory).length);
+			assertEquals(0, journal.getFailures());
+		}
+		finally
+		{
+			scheduler.shutdownNow();
+			journal.close();
+		}
+	}
+
+	@Test
+	public void testDecoderPrefixLength() throws Exception
+	{
+		JournalDecoder decoder = new JournalDecoder();
+		decoder.setAddressFilter(InetAddress.getByName("10.0.0.0").getAddress(), 32);
+		decoder.setAddressFilter(InetAddress.getByName("::").getAddress(), 128);
+		for (int prefix : new int[] { -1, 33 })
+		{
+			try
+			{
+				decoder.setAddressFilter(InetAddress.getByName("10.0.0.0").getAddress(), prefix);
+				fail("Prefix length " + prefix + " accepted");
+			}
+			catch (IllegalArgumentException e)
+			{
+				// expected
+			}
+		}
+	}
+
+	/**
+	 * Wait until the journal directory holds a number of segments, up to a given one
+	 * @param segments Number of segments
+	 * @param last Sequence number of the last segment
+	 * @throws Exception On errors
+	 */
+	private void waitForSegments(int segments, long last) throws Exception
+	{
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		long[] sequences = RequestJournal.listSegmentSequences(m_directory);
+		while ((sequences.length != segments || sequences[sequences.length - 1] != last) && System.nanoTime() < deadline)
+		{
+			Thread.sleep(10);
+			sequences = RequestJournal.listSegmentSequences(m_directory);
+		}
+		assertEquals(segments, sequences.length);
+		assertEquals(last, sequences[sequences.length - 1]);
+	}
+
+	/**
+	 * Append records on another thread
+	 * @param thread Thread to append on
+	 * @param journal Journal
+	 * @param address Source address
+	 * @param port Source port, marking the records
+	 * @param count Number of records
+	 * @throws Exception On errors
+	 */
+	private static void append(ExecutorService thread, final RequestJournal journal, final InetAddress address,
+			final int port, final int count) throws Exception
+	{
+		thread.submit(new Callable<Void>() {
+			public Void call()
+			{
+				for (int i = 0; i < count; i++)
+				{
+					journal.append(System.currentTimeMillis(), RequestJournal.PROTOCOL_UDP, address, port, i);
+				}
+				return null;
+			}
+		}).get();
+	}
+
+	/**
+	 * Map a segment file
+	 * @param file Segment file
+	 * @return Read-only buffer
+	 * @throws Exception On I/O errors
+	 */
+	private static ByteBuffer map(File file) throws Exception
+	{
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try
+		{
+			return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+}
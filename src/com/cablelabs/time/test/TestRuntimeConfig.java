@@ -0,0 +1,210 @@
+/*
+ * Copyright 2017 Cable Television Laboratories, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cablelabs.time.test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.cablelabs.time.server.CableLabsTimeServer;
+import com.cablelabs.time.server.RuntimeConfig;
+import com.cablelabs.time.server.WorkerPool;
+
+/**
+ * This class tests the configuration file and its reloading
+ */
+public class TestRuntimeConfig
+{
+	@Test
+	public void testParse()
+	{
+		Map<String, String> values = new TreeMap<String, String>();
+		values.put("log_interval", "10");
+		values.put("no_tcp", "true");
+		values.put("idle", "blocking,udp=spin");
+		values.put("interface", "");
+		List<String> errors = new ArrayList<String>();
+		RuntimeConfig config = RuntimeConfig.parse(values, errors);
+		assertTrue(errors.isEmpty());
+		assertEquals(10, config.getInt("log_interval", 1));
+		assertTrue(config.getFlag("no_tcp"));
+		assertNull(config.get("interface"));
+		assertTrue(RuntimeConfig.isLive("log_interval"));
+		assertTrue(RuntimeConfig.isListenerSetting("idle"));
+
+		// every invalid value is reported, and nothing is built
+		values.put("port", "70000");
+		values.put("sntp", "yes");
+		values.put("idle", "ntp=spin");
+		values.put("workers", "many");
+		values.put("colour", "blue");
+		assertNull(RuntimeConfig.parse(values, errors));
+		assertEquals(5, errors.size());
+	}
+
+	@Test
+	public void testFileOverlay() throws Exception
+	{
+		Map<String, String> values = new TreeMap<String, String>();
+		values.put("log_interval", "1");
+		values.put("port", "37");
+		RuntimeConfig base = RuntimeConfig.parse(values, new ArrayList<String>());
+
+		File file = File.createTempFile("timeserver", ".properties");
+		try
+		{
+			List<String> errors = new ArrayList<String>();
+			writeConfig(file, "# sampled logging", "log_interval = 100", "port=3737");
+			RuntimeConfig config = RuntimeConfig.load(file, base, errors);
+			assertEquals("100", config.get("log_interval"));
+			assertEquals(Arrays.asList("log_interval", "port"), config.getChanges(base));
+
+			// a setting removed from the file goes back to its start value
+			writeConfig(file, "log_interval=100");
+			RuntimeConfig reverted = RuntimeConfig.load(file, base, errors);
+			assertEquals("37", reverted.get("port"));
+			assertEquals(Collections.singletonList("port"), reverted.getChanges(config));
+			assertTrue(errors.isEmpty());
+
+			writeConfig(file, "log_interval=-1");
+			assertNull(RuntimeConfig.load(file, base, errors));
+			assertEquals(1, errors.size());
+		}
+		finally
+		{
+			file.delete();
+		}
+	}
+
+	@Test
+	public void testReload() throws Exception
+	{
+		File file = File.createTempFile("timeserver", ".properties");
+		File deny = File.createTempFile("timeserver", ".deny");
+		CableLabsTimeServer server = null;
+		try
+		{
+			writeConfig(deny, "127.0.0.0/8");
+			writeConfig(file, "log_interval=0", "workers=2");
+			server = new CableLabsTimeServer.Builder()
+					.setListenAddress("127.0.0.1")
+					.setPort(0)
+					.setConfigFile(file.getPath())
+					.build();
+			server.start().get(5, TimeUnit.SECONDS);
+			assertEquals(0, server.getUdpServer().getRequestLogInterval());
+			assertEquals(2, server.getWorkers().getThreads());
+			assertNull(server.getAccessControl());
+
+			// live settings are applied to the running listeners, the others wait for a restart
+			writeConfig(file, "log_interval=50", "workers=4", "worker_reject=caller", "deny=" + deny.getPath(), "no_udp=true");
+			waitForSetting(server, "log_interval", "50");
+			assertEquals(50, server.getUdpServer().getRequestLogInterval());
+			assertEquals(50, server.getTcpServer().getRequestLogInterval());
+			assertEquals(4, server.getWorkers().getThreads());
+			assertEquals(WorkerPool.RejectionPolicy.CALLER_RUNS, server.getWorkers().getRejectionPolicy());
+			assertNotNull(server.getUdpServer().getAccessControl());
+			assertFalse(server.getUdpServer().getAccessControl().isAllowed(InetAddress.getLoopbackAddress()));
+			assertEquals(Collections.singletonList("no_udp"), server.getPendingRebind());
+
+			// an invalid file is rejected as a whole
+			writeConfig(file, "log_interval=7", "workers=-1");
+			Thread.sleep(1000);
+			assertEquals("50", server.getConfig().get("log_interval"));
+			assertEquals(50, server.getUdpServer().getRequestLogInterval());
+
+			// more threads than the pool was sized for need a rebind too
+			writeConfig(file, "log_interval=50", "workers=100", "no_udp=true");
+			waitForSetting(server, "workers", "100");
+			assertEquals(4, server.getWorkers().getThreads());
+			assertNull(server.getUdpServer().getAccessControl());
+			assertEquals(Arrays.asList("no_udp", "workers"), server.getPendingRebind());
+
+			server.stopServer();
+			server.start().get(5, TimeUnit.SECONDS);
+			assertNull(server.getUdpServer());
+			assertEquals(100, server.getWorkers().getThreads());
+			assertTrue(server.getPendingRebind().isEmpty());
+		}
+		finally
+		{
+			if (server != null)
+			{
+				server.stopServer();
+			}
+			file.delete();
+			deny.delete();
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void testInvalidFileAtStart() throws Throwable
+	{
+		File file = File.createTempFile("timeserver", ".properties");
+		CableLabsTimeServer server = new CableLabsTimeServer.Builder()
+				.setListenAddress("127.0.0.1")
+				.setPort(0)
+				.setConfigFile(file.getPath())
+				.build();
+		try
+		{
+			writeConfig(file, "no_tcp=true", "no_udp=true");
+			server.startServer();
+		}
+		finally
+		{
+			server.stopServer();
+			file.delete();
+		}
+	}
+
+	private static void writeConfig(File file, String... lines) throws IOException
+	{
+		FileOutputStream out = new FileOutputStream(file);
+		try
+		{
+			out.write((String.join(System.lineSeparator(), lines) + System.lineSeparator()).getBytes(StandardCharsets.UTF_8));
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	private static void waitForSetting(CableLabsTimeServer server, String name, String value) throws InterruptedException
+	{
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while (!value.equals(server.getConfig().get(name)) && System.nanoTime() < deadline)
+		{
+			Thread.sleep(10);
+		}
+		assertEquals(value, server.getConfig().get(name));
+	}
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2017 Cable Television Laboratories, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cablelabs.time.test;
+
+import static org.junit.Assert.*;
+
+import java.io.DataInputStream;
+import java.net.BindException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cablelabs.time.server.CableLabsTimeServer;
+import com.cablelabs.time.server.TcpTimeServer;
+import com.cablelabs.time.server.TimeServer;
+import com.cablelabs.time.server.WarmUp;
+
+/**
+ * This class tests embedding the time servers with an injected executor
+ */
+public class TestServerEmbedding
+{
+	private ExecutorService m_executor = null;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		m_executor = Executors.newCachedThreadPool();
+	}
+
+	@After
+	public void tearDown() throws Exception
+	{
+		m_executor.shutdownNow();
+	}
+
+	@Test
+	public void testStartOnEphemeralPorts() throws Exception
+	{
+		CableLabsTimeServer server = new CableLabsTimeServer.Builder()
+				.setListenAddress("127.0.0.1")
+				.setPort(0)
+				.setExecutor(m_executor)
+				.build();
+		try
+		{
+			List<InetSocketAddress> bound = server.start().get(5, TimeUnit.SECONDS);
+			assertEquals(2, bound.size());
+			assertTrue(server.getTcpServer().getServerRunning());
+			assertTrue(server.getUdpServer().getServerRunning());
+
+			long expected = TimeServer.timeServerValueFromMillis(System.currentTimeMillis());
+
+			Socket tcp = new Socket();
+			tcp.connect(bound.get(0), 1000);
+			tcp.setSoTimeout(1000);
+			long tcpValue = new DataInputStream(tcp.getInputStream()).readInt() & 0xFFFFFFFFL;
+			tcp.close();
+			assertTrue(Math.abs(tcpValue - expected) <= 1);
+
+			DatagramSocket udp = new DatagramSocket();
+			udp.setSoTimeout(1000);
+			udp.send(new DatagramPacket(new byte[0], 0, bound.get(1)));
+			byte[] data = new byte[4];
+			udp.receive(new DatagramPacket(data, data.length));
+			udp.close();
+			assertTrue(Math.abs(TimeServer.timeServerValueFromBytes(data) - expected) <= 1);
+		}
+		finally
+		{
+			server.stopServer();
+		}
+	}
+
+	@Test
+	public void testWarmUpBeforeBinding() throws Exception
+	{
+		CableLabsTimeServer server = new CableLabsTimeServer.Builder()
+				.setListenAddress("127.0.0.1")
+				.setPort(0)
+				.setUseSntp(true)
+				.setSntpPort(0)
+				.setRequestLogInterval(0)
+				.setWarmUp(500, 3000)
+				.setExecutor(m_executor)
+				.build();
+		try
+		{
+			List<InetSocketAddress> bound = server.start().get(10, TimeUnit.SECONDS);
+			assertEquals(3, bound.size());
+
+			WarmUp warmUp = server.getWarmUp();
+			assertNotNull(warmUp);
+			assertTrue(warmUp.getRounds() >= 500 || warmUp.getElapsedMillis() >= 3000);
+			assertEquals(0, warmUp.getFailures());
+			assertTrue(warmUp.getElapsedMillis() < 5000);
+
+			// the public listeners answer afterwards; the warm-up ones are gone
+			Socket tcp = new Socket();
+			tcp.connect(bound.get(0), 1000);
+			tcp.setSoTimeout(1000);
+			long tcpValue = new DataInputStream(tcp.getInputStream()).readInt() & 0xFFFFFFFFL;
+			tcp.close();
+			assertTrue(Math.abs(tcpValue - TimeServer.timeServerValueFromMillis(System.currentTimeMillis())) <= 1);
+		}
+		finally
+		{
+			server.stopServer();
+		}
+	}
+
+	@Test
+	public void testBindFailure() throws Exception
+	{
+		TcpTimeServer first = new TcpTimeServer.Builder()
+				.setListenAddress("127.0.0.1")
+				.setPort(0)
+				.setExecutor(m_executor)
+				.build();
+		InetSocketAddress address = first.start().get(5, TimeUnit.SECONDS);
+
+		TcpTimeServer second = new TcpTimeServer.Builder()
+				.setListenAddress("127.0.0.1")
+				.setPort(address.getPort())
+				.setExecutor(m_executor)
+				.build();
+		try
+		{
+			second.start().get(5, TimeUnit.SECONDS);
+			fail("Second server bound to a port in use");
+		}
+		catch (ExecutionException e)
+		{
+			assertTrue(e.getCause() instanceof BindException);
+		}
+		finally
+		{
+			second.stopServer();
+			first.stopServer();
+		}
+		assertFalse(first.getServerRunning());
+	}
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2017 Cable Television Laboratories, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cablelabs.time.test;
+
+import static org.junit.Assert.*;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cablelabs.time.server.DaytimeHandler;
+import com.cablelabs.time.server.ServedClock;
+import com.cablelabs.time.server.SntpTimeServer;
+import com.cablelabs.time.server.UdpTimeServer;
+import com.cablelabs.time.server.UpstreamSynchronizer;
+
+/**
+ * This class tests the SNTPv4 server
+ */
+public class TestSntpTimeServer
+{
+	private SntpTimeServer m_server = null;
+	private InetSocketAddress m_address = null;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		m_server = new SntpTimeServer.Builder()
+				.setStratum(2)
+				.setListenAddress("127.0.0.1")
+				.setPort(0)
+				.setRequestLogInterval(0)
+				.build();
+		m_address = m_server.start().get(5, TimeUnit.SECONDS);
+	}
+
+	@After
+	public void tearDown() throws Exception
+	{
+		m_server.stopServer();
+	}
+
+	/**
+	 * Send an SNTP request
+	 * @param flags Leap indicator, version and mode byte
+	 * @param transmit Transmit timestamp of the request
+	 * @return Reply, or null if there was none
+	 */
+	private ByteBuffer query(int flags, long transmit) throws Exception
+	{
+		DatagramSocket socket = new DatagramSocket();
+		try
+		{
+			socket.setSoTimeout(500);
+			ByteBuffer request = ByteBuffer.allocate(SntpTimeServer.PACKET_SIZE);
+			request.put(0, (byte)flags);
+			request.put(2, (byte)6);
+			request.putLong(40, transmit);
+			socket.send(new DatagramPacket(request.array(), request.capacity(), m_address));
+
+			byte[] data = new byte[SntpTimeServer.PACKET_SIZE];
+			DatagramPacket reply = new DatagramPacket(data, data.length);
+			socket.receive(reply);
+			assertEquals(SntpTimeServer.PACKET_SIZE, reply.getLength());
+			return ByteBuffer.wrap(data);
+		}
+		catch (SocketTimeoutException e)
+		{
+			return null;
+		}
+		finally
+		{
+			socket.close();
+		}
+	}
+
+	@Test
+	public void testTimestampConversion()
+	{
+		long millis = 1505390400123L;
+		long timestamp = SntpTimeServer.ntpTimestampFromMillis(millis);
+		assertEquals(3714379200L, timestamp >>> 32);
+		assertEquals(millis, SntpTimeServer.ntpTimestampToMillis(timestamp));
+
+		// after the 2036 rollover the seconds wrap into era 1
+		long era1 = 2085978496000L + 500;
+		assertEquals(0, SntpTimeServer.ntpTimestampFromMillis(era1) >>> 32);
+		assertEquals(era1, SntpTimeServer.ntpTimestampToMillis(SntpTimeServer.ntpTimestampFromMillis(era1)));
+	}
+
+	@Test
+	public void testClientRequest() throws Exception
+	{
+		long before = System.currentTimeMillis();
+		long transmit = SntpTimeServer.ntpTimestampFromMillis(before) | 0x1234;
+		// version 4, client mode
+		ByteBuffer reply = query((4 << 3) | 3, transmit);
+		long after = System.currentTimeMillis();
+		assertNotNull(reply);
+
+		assertEquals((4 << 3) | 4, reply.get(0));
+		assertEquals(2, reply.get(1));
+		assertEquals(6, reply.get(2));
+		assertEquals(transmit, reply.getLong(24));
+
+		long receiveMs = SntpTimeServer.ntpTimestampToMillis(reply.getLong(32));
+		long transmitMs = SntpTimeServer.ntpTimestampToMillis(reply.getLong(40));
+		assertTrue(receiveMs >= before && receiveMs <= after);
+		assertTrue(transmitMs >= receiveMs && transmitMs <= after);
+
+		// the version of the request is echoed
+		reply = query((3 << 3) | 3, transmit);
+		assertNotNull(reply);
+		assertEquals((3 << 3) | 4, reply.get(0));
+	}
+
+	@Test
+	public void testInvalidRequests() throws Exception
+	{
+		// symmetric active, broadcast and a future version are not answered
+		assertNull(query((4 << 3) | 1, 0));
+		assertNull(query((4 << 3) | 5, 0));
+		assertNull(query((5 << 3) | 3, 0));
+
+		// nor is anything while the clock is unsynchronized
+		m_server.getClock().setSynchronized(false);
+		assertNull(query((4 << 3) | 3, 0));
+		m_server.getClock().setSynchronized(true);
+		assertNotNull(query((4 << 3) | 3, 0));
+	}
+
+	@Test
+	public void testUpstreamReference() throws Exception
+	{
+		assertEquals(0x0A010203, SntpTimeServer.referenceIdFromAddress(InetAddress.getByName("10.1.2.3")));
+		assertNotEquals(0, SntpTimeServer.referenceIdFromAddress(InetAddress.getByName("::1")));
+
+		// in upstream mode the reference is the upstream the offset follows
+		UdpTimeServer upstream = new UdpTimeServer.Builder()
+				.setListenAddress("127.0.0.1")
+				.setPort(0)
+				.setRequestLogInterval(0)
+				.build();
+		try
+		{
+			InetSocketAddress address = upstream.start().get(5, TimeUnit.SECONDS);
+			UpstreamSynchronizer sync = new UpstreamSynchronizer(new ServedClock(),
+					Collections.singletonList(new UpstreamSynchronizer.Upstream("127.0.0.1", address.getPort(), false)), 1000, 2);
+			assertTrue(sync.poll());
+			assertEquals(InetAddress.getByName("127.0.0.1"), sync.getSelectedAddress());
+			m_server.setSynchronizer(sync);
+
+			ByteBuffer reply = query((4 << 3) | 3, 0);
+			assertNotNull(reply);
+			assertEquals(0x7F000001, reply.getInt(12));
+		}
+		finally
+		{
+			upstream.stopServer();
+		}
+
+		// without one, the configured identifier
+		m_server.setSynchronizer(null);
+		ByteBuffer reply = query((4 << 3) | 3, 0);
+		assertNotNull(reply);
+		assertEquals(SntpTimeServer.referenceIdFromString("LOCL"), reply.getInt(12));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testOtherHandler()
+	{
+		m_server.setHandler(new DaytimeHandler());
+	}
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2017 Cable Television Laboratories, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cablelabs.time.test;
+
+import static org.junit.Assert.*;
+
+import java.io.DataInputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.cablelabs.time.server.CableLabsTimeServer;
+import com.cablelabs.time.server.HeavyHitterTracker;
+import com.cablelabs.time.server.StatsAggregator;
+import com.cablelabs.time.server.StatsExporter;
+import com.cablelabs.time.server.TimeServer;
+import com.cablelabs.time.server.UdpTimeServer;
+
+/**
+ * This class tests exporting statistics from several servers to an aggregator on loopback
+ */
+public class TestStatsAggregation
+{
+	private static final long WINDOW_MS = 1000;
+
+	/**
+	 * Sleep until shortly after the start of the next heavy-hitter window
+	 */
+	private static void awaitNextWindow() throws InterruptedException
+	{
+		long now = System.currentTimeMillis();
+		Thread.sleep(WINDOW_MS - (now % WINDOW_MS) + 50);
+	}
+
+	/**
+	 * Wait for the aggregator to receive a number of datagrams
+	 * @param aggregator Aggregator
+	 * @param packets Expected count
+	 */
+	private static void awaitPackets(StatsAggregator aggregator, long packets) throws InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + 5000;
+		while (aggregator.getPackets() < packets && System.currentTimeMillis() < deadline)
+		{
+			Thread.sleep(10);
+		}
+		assertEquals(packets, aggregator.getPackets());
+	}
+
+	@Test
+	public void testFleetOnLoopback() throws Exception
+	{
+		StatsAggregator aggregator = new StatsAggregator("127.0.0.1", 0);
+		InetSocketAddress aggregatorAddress = aggregator.start();
+		List<CableLabsTimeServer> nodes = new ArrayList<CableLabsTimeServer>();
+		try
+		{
+			for (int i = 0; i < 3; i++)
+			{
+				nodes.add(new CableLabsTimeServer.Builder()
+						.setListenAddress("127.0.0.1")
+						.setPort(0)
+						.setRequestLogInterval(0)
+						.setHeavyHitterTracking(16, WINDOW_MS)
+						// exported by hand below
+						.setStatsExport(aggregatorAddress, "node-" + i, 3600000)
+						.build());
+			}
+			List<List<InetSocketAddress>> bound = new ArrayList<List<InetSocketAddress>>();
+			for (CableLabsTimeServer node : nodes)
+			{
+				bound.add(node.start().get(5, TimeUnit.SECONDS));
+			}
+
+			// node i answers i + 1 UDP requests and one TCP connection, all in one window
+			awaitNextWindow();
+			DatagramSocket socket = new DatagramSocket();
+			socket.setSoTimeout(1000);
+			for (int i = 0; i < nodes.size(); i++)
+			{
+				InetSocketAddress tcp = bound.get(i).get(0);
+				InetSocketAddress udp = bound.get(i).get(1);
+				for (int r = 0; r <= i; r++)
+				{
+					socket.send(new DatagramPacket(new byte[0], 0, udp));
+					socket.receive(new DatagramPacket(new byte[4], 4));
+				}
+				Socket client = new Socket();
+				client.connect(tcp, 1000);
+				new DataInputStream(client.getInputStream()).readInt();
+				client.close();
+			}
+			socket.close();
+
+			awaitNextWindow();
+			for (CableLabsTimeServer node : nodes)
+			{
+				node.getStatsExporter().export();
+			}
+			awaitPackets(aggregator, 3);
+
+			assertEquals(Arrays.asList("node-0", "node-1", "node-2"), aggregator.getNodes());
+			StatsAggregator.Totals udp = aggregator.getFleetTotals(CableLabsTimeServer.LISTENER_UDP);
+			assertEquals(6, udp.getReceived());
+			assertEquals(6, udp.getAnswered());
+			assertEquals(0, udp.getDropped());
+			assertEquals(6, udp.getReplyTime().getCount());
+			assertEquals(3, aggregator.getFleetTotals(CableLabsTimeServer.LISTENER_TCP).getAnswered());
+			assertEquals(2, aggregator.getNodeTotals("node-1", CableLabsTimeServer.LISTENER_UDP).getAnswered());
+
+			List<HeavyHitterTracker.HeavyHitter> top = aggregator.getTopTalkers(TimeServer.PROTOCOL_UDP, false, 5);
+			assertEquals(1, top.size());
+			assertEquals(InetAddress.getByName("127.0.0.1"), top.get(0).getAddress());
+			assertEquals(6, top.get(0).getCount());
+			assertEquals(3, aggregator.getTopTalkers(TimeServer.PROTOCOL_TCP, true, 5).get(0).getCount());
+
+			// only what changed is exported next time
+			for (CableLabsTimeServer node : nodes)
+			{
+				node.getStatsExporter().export();
+			}
+			awaitPackets(aggregator, 6);
+			assertEquals(6, aggregator.getFleetTotals(CableLabsTimeServer.LISTENER_UDP).getAnswered());
+			assertEquals(0, aggregator.getLostExports("node-0"));
+			assertEquals(0, aggregator.getInvalidPackets());
+		}
+		finally
+		{
+			for (CableLabsTimeServer node : nodes)
+			{
+				node.stopServer();
+			}
+			aggregator.stop();
+		}
+	}
+
+	@Test
+	public void testLostAndRepeatedExports() throws Exception
+	{
+		// capture the exports, to deliver them out of order
+		DatagramSocket capture = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+		capture.setSoTimeout(1000);
+		UdpTimeServer server = new UdpTimeServer.Builder()
+				.setListenAddress("127.0.0.1")
+				.setPort(0)
+				.setRequestLogInterval(0)
+				.build();
+		ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+		StatsExporter exporter = new StatsExporter("node", (InetSocketAddress)capture.getLocalSocketAddress());
+		exporter.addServer(CableLabsTimeServer.LISTENER_UDP, server);
+		try
+		{
+			InetSocketAddress address = server.start().get(5, TimeUnit.SECONDS);
+			exporter.start(scheduler, 3600000);
+			DatagramSocket socket = new DatagramSocket();
+			socket.setSoTimeout(1000);
+			List<byte[]> exports = new ArrayList<byte[]>();
+			for (int i = 0; i < 3; i++)
+			{
+				socket.send(new DatagramPacket(new byte[0], 0, address));
+				socket.receive(new DatagramPacket(new byte[4], 4));
+				// the reply is sent before the answer is counted
+				long deadline = System.currentTimeMillis() + 5000;
+				while (server.getAnsweredCount() < i + 1 && System.currentTimeMillis() < deadline)
+				{
+					Thread.sleep(1);
+				}
+				exporter.export();
+				DatagramPacket packet = new DatagramPacket(new byte[StatsExporter.MAX_PACKET_SIZE], StatsExporter.MAX_PACKET_SIZE);
+				capture.receive(packet);
+				exports.add(Arrays.copyOf(packet.getData(), packet.getLength()));
+			}
+			socket.close();
+			assertEquals(3, exporter.getExports());
+
+			StatsAggregator aggregator = new StatsAggregator(null, 0);
+			aggregator.merge(exports.get(0), exports.get(0).length);
+			aggregator.merge(exports.get(2), exports.get(2).length);
+			aggregator.merge(exports.get(2), exports.get(2).length);
+			aggregator.merge(exports.get(1), exports.get(1).length);
+			assertEquals(1, aggregator.getLostExports("node"));
+			assertEquals(2, aggregator.getFleetTotals(CableLabsTimeServer.LISTENER_UDP).getAnswered());
+
+			byte[] garbage = new byte[] {1, 2, 3};
+			aggregator.merge(garbage, garbage.length);
+			assertEquals(1, aggregator.getInvalidPackets());
+			assertEquals(5, aggregator.getPackets());
+		}
+		finally
+		{
+			exporter.stop();
+			scheduler.shutdownNow();
+			server.stopServer();
+			capture.close();
+		}
+	}
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2017 Cable Television Laboratories, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cablelabs.time.test;
+
+import static org.junit.Assert.*;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import com.cablelabs.time.server.CableLabsTimeServer;
+import com.cablelabs.time.server.ServedClock;
+import com.cablelabs.time.server.SubscriptionTimeServer;
+import com.cablelabs.time.server.TimeServer;
+
+/**
+ * This class tests the TCP subscription server
+ */
+public class TestSubscriptionServer
+{
+	@Test
+	public void testSubscribe() throws Exception
+	{
+		CableLabsTimeServer server = new CableLabsTimeServer.Builder()
+				.setListenAddress("127.0.0.1")
+				.setPort(0)
+				.setSubscription(0, 1)
+				.build();
+		Socket first = new Socket();
+		Socket second = new Socket();
+		try
+		{
+			List<InetSocketAddress> bound = server.start().get(5, TimeUnit.SECONDS);
+			assertEquals(3, bound.size());
+			SubscriptionTimeServer subscriptions = server.getSubscriptionServer();
+
+			// the current value is sent at once, then one at each second boundary
+			first.connect(bound.get(2), 1000);
+			first.setSoTimeout(3000);
+			DataInputStream in = new DataInputStream(first.getInputStream());
+			long value = in.readInt() & 0xFFFFFFFFL;
+			assertTrue(Math.abs(value - TimeServer.timeServerValueFromMillis(System.currentTimeMillis())) <= 1);
+			for (int i = 1; i <= 2; i++)
+			{
+				assertEquals(value + i, in.readInt() & 0xFFFFFFFFL);
+				assertTrue(System.currentTimeMillis() % 1000 < 500);
+			}
+			assertEquals(1, subscriptions.getSubscribers());
+			assertEquals(1, subscriptions.getAnsweredCount());
+
+			// over the limit, a subscriber is refused
+			second.connect(bound.get(2), 1000);
+			second.setSoTimeout(3000);
+			assertEquals(-1, second.getInputStream().read());
+			assertEquals(1, subscriptions.getDroppedCount());
+
+			first.close();
+			waitForSubscribers(subscriptions, 0);
+		}
+		finally
+		{
+			first.close();
+			second.close();
+			server.stopServer();
+		}
+	}
+
+	@Test
+	public void testSubscriptionOnly() throws Exception
+	{
+		CableLabsTimeServer server = new CableLabsTimeServer.Builder()
+				.setListenAddress("127.0.0.1")
+				.setUseTcp(false)
+				.setUseUdp(false)
+				.setSubscription(0, 10)
+				.build();
+		File file = File.createTempFile("timeserver", ".properties");
+		try
+		{
+			assertSubscribes(server);
+			server.stopServer();
+
+			// the same from a configuration file
+			FileOutputStream out = new FileOutputStream(file);
+			try
+			{
+				out.write("no_tcp=true\nno_udp=true\nsubscribe=0\n".getBytes(StandardCharsets.UTF_8));
+			}
+			finally
+			{
+				out.close();
+			}
+			server = new CableLabsTimeServer.Builder()
+					.setListenAddress("127.0.0.1")
+					.setPort(0)
+					.setConfigFile(file.getPath())
+					.build();
+			assertSubscribes(server);
+		}
+		finally
+		{
+			server.stopServer();
+			file.delete();
+		}
+	}
+
+	@Test
+	public void testSlowSubscriber() throws Exception
+	{
+		// a clock a second ahead at each reading ticks about every millisecond
+		ServedClock clock = new ServedClock() {
+			private final AtomicLong m_nowMs = new AtomicLong(System.currentTimeMillis());
+
+			@Override
+			public long currentTimeMillis()
+			{
+				return m_nowMs.addAndGet(1000);
+			}
+		};
+		SubscriptionTimeServer server = new SubscriptionTimeServer.Builder()
+				.setListenAddress("127.0.0.1")
+				.setPort(0)
+				.setClock(clock)
+				.setRequestLogInterval(0)
+				.build();
+		Socket client = new Socket();
+		try
+		{
+			InetSocketAddress bound = server.start().get(5, TimeUnit.SECONDS);
+			client.setReceiveBufferSize(1024);
+			client.connect(bound, 1000);
+			waitForSubscribers(server, 1);
+
+			// the client never reads, so its buffers fill up and it is dropped
+			long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+			while (server.getSlowSubscribers() == 0 && System.nanoTime() < deadline)
+			{
+				Thread.sleep(10);
+			}
+			assertEquals(1, server.getSlowSubscribers());
+			assertEquals(0, server.getSubscribers());
+			assertEquals(1, server.getDroppedCount());
+			assertTrue(server.getTicksSent() > 1);
+		}
+		finally
+		{
+			client.close();
+			server.stopServer();
+		}
+	}
+
+	private static void assertSubscribes(CableLabsTimeServer server) throws Exception
+	{
+		List<InetSocketAddress> bound = server.start().get(5, TimeUnit.SECONDS);
+		assertEquals(1, bound.size());
+		assertNull(server.getTcpServer());
+		assertNull(server.getUdpServer());
+		Socket socket = new Socket();
+		try
+		{
+			socket.connect(bound.get(0), 1000);
+			socket.setSoTimeout(3000);
+			long value = new DataInputStream(socket.getInputStream()).readInt() & 0xFFFFFFFFL;
+			assertTrue(Math.abs(value - TimeServer.timeServerValueFromMillis(System.currentTimeMillis())) <= 1);
+		}
+		finally
+		{
+			socket.close();
+		}
+	}
+
+	private static void waitForSubscribers(SubscriptionTimeServer server, int subscribers) throws InterruptedException
+	{
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (server.getSubscribers() != subscribers && System.nanoTime() < deadline)
+		{
+			Thread.sleep(10);
+		}
+		assertEquals(subscribers, server.getSubscribers());
+	}
+}
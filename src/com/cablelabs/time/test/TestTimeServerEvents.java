@@ -0,0 +1,133 @@
+/*
+ * Copyright 2017 Cable Television Laboratories, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cablelabs.time.test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.cablelabs.time.server.UdpTimeServer;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * This class tests the flight recorder events of the time servers
+ */
+public class TestTimeServerEvents
+{
+	/**
+	 * Send UDP requests, waiting for the replies of answered ones
+	 * @param address Server address
+	 * @param count Number of requests
+	 * @param answered True if replies are expected
+	 */
+	private static void send(InetSocketAddress address, int count, boolean answered) throws Exception
+	{
+		DatagramSocket socket = new DatagramSocket();
+		try
+		{
+			socket.setSoTimeout(1000);
+			byte[] data = new byte[4];
+			for (int i = 0; i < count; i++)
+			{
+				socket.send(new DatagramPacket(new byte[0], 0, address));
+				if (answered)
+				{
+					socket.receive(new DatagramPacket(data, data.length));
+				}
+			}
+		}
+		finally
+		{
+			socket.close();
+		}
+	}
+
+	@Test
+	public void testRequestEvents() throws Exception
+	{
+		File file = File.createTempFile("timeserver", ".jfr");
+		file.deleteOnExit();
+
+		Recording recording = new Recording();
+		recording.enable("com.cablelabs.time.RequestReceived");
+		recording.enable("com.cablelabs.time.RequestReplied").withThreshold(Duration.ZERO);
+		recording.enable("com.cablelabs.time.RequestDropped");
+		recording.enable("com.cablelabs.time.Listener");
+		recording.start();
+
+		UdpTimeServer server = new UdpTimeServer.Builder()
+				.setListenAddress("127.0.0.1")
+				.setPort(0)
+				.setRequestLogInterval(0)
+				.setEventSampleInterval(10)
+				.build();
+		try
+		{
+			InetSocketAddress address = server.start().get(5, TimeUnit.SECONDS);
+			send(address, 100, true);
+
+			// an unsynchronized clock sheds every request
+			server.getClock().setSynchronized(false);
+			send(address, 50, false);
+			Thread.sleep(200);
+		}
+		finally
+		{
+			server.stopServer();
+			recording.stop();
+			recording.dump(file.toPath());
+			recording.close();
+		}
+
+		Map<String, Integer> counts = new HashMap<String, Integer>();
+		for (RecordedEvent event : RecordingFile.readAllEvents(file.toPath()))
+		{
+			String name = event.getEventType().getName();
+			Integer count = counts.get(name);
+			counts.put(name, (count == null ? 1 : count + 1));
+			if (name.equals("com.cablelabs.time.RequestDropped"))
+			{
+				assertEquals("unsynchronized", event.getString("reason"));
+				assertEquals("127.0.0.1", event.getString("source"));
+			}
+			else if (name.equals("com.cablelabs.time.RequestReplied"))
+			{
+				assertEquals("UDP", event.getString("protocol"));
+			}
+		}
+
+		// every reply is over the zero threshold, received and dropped events are 1 in 10
+		assertEquals(Integer.valueOf(100), counts.get("com.cablelabs.time.RequestReplied"));
+		assertEquals(Integer.valueOf(15), counts.get("com.cablelabs.time.RequestReceived"));
+		assertEquals(Integer.valueOf(5), counts.get("com.cablelabs.time.RequestDropped"));
+		// bind and stop
+		assertEquals(Integer.valueOf(2), counts.get("com.cablelabs.time.Listener"));
+		file.delete();
+	}
+}
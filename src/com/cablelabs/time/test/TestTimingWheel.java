@@ -0,0 +1,128 @@
+/*
+ * Copyright 2017 Cable Television Laboratories, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cablelabs.time.test;
+
+import static org.junit.Assert.*;
+
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.cablelabs.time.server.TcpTimeServer;
+import com.cablelabs.time.server.TimingWheel;
+
+/**
+ * This class tests the TimingWheel and the TCP connection deadlines built on it
+ */
+public class TestTimingWheel
+{
+	/**
+	 * This class is a timeout that counts its expiries
+	 */
+	private static class _CountingTimeout extends TimingWheel.Timeout
+	{
+		private int m_expired = 0;
+
+		@Override
+		protected void expired()
+		{
+			m_expired++;
+		}
+	}
+
+	@Test
+	public void testScheduleCancelAdvance()
+	{
+		TimingWheel wheel = new TimingWheel(10, 8, 1000);
+		_CountingTimeout early = new _CountingTimeout();
+		_CountingTimeout late = new _CountingTimeout();
+		_CountingTimeout cancelled = new _CountingTimeout();
+
+		wheel.schedule(early, 1050);
+		// more than one revolution (8 ticks of 10ms) away, in the same slot as early
+		wheel.schedule(late, 1050 + 160);
+		wheel.schedule(cancelled, 1050);
+		assertEquals(3, wheel.size());
+		assertTrue(wheel.cancel(cancelled));
+		assertFalse(wheel.cancel(cancelled));
+
+		assertEquals(0, wheel.advance(1049));
+		assertEquals(1, wheel.advance(1050));
+		assertEquals(1, early.m_expired);
+		assertEquals(0, late.m_expired);
+		assertTrue(late.isScheduled());
+
+		// rescheduling replaces the deadline
+		wheel.schedule(late, 1100);
+		assertEquals(1, wheel.size());
+		assertEquals(1, wheel.advance(5000));
+		assertEquals(1, late.m_expired);
+		assertEquals(0, cancelled.m_expired);
+		assertEquals(0, wheel.size());
+	}
+
+	@Test
+	public void testSlowClientAborted() throws Exception
+	{
+		TcpTimeServer server = new TcpTimeServer.Builder()
+				.setListenAddress("127.0.0.1")
+				.setPort(0)
+				.build();
+		server.setTimeouts(200, 200);
+		InetSocketAddress address = server.start().get(5, TimeUnit.SECONDS);
+		try
+		{
+			// a well-behaved client reads the value and closes
+			Socket polite = new Socket();
+			polite.connect(address, 1000);
+			polite.getInputStream().read(new byte[4]);
+			polite.close();
+
+			// a client that reads but never closes
+			Socket slow = new Socket();
+			slow.connect(address, 1000);
+			slow.setSoTimeout(2000);
+			InputStream in = slow.getInputStream();
+			byte[] data = new byte[4];
+			int read = 0;
+			while (read < 4)
+			{
+				read += in.read(data, read, 4 - read);
+			}
+			assertEquals(-1, in.read());
+
+			long deadline = System.currentTimeMillis() + 2000;
+			while ((server.getExpiredCloses() == 0 || server.getOpenConnections() > 0) &&
+					System.currentTimeMillis() < deadline)
+			{
+				Thread.sleep(10);
+			}
+			slow.close();
+
+			assertEquals(1, server.getExpiredCloses());
+			assertEquals(0, server.getExpiredWrites());
+			assertEquals(0, server.getOpenConnections());
+		}
+		finally
+		{
+			server.stopServer();
+		}
+	}
+}
@@ -0,0 +1,335 @@
+/*
+ * Copyright 2017 Cable Television Laboratories, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cablelabs.time.test;
+
+import static org.junit.Assert.*;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.cablelabs.time.server.ProtocolHandler;
+import com.cablelabs.time.server.RequestContext;
+import com.cablelabs.time.server.SpscRing;
+import com.cablelabs.time.server.TimeServer;
+import com.cablelabs.time.server.UdpTimeServer;
+
+/**
+ * This class tests the pipelined UDP mode and its rings
+ */
+public class TestUdpPipeline
+{
+	/**
+	 * This class answers RFC868 over UDP once a latch is released
+	 */
+	private static class _SlowHandler implements ProtocolHandler
+	{
+		private final CountDownLatch m_release;
+
+		public _SlowHandler(CountDownLatch release)
+		{
+			m_release = release;
+		}
+
+		public String getName()
+		{
+			return "slow";
+		}
+
+		public int getDefaultPort()
+		{
+			return 0;
+		}
+
+		public boolean supportsTransport(int transport)
+		{
+			return (transport == TRANSPORT_UDP);
+		}
+
+		public byte getProtocol(int transport)
+		{
+			return TimeServer.PROTOCOL_UDP;
+		}
+
+		public int getMaxResponseSize()
+		{
+			return 4;
+		}
+
+		public boolean handle(ByteBuffer request, RequestContext context, ByteBuffer response)
+		{
+			try
+			{
+				m_release.await(5, TimeUnit.SECONDS);
+			}
+			catch (InterruptedException e)
+			{
+				return false;
+			}
+			response.putInt((int)context.getTimeValue());
+			return true;
+		}
+	}
+
+	@Test
+	public void testRing()
+	{
+		SpscRing<int[]> ring = new SpscRing<int[]>(new int[][] {new int[1], new int[1], new int[1], new int[1]});
+		assertEquals(4, ring.capacity());
+		assertEquals(0, ring.available());
+		for (int i = 0; i < 4; i++)
+		{
+			ring.claim()[0] = i;
+			ring.publish();
+		}
+		assertNull(ring.claim());
+		assertEquals(4, ring.size());
+		assertEquals(4, ring.available());
+		assertEquals(0, ring.get(0)[0]);
+		assertEquals(3, ring.get(3)[0]);
+
+		// released slots are reused, in order
+		ring.release(2);
+		assertEquals(2, ring.size());
+		ring.claim()[0] = 4;
+		ring.publish();
+		assertEquals(3, ring.size());
+
+		// the consumer sees the new slot once it has released the ones it already had
+		assertEquals(2, ring.available());
+		assertEquals(2, ring.get(0)[0]);
+		ring.release(2);
+		assertEquals(1, ring.available());
+		assertEquals(4, ring.get(0)[0]);
+	}
+
+	@Test(timeout = 5000)
+	public void testRingClose() throws Exception
+	{
+		// closed before the consumer first waits, as on a shutdown racing the sender's start
+		final SpscRing<int[]> ring = new SpscRing<int[]>(new int[2][1]);
+		ring.close();
+		ring.await();
+
+		final SpscRing<int[]> parked = new SpscRing<int[]>(new int[2][1]);
+		Thread consumer = new Thread(new Runnable() {
+			public void run()
+			{
+				parked.await();
+			}
+		});
+		consumer.start();
+		while (consumer.getState() != Thread.State.WAITING)
+		{
+			Thread.sleep(1);
+		}
+		parked.close();
+		consumer.join();
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRingSize()
+	{
+		new SpscRing<int[]>(new int[3][1]);
+	}
+
+	@Test
+	public void testRingAcrossThreads() throws Exception
+	{
+		final SpscRing<long[]> ring = new SpscRing<long[]>(new long[8][1]);
+		final int count = 100000;
+		final long[] sum = new long[1];
+		Thread consumer = new Thread(new Runnable() {
+			public void run()
+			{
+				int received = 0;
+				while (received < count)
+				{
+					int available = ring.available();
+					if (available == 0)
+					{
+						ring.await();
+						continue;
+					}
+					for (int i = 0; i < available; i++)
+					{
+						sum[0] += ring.get(i)[0];
+					}
+					ring.release(available);
+					received += available;
+				}
+			}
+		});
+		consumer.start();
+		for (int i = 1; i <= count; i++)
+		{
+			long[] slot;
+			while ((slot = ring.claim()) == null)
+			{
+				Thread.yield();
+			}
+			slot[0] = i;
+			ring.publish();
+		}
+		consumer.join(10000);
+		assertFalse(consumer.isAlive());
+		assertEquals((long)count * (count + 1) / 2, sum[0]);
+	}
+
+	@Test
+	public void testAnsweredBySenders() throws Exception
+	{
+		UdpTimeServer server = new UdpTimeServer.Builder()
+				.setPipeline(2, 64)
+				.setListenAddress("127.0.0.1")
+				.setPort(0)
+				.setRequestLogInterval(0)
+				.build();
+		try
+		{
+			InetSocketAddress address = server.start().get(5, TimeUnit.SECONDS);
+			assertEquals(64, server.getRingCapacity());
+			DatagramSocket socket = new DatagramSocket();
+			socket.setSoTimeout(1000);
+			byte[] data = new byte[4];
+			for (int i = 0; i < 50; i++)
+			{
+				socket.send(new DatagramPacket(new byte[0], 0, address));
+				DatagramPacket reply = new DatagramPacket(data, data.length);
+				socket.receive(reply);
+				assertEquals(4, reply.getLength());
+				long value = TimeServer.timeServerValueFromBytes(data);
+				assertTrue(Math.abs(value - TimeServer.timeServerValueFromMillis(System.currentTimeMillis())) <= 1);
+			}
+			socket.close();
+			assertEquals(0, server.getRingOverflows());
+		}
+		finally
+		{
+			server.stopServer();
+		}
+	}
+
+	@Test
+	public void testReplyTimeIncludesRing() throws Exception
+	{
+		CountDownLatch release = new CountDownLatch(1);
+		UdpTimeServer server = new UdpTimeServer.Builder()
+				.setPipeline(1, 4)
+				.setHandler(new _SlowHandler(release))
+				.setListenAddress("127.0.0.1")
+				.setPort(0)
+				.setRequestLogInterval(0)
+				.build();
+		DatagramSocket socket = new DatagramSocket();
+		try
+		{
+			InetSocketAddress address = server.start().get(5, TimeUnit.SECONDS);
+			socket.setSoTimeout(5000);
+			socket.send(new DatagramPacket(new byte[0], 0, address));
+			socket.send(new DatagramPacket(new byte[0], 0, address));
+			long deadline = System.currentTimeMillis() + 5000;
+			while (server.getRingOccupancy() < 2 && System.currentTimeMillis() < deadline)
+			{
+				Thread.sleep(10);
+			}
+			assertEquals(2, server.getRingOccupancy());
+
+			// the second request waits in the ring behind the first, which waits for the release
+			Thread.sleep(200);
+			release.countDown();
+			byte[] data = new byte[4];
+			socket.receive(new DatagramPacket(data, data.length));
+			socket.receive(new DatagramPacket(data, data.length));
+			deadline = System.currentTimeMillis() + 5000;
+			while (server.getReplyTime().getCount() < 2 && System.currentTimeMillis() < deadline)
+			{
+				Thread.sleep(10);
+			}
+			assertEquals(2, server.getReplyTime().getCount());
+			assertTrue(server.getReplyTime().getPercentile(0) >= TimeUnit.MILLISECONDS.toNanos(200));
+		}
+		finally
+		{
+			release.countDown();
+			socket.close();
+			server.stopServer();
+		}
+	}
+
+	@Test
+	public void testRingOverflow() throws Exception
+	{
+		CountDownLatch release = new CountDownLatch(1);
+		UdpTimeServer server = new UdpTimeServer.Builder()
+				.setPipeline(1, 1)
+				.setHandler(new _SlowHandler(release))
+				.setListenAddress("127.0.0.1")
+				.setPort(0)
+				.setRequestLogInterval(0)
+				.build();
+		try
+		{
+			InetSocketAddress address = server.start().get(5, TimeUnit.SECONDS);
+			DatagramSocket socket = new DatagramSocket();
+			socket.setSoTimeout(1000);
+			for (int i = 0; i < 5; i++)
+			{
+				socket.send(new DatagramPacket(new byte[0], 0, address));
+			}
+
+			// the sender holds the only slot until it has answered, the rest overflow
+			long deadline = System.currentTimeMillis() + 5000;
+			while (server.getRingOverflows() < 4 && System.currentTimeMillis() < deadline)
+			{
+				Thread.sleep(10);
+			}
+			assertEquals(4, server.getRingOverflows());
+			assertEquals(1, server.getRingOccupancy());
+			release.countDown();
+
+			byte[] data = new byte[4];
+			int replies = 0;
+			try
+			{
+				while (true)
+				{
+					socket.receive(new DatagramPacket(data, data.length));
+					replies++;
+				}
+			}
+			catch (SocketTimeoutException e)
+			{
+				// no more replies
+			}
+			socket.close();
+			assertEquals(1, replies);
+			assertEquals(0, server.getRingOccupancy());
+		}
+		finally
+		{
+			release.countDown();
+			server.stopServer();
+		}
+	}
+}
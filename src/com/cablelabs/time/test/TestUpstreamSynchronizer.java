@@ -0,0 +1,210 @@
+/*
+ * Copyright 2017 Cable Television Laboratories, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cablelabs.time.test;
+
+import static org.junit.Assert.*;
+
+import java.net.DatagramSocket;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.cablelabs.time.server.ServedClock;
+import com.cablelabs.time.server.TimeServer;
+import com.cablelabs.time.server.UdpTimeServer;
+import com.cablelabs.time.server.UpstreamSynchronizer;
+
+/**
+ * This class tests the UpstreamSynchronizer against loopback upstream servers
+ */
+public class TestUpstreamSynchronizer
+{
+	private List<TimeServer> m_upstreams = new ArrayList<TimeServer>();
+
+	@After
+	public void tearDown() throws Exception
+	{
+		for (TimeServer server : m_upstreams)
+		{
+			server.stopServer();
+		}
+	}
+
+	/**
+	 * Start a loopback UDP upstream serving the host clock plus an offset
+	 * @param offsetMs Offset of the upstream clock
+	 * @return Upstream specification
+	 */
+	private UpstreamSynchronizer.Upstream startUpstream(long offsetMs) throws Exception
+	{
+		DatagramSocket probe = new DatagramSocket(0);
+		int port = probe.getLocalPort();
+		probe.close();
+
+		UdpTimeServer server = new UdpTimeServer();
+		server.setPort(port);
+		server.setListenAddress("127.0.0.1");
+		server.getClock().setOffsetMillis(offsetMs);
+		server.startServer();
+		m_upstreams.add(server);
+		return new UpstreamSynchronizer.Upstream("127.0.0.1", port, false);
+	}
+
+	/**
+	 * Get an upstream on a loopback port nothing listens on
+	 * @return Upstream specification
+	 */
+	private static UpstreamSynchronizer.Upstream unreachableUpstream() throws Exception
+	{
+		DatagramSocket probe = new DatagramSocket(0);
+		int port = probe.getLocalPort();
+		probe.close();
+		return new UpstreamSynchronizer.Upstream("127.0.0.1", port, false);
+	}
+
+	/**
+	 * Poll until the synchronizer succeeds (the upstream listeners bind asynchronously)
+	 */
+	private static boolean pollUntilSynchronized(UpstreamSynchronizer sync)
+	{
+		for (int i = 0; i < 10; i++)
+		{
+			if (sync.poll() && sync.getTruechimerCount() == 2)
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Test
+	public void testFalsetickerRejected() throws Exception
+	{
+		List<UpstreamSynchronizer.Upstream> upstreams = new ArrayList<UpstreamSynchronizer.Upstream>();
+		upstreams.add(startUpstream(0));
+		upstreams.add(startUpstream(0));
+		upstreams.add(startUpstream(3600000));
+
+		ServedClock clock = new ServedClock();
+		clock.setSynchronized(false);
+		UpstreamSynchronizer sync = new UpstreamSynchronizer(clock, upstreams, 1000, 2);
+		sync.setTimeoutMillis(200);
+
+		assertTrue(pollUntilSynchronized(sync));
+		assertTrue(clock.isSynchronized());
+		// the upstreams only have whole-second resolution
+		assertTrue(Math.abs(clock.getOffsetMillis()) <= 1000);
+		assertTrue(sync.getUncertaintyMillis() <= 1000);
+		assertTrue(sync.getStatus().contains("rejected"));
+	}
+
+	@Test
+	public void testOffsetKeptWithinInterval() throws Exception
+	{
+		List<UpstreamSynchronizer.Upstream> upstreams = new ArrayList<UpstreamSynchronizer.Upstream>();
+		upstreams.add(startUpstream(0));
+
+		ServedClock clock = new ServedClock();
+		clock.setSynchronized(false);
+		UpstreamSynchronizer sync = new UpstreamSynchronizer(clock, upstreams, 1000, 2);
+		sync.setTimeoutMillis(200);
+
+		// the host clock is always inside the interval of a same-host upstream, so it is never stepped
+		boolean synced = false;
+		for (int i = 0; i < 10 && !synced; i++)
+		{
+			synced = sync.poll();
+		}
+		assertTrue(synced);
+		assertEquals(0, clock.getOffsetMillis());
+		assertTrue(sync.poll());
+		assertEquals(0, clock.getOffsetMillis());
+	}
+
+	@Test
+	public void testInvalidUpstream() throws Exception
+	{
+		try
+		{
+			UpstreamSynchronizer.Upstream.parse("127.0.0.1:70000", TimeServer.TIME_SERVER_PORT);
+			fail("Invalid port accepted");
+		}
+		catch (IllegalArgumentException e)
+		{
+			// expected
+		}
+
+		// an upstream that cannot even be addressed is a failed sample, not a failed poll
+		List<UpstreamSynchronizer.Upstream> upstreams = new ArrayList<UpstreamSynchronizer.Upstream>();
+		upstreams.add(startUpstream(0));
+		upstreams.add(startUpstream(0));
+		upstreams.add(new UpstreamSynchronizer.Upstream("127.0.0.1", 70000, false));
+		ServedClock clock = new ServedClock();
+		clock.setSynchronized(false);
+		UpstreamSynchronizer sync = new UpstreamSynchronizer(clock, upstreams, 1000, 2);
+		sync.setTimeoutMillis(200);
+		assertTrue(pollUntilSynchronized(sync));
+		assertTrue(sync.getStatus().contains("IllegalArgumentException"));
+	}
+
+	@Test
+	public void testSyncLoss() throws Exception
+	{
+		List<UpstreamSynchronizer.Upstream> upstreams = new ArrayList<UpstreamSynchronizer.Upstream>();
+		upstreams.add(startUpstream(0));
+		upstreams.add(startUpstream(0));
+
+		ServedClock clock = new ServedClock();
+		clock.setSynchronized(false);
+		UpstreamSynchronizer sync = new UpstreamSynchronizer(clock, upstreams, 1000, 2);
+		sync.setTimeoutMillis(200);
+		assertTrue(pollUntilSynchronized(sync));
+
+		// one upstream of two answering is no majority
+		m_upstreams.get(0).stopServer();
+
+		// one missed poll is tolerated, the second marks the clock unsynchronized
+		assertFalse(sync.poll());
+		assertTrue(clock.isSynchronized());
+		assertFalse(sync.poll());
+		assertFalse(clock.isSynchronized());
+	}
+
+	@Test
+	public void testLoneFalsetickerRejected() throws Exception
+	{
+		// the only upstream that answers is an hour off; the two others cannot be reached
+		List<UpstreamSynchronizer.Upstream> upstreams = new ArrayList<UpstreamSynchronizer.Upstream>();
+		upstreams.add(unreachableUpstream());
+		upstreams.add(unreachableUpstream());
+		upstreams.add(startUpstream(3600000));
+
+		ServedClock clock = new ServedClock();
+		clock.setSynchronized(false);
+		UpstreamSynchronizer sync = new UpstreamSynchronizer(clock, upstreams, 1000, 2);
+		sync.setTimeoutMillis(200);
+		for (int i = 0; i < 3; i++)
+		{
+			assertFalse(sync.poll());
+		}
+		assertFalse(clock.isSynchronized());
+		assertEquals(0, clock.getOffsetMillis());
+		assertEquals(0, sync.getTruechimerCount());
+	}
+}
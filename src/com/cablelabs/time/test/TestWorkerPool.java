@@ -0,0 +1,312 @@
+/*
+ * Copyright 2017 Cable Television Laboratories, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cablelabs.time.test;
+
+import static org.junit.Assert.*;
+
+import java.io.DataInputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.cablelabs.time.server.ProtocolHandler;
+import com.cablelabs.time.server.RequestContext;
+import com.cablelabs.time.server.TcpTimeServer;
+import com.cablelabs.time.server.TimeServer;
+import com.cablelabs.time.server.UdpTimeServer;
+import com.cablelabs.time.server.WorkerPool;
+
+/**
+ * This class tests answering requests on a bounded worker pool
+ */
+public class TestWorkerPool
+{
+	/**
+	 * This class is a task that waits for a latch
+	 */
+	private static class _BlockedTask extends WorkerPool.Task
+	{
+		private final CountDownLatch m_release;
+		private volatile Thread m_thread = null;
+
+		public _BlockedTask(CountDownLatch release)
+		{
+			m_release = release;
+		}
+
+		@Override
+		protected void work()
+		{
+			m_thread = Thread.currentThread();
+			try
+			{
+				m_release.await(5, TimeUnit.SECONDS);
+			}
+			catch (InterruptedException e)
+			{
+				// done
+			}
+		}
+	}
+
+	/**
+	 * This class answers RFC868 over UDP once a latch is released
+	 */
+	private static class _SlowHandler implements ProtocolHandler
+	{
+		private final CountDownLatch m_release;
+
+		public _SlowHandler(CountDownLatch release)
+		{
+			m_release = release;
+		}
+
+		public String getName()
+		{
+			return "slow";
+		}
+
+		public int getDefaultPort()
+		{
+			return 0;
+		}
+
+		public boolean supportsTransport(int transport)
+		{
+			return (transport == TRANSPORT_UDP);
+		}
+
+		public byte getProtocol(int transport)
+		{
+			return TimeServer.PROTOCOL_UDP;
+		}
+
+		public int getMaxResponseSize()
+		{
+			return 4;
+		}
+
+		public boolean handle(ByteBuffer request, RequestContext context, ByteBuffer response)
+		{
+			try
+			{
+				m_release.await(5, TimeUnit.SECONDS);
+			}
+			catch (InterruptedException e)
+			{
+				return false;
+			}
+			response.putInt((int)context.getTimeValue());
+			return true;
+		}
+	}
+
+	/**
+	 * Wait for a condition to become true
+	 * @param pool Pool whose rejection count is awaited
+	 * @param rejected Expected rejection count
+	 */
+	private static void awaitRejected(WorkerPool pool, long rejected) throws InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + 5000;
+		while (pool.getRejected() < rejected && System.currentTimeMillis() < deadline)
+		{
+			Thread.sleep(10);
+		}
+	}
+
+	@Test
+	public void testDropWhenFull() throws Exception
+	{
+		WorkerPool pool = new WorkerPool(WorkerPool.Type.THREAD_POOL, 1, 1, WorkerPool.RejectionPolicy.DROP);
+		CountDownLatch release = new CountDownLatch(1);
+		try
+		{
+			assertEquals(2, pool.getCapacity());
+			assertTrue(pool.execute(new _BlockedTask(release)));
+			assertTrue(pool.execute(new _BlockedTask(release)));
+			_BlockedTask third = new _BlockedTask(release);
+			assertFalse(pool.execute(third));
+			assertNull(third.m_thread);
+			assertEquals(1, pool.getRejected());
+			assertEquals(2, pool.getOutstanding());
+
+			release.countDown();
+			long deadline = System.currentTimeMillis() + 5000;
+			while (pool.getCompleted() < 2 && System.currentTimeMillis() < deadline)
+			{
+				Thread.sleep(10);
+			}
+			assertEquals(2, pool.getCompleted());
+			assertEquals(0, pool.getOutstanding());
+			assertEquals(2, pool.getQueueTime().getCount());
+		}
+		finally
+		{
+			release.countDown();
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void testCallerRunsWhenFull() throws Exception
+	{
+		WorkerPool pool = new WorkerPool(WorkerPool.Type.FORK_JOIN, 1, 0, WorkerPool.RejectionPolicy.CALLER_RUNS);
+		CountDownLatch blocked = new CountDownLatch(1);
+		try
+		{
+			assertTrue(pool.execute(new _BlockedTask(blocked)));
+			_BlockedTask second = new _BlockedTask(new CountDownLatch(0));
+			assertTrue(pool.execute(second));
+			assertSame(Thread.currentThread(), second.m_thread);
+			assertEquals(1, pool.getRejected());
+		}
+		finally
+		{
+			blocked.countDown();
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void testUdpAnsweredByWorkers() throws Exception
+	{
+		WorkerPool pool = new WorkerPool(WorkerPool.Type.THREAD_POOL, 4, 16, WorkerPool.RejectionPolicy.DROP);
+		UdpTimeServer server = new UdpTimeServer.Builder()
+				.setWorkers(pool)
+				.setListenAddress("127.0.0.1")
+				.setPort(0)
+				.setRequestLogInterval(0)
+				.build();
+		try
+		{
+			InetSocketAddress address = server.start().get(5, TimeUnit.SECONDS);
+			DatagramSocket socket = new DatagramSocket();
+			socket.setSoTimeout(1000);
+			byte[] data = new byte[4];
+			for (int i = 0; i < 50; i++)
+			{
+				socket.send(new DatagramPacket(new byte[0], 0, address));
+				DatagramPacket reply = new DatagramPacket(data, data.length);
+				socket.receive(reply);
+				assertEquals(4, reply.getLength());
+				long value = TimeServer.timeServerValueFromBytes(data);
+				assertTrue(Math.abs(value - TimeServer.timeServerValueFromMillis(System.currentTimeMillis())) <= 1);
+			}
+			socket.close();
+			assertEquals(0, pool.getRejected());
+			assertEquals(50, pool.getQueueTime().getCount());
+		}
+		finally
+		{
+			server.stopServer();
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void testTcpAnsweredByWorkers() throws Exception
+	{
+		WorkerPool pool = new WorkerPool(WorkerPool.Type.FORK_JOIN, 2, 16, WorkerPool.RejectionPolicy.DROP);
+		TcpTimeServer server = new TcpTimeServer.Builder()
+				.setWorkers(pool)
+				.setListenAddress("127.0.0.1")
+				.setPort(0)
+				.setRequestLogInterval(0)
+				.build();
+		try
+		{
+			InetSocketAddress address = server.start().get(5, TimeUnit.SECONDS);
+			for (int i = 0; i < 20; i++)
+			{
+				Socket socket = new Socket();
+				socket.connect(address, 1000);
+				socket.setSoTimeout(1000);
+				DataInputStream in = new DataInputStream(socket.getInputStream());
+				long value = in.readInt() & 0xFFFFFFFFL;
+				assertEquals(-1, in.read());
+				socket.close();
+				assertTrue(Math.abs(value - TimeServer.timeServerValueFromMillis(System.currentTimeMillis())) <= 1);
+			}
+			assertEquals(20, pool.getQueueTime().getCount());
+		}
+		finally
+		{
+			server.stopServer();
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void testUdpOverload() throws Exception
+	{
+		WorkerPool pool = new WorkerPool(WorkerPool.Type.THREAD_POOL, 1, 1, WorkerPool.RejectionPolicy.DROP);
+		CountDownLatch release = new CountDownLatch(1);
+		UdpTimeServer server = new UdpTimeServer.Builder()
+				.setHandler(new _SlowHandler(release))
+				.setWorkers(pool)
+				.setListenAddress("127.0.0.1")
+				.setPort(0)
+				.setRequestLogInterval(0)
+				.build();
+		try
+		{
+			InetSocketAddress address = server.start().get(5, TimeUnit.SECONDS);
+			DatagramSocket socket = new DatagramSocket();
+			socket.setSoTimeout(1000);
+			for (int i = 0; i < 5; i++)
+			{
+				socket.send(new DatagramPacket(new byte[0], 0, address));
+			}
+
+			// one request with the worker, one in the queue, the rest dropped
+			awaitRejected(pool, 3);
+			assertEquals(3, pool.getRejected());
+			release.countDown();
+
+			byte[] data = new byte[4];
+			int replies = 0;
+			try
+			{
+				while (true)
+				{
+					socket.receive(new DatagramPacket(data, data.length));
+					replies++;
+				}
+			}
+			catch (SocketTimeoutException e)
+			{
+				// no more replies
+			}
+			socket.close();
+			assertEquals(2, replies);
+		}
+		finally
+		{
+			release.countDown();
+			server.stopServer();
+			pool.shutdown();
+		}
+	}
+}
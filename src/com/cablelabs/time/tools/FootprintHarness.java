@@ -0,0 +1,446 @@
+/*
+ * Copyright 2017 Cable Television Laboratories, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cablelabs.time.tools;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import com.cablelabs.time.server.CableLabsTimeServer;
+import com.cablelabs.time.server.CompactTimeServer;
+
+/**
+ * This class measures the memory footprint of a server profile.
+ *
+ * The server runs in a child JVM started with the given JVM options (a heap limit, say), on
+ * loopback ports.  The harness sends it UDP and TCP requests, then has the child collect garbage
+ * and report its heap, non-heap and thread counts, and reads the child's resident set size
+ * (current and peak) from /proc on Linux.  The child ({@link Child}) only loads the profile under
+ * test, not this harness or its command-line parser.
+ */
+public class FootprintHarness
+{
+	public static final String PROFILE_COMPACT = "compact";
+	public static final String PROFILE_FULL = "full";
+
+	private static final int TIMEOUT_MS = 1000;
+
+	private String m_profile = PROFILE_COMPACT;
+	private List<String> m_jvmOptions = new ArrayList<String>();
+	private int m_udpRequests = 10000;
+	private int m_tcpRequests = 1000;
+
+	/**
+	 * Create an instance of a FootprintHarness
+	 */
+	public FootprintHarness()
+	{
+	}
+
+	/**
+	 * Set the server profile measured
+	 * @param profile {@link #PROFILE_COMPACT} or {@link #PROFILE_FULL}
+	 */
+	public void setProfile(String profile)
+	{
+		if (!profile.equals(PROFILE_COMPACT) && !profile.equals(PROFILE_FULL))
+		{
+			throw new IllegalArgumentException("Unknown profile: " + profile);
+		}
+		m_profile = profile;
+	}
+
+	/**
+	 * Set the options of the child JVM
+	 * @param options JVM options, such as -Xmx4m
+	 */
+	public void setJvmOptions(List<String> options)
+	{
+		m_jvmOptions = options;
+	}
+
+	/**
+	 * Set the number of requests sent before measuring
+	 * @param udpRequests UDP requests
+	 * @param tcpRequests TCP connections
+	 */
+	public void setRequests(int udpRequests, int tcpRequests)
+	{
+		m_udpRequests = udpRequests;
+		m_tcpRequests = tcpRequests;
+	}
+
+	/**
+	 * Run the child, load it and measure it
+	 * @param out Report destination
+	 * @throws IOException if the child cannot be started or does not answer
+	 */
+	public void run(PrintStream out) throws IOException
+	{
+		List<String> command = new ArrayList<String>();
+		command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+		command.addAll(m_jvmOptions);
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(Child.class.getName());
+		command.add(m_profile);
+
+		Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+		try
+		{
+			BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.US_ASCII));
+			PrintStream control = new PrintStream(process.getOutputStream(), true, "US-ASCII");
+
+			String[] ready = readReply(in, "READY");
+			InetSocketAddress tcp = new InetSocketAddress("127.0.0.1", Integer.parseInt(ready[1]));
+			InetSocketAddress udp = new InetSocketAddress("127.0.0.1", Integer.parseInt(ready[2]));
+
+			long start = System.nanoTime();
+			int failures = load(tcp, udp);
+			long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+			control.println("STATS");
+			String[] stats = readReply(in, "STATS");
+			long[] rss = readResidentSet(process.pid());
+			control.println("EXIT");
+
+			out.println("Profile " + m_profile + ", JVM options " + (m_jvmOptions.isEmpty() ? "(none)" : String.join(" ", m_jvmOptions)));
+			out.println("Requests: " + m_udpRequests + " UDP, " + m_tcpRequests + " TCP in " + elapsedMs + " ms, " +
+					failures + " unanswered");
+			out.println("Heap used after GC: " + megabytes(Long.parseLong(stats[1])) + " of " +
+					megabytes(Long.parseLong(stats[2])) + " committed (max " + megabytes(Long.parseLong(stats[3])) + ")");
+			out.println("Non-heap used: " + megabytes(Long.parseLong(stats[4])) + ", threads: " + stats[5]);
+			out.println("Resident set: " + (rss != null ? megabytes(rss[0]) + " (peak " + megabytes(rss[1]) + ")" :
+					"not available on this platform"));
+			process.waitFor(5, TimeUnit.SECONDS);
+		}
+		catch (InterruptedException e)
+		{
+			throw new IOException("Interrupted", e);
+		}
+		finally
+		{
+			process.destroy();
+		}
+	}
+
+	/**
+	 * Send the requests
+	 * @param tcp TCP address of the child
+	 * @param udp UDP address of the child
+	 * @return Number of requests not answered
+	 */
+	private int load(InetSocketAddress tcp, InetSocketAddress udp) throws IOException
+	{
+		int failures = 0;
+		DatagramSocket datagram = new DatagramSocket();
+		try
+		{
+			datagram.setSoTimeout(TIMEOUT_MS);
+			DatagramPacket request = new DatagramPacket(new byte[0], 0, udp);
+			DatagramPacket response = new DatagramPacket(new byte[4], 4);
+			for (int i = 0; i < m_udpRequests; i++)
+			{
+				try
+				{
+					datagram.send(request);
+					datagram.receive(response);
+				}
+				catch (IOException e)
+				{
+					failures++;
+				}
+			}
+		}
+		finally
+		{
+			datagram.close();
+		}
+
+		byte[] data = new byte[4];
+		for (int i = 0; i < m_tcpRequests; i++)
+		{
+			Socket socket = new Socket();
+			try
+			{
+				socket.connect(tcp, TIMEOUT_MS);
+				socket.setSoTimeout(TIMEOUT_MS);
+				InputStream in = socket.getInputStream();
+				int read = 0;
+				int n;
+				while ((n = in.read(data)) >= 0)
+				{
+					read += n;
+				}
+				if (read != 4)
+				{
+					failures++;
+				}
+			}
+			catch (IOException e)
+			{
+				failures++;
+			}
+			finally
+			{
+				socket.close();
+			}
+		}
+		return failures;
+	}
+
+	/**
+	 * Read a reply line of the child
+	 * @param in Child output
+	 * @param tag Expected first word
+	 * @return Words of the reply
+	 * @throws IOException if the child exits first
+	 */
+	private static String[] readReply(BufferedReader in, String tag) throws IOException
+	{
+		String line;
+		while ((line = in.readLine()) != null)
+		{
+			// the server's own output is skipped
+			if (line.startsWith(tag + " "))
+			{
+				return line.split(" ");
+			}
+		}
+		throw new IOException("The server exited before reporting " + tag);
+	}
+
+	/**
+	 * Read the resident set size of a process
+	 * @param pid Process id
+	 * @return Current and peak resident set in bytes, or null if /proc is not available
+	 */
+	private static long[] readResidentSet(long pid)
+	{
+		File status = new File("/proc/" + pid + "/status");
+		if (!status.canRead())
+		{
+			return null;
+		}
+		long[] rss = new long[2];
+		try
+		{
+			for (String line : Files.readAllLines(status.toPath(), StandardCharsets.US_ASCII))
+			{
+				if (line.startsWith("VmRSS:"))
+				{
+					rss[0] = parseKilobytes(line);
+				}
+				else if (line.startsWith("VmHWM:"))
+				{
+					rss[1] = parseKilobytes(line);
+				}
+			}
+		}
+		catch (IOException e)
+		{
+			return null;
+		}
+		return rss;
+	}
+
+	/**
+	 * Parse a /proc/[pid]/status size line, such as "VmRSS:     1234 kB"
+	 * @param line Line
+	 * @return Bytes
+	 */
+	private static long parseKilobytes(String line)
+	{
+		String[] words = line.trim().split("\\s+");
+		return Long.parseLong(words[1]) * 1024;
+	}
+
+	/**
+	 * Format a size
+	 * @param bytes Bytes
+	 * @return Size in MB, to one decimal
+	 */
+	private static String megabytes(long bytes)
+	{
+		return String.format("%.1f MB", bytes / (1024.0 * 1024.0));
+	}
+
+	private static Options s_cmdline_options = null;
+
+	/**
+	 * Print the command usage
+	 */
+	public static void printUsage()
+	{
+		String usage = FootprintHarness.class.getSimpleName() + " Usage: [options] [-- jvm options]" + System.lineSeparator();
+
+		if (s_cmdline_options != null)
+		{
+			Iterator<Option> iter = s_cmdline_options.getOptions().iterator();
+			while (iter.hasNext())
+			{
+				Option opt = iter.next();
+				usage += System.lineSeparator() + "-" + opt.getOpt() + (opt.hasLongOpt() ? " (--" + opt.getLongOpt() + ")" : "") +
+						(opt.hasArg() ? " <" + (opt.hasArgName() ? opt.getArgName() : "value") + ">" : "") +
+						" : " + opt.getDescription();
+			}
+		}
+
+		System.out.println(usage + System.lineSeparator());
+	}
+
+	/**
+	 * Entry point of the harness
+	 * @param args Command line parameters; the JVM options of the child follow "--"
+	 */
+	public static void main(String[] args)
+	{
+		s_cmdline_options = new Options();
+		s_cmdline_options.addOption("h", "help", false, "Print the command usage");
+		Option profileOpt = new Option("P", "profile", true, "Server profile to measure (default compact)");
+		profileOpt.setArgName("compact|full");
+		s_cmdline_options.addOption(profileOpt);
+		Option udpOpt = new Option("u", "udp", true, "Number of UDP requests sent before measuring (default 10000)");
+		udpOpt.setArgName("count");
+		s_cmdline_options.addOption(udpOpt);
+		Option tcpOpt = new Option("t", "tcp", true, "Number of TCP requests sent before measuring (default 1000)");
+		tcpOpt.setArgName("count");
+		s_cmdline_options.addOption(tcpOpt);
+
+		int split = Arrays.asList(args).indexOf("--");
+		String[] options = (split < 0 ? args : Arrays.copyOfRange(args, 0, split));
+		List<String> jvmOptions = (split < 0 ? new ArrayList<String>() :
+				new ArrayList<String>(Arrays.asList(args).subList(split + 1, args.length)));
+
+		CommandLineParser parser = new DefaultParser();
+		try
+		{
+			CommandLine cmd = parser.parse(s_cmdline_options, options);
+			if (cmd.hasOption("h"))
+			{
+				printUsage();
+				System.exit(0);
+			}
+
+			FootprintHarness harness = new FootprintHarness();
+			harness.setProfile(cmd.getOptionValue("P", PROFILE_COMPACT));
+			harness.setRequests(Integer.parseInt(cmd.getOptionValue("u", "10000")),
+					Integer.parseInt(cmd.getOptionValue("t", "1000")));
+			harness.setJvmOptions(jvmOptions);
+			harness.run(System.out);
+		}
+		catch (ParseException | IllegalArgumentException e)
+		{
+			System.err.println("Error parsing command line arguments:" +
+					System.lineSeparator() + e.getLocalizedMessage());
+			printUsage();
+			System.exit(1);
+		}
+		catch (IOException e)
+		{
+			System.err.println("Error - " + e.getLocalizedMessage());
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * This class is the measured child: it starts a profile on loopback and answers "STATS" and
+	 * "EXIT" on its standard input
+	 */
+	public static class Child
+	{
+		/**
+		 * Entry point of the child
+		 * @param args Profile
+		 */
+		public static void main(String[] args) throws Exception
+		{
+			int tcpPort;
+			int udpPort;
+			CompactTimeServer compact = null;
+			CableLabsTimeServer full = null;
+			if (args[0].equals(PROFILE_FULL))
+			{
+				full = new CableLabsTimeServer.Builder()
+						.setListenAddress("127.0.0.1")
+						.setPort(0)
+						.setRequestLogInterval(0)
+						.build();
+				List<InetSocketAddress> bound = full.start().get();
+				tcpPort = bound.get(0).getPort();
+				udpPort = bound.get(1).getPort();
+			}
+			else
+			{
+				compact = new CompactTimeServer.Builder()
+						.setListenAddress("127.0.0.1")
+						.setPort(0)
+						.build();
+				compact.startServer();
+				tcpPort = compact.getTcpAddress().getPort();
+				udpPort = compact.getUdpAddress().getPort();
+			}
+			System.out.println("READY " + tcpPort + " " + udpPort);
+
+			BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.US_ASCII));
+			String line;
+			while ((line = in.readLine()) != null && !line.equals("EXIT"))
+			{
+				if (line.equals("STATS"))
+				{
+					MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+					System.gc();
+					System.out.println("STATS " + memory.getHeapMemoryUsage().getUsed() + " " +
+							memory.getHeapMemoryUsage().getCommitted() + " " + Runtime.getRuntime().maxMemory() + " " +
+							memory.getNonHeapMemoryUsage().getUsed() + " " + Thread.activeCount());
+				}
+			}
+
+			if (compact != null)
+			{
+				compact.stopServer();
+			}
+			if (full != null)
+			{
+				full.stopServer();
+			}
+		}
+	}
+}
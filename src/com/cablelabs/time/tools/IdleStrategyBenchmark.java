@@ -0,0 +1,331 @@
+/*
+ * Copyright 2017 Cable Television Laboratories, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cablelabs.time.tools;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import com.cablelabs.time.server.IdleStrategy;
+import com.cablelabs.time.server.LatencyHistogram;
+import com.cablelabs.time.server.TimeServer;
+import com.cablelabs.time.server.UdpTimeServer;
+
+/**
+ * This class compares the latency and CPU use of the listener idle strategies.
+ *
+ * For each strategy, a UDP Time Server is started on loopback and sent requests one at a time,
+ * with a pause between them so the listener goes idle before each request, as it does under a
+ * light load.  The round-trip times are reported as percentiles, with the CPU time used by the
+ * listener thread while answering and while idle, as a fraction of one core.
+ */
+public class IdleStrategyBenchmark
+{
+	private static final int TIMEOUT_MS = 1000;
+
+	// listener threads are named after their server class
+	private static final String LISTENER_THREAD = UdpTimeServer.class.getSimpleName();
+
+	private List<IdleStrategy.Type> m_strategies = new ArrayList<IdleStrategy.Type>();
+	private int m_requests = 20000;
+	private long m_gapMicros = 100;
+	private long m_idleMs = 2000;
+
+	/**
+	 * Create an instance of an IdleStrategyBenchmark, comparing every strategy
+	 */
+	public IdleStrategyBenchmark()
+	{
+		for (IdleStrategy.Type type : IdleStrategy.Type.values())
+		{
+			m_strategies.add(type);
+		}
+	}
+
+	/**
+	 * Set the strategies compared
+	 * @param strategies Strategies, in the order they are run
+	 */
+	public void setStrategies(List<IdleStrategy.Type> strategies)
+	{
+		m_strategies = strategies;
+	}
+
+	/**
+	 * Set the load
+	 * @param requests Number of requests timed per strategy (as many are sent beforehand, untimed)
+	 * @param gapMicros Pause between a response and the next request
+	 */
+	public void setLoad(int requests, long gapMicros)
+	{
+		if (requests < 1 || gapMicros < 0)
+		{
+			throw new IllegalArgumentException("Invalid load: " + requests + " requests, " + gapMicros + " us apart");
+		}
+		m_requests = requests;
+		m_gapMicros = gapMicros;
+	}
+
+	/**
+	 * Set how long the CPU use of an idle listener is measured
+	 * @param idleMs Milliseconds without requests
+	 */
+	public void setIdleTime(long idleMs)
+	{
+		m_idleMs = idleMs;
+	}
+
+	/**
+	 * Run every strategy and report it
+	 * @param out Report destination
+	 * @throws IOException if a server cannot be started
+	 */
+	public void run(PrintStream out) throws IOException
+	{
+		out.println(m_requests + " UDP requests per strategy, " + m_gapMicros + " us apart; CPU as a fraction of one core");
+		out.println(String.format("%-10s %10s %10s %10s %10s %10s %10s %8s",
+				"strategy", "p50 us", "p99 us", "p99.9 us", "max us", "cpu busy", "cpu idle", "lost"));
+		for (IdleStrategy.Type type : m_strategies)
+		{
+			run(type, out);
+		}
+	}
+
+	/**
+	 * Run one strategy and report it
+	 * @param type Idle strategy of the listener
+	 * @param out Report destination
+	 * @throws IOException if the server cannot be started
+	 */
+	private void run(IdleStrategy.Type type, PrintStream out) throws IOException
+	{
+		UdpTimeServer server = new UdpTimeServer.Builder()
+				.setIdleStrategy(type)
+				.setListenAddress("127.0.0.1")
+				.setPort(0)
+				.setRequestLogInterval(0)
+				.setEventSampleInterval(0)
+				.build();
+		DatagramSocket socket = null;
+		try
+		{
+			InetSocketAddress address = server.start().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+			socket = new DatagramSocket();
+			socket.setSoTimeout(TIMEOUT_MS);
+			DatagramPacket request = new DatagramPacket(new byte[0], 0, address);
+			DatagramPacket response = new DatagramPacket(new byte[4], 4);
+
+			// warm up, untimed
+			LatencyHistogram histogram = new LatencyHistogram();
+			load(socket, request, response, histogram);
+			histogram.reset();
+
+			long busyCpu = listenerCpuNanos();
+			long start = System.nanoTime();
+			int lost = load(socket, request, response, histogram);
+			long busyWall = System.nanoTime() - start;
+			busyCpu = listenerCpuNanos() - busyCpu;
+
+			long idleCpu = listenerCpuNanos();
+			start = System.nanoTime();
+			LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(m_idleMs));
+			long idleWall = System.nanoTime() - start;
+			idleCpu = listenerCpuNanos() - idleCpu;
+
+			out.println(String.format("%-10s %10d %10d %10d %10d %10.2f %10.2f %8d", type.getName(),
+					TimeUnit.NANOSECONDS.toMicros(histogram.getPercentile(50)),
+					TimeUnit.NANOSECONDS.toMicros(histogram.getPercentile(99)),
+					TimeUnit.NANOSECONDS.toMicros(histogram.getPercentile(99.9)),
+					TimeUnit.NANOSECONDS.toMicros(histogram.getPercentile(100)),
+					(double)busyCpu / busyWall, (double)idleCpu / idleWall, lost));
+		}
+		catch (InterruptedException | ExecutionException | TimeoutException e)
+		{
+			throw new IOException("Unable to start the " + type.getName() + " server", e);
+		}
+		finally
+		{
+			if (socket != null)
+			{
+				socket.close();
+			}
+			server.stopServer();
+		}
+	}
+
+	/**
+	 * Send the requests one at a time
+	 * @param socket Client socket
+	 * @param request Request
+	 * @param response Response
+	 * @param histogram Round-trip times
+	 * @return Number of requests that were not answered
+	 * @throws IOException
+	 */
+	private int load(DatagramSocket socket, DatagramPacket request, DatagramPacket response, LatencyHistogram histogram) throws IOException
+	{
+		int lost = 0;
+		long gapNanos = TimeUnit.MICROSECONDS.toNanos(m_gapMicros);
+		for (int i = 0; i < m_requests; i++)
+		{
+			long sent = System.nanoTime();
+			socket.send(request);
+			try
+			{
+				socket.receive(response);
+				histogram.record(System.nanoTime() - sent);
+			}
+			catch (SocketTimeoutException e)
+			{
+				lost++;
+			}
+
+			// spin out the gap: parking would add its own wake-up latency to the client side
+			long resume = System.nanoTime() + gapNanos;
+			while (System.nanoTime() < resume)
+			{
+				Thread.onSpinWait();
+			}
+		}
+		return lost;
+	}
+
+	/**
+	 * Get the CPU time used so far by the running listener threads
+	 * @return Nanoseconds, or 0 if the JVM does not measure thread CPU time
+	 */
+	private static long listenerCpuNanos()
+	{
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (!threads.isThreadCpuTimeSupported())
+		{
+			return 0;
+		}
+		long total = 0;
+		for (Thread thread : Thread.getAllStackTraces().keySet())
+		{
+			if (thread.getName().startsWith(LISTENER_THREAD))
+			{
+				total += Math.max(threads.getThreadCpuTime(thread.getId()), 0);
+			}
+		}
+		return total;
+	}
+
+	private static Options s_cmdline_options = null;
+
+	/**
+	 * Print the command usage
+	 */
+	public static void printUsage()
+	{
+		String usage = IdleStrategyBenchmark.class.getSimpleName() + " Usage: [options]" + System.lineSeparator();
+
+		if (s_cmdline_options != null)
+		{
+			Iterator<Option> iter = s_cmdline_options.getOptions().iterator();
+			while (iter.hasNext())
+			{
+				Option opt = iter.next();
+				usage += System.lineSeparator() + "-" + opt.getOpt() + (opt.hasLongOpt() ? " (--" + opt.getLongOpt() + ")" : "") +
+						(opt.hasArg() ? " <" + (opt.hasArgName() ? opt.getArgName() : "value") + ">" : "") +
+						" : " + opt.getDescription();
+			}
+		}
+
+		System.out.println(usage + System.lineSeparator());
+	}
+
+	/**
+	 * Entry point of the benchmark
+	 * @param args Command line parameters
+	 */
+	public static void main(String[] args)
+	{
+		s_cmdline_options = new Options();
+		s_cmdline_options.addOption("h", "help", false, "Print the command usage");
+		Option strategiesOpt = new Option("s", "strategies", true, "Comma-separated strategies to compare: blocking, spin, yield, park (default all)");
+		strategiesOpt.setArgName("list");
+		s_cmdline_options.addOption(strategiesOpt);
+		Option requestsOpt = new Option("n", "requests", true, "Number of requests timed per strategy (default 20000)");
+		requestsOpt.setArgName("count");
+		s_cmdline_options.addOption(requestsOpt);
+		Option gapOpt = new Option("g", "gap", true, "Pause between a response and the next request (default 100)");
+		gapOpt.setArgName("us");
+		s_cmdline_options.addOption(gapOpt);
+		Option idleOpt = new Option("i", "idle", true, "Time the CPU use of an idle listener is measured (default 2000)");
+		idleOpt.setArgName("ms");
+		s_cmdline_options.addOption(idleOpt);
+
+		CommandLineParser parser = new DefaultParser();
+		try
+		{
+			CommandLine cmd = parser.parse(s_cmdline_options, args);
+			if (cmd.hasOption("h"))
+			{
+				printUsage();
+				System.exit(0);
+			}
+
+			IdleStrategyBenchmark benchmark = new IdleStrategyBenchmark();
+			if (cmd.hasOption("s"))
+			{
+				List<IdleStrategy.Type> strategies = new ArrayList<IdleStrategy.Type>();
+				for (String name : cmd.getOptionValue("s").split(","))
+				{
+					strategies.add(IdleStrategy.Type.fromName(name));
+				}
+				benchmark.setStrategies(strategies);
+			}
+			benchmark.setLoad(Integer.parseInt(cmd.getOptionValue("n", "20000")),
+					Long.parseLong(cmd.getOptionValue("g", "100")));
+			benchmark.setIdleTime(Long.parseLong(cmd.getOptionValue("i", "2000")));
+			benchmark.run(System.out);
+		}
+		catch (ParseException | IllegalArgumentException e)
+		{
+			System.err.println("Error parsing command line arguments:" +
+					System.lineSeparator() + e.getLocalizedMessage());
+			printUsage();
+			System.exit(1);
+		}
+		catch (IOException e)
+		{
+			System.err.println("Error - " + e.getLocalizedMessage());
+			System.exit(1);
+		}
+	}
+}
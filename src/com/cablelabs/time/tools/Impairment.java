@@ -0,0 +1,330 @@
+/*
+ * Copyright 2017 Cable Television Laboratories, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cablelabs.time.tools;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class describes the impairments an {@link ImpairmentProxy} applies to each direction of
+ * the traffic it forwards.
+ *
+ * Each packet (or, over TCP, each chunk read) is delayed by the latency plus a jitter drawn from
+ * the jitter distribution, so over UDP packets can be reordered.  UDP packets are lost or
+ * duplicated with the given probabilities.  With a bandwidth limit, packets also wait for the ones
+ * ahead of them to be sent at that rate, and are dropped when the bytes waiting exceed the queue
+ * limit, as a router's buffer does.  Instances are immutable, so a running proxy can be given new
+ * impairments at any time.
+ */
+public class Impairment
+{
+	/**
+	 * Distribution of the jitter added to the latency
+	 */
+	public enum Distribution
+	{
+		/** No jitter */
+		CONSTANT("constant"),
+		/** Uniform between minus and plus the jitter */
+		UNIFORM("uniform"),
+		/** Normal, with the jitter as its standard deviation */
+		NORMAL("normal"),
+		/** Exponential, with the jitter as its mean: only ever adds delay */
+		EXPONENTIAL("exponential"),
+		/** Pareto (shape 1.5), with the jitter as its mean: rare but very long delays */
+		PARETO("pareto");
+
+		private final String m_name;
+
+		private Distribution(String name)
+		{
+			m_name = name;
+		}
+
+		/**
+		 * Get the name of the distribution, as given on the command line
+		 * @return Name
+		 */
+		public String getName()
+		{
+			return m_name;
+		}
+
+		/**
+		 * Get a distribution by name
+		 * @param name Name, as returned by {@link #getName()}
+		 * @return Distribution
+		 */
+		public static Distribution fromName(String name)
+		{
+			for (Distribution distribution : values())
+			{
+				if (distribution.m_name.equals(name))
+				{
+					return distribution;
+				}
+			}
+			throw new IllegalArgumentException("Invalid jitter distribution: " + name);
+		}
+	}
+
+	public static final Impairment NONE = new Builder().build();
+
+	public static final int DEFAULT_QUEUE_BYTES = 64 * 1024;
+
+	private static final double PARETO_SHAPE = 1.5;
+
+	private final long m_latencyNanos;
+	private final long m_jitterNanos;
+	private final Distribution m_distribution;
+	private final double m_loss;
+	private final double m_duplication;
+	private final long m_bandwidthBps;
+	private final int m_queueBytes;
+
+	/**
+	 * Create an instance of an Impairment
+	 * @param builder Builder holding the settings
+	 */
+	private Impairment(Builder builder)
+	{
+		m_latencyNanos = builder.m_latencyNanos;
+		m_jitterNanos = builder.m_jitterNanos;
+		m_distribution = builder.m_distribution;
+		m_loss = builder.m_loss;
+		m_duplication = builder.m_duplication;
+		m_bandwidthBps = builder.m_bandwidthBps;
+		m_queueBytes = builder.m_queueBytes;
+	}
+
+	/**
+	 * Get the one-way latency
+	 * @return Nanoseconds
+	 */
+	public long getLatencyNanos()
+	{
+		return m_latencyNanos;
+	}
+
+	/**
+	 * Get the jitter
+	 * @return Nanoseconds
+	 */
+	public long getJitterNanos()
+	{
+		return m_jitterNanos;
+	}
+
+	/**
+	 * Get the jitter distribution
+	 * @return Distribution
+	 */
+	public Distribution getDistribution()
+	{
+		return m_distribution;
+	}
+
+	/**
+	 * Get the probability that a UDP packet is lost
+	 * @return Probability (0 to 1)
+	 */
+	public double getLoss()
+	{
+		return m_loss;
+	}
+
+	/**
+	 * Get the probability that a UDP packet is sent twice
+	 * @return Probability (0 to 1)
+	 */
+	public double getDuplication()
+	{
+		return m_duplication;
+	}
+
+	/**
+	 * Get the bandwidth limit
+	 * @return Bits per second, or 0 for no limit
+	 */
+	public long getBandwidthBps()
+	{
+		return m_bandwidthBps;
+	}
+
+	/**
+	 * Get the bytes that can wait for the bandwidth before packets are dropped
+	 * @return Bytes
+	 */
+	public int getQueueBytes()
+	{
+		return m_queueBytes;
+	}
+
+	/**
+	 * Draw the delay of a packet
+	 * @param random Random source of the proxy
+	 * @return Latency plus jitter, never negative, in nanoseconds
+	 */
+	public long sampleDelayNanos(Random random)
+	{
+		double jitter;
+		switch (m_distribution)
+		{
+		case UNIFORM:
+			jitter = (random.nextDouble() * 2 - 1) * m_jitterNanos;
+			break;
+		case NORMAL:
+			jitter = random.nextGaussian() * m_jitterNanos;
+			break;
+		case EXPONENTIAL:
+			jitter = -Math.log(1 - random.nextDouble()) * m_jitterNanos;
+			break;
+		case PARETO:
+			// the scale that gives a mean of the jitter once the minimum (the scale itself) is taken off
+			double scale = m_jitterNanos * (PARETO_SHAPE - 1);
+			jitter = scale * Math.pow(1 - random.nextDouble(), -1 / PARETO_SHAPE) - scale;
+			break;
+		default:
+			jitter = 0;
+			break;
+		}
+		return Math.max(0, m_latencyNanos + (long)jitter);
+	}
+
+	/**
+	 * Decide whether a UDP packet is lost
+	 * @param random Random source of the proxy
+	 * @return True if the packet is lost
+	 */
+	public boolean sampleLoss(Random random)
+	{
+		return (m_loss > 0 && random.nextDouble() < m_loss);
+	}
+
+	/**
+	 * Decide whether a UDP packet is sent twice
+	 * @param random Random source of the proxy
+	 * @return True if the packet is duplicated
+	 */
+	public boolean sampleDuplication(Random random)
+	{
+		return (m_duplication > 0 && random.nextDouble() < m_duplication);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString()
+	{
+		return "latency " + TimeUnit.NANOSECONDS.toMicros(m_latencyNanos) / 1000.0 + " ms, jitter " +
+				TimeUnit.NANOSECONDS.toMicros(m_jitterNanos) / 1000.0 + " ms " + m_distribution.getName() +
+				", loss " + m_loss + ", duplication " + m_duplication +
+				(m_bandwidthBps > 0 ? ", bandwidth " + m_bandwidthBps + " bps, queue " + m_queueBytes + " bytes" : "");
+	}
+
+	/**
+	 * This class builds an Impairment
+	 */
+	public static class Builder
+	{
+		private long m_latencyNanos = 0;
+		private long m_jitterNanos = 0;
+		private Distribution m_distribution = Distribution.CONSTANT;
+		private double m_loss = 0;
+		private double m_duplication = 0;
+		private long m_bandwidthBps = 0;
+		private int m_queueBytes = DEFAULT_QUEUE_BYTES;
+
+		/**
+		 * Set the delay of each packet, in each direction
+		 * @param latencyMs Fixed one-way latency
+		 * @param jitterMs Jitter scale (see {@link Distribution})
+		 * @param distribution Jitter distribution
+		 * @return This builder
+		 */
+		public Builder setLatency(double latencyMs, double jitterMs, Distribution distribution)
+		{
+			if (latencyMs < 0 || jitterMs < 0)
+			{
+				throw new IllegalArgumentException("Invalid latency " + latencyMs + " ms, jitter " + jitterMs + " ms");
+			}
+			m_latencyNanos = (long)(latencyMs * 1000000);
+			m_jitterNanos = (long)(jitterMs * 1000000);
+			m_distribution = (jitterMs > 0 ? distribution : Distribution.CONSTANT);
+			return this;
+		}
+
+		/**
+		 * Set the probability that a UDP packet is lost
+		 * @param loss Probability (0 to 1)
+		 * @return This builder
+		 */
+		public Builder setLoss(double loss)
+		{
+			m_loss = checkProbability("loss", loss);
+			return this;
+		}
+
+		/**
+		 * Set the probability that a UDP packet is sent twice
+		 * @param duplication Probability (0 to 1)
+		 * @return This builder
+		 */
+		public Builder setDuplication(double duplication)
+		{
+			m_duplication = checkProbability("duplication", duplication);
+			return this;
+		}
+
+		/**
+		 * Set the bandwidth limit of each direction
+		 * @param bandwidthBps Bits per second, or 0 for no limit
+		 * @param queueBytes Bytes that can wait for the bandwidth before packets are dropped
+		 * @return This builder
+		 */
+		public Builder setBandwidth(long bandwidthBps, int queueBytes)
+		{
+			if (bandwidthBps < 0 || queueBytes < 1)
+			{
+				throw new IllegalArgumentException("Invalid bandwidth " + bandwidthBps + " bps, queue " + queueBytes + " bytes");
+			}
+			m_bandwidthBps = bandwidthBps;
+			m_queueBytes = queueBytes;
+			return this;
+		}
+
+		/**
+		 * Build the Impairment
+		 * @return New Impairment
+		 */
+		public Impairment build()
+		{
+			return new Impairment(this);
+		}
+
+		private static double checkProbability(String name, double value)
+		{
+			if (value < 0 || value > 1)
+			{
+				throw new IllegalArgumentException("Invalid " + name + " probability " + value);
+			}
+			return value;
+		}
+	}
+}
@@ -0,0 +1,1126 @@
+/*
+ * Copyright 2017 Cable Television Laboratories, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cablelabs.time.tools;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+/**
+ * This class is a UDP and TCP forwarding proxy that impairs the traffic it forwards.
+ *
+ * Clients send to the proxy instead of the server.  Each UDP client gets its own socket towards
+ * the server, so responses find their way back, and each TCP connection is paired with a
+ * connection to the server.  Every packet, in each direction, goes through the {@link Impairment}
+ * of that direction: it may be lost or duplicated (UDP only), waits for the bandwidth limit, and is
+ * delayed before it is sent on.  TCP streams are delayed in order and never dropped; instead, the
+ * UDP loss probability also applies to each new connection, which is then accepted but never
+ * forwarded, as if the server had stopped answering.
+ *
+ * A single thread does all the forwarding, and each direction draws from its own random source,
+ * so a seeded proxy makes the same decisions for the same sequence of packets.  The impairments
+ * can be changed while the proxy runs.
+ */
+public class ImpairmentProxy implements Closeable
+{
+	public static final long DEFAULT_SEED = 1;
+
+	// UDP clients that have been silent for this long lose their socket towards the server
+	private static final long SESSION_IDLE_NANOS = TimeUnit.SECONDS.toNanos(60);
+	private static final long MAX_SELECT_MS = 100;
+	private static final int MAX_PACKET_SIZE = 65536;
+
+	private String m_listenAddress = "127.0.0.1";
+	private int m_port = 0;
+	private InetSocketAddress m_udpTarget = null;
+	private InetSocketAddress m_tcpTarget = null;
+	private long m_seed = DEFAULT_SEED;
+
+	private volatile Impairment m_toServer = Impairment.NONE;
+	private volatile Impairment m_toClient = Impairment.NONE;
+
+	private final AtomicLong m_forwarded = new AtomicLong(0);
+	private final AtomicLong m_lost = new AtomicLong(0);
+	private final AtomicLong m_duplicated = new AtomicLong(0);
+	private final AtomicLong m_queueDrops = new AtomicLong(0);
+	private final AtomicLong m_connections = new AtomicLong(0);
+
+	private Selector m_selector = null;
+	private DatagramChannel m_udpListener = null;
+	private ServerSocketChannel m_tcpListener = null;
+	private Thread m_engineThread = null;
+	private volatile boolean m_terminate = false;
+
+	// owned by the engine thread
+	private _Direction m_upstream = null;
+	private _Direction m_downstream = null;
+	private final Map<SocketAddress, _UdpSession> m_sessions = new HashMap<SocketAddress, _UdpSession>();
+	private final PriorityQueue<_Delivery> m_deliveries = new PriorityQueue<_Delivery>(64, new Comparator<_Delivery>() {
+		public int compare(_Delivery a, _Delivery b)
+		{
+			int order = Long.compare(a.m_dueNanos, b.m_dueNanos);
+			return (order != 0 ? order : Long.compare(a.m_sequence, b.m_sequence));
+		}
+	});
+	private final ByteBuffer m_buffer = ByteBuffer.allocateDirect(MAX_PACKET_SIZE);
+	private long m_sequence = 0;
+
+	/**
+	 * Create an instance of an ImpairmentProxy
+	 */
+	private ImpairmentProxy()
+	{
+	}
+
+	/**
+	 * Set the impairment of both directions
+	 * @param impairment Impairment
+	 */
+	public void setImpairment(Impairment impairment)
+	{
+		setImpairment(impairment, impairment);
+	}
+
+	/**
+	 * Set the impairment of each direction; takes effect for the next packet
+	 * @param toServer Impairment of the requests
+	 * @param toClient Impairment of the responses
+	 */
+	public void setImpairment(Impairment toServer, Impairment toClient)
+	{
+		m_toServer = toServer;
+		m_toClient = toClient;
+	}
+
+	/**
+	 * Start forwarding
+	 * @throws IOException if a listener cannot be bound
+	 */
+	public void start() throws IOException
+	{
+		if (m_engineThread != null)
+		{
+			throw new IllegalStateException("The proxy is already started");
+		}
+		m_upstream = new _Direction(m_seed);
+		m_downstream = new _Direction(m_seed + 1);
+		m_selector = Selector.open();
+		try
+		{
+			if (m_udpTarget != null)
+			{
+				m_udpListener = DatagramChannel.open();
+				m_udpListener.bind(new InetSocketAddress(m_listenAddress, m_port));
+				m_udpListener.configureBlocking(false);
+				m_udpListener.register(m_selector, SelectionKey.OP_READ, null);
+			}
+			if (m_tcpTarget != null)
+			{
+				m_tcpListener = ServerSocketChannel.open();
+				m_tcpListener.bind(new InetSocketAddress(m_listenAddress, m_port));
+				m_tcpListener.configureBlocking(false);
+				m_tcpListener.register(m_selector, SelectionKey.OP_ACCEPT, null);
+			}
+		}
+		catch (IOException e)
+		{
+			close();
+			throw e;
+		}
+
+		m_engineThread = new Thread(new _Engine(), "ImpairmentProxy");
+		m_engineThread.setDaemon(true);
+		m_engineThread.start();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see java.io.Closeable#close()
+	 */
+	@Override
+	public void close()
+	{
+		m_terminate = true;
+		if (m_selector != null)
+		{
+			m_selector.wakeup();
+		}
+		if (m_engineThread != null)
+		{
+			try
+			{
+				m_engineThread.join();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+		else
+		{
+			closeAll();
+		}
+	}
+
+	/**
+	 * Get the address UDP clients send to
+	 * @return Bound address, or null if UDP is not forwarded (or the proxy is not started)
+	 */
+	public InetSocketAddress getUdpAddress()
+	{
+		return (m_udpListener != null ? (InetSocketAddress)m_udpListener.socket().getLocalSocketAddress() : null);
+	}
+
+	/**
+	 * Get the address TCP clients connect to
+	 * @return Bound address, or null if TCP is not forwarded (or the proxy is not started)
+	 */
+	public InetSocketAddress getTcpAddress()
+	{
+		return (m_tcpListener != null ? (InetSocketAddress)m_tcpListener.socket().getLocalSocketAddress() : null);
+	}
+
+	/**
+	 * Get the number of UDP packets and TCP chunks forwarded, in both directions
+	 * @return Count, duplicates included
+	 */
+	public long getForwarded()
+	{
+		return m_forwarded.get();
+	}
+
+	/**
+	 * Get the number of UDP packets and TCP connections lost on purpose
+	 * @return Count
+	 */
+	public long getLost()
+	{
+		return m_lost.get();
+	}
+
+	/**
+	 * Get the number of UDP packets duplicated
+	 * @return Count
+	 */
+	public long getDuplicated()
+	{
+		return m_duplicated.get();
+	}
+
+	/**
+	 * Get the number of UDP packets dropped because the bandwidth queue was full
+	 * @return Count
+	 */
+	public long getQueueDrops()
+	{
+		return m_queueDrops.get();
+	}
+
+	/**
+	 * Get the number of TCP connections accepted
+	 * @return Count
+	 */
+	public long getConnections()
+	{
+		return m_connections.get();
+	}
+
+	/**
+	 * Receive the UDP requests waiting on the listener
+	 * @throws IOException on socket errors
+	 */
+	private void receiveRequests() throws IOException
+	{
+		while (true)
+		{
+			m_buffer.clear();
+			SocketAddress client = m_udpListener.receive(m_buffer);
+			if (client == null)
+			{
+				return;
+			}
+			_UdpSession session = m_sessions.get(client);
+			if (session == null)
+			{
+				session = new _UdpSession(client);
+				m_sessions.put(client, session);
+			}
+			session.m_lastActiveNanos = System.nanoTime();
+			m_buffer.flip();
+			forwardDatagram(m_upstream, m_toServer, session.m_channel, m_udpTarget);
+		}
+	}
+
+	/**
+	 * Receive the UDP responses waiting on a session
+	 * @param session Session of a client
+	 * @throws IOException on socket errors
+	 */
+	private void receiveResponses(_UdpSession session) throws IOException
+	{
+		while (true)
+		{
+			m_buffer.clear();
+			if (session.m_channel.receive(m_buffer) == null)
+			{
+				return;
+			}
+			m_buffer.flip();
+			forwardDatagram(m_downstream, m_toClient, m_udpListener, session.m_client);
+		}
+	}
+
+	/**
+	 * Impair the datagram in the buffer and schedule its delivery
+	 * @param direction Direction it travels in
+	 * @param impairment Impairment of that direction
+	 * @param channel Channel it is sent from
+	 * @param destination Address it is sent to
+	 */
+	private void forwardDatagram(_Direction direction, Impairment impairment, DatagramChannel channel, SocketAddress destination)
+	{
+		if (impairment.sampleLoss(direction.m_random))
+		{
+			m_lost.incrementAndGet();
+			return;
+		}
+		int copies = 1;
+		if (impairment.sampleDuplication(direction.m_random))
+		{
+			m_duplicated.incrementAndGet();
+			copies = 2;
+		}
+		byte[] data = new byte[m_buffer.remaining()];
+		m_buffer.get(data);
+		long nowNanos = System.nanoTime();
+		for (int i = 0; i < copies; i++)
+		{
+			long departNanos = direction.transmit(impairment, data.length, nowNanos, true);
+			if (departNanos < 0)
+			{
+				m_queueDrops.incrementAndGet();
+				continue;
+			}
+			m_deliveries.add(new _Delivery(departNanos + impairment.sampleDelayNanos(direction.m_random),
+					m_sequence++, data, channel, destination, null, null));
+		}
+	}
+
+	/**
+	 * Accept the TCP connections waiting on the listener
+	 * @throws IOException on socket errors
+	 */
+	private void acceptConnections() throws IOException
+	{
+		SocketChannel client;
+		while ((client = m_tcpListener.accept()) != null)
+		{
+			m_connections.incrementAndGet();
+			client.configureBlocking(false);
+			if (m_toServer.sampleLoss(m_upstream.m_random))
+			{
+				// the connection is held open and nothing is forwarded, until the client gives up
+				m_lost.incrementAndGet();
+				client.register(m_selector, SelectionKey.OP_READ, new _TcpEnd(null, client, null));
+				continue;
+			}
+			new _TcpConnection(client);
+		}
+	}
+
+	/**
+	 * Send the deliveries that are due
+	 * @param nowNanos Current time
+	 * @return Nanoseconds until the next delivery, or -1 if there is none
+	 */
+	private long deliver(long nowNanos)
+	{
+		_Delivery delivery;
+		while ((delivery = m_deliveries.peek()) != null)
+		{
+			if (delivery.m_dueNanos - nowNanos > 0)
+			{
+				return delivery.m_dueNanos - nowNanos;
+			}
+			m_deliveries.poll();
+			if (delivery.m_pipe != null)
+			{
+				delivery.m_pipe.deliver(delivery.m_data);
+				continue;
+			}
+			if (delivery.m_connection != null)
+			{
+				delivery.m_connection.connect();
+				continue;
+			}
+			try
+			{
+				delivery.m_channel.send(ByteBuffer.wrap(delivery.m_data), delivery.m_destination);
+				m_forwarded.incrementAndGet();
+			}
+			catch (IOException e)
+			{
+				// the destination is gone, as on a real network
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Close the UDP sessions that have been idle too long
+	 * @param nowNanos Current time
+	 */
+	private void expireSessions(long nowNanos)
+	{
+		Iterator<_UdpSession> iter = m_sessions.values().iterator();
+		while (iter.hasNext())
+		{
+			_UdpSession session = iter.next();
+			if (nowNanos - session.m_lastActiveNanos > SESSION_IDLE_NANOS)
+			{
+				closeQuietly(session.m_channel);
+				iter.remove();
+			}
+		}
+	}
+
+	/**
+	 * Close the listeners and every forwarded socket
+	 */
+	private void closeAll()
+	{
+		if (m_selector != null)
+		{
+			try
+			{
+				for (SelectionKey key : m_selector.keys())
+				{
+					closeQuietly(key.channel());
+				}
+				m_selector.close();
+			}
+			catch (IOException | ClosedSelectorException e)
+			{
+				// do nothing
+			}
+		}
+		closeQuietly(m_udpListener);
+		closeQuietly(m_tcpListener);
+		m_sessions.clear();
+		m_deliveries.clear();
+	}
+
+	private static void closeQuietly(Closeable closeable)
+	{
+		if (closeable != null)
+		{
+			try
+			{
+				closeable.close();
+			}
+			catch (IOException e)
+			{
+				// do nothing
+			}
+		}
+	}
+
+	/**
+	 * This class is the state of one direction of the traffic: its random source, and the time
+	 * its bandwidth is free again
+	 */
+	private static class _Direction
+	{
+		private final Random m_random;
+		private long m_freeNanos = 0;
+
+		public _Direction(long seed)
+		{
+			m_random = new Random(seed);
+		}
+
+		/**
+		 * Get the time a packet has been sent at the bandwidth limit
+		 * @param impairment Impairment of the direction
+		 * @param length Bytes sent
+		 * @param nowNanos Current time
+		 * @param droppable True if the packet is dropped when the queue is full
+		 * @return Time the packet is sent, or -1 if it is dropped
+		 */
+		public long transmit(Impairment impairment, int length, long nowNanos, boolean droppable)
+		{
+			long bandwidth = impairment.getBandwidthBps();
+			if (bandwidth <= 0)
+			{
+				return nowNanos;
+			}
+			long queuedNanos = Math.max(0, m_freeNanos - nowNanos);
+			if (droppable && queuedNanos > 0 &&
+					queuedNanos * bandwidth / 8000000000L + length > impairment.getQueueBytes())
+			{
+				return -1;
+			}
+			m_freeNanos = nowNanos + queuedNanos + length * 8000000000L / bandwidth;
+			return m_freeNanos;
+		}
+	}
+
+	/**
+	 * This class is a packet, a TCP chunk or a TCP connection waiting to be sent
+	 */
+	private static class _Delivery
+	{
+		private final long m_dueNanos;
+		private final long m_sequence;
+		private final byte[] m_data;
+		private final DatagramChannel m_channel;
+		private final SocketAddress m_destination;
+		private final _TcpPipe m_pipe;
+		private final _TcpConnection m_connection;
+
+		public _Delivery(long dueNanos, long sequence, byte[] data, DatagramChannel channel, SocketAddress destination,
+				_TcpPipe pipe, _TcpConnection connection)
+		{
+			m_dueNanos = dueNanos;
+			m_sequence = sequence;
+			m_data = data;
+			m_channel = channel;
+			m_destination = destination;
+			m_pipe = pipe;
+			m_connection = connection;
+		}
+	}
+
+	/**
+	 * This class is the socket towards the server of one UDP client
+	 */
+	private class _UdpSession
+	{
+		private final SocketAddress m_client;
+		private final DatagramChannel m_channel;
+		private long m_lastActiveNanos = 0;
+
+		public _UdpSession(SocketAddress client) throws IOException
+		{
+			m_client = client;
+			// unconnected, so that empty requests (RFC868) are still sent
+			m_channel = DatagramChannel.open();
+			m_channel.configureBlocking(false);
+			m_channel.register(m_selector, SelectionKey.OP_READ, this);
+		}
+	}
+
+	/**
+	 * This class is one side of a TCP connection, the attachment of its selection key
+	 */
+	private class _TcpEnd
+	{
+		private final _TcpConnection m_connection;
+		private final SocketChannel m_channel;
+		private final _TcpPipe m_outbound;
+		private SelectionKey m_key = null;
+
+		public _TcpEnd(_TcpConnection connection, SocketChannel channel, _TcpPipe outbound)
+		{
+			m_connection = connection;
+			m_channel = channel;
+			m_outbound = outbound;
+		}
+
+		/**
+		 * Handle a ready selection key
+		 * @param key Selection key
+		 * @throws IOException on socket errors
+		 */
+		public void ready(SelectionKey key) throws IOException
+		{
+			if (m_connection == null)
+			{
+				// a lost connection: wait for the client to close it
+				m_buffer.clear();
+				if (m_channel.read(m_buffer) < 0)
+				{
+					m_channel.close();
+				}
+				return;
+			}
+			if (key.isConnectable())
+			{
+				m_channel.finishConnect();
+				key.interestOps(SelectionKey.OP_READ);
+				m_outbound.flush();
+			}
+			if (key.isValid() && key.isWritable())
+			{
+				m_outbound.flush();
+			}
+			if (key.isValid() && key.isReadable())
+			{
+				m_connection.read(this);
+			}
+		}
+	}
+
+	/**
+	 * This class is a TCP connection of a client, and its connection to the server
+	 */
+	private class _TcpConnection
+	{
+		private final _TcpEnd m_client;
+		private final _TcpEnd m_server;
+		private final _TcpPipe m_clientToServer;
+		private final _TcpPipe m_serverToClient;
+
+		public _TcpConnection(SocketChannel client) throws IOException
+		{
+			SocketChannel server = SocketChannel.open();
+			server.configureBlocking(false);
+			m_clientToServer = new _TcpPipe(this);
+			m_serverToClient = new _TcpPipe(this);
+			m_client = new _TcpEnd(this, client, m_serverToClient);
+			m_server = new _TcpEnd(this, server, m_clientToServer);
+			m_clientToServer.m_end = m_server;
+			m_serverToClient.m_end = m_client;
+			m_client.m_key = client.register(m_selector, SelectionKey.OP_READ, m_client);
+
+			// the connection reaches the server after the delay of a request, as a SYN would
+			long dueNanos = m_upstream.transmit(m_toServer, 0, System.nanoTime(), false) + m_toServer.sampleDelayNanos(m_upstream.m_random);
+			m_clientToServer.m_lastDueNanos = dueNanos;
+			m_deliveries.add(new _Delivery(dueNanos, m_sequence++, null, null, null, null, this));
+		}
+
+		/**
+		 * Connect to the server
+		 */
+		public void connect()
+		{
+			try
+			{
+				boolean connected = m_server.m_channel.connect(m_tcpTarget);
+				m_server.m_key = m_server.m_channel.register(m_selector, (connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT), m_server);
+				if (connected)
+				{
+					m_clientToServer.flush();
+				}
+			}
+			catch (IOException e)
+			{
+				close();
+			}
+		}
+
+		/**
+		 * Read what one side sent, and schedule it to the other side
+		 * @param end Side that is readable
+		 * @throws IOException on socket errors
+		 */
+		public void read(_TcpEnd end) throws IOException
+		{
+			boolean fromClient = (end == m_client);
+			_TcpPipe pipe = (fromClient ? m_clientToServer : m_serverToClient);
+			_Direction direction = (fromClient ? m_upstream : m_downstream);
+			Impairment impairment = (fromClient ? m_toServer : m_toClient);
+
+			m_buffer.clear();
+			int read = end.m_channel.read(m_buffer);
+			if (read == 0)
+			{
+				return;
+			}
+			byte[] data = null;
+			int length = 0;
+			if (read < 0)
+			{
+				// forward the end of the stream as well, once what was sent before it is delivered
+				end.m_key.interestOps(end.m_key.interestOps() & ~SelectionKey.OP_READ);
+			}
+			else
+			{
+				m_buffer.flip();
+				data = new byte[read];
+				m_buffer.get(data);
+				length = read;
+			}
+			long nowNanos = System.nanoTime();
+			long dueNanos = direction.transmit(impairment, length, nowNanos, false) + impairment.sampleDelayNanos(direction.m_random);
+			// a stream is never reordered
+			dueNanos = Math.max(dueNanos, pipe.m_lastDueNanos);
+			pipe.m_lastDueNanos = dueNanos;
+			m_deliveries.add(new _Delivery(dueNanos, m_sequence++, data, null, null, pipe, null));
+		}
+
+		/**
+		 * Close both sides
+		 */
+		public void close()
+		{
+			closeQuietly(m_client.m_channel);
+			closeQuietly(m_server.m_channel);
+		}
+	}
+
+	/**
+	 * This class is the data waiting to be written to one side of a TCP connection
+	 */
+	private class _TcpPipe
+	{
+		private final _TcpConnection m_connection;
+		private final ArrayDeque<ByteBuffer> m_pending = new ArrayDeque<ByteBuffer>();
+		private _TcpEnd m_end = null;
+		private long m_lastDueNanos = 0;
+		private boolean m_ended = false;
+		private boolean m_shutdown = false;
+
+		public _TcpPipe(_TcpConnection connection)
+		{
+			m_connection = connection;
+		}
+
+		/**
+		 * Queue data that is due, and write what can be written
+		 * @param data Data, or null for the end of the stream
+		 */
+		public void deliver(byte[] data)
+		{
+			if (data == null)
+			{
+				m_ended = true;
+			}
+			else
+			{
+				m_pending.add(ByteBuffer.wrap(data));
+				m_forwarded.incrementAndGet();
+			}
+			flush();
+		}
+
+		/**
+		 * Write the pending data, and the end of the stream after it
+		 */
+		public void flush()
+		{
+			if (!m_end.m_channel.isOpen() || !m_end.m_channel.isConnected())
+			{
+				return;
+			}
+			try
+			{
+				while (!m_pending.isEmpty())
+				{
+					ByteBuffer head = m_pending.peek();
+					m_end.m_channel.write(head);
+					if (head.hasRemaining())
+					{
+						m_end.m_key.interestOps(m_end.m_key.interestOps() | SelectionKey.OP_WRITE);
+						return;
+					}
+					m_pending.poll();
+				}
+				m_end.m_key.interestOps(m_end.m_key.interestOps() & ~SelectionKey.OP_WRITE);
+				if (m_ended && !m_shutdown)
+				{
+					m_shutdown = true;
+					m_end.m_channel.shutdownOutput();
+					_TcpPipe other = (this == m_connection.m_clientToServer ? m_connection.m_serverToClient : m_connection.m_clientToServer);
+					if (other.m_shutdown)
+					{
+						m_connection.close();
+					}
+				}
+			}
+			catch (IOException e)
+			{
+				m_connection.close();
+			}
+		}
+	}
+
+	/**
+	 * This class is the forwarding loop
+	 */
+	private class _Engine implements Runnable
+	{
+		/*
+		 * (non-Javadoc)
+		 * @see java.lang.Runnable#run()
+		 */
+		public void run()
+		{
+			long lastSweepNanos = System.nanoTime();
+			try
+			{
+				while (!m_terminate)
+				{
+					long nowNanos = System.nanoTime();
+					long waitNanos = deliver(nowNanos);
+					if (waitNanos < 0)
+					{
+						m_selector.select(MAX_SELECT_MS);
+					}
+					else if (waitNanos < TimeUnit.MILLISECONDS.toNanos(1))
+					{
+						// selecting would overshoot a delivery this close
+						m_selector.selectNow();
+					}
+					else
+					{
+						m_selector.select(Math.min(MAX_SELECT_MS, TimeUnit.NANOSECONDS.toMillis(waitNanos)));
+					}
+
+					Iterator<SelectionKey> iter = m_selector.selectedKeys().iterator();
+					while (iter.hasNext())
+					{
+						SelectionKey key = iter.next();
+						iter.remove();
+						ready(key);
+					}
+
+					nowNanos = System.nanoTime();
+					if (nowNanos - lastSweepNanos > TimeUnit.SECONDS.toNanos(1))
+					{
+						expireSessions(nowNanos);
+						lastSweepNanos = nowNanos;
+					}
+				}
+			}
+			catch (IOException | ClosedSelectorException e)
+			{
+				if (!m_terminate)
+				{
+					System.out.println("Impairment proxy stopped: " + e.getLocalizedMessage());
+				}
+			}
+			finally
+			{
+				closeAll();
+			}
+		}
+
+		/**
+		 * Handle a ready selection key
+		 * @param key Selection key
+		 */
+		private void ready(SelectionKey key)
+		{
+			Object attachment = key.attachment();
+			try
+			{
+				if (!key.isValid())
+				{
+					return;
+				}
+				if (attachment == null)
+				{
+					if (key.channel() == m_udpListener)
+					{
+						receiveRequests();
+					}
+					else
+					{
+						acceptConnections();
+					}
+				}
+				else if (attachment instanceof _UdpSession)
+				{
+					receiveResponses((_UdpSession)attachment);
+				}
+				else
+				{
+					((_TcpEnd)attachment).ready(key);
+				}
+			}
+			catch (IOException e)
+			{
+				if (attachment instanceof _TcpEnd)
+				{
+					_TcpEnd end = (_TcpEnd)attachment;
+					if (end.m_connection != null)
+					{
+						end.m_connection.close();
+					}
+					else
+					{
+						closeQuietly(end.m_channel);
+					}
+				}
+				// anything else is a datagram error, such as a port unreachable: nothing to do
+			}
+		}
+	}
+
+	private static Options s_cmdline_options = null;
+
+	/**
+	 * Print the command usage
+	 */
+	public static void printUsage()
+	{
+		String usage = ImpairmentProxy.class.getSimpleName() + " Usage: -t <host:port> [options]" + System.lineSeparator();
+
+		if (s_cmdline_options != null)
+		{
+			Iterator<Option> iter = s_cmdline_options.getOptions().iterator();
+			while (iter.hasNext())
+			{
+				Option opt = iter.next();
+				usage += System.lineSeparator() + (opt.getOpt() != null ? "-" + opt.getOpt() + (opt.hasLongOpt() ? " (--" + opt.getLongOpt() + ")" : "") : "--" + opt.getLongOpt()) +
+						(opt.hasArg() ? " <" + (opt.hasArgName() ? opt.getArgName() : "value") + ">" : "") +
+						" : " + opt.getDescription();
+			}
+		}
+
+		System.out.println(usage + System.lineSeparator());
+	}
+
+	/**
+	 * Entry point of the proxy
+	 * @param args Command line parameters
+	 */
+	public static void main(String[] args)
+	{
+		s_cmdline_options = new Options();
+		s_cmdline_options.addOption("h", "help", false, "Print the command usage");
+		Option targetOpt = new Option("t", "target", true, "Server the traffic is forwarded to");
+		targetOpt.setArgName("host:port");
+		s_cmdline_options.addOption(targetOpt);
+		Option addressOpt = new Option("l", "listen", true, "Address the proxy listens on (default 127.0.0.1)");
+		addressOpt.setArgName("address");
+		s_cmdline_options.addOption(addressOpt);
+		Option portOpt = new Option("p", "port", true, "Port the proxy listens on, for TCP and UDP (default 3737)");
+		portOpt.setArgName("port");
+		s_cmdline_options.addOption(portOpt);
+		s_cmdline_options.addOption(null, "no_tcp", false, "Do not forward TCP");
+		s_cmdline_options.addOption(null, "no_udp", false, "Do not forward UDP");
+		Option latencyOpt = new Option(null, "latency", true, "One-way latency (default 0)");
+		latencyOpt.setArgName("ms");
+		s_cmdline_options.addOption(latencyOpt);
+		Option jitterOpt = new Option(null, "jitter", true, "Jitter added to the latency (default 0)");
+		jitterOpt.setArgName("ms");
+		s_cmdline_options.addOption(jitterOpt);
+		Option distributionOpt = new Option(null, "distribution", true, "Jitter distribution: uniform, normal, exponential, pareto (default uniform)");
+		distributionOpt.setArgName("name");
+		s_cmdline_options.addOption(distributionOpt);
+		Option lossOpt = new Option(null, "loss", true, "Probability that a UDP packet or TCP connection is lost (default 0)");
+		lossOpt.setArgName("probability");
+		s_cmdline_options.addOption(lossOpt);
+		Option duplicateOpt = new Option(null, "duplicate", true, "Probability that a UDP packet is duplicated (default 0)");
+		duplicateOpt.setArgName("probability");
+		s_cmdline_options.addOption(duplicateOpt);
+		Option bandwidthOpt = new Option(null, "bandwidth", true, "Bandwidth of each direction (default unlimited)");
+		bandwidthOpt.setArgName("bps");
+		s_cmdline_options.addOption(bandwidthOpt);
+		Option queueOpt = new Option(null, "queue", true, "UDP bytes queued for the bandwidth before packets are dropped (default 65536)");
+		queueOpt.setArgName("bytes");
+		s_cmdline_options.addOption(queueOpt);
+		Option seedOpt = new Option(null, "seed", true, "Seed of the random decisions (default 1)");
+		seedOpt.setArgName("seed");
+		s_cmdline_options.addOption(seedOpt);
+
+		CommandLineParser parser = new DefaultParser();
+		try
+		{
+			CommandLine cmd = parser.parse(s_cmdline_options, args);
+			if (cmd.hasOption("h"))
+			{
+				printUsage();
+				System.exit(0);
+			}
+			String target = cmd.getOptionValue("t");
+			int colon = (target != null ? target.lastIndexOf(':') : -1);
+			if (colon < 0)
+			{
+				throw new IllegalArgumentException("A target host:port is required");
+			}
+			InetSocketAddress targetAddress = new InetSocketAddress(target.substring(0, colon), Integer.parseInt(target.substring(colon + 1)));
+
+			Impairment impairment = new Impairment.Builder()
+					.setLatency(Double.parseDouble(cmd.getOptionValue("latency", "0")),
+							Double.parseDouble(cmd.getOptionValue("jitter", "0")),
+							Impairment.Distribution.fromName(cmd.getOptionValue("distribution", "uniform")))
+					.setLoss(Double.parseDouble(cmd.getOptionValue("loss", "0")))
+					.setDuplication(Double.parseDouble(cmd.getOptionValue("duplicate", "0")))
+					.setBandwidth(Long.parseLong(cmd.getOptionValue("bandwidth", "0")),
+							Integer.parseInt(cmd.getOptionValue("queue", Integer.toString(Impairment.DEFAULT_QUEUE_BYTES))))
+					.build();
+			final ImpairmentProxy proxy = new Builder()
+					.setListenAddress(cmd.getOptionValue("l", "127.0.0.1"))
+					.setPort(Integer.parseInt(cmd.getOptionValue("p", "3737")))
+					.setUdpTarget(cmd.hasOption("no_udp") ? null : targetAddress)
+					.setTcpTarget(cmd.hasOption("no_tcp") ? null : targetAddress)
+					.setImpairment(impairment)
+					.setSeed(Long.parseLong(cmd.getOptionValue("seed", Long.toString(DEFAULT_SEED))))
+					.build();
+			proxy.start();
+			System.out.println("Forwarding " + (proxy.getUdpAddress() != null ? "UDP " + proxy.getUdpAddress() + " " : "") +
+					(proxy.getTcpAddress() != null ? "TCP " + proxy.getTcpAddress() + " " : "") + "to " + targetAddress);
+			System.out.println("Impairment: " + impairment);
+
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				public void run()
+				{
+					proxy.close();
+					System.out.println("Forwarded " + proxy.getForwarded() + ", lost " + proxy.getLost() +
+							", duplicated " + proxy.getDuplicated() + ", queue drops " + proxy.getQueueDrops() +
+							", TCP connections " + proxy.getConnections());
+				}
+			});
+			while (true)
+			{
+				Thread.sleep(Long.MAX_VALUE);
+			}
+		}
+		catch (ParseException | IllegalArgumentException e)
+		{
+			System.err.println("Error parsing command line arguments:" +
+					System.lineSeparator() + e.getLocalizedMessage());
+			printUsage();
+			System.exit(1);
+		}
+		catch (IOException e)
+		{
+			System.err.println("Error - " + e.getLocalizedMessage());
+			System.exit(1);
+		}
+		catch (InterruptedException e)
+		{
+			System.exit(0);
+		}
+	}
+
+	/**
+	 * This class builds an ImpairmentProxy
+	 */
+	public static class Builder
+	{
+		private final ImpairmentProxy m_proxy = new ImpairmentProxy();
+
+		/**
+		 * Set the address the proxy listens on
+		 * @param address Address (default 127.0.0.1)
+		 * @return This builder
+		 */
+		public Builder setListenAddress(String address)
+		{
+			m_proxy.m_listenAddress = address;
+			return this;
+		}
+
+		/**
+		 * Set the port the proxy listens on, for TCP and UDP
+		 * @param port Port, or 0 (the default) for a free port for each
+		 * @return This builder
+		 */
+		public Builder setPort(int port)
+		{
+			m_proxy.m_port = port;
+			return this;
+		}
+
+		/**
+		 * Set the server UDP packets are forwarded to
+		 * @param target Server address, or null not to forward UDP
+		 * @return This builder
+		 */
+		public Builder setUdpTarget(InetSocketAddress target)
+		{
+			m_proxy.m_udpTarget = target;
+			return this;
+		}
+
+		/**
+		 * Set the server TCP connections are forwarded to
+		 * @param target Server address, or null not to forward TCP
+		 * @return This builder
+		 */
+		public Builder setTcpTarget(InetSocketAddress target)
+		{
+			m_proxy.m_tcpTarget = target;
+			return this;
+		}
+
+		/**
+		 * Set the impairment of both directions
+		 * @param impairment Impairment (default none)
+		 * @return This builder
+		 */
+		public Builder setImpairment(Impairment impairment)
+		{
+			m_proxy.setImpairment(impairment);
+			return this;
+		}
+
+		/**
+		 * Set the impairment of each direction
+		 * @param toServer Impairment of the requests
+		 * @param toClient Impairment of the responses
+		 * @return This builder
+		 */
+		public Builder setImpairment(Impairment toServer, Impairment toClient)
+		{
+			m_proxy.setImpairment(toServer, toClient);
+			return this;
+		}
+
+		/**
+		 * Set the seed of the random decisions
+		 * @param seed Seed (default 1)
+		 * @return This builder
+		 */
+		public Builder setSeed(long seed)
+		{
+			m_proxy.m_seed = seed;
+			return this;
+		}
+
+		/**
+		 * Build the ImpairmentProxy
+		 * @return New proxy, not started
+		 */
+		public ImpairmentProxy build()
+		{
+			if (m_proxy.m_udpTarget == null && m_proxy.m_tcpTarget == null)
+			{
+				throw new IllegalArgumentException("No target to forward to");
+			}
+			return m_proxy;
+		}
+	}
+}
@@ -0,0 +1,470 @@
+/*
+ * Copyright 2017 Cable Television Laboratories, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cablelabs.time.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import com.cablelabs.time.server.RequestJournal;
+import com.cablelabs.time.server.TimeServer;
+
+/**
+ * This class decodes and queries binary request journals written by {@link RequestJournal}.
+ *
+ * Segment files are memory-mapped and split into chunks that are scanned in parallel on a
+ * fork-join pool.  Matching records are printed in segment and chunk order (records from different
+ * server threads are interleaved by region, so the output is only approximately time-ordered).
+ */
+public class JournalDecoder
+{
+	private static final int CHUNK_RECORDS = 1 << 16;
+
+	private byte[] m_addressFilter = null;
+	private int m_prefixLength = 0;
+	private long m_fromMillis = Long.MIN_VALUE;
+	private long m_toMillis = Long.MAX_VALUE;
+	private byte m_protocolFilter = 0;
+
+	/**
+	 * Create an instance of a JournalDecoder
+	 */
+	public JournalDecoder()
+	{
+	}
+
+	/**
+	 * Only match records from the specified address or subnet
+	 * @param address Address bytes
+	 * @param prefixLength Number of leading bits to compare, up to the length of the address
+	 */
+	public void setAddressFilter(byte[] address, int prefixLength)
+	{
+		if (prefixLength < 0 || prefixLength > address.length * 8)
+		{
+			throw new IllegalArgumentException("Invalid prefix length: " + prefixLength);
+		}
+		m_addressFilter = address;
+		m_prefixLength = prefixLength;
+	}
+
+	/**
+	 * Only match records in the specified time range
+	 * @param fromMillis Inclusive start (ms since 1970)
+	 * @param toMillis Exclusive end (ms since 1970)
+	 */
+	public void setTimeRange(long fromMillis, long toMillis)
+	{
+		m_fromMillis = fromMillis;
+		m_toMillis = toMillis;
+	}
+
+	/**
+	 * Only match records of the specified protocol
+	 * @param protocol One of the TimeServer PROTOCOL_ constants, or 0 for any
+	 */
+	public void setProtocolFilter(byte protocol)
+	{
+		m_protocolFilter = protocol;
+	}
+
+	/**
+	 * Scan the segment files and print the matching records
+	 * @param files Segment files
+	 * @param out Output stream
+	 * @param countOnly True to print only the number of matching records
+	 * @param pool Fork-join pool used for the scan
+	 * @return Number of matching records
+	 * @throws IOException On errors mapping the files
+	 */
+	public long decode(List<File> files, PrintStream out, boolean countOnly, ForkJoinPool pool) throws IOException
+	{
+		long matches = 0;
+		for (File file : files)
+		{
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try
+			{
+				MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+				if (buffer.limit() < RequestJournal.RECORD_SIZE || buffer.getInt(0) != RequestJournal.HEADER_MAGIC)
+				{
+					System.err.println("Skipping " + file + ": not a request journal segment");
+					continue;
+				}
+
+				int records = buffer.limit() / RequestJournal.RECORD_SIZE;
+				List<_Chunk> chunks = pool.invoke(new _ScanTask(buffer, 1, records, countOnly));
+				for (_Chunk chunk : chunks)
+				{
+					if (chunk.m_text != null)
+					{
+						out.print(chunk.m_text);
+					}
+					matches += chunk.m_matches;
+				}
+			}
+			finally
+			{
+				raf.close();
+			}
+		}
+		return matches;
+	}
+
+	/**
+	 * Test whether the record at the specified offset matches the filters
+	 * @param buf Segment buffer
+	 * @param pos Record offset
+	 * @return True if the record matches
+	 */
+	private boolean matches(ByteBuffer buf, int pos)
+	{
+		byte protocol = buf.get(pos + 14);
+		if (protocol == 0 || (m_protocolFilter != 0 && protocol != m_protocolFilter))
+		{
+			return false;
+		}
+
+		long timeMillis = buf.getLong(pos);
+		if (timeMillis < m_fromMillis || timeMillis >= m_toMillis)
+		{
+			return false;
+		}
+
+		if (m_addressFilter != null)
+		{
+			if (buf.get(pos + 15) != m_addressFilter.length)
+			{
+				return false;
+			}
+			int bits = m_prefixLength;
+			for (int i = 0; bits > 0; i++, bits -= 8)
+			{
+				int mask = (bits >= 8 ? 0xFF : (0xFF << (8 - bits)) & 0xFF);
+				if (((buf.get(pos + 16 + i) ^ m_addressFilter[i]) & mask) != 0)
+				{
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Format the record at the specified offset
+	 * @param buf Segment buffer
+	 * @param pos Record offset
+	 * @param out Output buffer
+	 */
+	private static void format(ByteBuffer buf, int pos, StringBuilder out)
+	{
+		byte[] address = new byte[buf.get(pos + 15) == 4 ? 4 : 16];
+		for (int i = 0; i < address.length; i++)
+		{
+			address[i] = buf.get(pos + 16 + i);
+		}
+
+		String host = null;
+		try
+		{
+			host = InetAddress.getByAddress(address).getHostAddress();
+		}
+		catch (UnknownHostException e)
+		{
+			host = "?";
+		}
+
+		long value = buf.getInt(pos + 8) & 0xFFFFFFFFL;
+		out.append(Instant.ofEpochMilli(buf.getLong(pos)))
+				.append(' ').append(TimeServer.protocolName(buf.get(pos + 14))).append(' ')
+				.append(host).append(' ').append(buf.getShort(pos + 12) & 0xFFFF)
+				.append(" returned ").append(value).append('\n');
+	}
+
+	/**
+	 * This class is the result of scanning one chunk of a segment
+	 */
+	private static class _Chunk
+	{
+		private long m_matches = 0;
+		private StringBuilder m_text = null;
+	}
+
+	/**
+	 * This class scans a range of records, splitting it in half until it is small enough
+	 */
+	private class _ScanTask extends RecursiveTask<List<_Chunk>>
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final ByteBuffer m_buffer;
+		private final int m_first;
+		private final int m_end;
+		private final boolean m_countOnly;
+
+		/**
+		 * Create an instance of a _ScanTask
+		 * @param buffer Segment buffer
+		 * @param first First record index
+		 * @param end Record index after the last
+		 * @param countOnly True to count instead of formatting
+		 */
+		public _ScanTask(ByteBuffer buffer, int first, int end, boolean countOnly)
+		{
+			m_buffer = buffer;
+			m_first = first;
+			m_end = end;
+			m_countOnly = countOnly;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * @see java.util.concurrent.RecursiveTask#compute()
+		 */
+		@Override
+		protected List<_Chunk> compute()
+		{
+			if (m_end - m_first > CHUNK_RECORDS)
+			{
+				int mid = (m_first + m_end) >>> 1;
+				_ScanTask left = new _ScanTask(m_buffer, m_first, mid, m_countOnly);
+				_ScanTask right = new _ScanTask(m_buffer, mid, m_end, m_countOnly);
+				left.fork();
+				List<_Chunk> result = right.compute();
+				List<_Chunk> merged = left.join();
+				merged.addAll(result);
+				return merged;
+			}
+
+			_Chunk chunk = new _Chunk();
+			if (!m_countOnly)
+			{
+				chunk.m_text = new StringBuilder();
+			}
+
+			ByteBuffer buf = m_buffer.duplicate();
+			for (int i = m_first; i < m_end; i++)
+			{
+				int pos = i * RequestJournal.RECORD_SIZE;
+				if (matches(buf, pos))
+				{
+					chunk.m_matches++;
+					if (chunk.m_text != null)
+					{
+						format(buf, pos, chunk.m_text);
+					}
+				}
+			}
+
+			List<_Chunk> result = new ArrayList<_Chunk>();
+			result.add(chunk);
+			return result;
+		}
+	}
+
+	private static Options s_cmdline_options = null;
+
+	/**
+	 * Print the command usage
+	 */
+	public static void printUsage()
+	{
+		String usage = JournalDecoder.class.getSimpleName() + " Usage: [options] <journal dir or segment files...>" +
+				System.lineSeparator();
+
+		if (s_cmdline_options != null)
+		{
+			Iterator<Option> iter = s_cmdline_options.getOptions().iterator();
+			while (iter.hasNext())
+			{
+				Option opt = iter.next();
+				usage += System.lineSeparator() +
+						"-" + opt.getOpt() +
+						(opt.hasLongOpt() ? " (--" + opt.getLongOpt() + ")" : "") +
+						(opt.hasArg() ? " <" + (opt.hasArgName() ? opt.getArgName() : "value") + ">" : "") +
+						" : " + opt.getDescription();
+			}
+		}
+
+		System.out.println(usage + System.lineSeparator());
+	}
+
+	/**
+	 * Parse a time argument
+	 * @param value Milliseconds since 1970, or an ISO-8601 instant such as 2017-09-14T10:00:00Z
+	 * @return Milliseconds since 1970
+	 */
+	private static long parseTime(String value)
+	{
+		try
+		{
+			return Long.parseLong(value);
+		}
+		catch (NumberFormatException e)
+		{
+			return Instant.parse(value).toEpochMilli();
+		}
+	}
+
+	/**
+	 * Entry point of the application
+	 * @param args Command line parameters
+	 */
+	public static void main(String[] args)
+	{
+		s_cmdline_options = new Options();
+		s_cmdline_options.addOption("h", "help", false, "Print the command usage");
+		Option ipOpt = new Option("i", "ip", true, "Only show requests from this address or CIDR subnet");
+		ipOpt.setArgName("addr[/len]");
+		s_cmdline_options.addOption(ipOpt);
+		Option fromOpt = new Option("f", "from", true, "Only show requests at or after this time (ms or ISO-8601)");
+		fromOpt.setArgName("time");
+		s_cmdline_options.addOption(fromOpt);
+		Option toOpt = new Option("t", "to", true, "Only show requests before this time (ms or ISO-8601)");
+		toOpt.setArgName("time");
+		s_cmdline_options.addOption(toOpt);
+		Option protocolOpt = new Option("p", "protocol", true, "Only show requests of this protocol");
+		protocolOpt.setArgName("tcp|udp|sntp|daytime-tcp|daytime-udp");
+		s_cmdline_options.addOption(protocolOpt);
+		s_cmdline_options.addOption("c", "count", false, "Only print the number of matching requests");
+		Option threadsOpt = new Option("n", "threads", true, "Number of scanning threads (default: all processors)");
+		threadsOpt.setArgName("count");
+		s_cmdline_options.addOption(threadsOpt);
+
+		CommandLineParser parser = new DefaultParser();
+		try
+		{
+			CommandLine cmd = parser.parse(s_cmdline_options, args);
+
+			if (cmd.hasOption("h") || cmd.getArgs().length == 0)
+			{
+				printUsage();
+				System.exit(0);
+			}
+
+			JournalDecoder decoder = new JournalDecoder();
+			if (cmd.hasOption("i"))
+			{
+				String spec = cmd.getOptionValue("i");
+				int slash = spec.indexOf('/');
+				byte[] address = InetAddress.getByName(slash < 0 ? spec : spec.substring(0, slash)).getAddress();
+				int prefix = address.length * 8;
+				if (slash >= 0)
+				{
+					try
+					{
+						prefix = Integer.parseInt(spec.substring(slash + 1));
+					}
+					catch (NumberFormatException e)
+					{
+						throw new IllegalArgumentException("Invalid prefix length: " + spec);
+					}
+				}
+				decoder.setAddressFilter(address, prefix);
+			}
+			decoder.setTimeRange(
+					cmd.hasOption("f") ? parseTime(cmd.getOptionValue("f")) : Long.MIN_VALUE,
+					cmd.hasOption("t") ? parseTime(cmd.getOptionValue("t")) : Long.MAX_VALUE);
+			if (cmd.hasOption("p"))
+			{
+				String name = cmd.getOptionValue("p");
+				byte protocol = 0;
+				for (byte p = 1; p <= TimeServer.PROTOCOL_COUNT; p++)
+				{
+					if (TimeServer.protocolName(p).equalsIgnoreCase(name))
+					{
+						protocol = p;
+					}
+				}
+				if (protocol == 0)
+				{
+					throw new IllegalArgumentException("Unknown protocol: " + name);
+				}
+				decoder.setProtocolFilter(protocol);
+			}
+
+			List<File> files = new ArrayList<File>();
+			for (String arg : cmd.getArgs())
+			{
+				File file = new File(arg);
+				if (file.isDirectory())
+				{
+					for (long sequence : RequestJournal.listSegmentSequences(file))
+					{
+						files.add(new File(file, RequestJournal.segmentFileName(sequence)));
+					}
+				}
+				else
+				{
+					files.add(file);
+				}
+			}
+
+			int threads = Integer.parseInt(cmd.getOptionValue("n",
+					String.valueOf(Runtime.getRuntime().availableProcessors())));
+			ForkJoinPool pool = new ForkJoinPool(threads);
+			try
+			{
+				boolean countOnly = cmd.hasOption("c");
+				long matches = decoder.decode(files, System.out, countOnly, pool);
+				if (countOnly)
+				{
+					System.out.println(matches);
+				}
+				System.out.flush();
+			}
+			finally
+			{
+				pool.shutdown();
+			}
+		}
+		catch (ParseException | IllegalArgumentException | DateTimeParseException e)
+		{
+			System.err.println("Error parsing command line arguments:" +
+					System.lineSeparator() + e.getLocalizedMessage());
+
+			printUsage();
+
+			System.exit(1);
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+}
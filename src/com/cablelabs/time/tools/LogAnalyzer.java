@@ -0,0 +1,1259 @@
+/*
+ * Copyright 2017 Cable Television Laboratories, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cablelabs.time.tools;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import com.cablelabs.time.server.TimeServer;
+
+/**
+ * This class analyzes the request lines the TCP and UDP listeners print to the console
+ * ("Processing request from /1.2.3.4:5678; returned 3714000000 ( ... )").
+ *
+ * Log files are memory-mapped a chunk at a time, and the chunks are parsed in parallel on a
+ * fork-join pool; a chunk parses the lines that start in it, so every line is parsed once.  Lines
+ * are parsed byte by byte into primitive hash tables, without regular expressions or strings, and
+ * the tables of neighbouring chunks are merged in file order.  Each request is counted against
+ * its source address and against the second of the time value returned, so the analysis gives
+ * the request rate of each second and the busiest sources.  TCP sources are logged with their
+ * port and UDP sources without, so requests are also counted by transport.  Other lines (startup
+ * messages, statistics) are counted and skipped.
+ *
+ * The peak rate of a source assumes the log is in time order, as the console log of one server
+ * is; requests answered by workers may be logged slightly out of order, which can only lower it.
+ */
+public class LogAnalyzer
+{
+	public static final int DEFAULT_CHUNK_SIZE = 16 << 20;
+
+	// a line longer than this is not a request line, and is not read past the end of its chunk
+	private static final int MAX_LINE = 4096;
+
+	private static final byte[] REQUEST_PREFIX = "Processing request from ".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] VALUE_PREFIX = "; returned ".getBytes(StandardCharsets.US_ASCII);
+
+	// prefix of an IPv4-mapped IPv6 address, so both families share one key
+	private static final long IPV4_MAPPED = 0xFFFFL << 32;
+
+	private int m_chunkSize = DEFAULT_CHUNK_SIZE;
+
+	/**
+	 * Create an instance of a LogAnalyzer
+	 */
+	public LogAnalyzer()
+	{
+	}
+
+	/**
+	 * Set the size of the chunks parsed by each task
+	 * @param chunkSize Bytes, at least 4 KiB and at most 1 GiB
+	 */
+	public void setChunkSize(int chunkSize)
+	{
+		if (chunkSize < MAX_LINE || chunkSize > (1 << 30))
+		{
+			throw new IllegalArgumentException("Invalid chunk size: " + chunkSize);
+		}
+		m_chunkSize = chunkSize;
+	}
+
+	/**
+	 * Analyze log files
+	 * @param files Log files, in time order
+	 * @param pool Fork-join pool parsing the chunks
+	 * @return Analysis
+	 * @throws IOException On errors mapping the files
+	 */
+	public Result analyze(List<File> files, ForkJoinPool pool) throws IOException
+	{
+		long start = System.nanoTime();
+		_Counts counts = new _Counts();
+		long bytes = 0;
+		for (File file : files)
+		{
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try
+			{
+				long length = raf.length();
+				if (length > 0)
+				{
+					counts.merge(pool.invoke(new _ParseTask(raf.getChannel(), length, 0, length)));
+				}
+				bytes += length;
+			}
+			finally
+			{
+				raf.close();
+			}
+		}
+		return new Result(counts, bytes, System.nanoTime() - start);
+	}
+
+	/**
+	 * This class is a busy source of requests
+	 */
+	public static class Talker
+	{
+		private final InetAddress m_address;
+		private final long m_requests;
+		private final long m_firstSecond;
+		private final long m_lastSecond;
+		private final long m_peakRate;
+
+		/**
+		 * Create an instance of a Talker
+		 * @param address Source address
+		 * @param requests Number of requests
+		 * @param firstSecond Time value of the first request
+		 * @param lastSecond Time value of the last request
+		 * @param peakRate Largest number of requests in one second
+		 */
+		public Talker(InetAddress address, long requests, long firstSecond, long lastSecond, long peakRate)
+		{
+			m_address = address;
+			m_requests = requests;
+			m_firstSecond = firstSecond;
+			m_lastSecond = lastSecond;
+			m_peakRate = peakRate;
+		}
+
+		/**
+		 * Get the source address
+		 * @return Address
+		 */
+		public InetAddress getAddress()
+		{
+			return m_address;
+		}
+
+		/**
+		 * Get the number of requests of the source
+		 * @return Requests
+		 */
+		public long getRequests()
+		{
+			return m_requests;
+		}
+
+		/**
+		 * Get the time value returned to the first request of the source
+		 * @return Time Server value (seconds since 1900)
+		 */
+		public long getFirstSecond()
+		{
+			return m_firstSecond;
+		}
+
+		/**
+		 * Get the time value returned to the last request of the source
+		 * @return Time Server value (seconds since 1900)
+		 */
+		public long getLastSecond()
+		{
+			return m_lastSecond;
+		}
+
+		/**
+		 * Get the largest number of requests of the source in one second
+		 * @return Requests
+		 */
+		public long getPeakRate()
+		{
+			return m_peakRate;
+		}
+
+		/**
+		 * Get the mean request rate of the source, from its first request to its last
+		 * @return Requests per second
+		 */
+		public double getMeanRate()
+		{
+			return (double)m_requests / Math.max(1, m_lastSecond - m_firstSecond + 1);
+		}
+	}
+
+	/**
+	 * This class is the analysis of a set of log files
+	 */
+	public static class Result
+	{
+		private final _Counts m_counts;
+		private final long m_bytes;
+		private final long m_elapsedNanos;
+		// the seconds with requests, in time order, and their request counts, sorted
+		private final long[] m_seconds;
+		private final long[] m_rates;
+
+		/**
+		 * Create an instance of a Result
+		 * @param counts Merged counts of every file
+		 * @param bytes Bytes analyzed
+		 * @param elapsedNanos Analysis time
+		 */
+		private Result(_Counts counts, long bytes, long elapsedNanos)
+		{
+			m_counts = counts;
+			m_bytes = bytes;
+			m_elapsedNanos = elapsedNanos;
+
+			_SecondTable table = counts.m_secondTable;
+			m_seconds = new long[table.m_size];
+			for (int i = 0, j = 0; i < table.m_keys.length; i++)
+			{
+				if (table.m_counts[i] != 0)
+				{
+					m_seconds[j++] = table.m_keys[i];
+				}
+			}
+			Arrays.sort(m_seconds);
+			m_rates = new long[m_seconds.length];
+			for (int i = 0; i < m_seconds.length; i++)
+			{
+				m_rates[i] = table.get(m_seconds[i]);
+			}
+			Arrays.sort(m_rates);
+		}
+
+		/**
+		 * Get the number of lines read
+		 * @return Lines
+		 */
+		public long getLines()
+		{
+			return m_counts.m_lines;
+		}
+
+		/**
+		 * Get the number of request lines
+		 * @return Requests
+		 */
+		public long getRequests()
+		{
+			return m_counts.m_tcpRequests + m_counts.m_udpRequests;
+		}
+
+		/**
+		 * Get the number of requests logged by TCP listeners
+		 * @return Requests
+		 */
+		public long getTcpRequests()
+		{
+			return m_counts.m_tcpRequests;
+		}
+
+		/**
+		 * Get the number of requests logged by UDP listeners
+		 * @return Requests
+		 */
+		public long getUdpRequests()
+		{
+			return m_counts.m_udpRequests;
+		}
+
+		/**
+		 * Get the number of distinct sources
+		 * @return Sources
+		 */
+		public int getSources()
+		{
+			return m_counts.m_sourceTable.m_size;
+		}
+
+		/**
+		 * Get the number of seconds with at least one request
+		 * @return Seconds
+		 */
+		public int getActiveSeconds()
+		{
+			return m_seconds.length;
+		}
+
+		/**
+		 * Get the first second with a request
+		 * @return Time Server value (seconds since 1900), or 0 if there is no request
+		 */
+		public long getFirstSecond()
+		{
+			return (m_seconds.length > 0 ? m_seconds[0] : 0);
+		}
+
+		/**
+		 * Get the last second with a request
+		 * @return Time Server value (seconds since 1900), or 0 if there is no request
+		 */
+		public long getLastSecond()
+		{
+			return (m_seconds.length > 0 ? m_seconds[m_seconds.length - 1] : 0);
+		}
+
+		/**
+		 * Get the number of requests in one second
+		 * @param second Time Server value (seconds since 1900)
+		 * @return Requests
+		 */
+		public long getRate(long second)
+		{
+			return m_counts.m_secondTable.get(second);
+		}
+
+		/**
+		 * Get a percentile of the request rate over the seconds with requests
+		 * @param percentile Percentile (0 to 100)
+		 * @return Requests per second
+		 */
+		public long getRatePercentile(double percentile)
+		{
+			if (m_rates.length == 0)
+			{
+				return 0;
+			}
+			int index = (int)Math.ceil(percentile / 100 * m_rates.length) - 1;
+			return m_rates[Math.max(0, Math.min(m_rates.length - 1, index))];
+		}
+
+		/**
+		 * Get the busiest second
+		 * @return Time Server value (seconds since 1900), or 0 if there is no request
+		 */
+		public long getPeakSecond()
+		{
+			long peak = 0;
+			long peakSecond = 0;
+			for (long second : m_seconds)
+			{
+				long rate = getRate(second);
+				if (rate > peak)
+				{
+					peak = rate;
+					peakSecond = second;
+				}
+			}
+			return peakSecond;
+		}
+
+		/**
+		 * Get the sources with the most requests
+		 * @param count Maximum number of sources
+		 * @return Sources, busiest first
+		 */
+		public List<Talker> getTopTalkers(int count)
+		{
+			_SourceTable table = m_counts.m_sourceTable;
+			// insertion into a short sorted list of slots, so only the sources returned are created
+			int[] top = new int[Math.min(count, table.m_size)];
+			int found = 0;
+			for (int i = 0; i < table.m_counts.length && top.length > 0; i++)
+			{
+				long requests = table.m_counts[i];
+				if (requests == 0 || (found == top.length && requests <= table.m_counts[top[found - 1]]))
+				{
+					continue;
+				}
+				int j = (found < top.length ? found++ : found - 1);
+				while (j > 0 && table.m_counts[top[j - 1]] < requests)
+				{
+					top[j] = top[j - 1];
+					j--;
+				}
+				top[j] = i;
+			}
+
+			List<Talker> talkers = new ArrayList<Talker>();
+			for (int i = 0; i < found; i++)
+			{
+				talkers.add(table.getTalker(top[i]));
+			}
+			return talkers;
+		}
+
+		/**
+		 * Print the analysis
+		 * @param out Report destination
+		 * @param top Number of top talkers printed
+		 */
+		public void print(PrintStream out, int top)
+		{
+			double seconds = m_elapsedNanos / 1e9;
+			out.println("Read " + m_counts.m_lines + " lines (" + m_bytes / (1 << 20) + " MiB) in " +
+					TimeUnit.NANOSECONDS.toMillis(m_elapsedNanos) + " ms, " +
+					String.format("%.0f", m_bytes / 1048576.0 / Math.max(seconds, 1e-3)) + " MiB/s");
+			out.println("Requests: " + getRequests() + " (" + getTcpRequests() + " TCP, " + getUdpRequests() + " UDP), " +
+					(m_counts.m_lines - getRequests()) + " other lines");
+			if (m_seconds.length == 0)
+			{
+				return;
+			}
+
+			long span = getLastSecond() - getFirstSecond() + 1;
+			out.println("Span: " + formatSecond(getFirstSecond()) + " to " + formatSecond(getLastSecond()) + ", " +
+					span + " seconds, " + m_seconds.length + " with requests");
+			out.println("Rate: mean " + String.format("%.1f", (double)getRequests() / span) + "/s over the span, " +
+					"p50 " + getRatePercentile(50) + "/s p99 " + getRatePercentile(99) + "/s p99.9 " +
+					getRatePercentile(99.9) + "/s over the seconds with requests, peak " +
+					getRate(getPeakSecond()) + "/s at " + formatSecond(getPeakSecond()));
+			out.println("Sources: " + getSources());
+
+			List<Talker> talkers = getTopTalkers(top);
+			if (!talkers.isEmpty())
+			{
+				out.println("Top talkers:");
+				out.println(String.format("  %-39s %12s %7s %10s %8s", "source", "requests", "share", "mean/s", "peak/s"));
+				for (Talker talker : talkers)
+				{
+					out.println(String.format("  %-39s %12d %6.2f%% %10.2f %8d", talker.getAddress().getHostAddress(),
+							talker.getRequests(), 100.0 * talker.getRequests() / getRequests(), talker.getMeanRate(),
+							talker.getPeakRate()));
+				}
+			}
+		}
+
+		/**
+		 * Write the request rate of every second with requests, as CSV in time order
+		 * @param out Destination
+		 */
+		public void writeRates(PrintStream out)
+		{
+			out.println("time,requests");
+			for (long second : m_seconds)
+			{
+				out.println(TimeUnit.MILLISECONDS.toSeconds(TimeServer.timeServerValueToMillis(second)) + "," + getRate(second));
+			}
+		}
+
+		/**
+		 * Write the counts of every source, as CSV in no particular order
+		 * @param out Destination
+		 */
+		public void writeSources(PrintStream out)
+		{
+			out.println("source,requests,first,last,peak_per_second");
+			_SourceTable table = m_counts.m_sourceTable;
+			for (int i = 0; i < table.m_counts.length; i++)
+			{
+				if (table.m_counts[i] != 0)
+				{
+					Talker talker = table.getTalker(i);
+					out.println(talker.getAddress().getHostAddress() + "," + talker.getRequests() + "," +
+							TimeUnit.MILLISECONDS.toSeconds(TimeServer.timeServerValueToMillis(talker.getFirstSecond())) + "," +
+							TimeUnit.MILLISECONDS.toSeconds(TimeServer.timeServerValueToMillis(talker.getLastSecond())) + "," +
+							talker.getPeakRate());
+				}
+			}
+		}
+
+		private static String formatSecond(long second)
+		{
+			synchronized (TimeServer.getDateFormat())
+			{
+				return TimeServer.getDateFormat().format(new Date(TimeServer.timeServerValueToMillis(second)));
+			}
+		}
+	}
+
+	/**
+	 * This class counts the requests of one chunk, and then of the chunks merged into it
+	 */
+	private static class _Counts
+	{
+		private long m_lines = 0;
+		private long m_tcpRequests = 0;
+		private long m_udpRequests = 0;
+		private final _SourceTable m_sourceTable = new _SourceTable();
+		private final _SecondTable m_secondTable = new _SecondTable();
+
+		// the source address being parsed, as the two halves of an IPv6 address
+		private long m_high = 0;
+		private long m_low = 0;
+		private final int[] m_groups = new int[8];
+
+		/**
+		 * Merge the counts of the chunk that follows this one
+		 * @param later Counts of the next chunk
+		 */
+		public void merge(_Counts later)
+		{
+			m_lines += later.m_lines;
+			m_tcpRequests += later.m_tcpRequests;
+			m_udpRequests += later.m_udpRequests;
+			m_sourceTable.merge(later.m_sourceTable);
+			m_secondTable.merge(later.m_secondTable);
+		}
+
+		/**
+		 * Parse a line
+		 * @param buf Chunk buffer
+		 * @param start Offset of the line
+		 * @param end Offset of its end of line
+		 */
+		public void parseLine(ByteBuffer buf, int start, int end)
+		{
+			m_lines++;
+			int pos = match(buf, start, end, REQUEST_PREFIX);
+			if (pos < 0)
+			{
+				return;
+			}
+
+			// the source is "/address" for UDP and "/address:port" for TCP, possibly after a host name
+			int semicolon = indexOf(buf, pos, end, (byte)';');
+			int slash = indexOf(buf, pos, semicolon, (byte)'/');
+			if (semicolon < 0 || slash < 0)
+			{
+				return;
+			}
+			int transport = parseSource(buf, slash + 1, semicolon);
+			if (transport < 0)
+			{
+				return;
+			}
+
+			pos = match(buf, semicolon, end, VALUE_PREFIX);
+			if (pos < 0 || pos >= end)
+			{
+				return;
+			}
+			long second = 0;
+			int digits = 0;
+			for (; pos < end && digits < 19; pos++, digits++)
+			{
+				int digit = buf.get(pos) - '0';
+				if (digit < 0 || digit > 9)
+				{
+					break;
+				}
+				second = second * 10 + digit;
+			}
+			if (digits == 0 || second == 0)
+			{
+				return;
+			}
+
+			if (transport == 1)
+			{
+				m_tcpRequests++;
+			}
+			else
+			{
+				m_udpRequests++;
+			}
+			m_sourceTable.add(m_high, m_low, second);
+			m_secondTable.add(second, 1);
+		}
+
+		/**
+		 * Parse a source address into m_high and m_low
+		 * @param buf Chunk buffer
+		 * @param start Offset after the slash
+		 * @param end Offset of the semicolon
+		 * @return 1 for a source with a port (TCP), 0 without (UDP), -1 if it is not an address
+		 */
+		private int parseSource(ByteBuffer buf, int start, int end)
+		{
+			if (start < end && buf.get(start) == '[')
+			{
+				// [address]:port
+				int bracket = indexOf(buf, start, end, (byte)']');
+				return (bracket >= 0 && parseIpv6(buf, start + 1, bracket) ? 1 : -1);
+			}
+
+			int colons = 0;
+			int lastColon = -1;
+			boolean dotted = false;
+			for (int i = start; i < end; i++)
+			{
+				byte b = buf.get(i);
+				if (b == ':')
+				{
+					colons++;
+					lastColon = i;
+				}
+				else if (b == '.')
+				{
+					dotted = true;
+				}
+			}
+			if (dotted && colons <= 1)
+			{
+				int addressEnd = (colons == 1 ? lastColon : end);
+				return (parseIpv4(buf, start, addressEnd) ? colons : -1);
+			}
+			// IPv6 addresses are logged with all eight groups, so a ninth is the port
+			if (colons == 8)
+			{
+				return (parseIpv6(buf, start, lastColon) ? 1 : -1);
+			}
+			return (parseIpv6(buf, start, end) ? 0 : -1);
+		}
+
+		private boolean parseIpv4(ByteBuffer buf, int start, int end)
+		{
+			long address = 0;
+			int octets = 0;
+			int value = -1;
+			for (int i = start; i <= end; i++)
+			{
+				int b = (i < end ? buf.get(i) : '.');
+				if (b == '.')
+				{
+					if (value < 0 || value > 255 || ++octets > 4)
+					{
+						return false;
+					}
+					address = (address << 8) | value;
+					value = -1;
+				}
+				else if (b >= '0' && b <= '9')
+				{
+					value = Math.max(value, 0) * 10 + (b - '0');
+					if (value > 255)
+					{
+						return false;
+					}
+				}
+				else
+				{
+					return false;
+				}
+			}
+			if (octets != 4)
+			{
+				return false;
+			}
+			m_high = 0;
+			m_low = IPV4_MAPPED | address;
+			return true;
+		}
+
+		private boolean parseIpv6(ByteBuffer buf, int start, int end)
+		{
+			int groups = 0;
+			int gap = -1;
+			int value = -1;
+			int i = start;
+			if (end - start >= 2 && buf.get(start) == ':' && buf.get(start + 1) == ':')
+			{
+				gap = 0;
+				i += 2;
+			}
+			while (i <= end)
+			{
+				int b = (i < end ? buf.get(i) : ':');
+				// the scope does not identify the source
+				boolean last = (i == end || b == '%');
+				if (b == ':' || b == '%')
+				{
+					if (value < 0)
+					{
+						// only a trailing "::" leaves the last group empty
+						if (last && gap == groups)
+						{
+							break;
+						}
+						return false;
+					}
+					if (groups == 8)
+					{
+						return false;
+					}
+					m_groups[groups++] = value;
+					value = -1;
+					if (last)
+					{
+						break;
+					}
+					if (i + 1 < end && buf.get(i + 1) == ':')
+					{
+						if (gap >= 0)
+						{
+							return false;
+						}
+						gap = groups;
+						i++;
+					}
+				}
+				else
+				{
+					int digit = Character.digit(b, 16);
+					if (digit < 0 || value > 0xFFF)
+					{
+						return false;
+					}
+					value = Math.max(value, 0) * 16 + digit;
+				}
+				i++;
+			}
+			if (gap < 0 ? groups != 8 : groups > 7)
+			{
+				return false;
+			}
+
+			// expand the gap, filling the missing groups with zeroes
+			long high = 0;
+			long low = 0;
+			int missing = 8 - groups;
+			for (int n = 0, g = 0; n < 8; n++)
+			{
+				int group = 0;
+				if (gap < 0 || n < gap || n >= gap + missing)
+				{
+					group = m_groups[g++];
+				}
+				if (n < 4)
+				{
+					high = (high << 16) | group;
+				}
+				else
+				{
+					low = (low << 16) | group;
+				}
+			}
+			m_high = high;
+			m_low = low;
+			return true;
+		}
+
+		private static int match(ByteBuffer buf, int start, int end, byte[] text)
+		{
+			if (end - start < text.length)
+			{
+				return -1;
+			}
+			for (int i = 0; i < text.length; i++)
+			{
+				if (buf.get(start + i) != text[i])
+				{
+					return -1;
+				}
+			}
+			return start + text.length;
+		}
+
+		private static int indexOf(ByteBuffer buf, int start, int end, byte b)
+		{
+			for (int i = start; i < end; i++)
+			{
+				if (buf.get(i) == b)
+				{
+					return i;
+				}
+			}
+			return -1;
+		}
+	}
+
+	/**
+	 * This class is an open-addressing table of request counts by source address
+	 */
+	private static class _SourceTable
+	{
+		private long[] m_high = new long[1024];
+		private long[] m_low = new long[1024];
+		// a count of 0 marks a free slot
+		private long[] m_counts = new long[1024];
+		private long[] m_first = new long[1024];
+		private long[] m_last = new long[1024];
+		// requests in the first and last seconds, so runs that cross chunks are joined on merging
+		private long[] m_firstRun = new long[1024];
+		private long[] m_lastRun = new long[1024];
+		private long[] m_peak = new long[1024];
+		private int m_size = 0;
+
+		/**
+		 * Count a request
+		 * @param high High half of the address
+		 * @param low Low half of the address
+		 * @param second Time value returned
+		 */
+		public void add(long high, long low, long second)
+		{
+			int i = find(high, low);
+			if (m_counts[i] == 0)
+			{
+				insert(i, high, low, 1, second, second, 1, 1, 1);
+				return;
+			}
+			m_counts[i]++;
+			if (second == m_last[i])
+			{
+				m_lastRun[i]++;
+				if (m_first[i] == second)
+				{
+					m_firstRun[i] = m_lastRun[i];
+				}
+			}
+			else
+			{
+				m_last[i] = second;
+				m_lastRun[i] = 1;
+			}
+			m_peak[i] = Math.max(m_peak[i], m_lastRun[i]);
+		}
+
+		/**
+		 * Merge the table of the chunk that follows this one
+		 * @param later Table of the next chunk
+		 */
+		public void merge(_SourceTable later)
+		{
+			for (int j = 0; j < later.m_counts.length; j++)
+			{
+				if (later.m_counts[j] == 0)
+				{
+					continue;
+				}
+				int i = find(later.m_high[j], later.m_low[j]);
+				if (m_counts[i] == 0)
+				{
+					insert(i, later.m_high[j], later.m_low[j], later.m_counts[j], later.m_first[j], later.m_last[j],
+							later.m_firstRun[j], later.m_lastRun[j], later.m_peak[j]);
+					continue;
+				}
+
+				long peak = Math.max(m_peak[i], later.m_peak[j]);
+				long lastRun = later.m_lastRun[j];
+				if (m_last[i] == later.m_first[j])
+				{
+					// the same second continues in the next chunk
+					long joined = m_lastRun[i] + later.m_firstRun[j];
+					peak = Math.max(peak, joined);
+					if (m_first[i] == m_last[i])
+					{
+						m_firstRun[i] = joined;
+					}
+					if (later.m_first[j] == later.m_last[j])
+					{
+						lastRun = joined;
+					}
+				}
+				m_counts[i] += later.m_counts[j];
+				m_last[i] = later.m_last[j];
+				m_lastRun[i] = lastRun;
+				m_peak[i] = peak;
+			}
+		}
+
+		/**
+		 * Get the counts of a source
+		 * @param i Slot
+		 * @return Source
+		 */
+		public Talker getTalker(int i)
+		{
+			byte[] address = new byte[16];
+			for (int b = 0; b < 8; b++)
+			{
+				address[b] = (byte)(m_high[i] >>> (56 - 8 * b));
+				address[8 + b] = (byte)(m_low[i] >>> (56 - 8 * b));
+			}
+			try
+			{
+				// IPv4-mapped addresses come back as IPv4 addresses
+				return new Talker(InetAddress.getByAddress(address), m_counts[i], m_first[i], m_last[i], m_peak[i]);
+			}
+			catch (UnknownHostException e)
+			{
+				throw new IllegalStateException(e);
+			}
+		}
+
+		private int find(long high, long low)
+		{
+			int mask = m_counts.length - 1;
+			long hash = (high * 0x9E3779B97F4A7C15L ^ low) * 0xC2B2AE3D27D4EB4FL;
+			int i = (int)(hash ^ (hash >>> 32)) & mask;
+			while (m_counts[i] != 0 && (m_high[i] != high || m_low[i] != low))
+			{
+				i = (i + 1) & mask;
+			}
+			return i;
+		}
+
+		private void insert(int i, long high, long low, long count, long first, long last, long firstRun, long lastRun, long peak)
+		{
+			m_high[i] = high;
+			m_low[i] = low;
+			m_counts[i] = count;
+			m_first[i] = first;
+			m_last[i] = last;
+			m_firstRun[i] = firstRun;
+			m_lastRun[i] = lastRun;
+			m_peak[i] = peak;
+			if (++m_size * 2 > m_counts.length)
+			{
+				grow();
+			}
+		}
+
+		private void grow()
+		{
+			long[] high = m_high;
+			long[] low = m_low;
+			long[] counts = m_counts;
+			long[] first = m_first;
+			long[] last = m_last;
+			long[] firstRun = m_firstRun;
+			long[] lastRun = m_lastRun;
+			long[] peak = m_peak;
+			int capacity = counts.length * 2;
+			m_high = new long[capacity];
+			m_low = new long[capacity];
+			m_counts = new long[capacity];
+			m_first = new long[capacity];
+			m_last = new long[capacity];
+			m_firstRun = new long[capacity];
+			m_lastRun = new long[capacity];
+			m_peak = new long[capacity];
+			for (int j = 0; j < counts.length; j++)
+			{
+				if (counts[j] != 0)
+				{
+					int i = find(high[j], low[j]);
+					m_high[i] = high[j];
+					m_low[i] = low[j];
+					m_counts[i] = counts[j];
+					m_first[i] = first[j];
+					m_last[i] = last[j];
+					m_firstRun[i] = firstRun[j];
+					m_lastRun[i] = lastRun[j];
+					m_peak[i] = peak[j];
+				}
+			}
+		}
+	}
+
+	/**
+	 * This class is an open-addressing table of request counts by second
+	 */
+	private static class _SecondTable
+	{
+		private long[] m_keys = new long[1024];
+		// a count of 0 marks a free slot
+		private long[] m_counts = new long[1024];
+		private int m_size = 0;
+
+		/**
+		 * Count requests
+		 * @param second Time value returned
+		 * @param count Number of requests
+		 */
+		public void add(long second, long count)
+		{
+			int i = find(second);
+			if (m_counts[i] != 0)
+			{
+				m_counts[i] += count;
+				return;
+			}
+			m_keys[i] = second;
+			m_counts[i] = count;
+			if (++m_size * 2 > m_counts.length)
+			{
+				grow();
+			}
+		}
+
+		/**
+		 * Get the requests of a second
+		 * @param second Time value
+		 * @return Requests
+		 */
+		public long get(long second)
+		{
+			return m_counts[find(second)];
+		}
+
+		/**
+		 * Merge the table of another chunk
+		 * @param other Table of the other chunk
+		 */
+		public void merge(_SecondTable other)
+		{
+			for (int j = 0; j < other.m_counts.length; j++)
+			{
+				if (other.m_counts[j] != 0)
+				{
+					add(other.m_keys[j], other.m_counts[j]);
+				}
+			}
+		}
+
+		private int find(long second)
+		{
+			int mask = m_counts.length - 1;
+			long hash = second * 0x9E3779B97F4A7C15L;
+			int i = (int)(hash ^ (hash >>> 32)) & mask;
+			while (m_counts[i] != 0 && m_keys[i] != second)
+			{
+				i = (i + 1) & mask;
+			}
+			return i;
+		}
+
+		private void grow()
+		{
+			long[] keys = m_keys;
+			long[] counts = m_counts;
+			m_keys = new long[keys.length * 2];
+			m_counts = new long[counts.length * 2];
+			for (int j = 0; j < counts.length; j++)
+			{
+				if (counts[j] != 0)
+				{
+					int i = find(keys[j]);
+					m_keys[i] = keys[j];
+					m_counts[i] = counts[j];
+				}
+			}
+		}
+	}
+
+	/**
+	 * This class parses the lines starting in a range of a file, splitting it in half until it is
+	 * small enough
+	 */
+	private class _ParseTask extends RecursiveTask<_Counts>
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final FileChannel m_channel;
+		private final long m_length;
+		private final long m_start;
+		private final long m_end;
+
+		/**
+		 * Create an instance of a _ParseTask
+		 * @param channel File channel
+		 * @param length File length
+		 * @param start Offset of the range
+		 * @param end Offset after the range
+		 */
+		public _ParseTask(FileChannel channel, long length, long start, long end)
+		{
+			m_channel = channel;
+			m_length = length;
+			m_start = start;
+			m_end = end;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * @see java.util.concurrent.RecursiveTask#compute()
+		 */
+		@Override
+		protected _Counts compute()
+		{
+			if (m_end - m_start > m_chunkSize)
+			{
+				long mid = (m_start + m_end) >>> 1;
+				_ParseTask left = new _ParseTask(m_channel, m_length, m_start, mid);
+				_ParseTask right = new _ParseTask(m_channel, m_length, mid, m_end);
+				left.fork();
+				_Counts later = right.compute();
+				_Counts counts = left.join();
+				counts.merge(later);
+				return counts;
+			}
+
+			_Counts counts = new _Counts();
+			// map the byte before the range, to see whether a line starts at the range, and
+			// enough after it to finish the last line
+			long mapStart = Math.max(0, m_start - 1);
+			long mapEnd = Math.min(m_length, m_end + MAX_LINE);
+			ByteBuffer buf;
+			try
+			{
+				buf = m_channel.map(FileChannel.MapMode.READ_ONLY, mapStart, mapEnd - mapStart);
+			}
+			catch (IOException e)
+			{
+				throw new IllegalStateException("Unable to map the log: " + e.getLocalizedMessage(), e);
+			}
+
+			int end = (int)(m_end - mapStart);
+			int limit = buf.limit();
+			int pos = (int)(m_start - mapStart);
+			if (m_start > 0 && buf.get(pos - 1) != '\n')
+			{
+				// the line started in the previous range
+				while (pos < limit && buf.get(pos) != '\n')
+				{
+					pos++;
+				}
+				pos++;
+			}
+			while (pos < end)
+			{
+				int eol = pos;
+				while (eol < limit && buf.get(eol) != '\n')
+				{
+					eol++;
+				}
+				if (eol == limit && mapEnd < m_length)
+				{
+					// longer than any request line: count it and leave the rest to the next range
+					counts.m_lines++;
+					break;
+				}
+				int lineEnd = (eol > pos && buf.get(eol - 1) == '\r' ? eol - 1 : eol);
+				counts.parseLine(buf, pos, lineEnd);
+				pos = eol + 1;
+			}
+			return counts;
+		}
+	}
+
+	private static Options s_cmdline_options = null;
+
+	/**
+	 * Print the command usage
+	 */
+	public static void printUsage()
+	{
+		String usage = LogAnalyzer.class.getSimpleName() + " Usage: [options] <log files...>" + System.lineSeparator();
+
+		if (s_cmdline_options != null)
+		{
+			Iterator<Option> iter = s_cmdline_options.getOptions().iterator();
+			while (iter.hasNext())
+			{
+				Option opt = iter.next();
+				usage += System.lineSeparator() +
+						"-" + opt.getOpt() +
+						(opt.hasLongOpt() ? " (--" + opt.getLongOpt() + ")" : "") +
+						(opt.hasArg() ? " <" + (opt.hasArgName() ? opt.getArgName() : "value") + ">" : "") +
+						" : " + opt.getDescription();
+			}
+		}
+
+		System.out.println(usage + System.lineSeparator());
+	}
+
+	/**
+	 * Write a CSV file
+	 * @param file File name
+	 * @param result Analysis
+	 * @param rates True for the rates of each second, false for the counts of each source
+	 * @throws IOException if the file cannot be written
+	 */
+	private static void writeCsv(String file, Result result, boolean rates) throws IOException
+	{
+		PrintStream out = new PrintStream(new FileOutputStream(file), false, "UTF-8");
+		try
+		{
+			if (rates)
+			{
+				result.writeRates(out);
+			}
+			else
+			{
+				result.writeSources(out);
+			}
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	/**
+	 * Entry point of the application
+	 * @param args Command line parameters
+	 */
+	public static void main(String[] args)
+	{
+		s_cmdline_options = new Options();
+		s_cmdline_options.addOption("h", "help", false, "Print the command usage");
+		Option topOpt = new Option("k", "top", true, "Number of top talkers printed (default 20)");
+		topOpt.setArgName("count");
+		s_cmdline_options.addOption(topOpt);
+		Option ratesOpt = new Option("s", "per_second", true, "Write the requests of every second to this CSV file");
+		ratesOpt.setArgName("file");
+		s_cmdline_options.addOption(ratesOpt);
+		Option sourcesOpt = new Option("i", "per_ip", true, "Write the requests of every source to this CSV file");
+		sourcesOpt.setArgName("file");
+		s_cmdline_options.addOption(sourcesOpt);
+		Option threadsOpt = new Option("n", "threads", true, "Number of parsing threads (default: all processors)");
+		threadsOpt.setArgName("count");
+		s_cmdline_options.addOption(threadsOpt);
+
+		CommandLineParser parser = new DefaultParser();
+		try
+		{
+			CommandLine cmd = parser.parse(s_cmdline_options, args);
+
+			if (cmd.hasOption("h") || cmd.getArgs().length == 0)
+			{
+				printUsage();
+				System.exit(0);
+			}
+
+			List<File> files = new ArrayList<File>();
+			for (String arg : cmd.getArgs())
+			{
+				files.add(new File(arg));
+			}
+			ForkJoinPool pool = (cmd.hasOption("n") ? new ForkJoinPool(Integer.parseInt(cmd.getOptionValue("n"))) :
+				ForkJoinPool.commonPool());
+			Result result = new LogAnalyzer().analyze(files, pool);
+			result.print(System.out, Integer.parseInt(cmd.getOptionValue("k", "20")));
+			if (cmd.hasOption("s"))
+			{
+				writeCsv(cmd.getOptionValue("s"), result, true);
+			}
+			if (cmd.hasOption("i"))
+			{
+				writeCsv(cmd.getOptionValue("i"), result, false);
+			}
+		}
+		catch (ParseException | IllegalArgumentException e)
+		{
+			System.err.println("Error parsing command line arguments:" +
+					System.lineSeparator() + e.getLocalizedMessage());
+			printUsage();
+			System.exit(1);
+		}
+		catch (IOException | IllegalStateException e)
+		{
+			System.err.println("Error - " + e.getLocalizedMessage());
+			System.exit(1);
+		}
+	}
+}
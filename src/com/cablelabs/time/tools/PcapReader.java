@@ -0,0 +1,467 @@
+/*
+ * Copyright 2017 Cable Television Laboratories, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cablelabs.time.tools;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * This class reads the Time Protocol requests in a libpcap capture file.
+ *
+ * The file is memory-mapped, a window of up to {@link #WINDOW_SIZE} bytes at a time, and read in
+ * place: {@link #next()} moves to the next request and its fields are read from the reader, so
+ * nothing is allocated per packet.  A request is a UDP datagram to the server port, or a TCP SYN
+ * to it (the opening of an RFC868 connection); everything else, including the server responses, is
+ * skipped.  Ethernet (with VLAN tags), Linux cooked (v1 and v2), BSD loopback and raw IP captures of
+ * IPv4 and IPv6 are understood.  pcapng files are not; convert them with
+ * <code>editcap -F pcap</code>.
+ */
+public class PcapReader implements Closeable
+{
+	public static final int WINDOW_SIZE = 1 << 30;
+
+	private static final int MAGIC_MICROS = 0xA1B2C3D4;
+	private static final int MAGIC_NANOS = 0xA1B23C4D;
+	private static final int MAGIC_PCAPNG = 0x0A0D0D0A;
+
+	private static final int GLOBAL_HEADER_SIZE = 24;
+	private static final int RECORD_HEADER_SIZE = 16;
+
+	// link types
+	private static final int LINK_NULL = 0;
+	private static final int LINK_ETHERNET = 1;
+	private static final int LINK_RAW_BSD = 12;
+	private static final int LINK_RAW_OPENBSD = 14;
+	private static final int LINK_RAW = 101;
+	private static final int LINK_LOOP = 108;
+	private static final int LINK_LINUX_SLL = 113;
+	private static final int LINK_LINUX_SLL2 = 276;
+
+	private static final int ETHERTYPE_IPV4 = 0x0800;
+	private static final int ETHERTYPE_IPV6 = 0x86DD;
+	private static final int ETHERTYPE_VLAN = 0x8100;
+	private static final int ETHERTYPE_QINQ = 0x88A8;
+
+	private static final int IP_TCP = 6;
+	private static final int IP_UDP = 17;
+
+	private static final int TCP_SYN = 0x02;
+	private static final int TCP_ACK = 0x10;
+
+	private final RandomAccessFile m_file;
+	private final FileChannel m_channel;
+	private final long m_length;
+	private final int m_port;
+	private final int m_linkType;
+	private final boolean m_nanos;
+	private final ByteOrder m_order;
+
+	private MappedByteBuffer m_window = null;
+	private long m_windowStart = 0;
+	private long m_position = GLOBAL_HEADER_SIZE;
+
+	private long m_packets = 0;
+	private long m_skipped = 0;
+	private long m_requests = 0;
+
+	// the current request
+	private long m_timeNanos = 0;
+	private boolean m_tcp = false;
+	private int m_sourceOffset = 0;
+	private int m_sourceLength = 0;
+	private int m_payloadOffset = 0;
+	private int m_payloadLength = 0;
+
+	/**
+	 * Create an instance of a PcapReader
+	 * @param file Capture file
+	 * @param port Server port of the requests read
+	 * @throws IOException if the file cannot be read or is not a pcap file
+	 */
+	public PcapReader(File file, int port) throws IOException
+	{
+		m_file = new RandomAccessFile(file, "r");
+		try
+		{
+			m_channel = m_file.getChannel();
+			m_length = m_channel.size();
+			m_port = port;
+			if (m_length < GLOBAL_HEADER_SIZE)
+			{
+				throw new IOException(file + " is not a pcap file");
+			}
+			map(0);
+
+			int magic = m_window.order(ByteOrder.BIG_ENDIAN).getInt(0);
+			if (magic == MAGIC_MICROS || magic == MAGIC_NANOS)
+			{
+				m_order = ByteOrder.BIG_ENDIAN;
+			}
+			else if (Integer.reverseBytes(magic) == MAGIC_MICROS || Integer.reverseBytes(magic) == MAGIC_NANOS)
+			{
+				m_order = ByteOrder.LITTLE_ENDIAN;
+				magic = Integer.reverseBytes(magic);
+			}
+			else if (magic == MAGIC_PCAPNG)
+			{
+				throw new IOException(file + " is a pcapng file; convert it with editcap -F pcap");
+			}
+			else
+			{
+				throw new IOException(file + " is not a pcap file");
+			}
+			m_window.order(m_order);
+			m_nanos = (magic == MAGIC_NANOS);
+			m_linkType = m_window.getInt(20) & 0xFFFF;
+			if (linkHeaderSize(-1) < 0)
+			{
+				throw new IOException("Unsupported link type " + m_linkType + " in " + file);
+			}
+		}
+		catch (IOException e)
+		{
+			m_file.close();
+			throw e;
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see java.io.Closeable#close()
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		m_window = null;
+		m_file.close();
+	}
+
+	/**
+	 * Move to the next request
+	 * @return True if there is one, false at the end of the file (or of its last whole packet)
+	 */
+	public boolean next()
+	{
+		while (m_position + RECORD_HEADER_SIZE <= m_length)
+		{
+			int captured = (int)(readHeader(m_position + 8) & 0x7FFFFFFF);
+			long record = m_position;
+			m_position += RECORD_HEADER_SIZE + captured;
+			if (m_position > m_length)
+			{
+				// truncated by the end of the capture
+				return false;
+			}
+			m_packets++;
+
+			if (record + RECORD_HEADER_SIZE + captured > m_windowStart + m_window.limit())
+			{
+				if (RECORD_HEADER_SIZE + captured > WINDOW_SIZE)
+				{
+					m_skipped++;
+					continue;
+				}
+				map(record);
+			}
+			int start = (int)(record - m_windowStart);
+			if (parse(start + RECORD_HEADER_SIZE, captured))
+			{
+				long seconds = m_window.getInt(start) & 0xFFFFFFFFL;
+				long fraction = m_window.getInt(start + 4) & 0xFFFFFFFFL;
+				m_timeNanos = seconds * 1000000000L + (m_nanos ? fraction : fraction * 1000);
+				m_requests++;
+				return true;
+			}
+			m_skipped++;
+		}
+		return false;
+	}
+
+	/**
+	 * Get the capture time of the request
+	 * @return Nanoseconds since 1970
+	 */
+	public long getTimeNanos()
+	{
+		return m_timeNanos;
+	}
+
+	/**
+	 * Get the transport of the request
+	 * @return True for a TCP connection, false for a UDP datagram
+	 */
+	public boolean isTcp()
+	{
+		return m_tcp;
+	}
+
+	/**
+	 * Get the length of the source address of the request
+	 * @return 4 for IPv4, 16 for IPv6
+	 */
+	public int getSourceLength()
+	{
+		return m_sourceLength;
+	}
+
+	/**
+	 * Get a byte of the source address of the request
+	 * @param index Index, below {@link #getSourceLength()}
+	 * @return Byte
+	 */
+	public byte getSourceByte(int index)
+	{
+		return m_window.get(m_sourceOffset + index);
+	}
+
+	/**
+	 * Get the length of the UDP payload of the request
+	 * @return Bytes captured (0 for TCP)
+	 */
+	public int getPayloadLength()
+	{
+		return m_payloadLength;
+	}
+
+	/**
+	 * Copy the UDP payload of the request
+	 * @param payload Destination, at least {@link #getPayloadLength()} long
+	 */
+	public void getPayload(byte[] payload)
+	{
+		for (int i = 0; i < m_payloadLength; i++)
+		{
+			payload[i] = m_window.get(m_payloadOffset + i);
+		}
+	}
+
+	/**
+	 * Get the number of packets read
+	 * @return Count
+	 */
+	public long getPackets()
+	{
+		return m_packets;
+	}
+
+	/**
+	 * Get the number of packets read that were not requests
+	 * @return Count
+	 */
+	public long getSkipped()
+	{
+		return m_skipped;
+	}
+
+	/**
+	 * Get the number of requests read
+	 * @return Count
+	 */
+	public long getRequests()
+	{
+		return m_requests;
+	}
+
+	/**
+	 * Map the window starting at an offset of the file
+	 * @param start File offset
+	 */
+	private void map(long start)
+	{
+		try
+		{
+			m_window = m_channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(WINDOW_SIZE, m_length - start));
+		}
+		catch (IOException e)
+		{
+			throw new IllegalStateException("Unable to map the capture at " + start, e);
+		}
+		if (m_order != null)
+		{
+			m_window.order(m_order);
+		}
+		m_windowStart = start;
+	}
+
+	/**
+	 * Read an int of a record header, mapping the window it is in if need be
+	 * @param offset File offset
+	 * @return Value
+	 */
+	private long readHeader(long offset)
+	{
+		if (offset + 4 > m_windowStart + m_window.limit())
+		{
+			map(offset - 8);
+		}
+		return m_window.getInt((int)(offset - m_windowStart));
+	}
+
+	/**
+	 * Get the size of the link-layer header of a packet
+	 * @param pos Window offset of the packet, or -1 to check that the link type is supported
+	 * @return Size, or -1 if the packet (or link type) is not IP
+	 */
+	private int linkHeaderSize(int pos)
+	{
+		switch (m_linkType)
+		{
+		case LINK_RAW:
+		case LINK_RAW_BSD:
+		case LINK_RAW_OPENBSD:
+			return 0;
+		case LINK_NULL:
+		case LINK_LOOP:
+			// the address family; only IPv4 has the same value everywhere, so look at the version
+			return 4;
+		case LINK_ETHERNET:
+			return (pos < 0 ? 0 : ethernetHeaderSize(pos));
+		case LINK_LINUX_SLL:
+			return (pos < 0 ? 0 : ipEthertype(u16(pos + 14)) ? 16 : -1);
+		case LINK_LINUX_SLL2:
+			return (pos < 0 ? 0 : ipEthertype(u16(pos)) ? 20 : -1);
+		default:
+			return -1;
+		}
+	}
+
+	/**
+	 * Get the size of an Ethernet header, with its VLAN tags
+	 * @param pos Window offset of the frame
+	 * @return Size, or -1 if the frame is not IP
+	 */
+	private int ethernetHeaderSize(int pos)
+	{
+		int size = 14;
+		int type = u16(pos + 12);
+		while (type == ETHERTYPE_VLAN || type == ETHERTYPE_QINQ)
+		{
+			type = u16(pos + size + 2);
+			size += 4;
+		}
+		return (ipEthertype(type) ? size : -1);
+	}
+
+	private static boolean ipEthertype(int type)
+	{
+		return (type == ETHERTYPE_IPV4 || type == ETHERTYPE_IPV6);
+	}
+
+	/**
+	 * Parse a packet, and keep it as the current request if it is one
+	 * @param pos Window offset of the packet
+	 * @param captured Bytes captured
+	 * @return True if the packet is a request
+	 */
+	private boolean parse(int pos, int captured)
+	{
+		int end = pos + captured;
+		// the link header must be there before it is looked at
+		if (captured < 20)
+		{
+			return false;
+		}
+		int link = linkHeaderSize(pos);
+		if (link < 0 || pos + link + 20 > end)
+		{
+			return false;
+		}
+
+		int ip = pos + link;
+		int version = (m_window.get(ip) & 0xF0) >> 4;
+		int protocol;
+		int transport;
+		if (version == 4)
+		{
+			int headerLength = (m_window.get(ip) & 0x0F) * 4;
+			if ((u16(ip + 6) & 0x1FFF) != 0)
+			{
+				// a later fragment: no transport header
+				return false;
+			}
+			protocol = m_window.get(ip + 9) & 0xFF;
+			m_sourceOffset = ip + 12;
+			m_sourceLength = 4;
+			transport = ip + headerLength;
+		}
+		else if (version == 6)
+		{
+			if (ip + 40 > end)
+			{
+				return false;
+			}
+			protocol = m_window.get(ip + 6) & 0xFF;
+			m_sourceOffset = ip + 8;
+			m_sourceLength = 16;
+			transport = ip + 40;
+			// hop-by-hop, routing and destination options headers
+			while ((protocol == 0 || protocol == 43 || protocol == 60) && transport + 8 <= end)
+			{
+				protocol = m_window.get(transport) & 0xFF;
+				transport += ((m_window.get(transport + 1) & 0xFF) + 1) * 8;
+			}
+		}
+		else
+		{
+			return false;
+		}
+
+		if (protocol == IP_UDP)
+		{
+			if (transport + 8 > end || u16(transport + 2) != m_port)
+			{
+				return false;
+			}
+			m_tcp = false;
+			m_payloadOffset = transport + 8;
+			m_payloadLength = Math.max(0, Math.min(u16(transport + 4) - 8, end - m_payloadOffset));
+			return true;
+		}
+		if (protocol == IP_TCP)
+		{
+			if (transport + 14 > end || u16(transport + 2) != m_port)
+			{
+				return false;
+			}
+			int flags = m_window.get(transport + 13);
+			if ((flags & (TCP_SYN | TCP_ACK)) != TCP_SYN)
+			{
+				return false;
+			}
+			m_tcp = true;
+			m_payloadOffset = transport;
+			m_payloadLength = 0;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Read a network-order unsigned short
+	 * @param pos Window offset
+	 * @return Value
+	 */
+	private int u16(int pos)
+	{
+		return ((m_window.get(pos) & 0xFF) << 8) | (m_window.get(pos + 1) & 0xFF);
+	}
+}
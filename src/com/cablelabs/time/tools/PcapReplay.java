@@ -0,0 +1,455 @@
+/*
+ * Copyright 2017 Cable Television Laboratories, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cablelabs.time.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import com.cablelabs.time.client.AsyncTimeClient;
+import com.cablelabs.time.client.TimeQueryResult;
+import com.cablelabs.time.server.CableLabsTimeServer;
+import com.cablelabs.time.server.LatencyHistogram;
+import com.cablelabs.time.server.TimeServer;
+
+/**
+ * This class replays the Time Protocol requests of a libpcap capture against a server.
+ *
+ * Each UDP request and TCP connection of the capture is sent again at its capture time relative
+ * to the first one, divided by the speed factor (or as fast as possible), so the bursts of the
+ * captured traffic are kept.  Requests go through an {@link AsyncTimeClient}, and by default to a
+ * {@link CableLabsTimeServer} started on loopback for the replay.  On Linux, each request can
+ * also be sent from a loopback address derived from its captured source, so the server sees the
+ * captured distribution of hosts and subnets.  The report gives the throughput, the requests that
+ * were not answered in time, and the latency percentiles.
+ */
+public class PcapReplay
+{
+	private static final int START_TIMEOUT_MS = 5000;
+
+	// waits longer than this are parked, and the rest is spun
+	private static final long SPIN_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+	private final File m_capture;
+	private int m_capturePort = TimeServer.TIME_SERVER_PORT;
+	private double m_speed = 1;
+	private int m_maxInFlight = 1024;
+	private long m_timeoutMs = 1000;
+	private InetSocketAddress m_target = null;
+	private boolean m_mapSources = false;
+
+	private final AtomicLong m_answered = new AtomicLong(0);
+	private final AtomicLong m_timeouts = new AtomicLong(0);
+	private final AtomicLong m_errors = new AtomicLong(0);
+	private final LatencyHistogram m_latency = new LatencyHistogram();
+
+	/**
+	 * Create an instance of a PcapReplay
+	 * @param capture Capture file
+	 */
+	public PcapReplay(File capture)
+	{
+		m_capture = capture;
+	}
+
+	/**
+	 * Set the server port of the captured requests
+	 * @param port Port (default 37)
+	 */
+	public void setCapturePort(int port)
+	{
+		m_capturePort = port;
+	}
+
+	/**
+	 * Set the replay speed
+	 * @param speed Factor applied to the captured rate (1 for the original timing), or 0 to send
+	 * every request as fast as possible
+	 */
+	public void setSpeed(double speed)
+	{
+		if (speed < 0)
+		{
+			throw new IllegalArgumentException("Invalid speed " + speed);
+		}
+		m_speed = speed;
+	}
+
+	/**
+	 * Set the client limits
+	 * @param maxInFlight Maximum number of requests waiting for a response
+	 * @param timeoutMs Time after which a request is counted as dropped
+	 */
+	public void setClient(int maxInFlight, long timeoutMs)
+	{
+		m_maxInFlight = maxInFlight;
+		m_timeoutMs = timeoutMs;
+	}
+
+	/**
+	 * Set a server to replay against, instead of starting one
+	 * @param target Server address, for both TCP and UDP, or null to start a server on loopback
+	 */
+	public void setTarget(InetSocketAddress target)
+	{
+		m_target = target;
+	}
+
+	/**
+	 * Send each request from a loopback address derived from its captured source (Linux only)
+	 * @param mapSources True to map the sources, false to send every request from one address
+	 */
+	public void setMapSources(boolean mapSources)
+	{
+		m_mapSources = mapSources;
+	}
+
+	/**
+	 * Get the number of requests answered by the last replay
+	 * @return Count
+	 */
+	public long getAnswered()
+	{
+		return m_answered.get();
+	}
+
+	/**
+	 * Get the number of requests of the last replay that were not answered in time
+	 * @return Count
+	 */
+	public long getTimeouts()
+	{
+		return m_timeouts.get();
+	}
+
+	/**
+	 * Get the number of requests of the last replay that failed
+	 * @return Count
+	 */
+	public long getErrors()
+	{
+		return m_errors.get();
+	}
+
+	/**
+	 * Get the latency of the requests answered by the last replay
+	 * @return Histogram of the round-trip times
+	 */
+	public LatencyHistogram getLatency()
+	{
+		return m_latency;
+	}
+
+	/**
+	 * Replay the capture and report it
+	 * @param out Report destination
+	 * @throws IOException if the capture cannot be read or the server cannot be started
+	 * @throws InterruptedException if interrupted while replaying
+	 */
+	public void run(PrintStream out) throws IOException, InterruptedException
+	{
+		m_answered.set(0);
+		m_timeouts.set(0);
+		m_errors.set(0);
+		m_latency.reset();
+
+		CableLabsTimeServer server = null;
+		InetSocketAddress tcpTarget = m_target;
+		InetSocketAddress udpTarget = m_target;
+		if (m_target == null)
+		{
+			server = new CableLabsTimeServer.Builder()
+					.setListenAddress("127.0.0.1")
+					.setPort(0)
+					.setRequestLogInterval(0)
+					.build();
+			try
+			{
+				List<InetSocketAddress> bound = server.start().get(START_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+				tcpTarget = bound.get(0);
+				udpTarget = bound.get(1);
+			}
+			catch (ExecutionException | TimeoutException e)
+			{
+				server.stopServer();
+				throw new IOException("Unable to start the server", e);
+			}
+		}
+
+		PcapReader reader = null;
+		AsyncTimeClient client = null;
+		try
+		{
+			reader = new PcapReader(m_capture, m_capturePort);
+			client = new AsyncTimeClient(m_maxInFlight, m_timeoutMs);
+			AsyncTimeClient.ResultListener listener = new AsyncTimeClient.ResultListener() {
+				public void onResult(TimeQueryResult result)
+				{
+					switch (result.getStatus())
+					{
+					case OK:
+						m_answered.incrementAndGet();
+						m_latency.record(result.getRttNanos());
+						break;
+					case TIMEOUT:
+						m_timeouts.incrementAndGet();
+						break;
+					default:
+						m_errors.incrementAndGet();
+						break;
+					}
+				}
+			};
+
+			long tcpRequests = 0;
+			long firstCaptureNanos = 0;
+			long lastCaptureNanos = 0;
+			long second = -1;
+			long secondRequests = 0;
+			long peakRate = 0;
+			long maxLagNanos = 0;
+			long startNanos = 0;
+			byte[] mapped = new byte[4];
+			mapped[0] = 127;
+
+			while (reader.next())
+			{
+				long captureNanos = reader.getTimeNanos();
+				if (reader.getRequests() == 1)
+				{
+					firstCaptureNanos = captureNanos;
+					startNanos = System.nanoTime();
+				}
+				lastCaptureNanos = Math.max(lastCaptureNanos, captureNanos);
+				if (captureNanos / 1000000000L != second)
+				{
+					second = captureNanos / 1000000000L;
+					secondRequests = 0;
+				}
+				peakRate = Math.max(peakRate, ++secondRequests);
+
+				long dueNanos = startNanos;
+				if (m_speed > 0)
+				{
+					// captures can be out of order by a few microseconds; those requests are just sent late
+					dueNanos += (long)(Math.max(0, captureNanos - firstCaptureNanos) / m_speed);
+					long waitNanos = dueNanos - System.nanoTime();
+					if (waitNanos > SPIN_NANOS)
+					{
+						LockSupport.parkNanos(waitNanos - SPIN_NANOS);
+					}
+					while (System.nanoTime() < dueNanos)
+					{
+						Thread.onSpinWait();
+					}
+				}
+
+				InetAddress local = null;
+				if (m_mapSources)
+				{
+					// keep the low 24 bits of IPv4 sources, and fold IPv6 sources by their /64
+					int offset = (reader.getSourceLength() == 4 ? 1 : 5);
+					for (int i = 0; i < 3; i++)
+					{
+						mapped[i + 1] = reader.getSourceByte(offset + i);
+					}
+					local = InetAddress.getByAddress(mapped);
+				}
+				boolean tcp = reader.isTcp();
+				if (tcp)
+				{
+					tcpRequests++;
+				}
+				client.query(null, (tcp ? tcpTarget : udpTarget), tcp, local, listener);
+				if (m_speed > 0)
+				{
+					maxLagNanos = Math.max(maxLagNanos, System.nanoTime() - dueNanos);
+				}
+			}
+			long sentNanos = System.nanoTime() - startNanos;
+			client.drain();
+			long elapsedNanos = System.nanoTime() - startNanos;
+
+			long requests = reader.getRequests();
+			double captureSeconds = (lastCaptureNanos - firstCaptureNanos) / 1e9;
+			out.println(String.format("Capture: %d requests (%d UDP, %d TCP) over %.3f s, peak %d/s; %d of %d packets skipped",
+					requests, requests - tcpRequests, tcpRequests, captureSeconds, peakRate,
+					reader.getSkipped(), reader.getPackets()));
+			if (requests == 0)
+			{
+				return;
+			}
+			out.println(String.format("Replay: %s speed, sent in %.3f s (%.0f/s), max %.3f ms behind schedule",
+					(m_speed > 0 ? m_speed + "x" : "maximum"), sentNanos / 1e9, requests / (sentNanos / 1e9),
+					maxLagNanos / 1e6));
+			out.println(String.format("Result: %d answered (%.0f/s), %d dropped (no answer in %d ms), %d errors",
+					m_answered.get(), m_answered.get() / (elapsedNanos / 1e9), m_timeouts.get(), m_timeoutMs, m_errors.get()));
+			out.println(String.format("Latency us: p50 %d, p90 %d, p99 %d, p99.9 %d, max %d",
+					TimeUnit.NANOSECONDS.toMicros(m_latency.getPercentile(50)),
+					TimeUnit.NANOSECONDS.toMicros(m_latency.getPercentile(90)),
+					TimeUnit.NANOSECONDS.toMicros(m_latency.getPercentile(99)),
+					TimeUnit.NANOSECONDS.toMicros(m_latency.getPercentile(99.9)),
+					TimeUnit.NANOSECONDS.toMicros(m_latency.getPercentile(100))));
+			if (server != null)
+			{
+				printServer("tcp", server.getTcpServer(), out);
+				printServer("udp", server.getUdpServer(), out);
+			}
+		}
+		finally
+		{
+			if (client != null)
+			{
+				client.close();
+			}
+			if (reader != null)
+			{
+				reader.close();
+			}
+			if (server != null)
+			{
+				server.stopServer();
+			}
+		}
+	}
+
+	/**
+	 * Report the counts of a listener
+	 * @param name Listener name
+	 * @param listener Listener
+	 * @param out Report destination
+	 */
+	private static void printServer(String name, TimeServer listener, PrintStream out)
+	{
+		out.println("Server " + name + ": " + listener.getReceivedCount() + " received, " +
+				listener.getAnsweredCount() + " answered, " + listener.getDroppedCount() + " dropped");
+	}
+
+	private static Options s_cmdline_options = null;
+
+	/**
+	 * Print the command usage
+	 */
+	public static void printUsage()
+	{
+		String usage = PcapReplay.class.getSimpleName() + " Usage: [options] <capture.pcap>" + System.lineSeparator();
+
+		if (s_cmdline_options != null)
+		{
+			Iterator<Option> iter = s_cmdline_options.getOptions().iterator();
+			while (iter.hasNext())
+			{
+				Option opt = iter.next();
+				usage += System.lineSeparator() + "-" + opt.getOpt() + (opt.hasLongOpt() ? " (--" + opt.getLongOpt() + ")" : "") +
+						(opt.hasArg() ? " <" + (opt.hasArgName() ? opt.getArgName() : "value") + ">" : "") +
+						" : " + opt.getDescription();
+			}
+		}
+
+		System.out.println(usage + System.lineSeparator());
+	}
+
+	/**
+	 * Entry point of the replay tool
+	 * @param args Command line parameters
+	 */
+	public static void main(String[] args)
+	{
+		s_cmdline_options = new Options();
+		s_cmdline_options.addOption("h", "help", false, "Print the command usage");
+		Option portOpt = new Option("p", "port", true, "Server port of the captured requests (default 37)");
+		portOpt.setArgName("port");
+		s_cmdline_options.addOption(portOpt);
+		Option speedOpt = new Option("x", "speed", true, "Replay speed relative to the capture, or 0 for as fast as possible (default 1)");
+		speedOpt.setArgName("factor");
+		s_cmdline_options.addOption(speedOpt);
+		Option inFlightOpt = new Option("c", "concurrency", true, "Maximum requests waiting for a response (default 1024)");
+		inFlightOpt.setArgName("count");
+		s_cmdline_options.addOption(inFlightOpt);
+		Option timeoutOpt = new Option("o", "timeout", true, "Time after which a request is counted as dropped (default 1000)");
+		timeoutOpt.setArgName("ms");
+		s_cmdline_options.addOption(timeoutOpt);
+		Option targetOpt = new Option("t", "target", true, "Replay against this server instead of one started on loopback");
+		targetOpt.setArgName("host:port");
+		s_cmdline_options.addOption(targetOpt);
+		s_cmdline_options.addOption("m", "map_sources", false, "Send each request from a 127/8 address derived from its source (Linux)");
+
+		CommandLineParser parser = new DefaultParser();
+		try
+		{
+			CommandLine cmd = parser.parse(s_cmdline_options, args);
+			if (cmd.hasOption("h"))
+			{
+				printUsage();
+				System.exit(0);
+			}
+			if (cmd.getArgs().length != 1)
+			{
+				throw new IllegalArgumentException("One capture file is required");
+			}
+
+			PcapReplay replay = new PcapReplay(new File(cmd.getArgs()[0]));
+			replay.setCapturePort(Integer.parseInt(cmd.getOptionValue("p", Integer.toString(TimeServer.TIME_SERVER_PORT))));
+			replay.setSpeed(Double.parseDouble(cmd.getOptionValue("x", "1")));
+			replay.setClient(Integer.parseInt(cmd.getOptionValue("c", "1024")), Long.parseLong(cmd.getOptionValue("o", "1000")));
+			if (cmd.hasOption("t"))
+			{
+				String target = cmd.getOptionValue("t");
+				int colon = target.lastIndexOf(':');
+				if (colon < 0)
+				{
+					throw new IllegalArgumentException("Invalid target " + target + ", expected host:port");
+				}
+				replay.setTarget(new InetSocketAddress(target.substring(0, colon), Integer.parseInt(target.substring(colon + 1))));
+			}
+			replay.setMapSources(cmd.hasOption("m"));
+			replay.run(System.out);
+		}
+		catch (ParseException | IllegalArgumentException e)
+		{
+			System.err.println("Error parsing command line arguments:" +
+					System.lineSeparator() + e.getLocalizedMessage());
+			printUsage();
+			System.exit(1);
+		}
+		catch (IOException | IllegalStateException e)
+		{
+			System.err.println("Error - " + e.getLocalizedMessage());
+			System.exit(1);
+		}
+		catch (InterruptedException e)
+		{
+			System.exit(1);
+		}
+	}
+}